@@ -56,7 +56,7 @@ import dk.dma.ais.sentence.Abk;
 import dk.dma.ais.sentence.SentenceException;
 import nz.co.fortytwo.signalk.ais.AisVesselInfo;
 import nz.co.fortytwo.signalk.model.SignalKModel;
-import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.model.impl.ScratchModel;
 import nz.co.fortytwo.signalk.util.Util;
 
 /**
@@ -69,6 +69,8 @@ import nz.co.fortytwo.signalk.util.Util;
 public class AISHandler {
 
 	private static Logger logger = LogManager.getLogger(AISHandler.class);
+	//the temporary model returned by handle, one per thread
+	private final ScratchModel scratch = new ScratchModel();
 
 	/**
 	 * Reader to parse lines and deliver complete AIS packets.
@@ -120,6 +122,8 @@ public class AISHandler {
 	 * HD-SF. Free raw AIS data feed for non-commercial use.
 	 * hd-sf.com:9009
 	 * 
+	 * The model returned is a new model the caller owns, so it can be kept, queued or passed to another thread.
+	 * 
 	 * @param bodyStr
 	 * @param device - the serial or other device the data was recieved over.
 	 * @return
@@ -137,7 +141,7 @@ public class AISHandler {
 		try {
 			List<AisPacket> packets = handleLine(bodyStr);
 			AisVesselInfo vInfo = null;
-			SignalKModel model = SignalKModelFactory.getCleanInstance();
+			ScratchModel.Builder model = scratch.get();
 			for (AisPacket packet : packets) {
 				if (packet != null && packet.isValidMessage()) {
 					// process message here
@@ -182,7 +186,7 @@ public class AISHandler {
 					}
 				}
 			}
-			return model;
+			return model.toModel();
 
 		} catch (Exception e) {
 			logger.debug(e.getMessage(), e);
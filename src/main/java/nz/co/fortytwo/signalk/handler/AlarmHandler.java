@@ -62,43 +62,8 @@ public class AlarmHandler {
 				//we check if there is a key.meta key
 				//only check SignalKConstants.self
 				if(!key.startsWith(vessels_dot_self_dot))continue;
-				if(logger.isDebugEnabled())logger.debug("Checking :"+key);
 				//remove .value
-				key=key.replace(dot+value,"");
-				Object metaZones = signalkModel.get(key+dot+meta+dot+zones);
-				
-				if(metaZones!=null && metaZones instanceof Json && ((Json)metaZones).isArray()){
-					if(logger.isDebugEnabled())logger.debug("Checking zones:"+metaZones);
-					//if zones is empty clear the alarms
-					//String alarmKey = vessels_dot_self_dot+alarms+dot+key.substring(vessels_dot_self_dot.length());
-					//zones object
-					AlarmManager alarmManager = new AlarmManager((Json) metaZones);
-					
-					if (((Json)metaZones).asJsonList().size()==0){
-						//clear all alarms.
-						alarmManager.setAlarm(signalkModel,key, normal,null);
-					}
-					Number val = (Number)signalkModel.getValue(key);
-					if(logger.isDebugEnabled())logger.debug("Checking value:"+val+"="+alarmManager.isAlarm(val));
-					//get key.value
-					if(alarmManager.isAlarm(val)){
-						//set the alarm in vessels.self.alarms.key
-						String msg = (String) signalkModel.get(key+dot+meta+dot+alarmMessage);
-						alarmManager.setAlarm(signalkModel,key, alarm, msg);
-						
-					}
-					if(alarmManager.isWarn(val)){
-						//set the alarm
-						String msg = (String) signalkModel.get(key+dot+meta+dot+warnMessage);
-						alarmManager.setAlarm(signalkModel,key, warn, msg);
-						
-					}
-					if(alarmManager.isNormal(val)){
-						//clear the alarms
-						alarmManager.setAlarm(signalkModel,key, normal,null);
-						
-					}
-				}
+				handle(signalkModel, key.replace(dot+value,""));
 			}
 
 		} catch (Exception e) {
@@ -107,6 +72,70 @@ public class AlarmHandler {
 	
 	}
 
+	/**
+	 * Checks one key against its key.meta.zones, and sets/unsets its alarm
+	 * @param signalkModel
+	 * @param key the key, without .value
+	 */
+	public void handle(SignalKModel signalkModel, String key) {
+		if(logger.isDebugEnabled())logger.debug("Checking :"+key);
+		Object metaZones = signalkModel.get(key+dot+meta+dot+zones);
+		
+		if(metaZones!=null && metaZones instanceof Json && ((Json)metaZones).isArray()){
+			if(logger.isDebugEnabled())logger.debug("Checking zones:"+metaZones);
+			//zones object
+			AlarmManager alarmManager = new AlarmManager((Json) metaZones);
+			
+			if (((Json)metaZones).asJsonList().size()==0){
+				//clear all alarms.
+				alarmManager.setAlarm(signalkModel,key, normal,null);
+			}
+			Number val = (Number)signalkModel.getValue(key);
+			if(logger.isDebugEnabled())logger.debug("Checking value:"+val+"="+alarmManager.isAlarm(val));
+			//get key.value
+			if(alarmManager.isAlarm(val)){
+				//set the alarm in vessels.self.notifications.key
+				String msg = (String) signalkModel.get(key+dot+meta+dot+alarmMessage);
+				alarmManager.setAlarm(signalkModel,key, alarm, msg);
+				
+			}
+			if(alarmManager.isWarn(val)){
+				//set the alarm
+				String msg = (String) signalkModel.get(key+dot+meta+dot+warnMessage);
+				alarmManager.setAlarm(signalkModel,key, warn, msg);
+				
+			}
+			if(alarmManager.isNormal(val)){
+				//clear the alarms
+				alarmManager.setAlarm(signalkModel,key, normal,null);
+				
+			}
+		}
+	}
+
+	/**
+	 * Check the alarm for each vessels.self key that has key.meta.zones when its value changes, rather than
+	 * scanning the whole model. Keys given zones later need registering again.
+	 * @param graph
+	 * @param signalkModel
+	 * @return the number of keys registered
+	 */
+	public int register(DerivedValueGraph graph, SignalKModel signalkModel) {
+		int count = 0;
+		String suffix = dot+meta+dot+zones;
+		for(String key : signalkModel.getKeys().subSet(vessels_dot_self_dot, true, vessels_dot_self_dot+Character.MAX_VALUE, false)){
+			if(!key.endsWith(suffix))continue;
+			final String zoned = key.substring(0, key.length()-suffix.length());
+			graph.add("alarm "+zoned, new String[]{zoned}, null, 0, new DerivedValueGraph.Calculation() {
+				@Override
+				public void calculate(SignalKModel model) {
+					handle(model, zoned);
+				}
+			});
+			count++;
+		}
+		return count;
+	}
 	
 
 	
@@ -46,6 +46,24 @@ public class DeclinationHandler {
 	
 	private TSAGeoMag geoMag = new TSAGeoMag();
 
+	/**
+	 * Calculate the declination in the graph when the position changes. It changes slowly, so
+	 * use a debounce to calculate it at most once per period.
+	 * @param graph
+	 * @param debounce millis
+	 */
+	public void register(DerivedValueGraph graph, long debounce) {
+		graph.add("declination",
+				new String[] { vessels_dot_self_dot + nav_position_latitude, vessels_dot_self_dot + nav_position_longitude },
+				new String[] { vessels_dot_self_dot + nav_magneticVariation },
+				debounce, new DerivedValueGraph.Calculation() {
+					@Override
+					public void calculate(SignalKModel model) {
+						handle(model);
+					}
+				});
+	}
+
 	public void handle(SignalKModel signalkModel ) {
 		logger.debug("Declination  calculation fired " );
 		Double lat = (Double) signalkModel.get(vessels_dot_self_dot+nav_position_latitude);
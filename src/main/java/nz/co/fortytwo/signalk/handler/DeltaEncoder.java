@@ -0,0 +1,356 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.CONTEXT;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.PATH;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.UPDATES;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.attr;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.meta;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.source;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.JsonSerializer;
+import nz.co.fortytwo.signalk.util.Utf8ByteSink;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes the vessels in a flat map straight to delta json, one delta per vessel and one line per delta.
+ * This does what JsonSerializer.writeJson followed by FullToDeltaConverter.handle does, in one ordered
+ * pass over the keys and without building a Json tree.
+ * <p>
+ * The keys of each object (eg navigation.position.latitude, navigation.position.timestamp) are next to each other
+ * in the sorted map, so they are collected until the object changes. The object then becomes a path/value pair in
+ * the update for its $source (or source) and timestamp. An object with a value key sends that value, otherwise
+ * its other keys are sent as an object value (eg latitude, longitude, altitude).
+ * The values, meta and _attr branches are not sent.
+ * </p><pre>
+ * {"context":"vessels.motu","updates":[{"$source":"nmea.0183.RMC","timestamp":"2016-03-30T08:06:18.556Z",
+ *   "values":[{"path":"navigation.position","value":{"altitude":0.0,"latitude":37.81306667,"longitude":-122.44718333}}]}]}
+ * </pre>
+ * Not thread safe, use one per thread.
+ * @author robert
+ *
+ */
+public class DeltaEncoder {
+
+	private static Logger logger = LogManager.getLogger(DeltaEncoder.class);
+
+	private static final String PREFIX = vessels + dot;
+	//the reserved segments that end an object path
+	private static final String[] ATTRS = { value, timestamp, sourceRef, source, values, meta, attr };
+	private static final int VALUE = 0, TIMESTAMP = 1, SOURCE_REF = 2, SOURCE = 3;
+
+	private final JsonSerializer ser;
+
+	//the updates for the current context, keyed by their source and timestamp
+	private final Map<String, StringBuilder> updates = new LinkedHashMap<String, StringBuilder>();
+	private String context;
+
+	//the current object
+	private String path;
+	private String fullKey;
+	private Object objValue;
+	private boolean hasValue;
+	private String objSourceRef;
+	private String objTimestamp;
+	private final List<Entry<String, Object>> valueFields = new ArrayList<Entry<String, Object>>();
+	private final List<Entry<String, Object>> fields = new ArrayList<Entry<String, Object>>();
+	private final List<Entry<String, Object>> sourceFields = new ArrayList<Entry<String, Object>>();
+
+	private final StringBuilder tmp = new StringBuilder();
+
+	public DeltaEncoder() {
+		this(new JsonSerializer());
+	}
+
+	/**
+	 * Use this (compact) serializer to write the values, eg to change the decimal places.
+	 * @param ser
+	 */
+	public DeltaEncoder(JsonSerializer ser) {
+		this.ser = ser;
+	}
+
+	/**
+	 * Write the vessels in the model as deltas
+	 * @param model
+	 * @param out
+	 * @return the number of deltas written
+	 * @throws IOException
+	 */
+	public int write(SignalKModel model, Appendable out) throws IOException {
+		return write(model.getSubMap(vessels), out);
+	}
+
+	/**
+	 * Write the vessels in the model as UTF-8 deltas, in chunks. The stream is flushed but not closed.
+	 * @param model
+	 * @param out
+	 * @return the number of deltas written
+	 * @throws IOException
+	 */
+	public int write(SignalKModel model, OutputStream out) throws IOException {
+		Utf8ByteSink sink = new Utf8ByteSink(out);
+		try {
+			return write(model.getSubMap(vessels), sink);
+		} finally {
+			sink.close();
+		}
+	}
+
+	/**
+	 * Write the keys under vessels in the map (eg a subMap of the model) as deltas, each followed by a newline.
+	 * Other keys are ignored.
+	 * @param map a sorted map of signalk keys
+	 * @param out
+	 * @return the number of deltas written
+	 * @throws IOException
+	 */
+	public int write(NavigableMap<String, Object> map, Appendable out) throws IOException {
+		int count = 0;
+		try {
+			for (Entry<String, Object> e : map.entrySet()) {
+				String key = e.getKey();
+				if (!key.startsWith(PREFIX))
+					continue;
+				int ctxEnd = key.indexOf('.', PREFIX.length());
+				if (ctxEnd < 0)
+					continue;
+				if (context == null || context.length() != ctxEnd || !key.startsWith(context)) {
+					endObject();
+					if (endContext(out))
+						count++;
+					context = key.substring(0, ctxEnd);
+				}
+				add(key, ctxEnd + 1, e.getValue());
+			}
+			endObject();
+			if (endContext(out))
+				count++;
+		} finally {
+			clear();
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Wrote " + count + " deltas");
+		return count;
+	}
+
+	/**
+	 * Add the key to the current object, or start a new one. The path starts at rel.
+	 */
+	private void add(String key, int rel, Object val) throws IOException {
+		//find the first reserved segment after the first one
+		int attrIdx = -1;
+		int attrStart = -1;
+		int segEnd = key.indexOf('.', rel);
+		while (segEnd >= 0) {
+			int segStart = segEnd + 1;
+			int next = key.indexOf('.', segStart);
+			int end = next < 0 ? key.length() : next;
+			for (int i = 0; i < ATTRS.length; i++) {
+				String a = ATTRS[i];
+				if (a.length() == end - segStart && key.startsWith(a, segStart)) {
+					attrIdx = i;
+					break;
+				}
+			}
+			if (attrIdx >= 0) {
+				attrStart = segStart;
+				break;
+			}
+			segEnd = next;
+		}
+		int pathEnd;
+		if (attrIdx >= 0) {
+			pathEnd = attrStart - 1;
+		} else {
+			pathEnd = key.lastIndexOf('.');
+			if (pathEnd < rel) {
+				//a primitive on the vessel, eg vessels.motu.name
+				pathEnd = key.length();
+			}
+		}
+		if (path == null || path.length() != pathEnd - rel || !key.startsWith(path, rel)) {
+			endObject();
+			path = key.substring(rel, pathEnd);
+			fullKey = key.substring(0, pathEnd);
+		}
+		if (pathEnd == key.length()) {
+			objValue = val;
+			hasValue = true;
+			return;
+		}
+		if (attrIdx < 0) {
+			fields.add(new SimpleImmutableEntry<String, Object>(key.substring(pathEnd + 1), val));
+			return;
+		}
+		int restStart = attrStart + ATTRS[attrIdx].length() + 1;
+		boolean hasRest = restStart < key.length();
+		switch (attrIdx) {
+		case VALUE:
+			if (hasRest) {
+				valueFields.add(new SimpleImmutableEntry<String, Object>(key.substring(restStart), val));
+			} else {
+				objValue = val;
+				hasValue = true;
+			}
+			break;
+		case TIMESTAMP:
+			if (!hasRest && val != null)
+				objTimestamp = val.toString();
+			break;
+		case SOURCE_REF:
+			if (!hasRest && val != null)
+				objSourceRef = val.toString();
+			break;
+		case SOURCE:
+			if (hasRest) {
+				sourceFields.add(new SimpleImmutableEntry<String, Object>(key.substring(restStart), val));
+			} else if (val != null) {
+				//an old style source reference
+				objSourceRef = val.toString();
+			}
+			break;
+		default:
+			//values, meta and _attr are not sent
+		}
+	}
+
+	/**
+	 * Add the current object to the update for its source and timestamp
+	 */
+	private void endObject() throws IOException {
+		if (path == null)
+			return;
+		try {
+			if (!hasValue && valueFields.isEmpty() && fields.isEmpty())
+				return;
+			//the update header is its key
+			tmp.setLength(0);
+			if (!sourceFields.isEmpty()) {
+				ser.writeValue(source, source, tmp);
+				tmp.append(':');
+				ser.write(sourceFields.iterator(), '.', tmp);
+				tmp.append(',');
+			} else if (objSourceRef != null) {
+				ser.writeValue(sourceRef, sourceRef, tmp);
+				tmp.append(':');
+				ser.writeValue(sourceRef, objSourceRef, tmp);
+				tmp.append(',');
+			}
+			if (objTimestamp != null) {
+				ser.writeValue(timestamp, timestamp, tmp);
+				tmp.append(':');
+				ser.writeValue(timestamp, objTimestamp, tmp);
+				tmp.append(',');
+			}
+			String header = tmp.toString();
+			StringBuilder update = updates.get(header);
+			if (update == null) {
+				update = new StringBuilder(256);
+				updates.put(header, update);
+			} else {
+				update.append(',');
+			}
+			update.append("{\"").append(PATH).append("\":");
+			ser.writeValue(PATH, path, update);
+			update.append(",\"").append(value).append("\":");
+			if (hasValue) {
+				ser.writeValue(fullKey, objValue, update);
+			} else {
+				Iterator<Entry<String, Object>> iter = valueFields.isEmpty() ? fields.iterator() : valueFields.iterator();
+				ser.write(iter, '.', update);
+			}
+			update.append('}');
+		} finally {
+			path = null;
+			fullKey = null;
+			objValue = null;
+			hasValue = false;
+			objSourceRef = null;
+			objTimestamp = null;
+			valueFields.clear();
+			fields.clear();
+			sourceFields.clear();
+		}
+	}
+
+	/**
+	 * Write the delta for the current context
+	 * @return true if a delta was written
+	 */
+	private boolean endContext(Appendable out) throws IOException {
+		if (context == null || updates.isEmpty())
+			return false;
+		StringBuilder sb = tmp;
+		sb.setLength(0);
+		sb.append("{\"").append(CONTEXT).append("\":");
+		ser.writeValue(CONTEXT, context, sb);
+		sb.append(",\"").append(UPDATES).append("\":[");
+		boolean first = true;
+		for (Entry<String, StringBuilder> u : updates.entrySet()) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append('{').append(u.getKey()).append('"').append(values).append("\":[").append(u.getValue()).append("]}");
+		}
+		sb.append("]}\n");
+		out.append(sb);
+		updates.clear();
+		return true;
+	}
+
+	private void clear() {
+		context = null;
+		path = null;
+		updates.clear();
+		valueFields.clear();
+		fields.clear();
+		sourceFields.clear();
+		if (tmp.capacity() > 65536) {
+			tmp.setLength(0);
+			tmp.trimToSize();
+		}
+	}
+}
@@ -0,0 +1,990 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.CONTEXT;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.PATH;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.PUT;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.UPDATES;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.label;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.source;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.type;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.UpdateBatch;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads a signalk delta straight from its text or UTF-8 bytes, and passes each value to a {@link Sink},
+ * without building a Json tree.
+ * <p>
+ * The input is read in place. If the context comes after the updates, or the values of an update come before its
+ * source and timestamp, the parser notes where they start, skips them, and comes back once it has what it needs.
+ * Strings are only created for the paths and String values, numbers are parsed without building a String where possible.
+ * </p><pre>
+ * DeltaParser parser = new DeltaParser();
+ * DeltaParser.ModelSink sink = new DeltaParser.ModelSink(model);
+ * parser.parse(bytes, sink);
+ * sink.apply();
+ * </pre>
+ * ModelSink writes the values to a SignalKModel as one UpdateBatch, MapSink writes the raw keys to a map.
+ * Not thread safe, use one per thread.
+ * @author robert
+ *
+ */
+public class DeltaParser {
+
+	private static Logger logger = LogManager.getLogger(DeltaParser.class);
+
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * Receives the values from a delta
+	 */
+	public interface Sink {
+		/**
+		 * Called once for each value with a path in an update, before its leaves.
+		 * @param path the full path, context.path
+		 * @param update the update the value is in, only valid during the call
+		 */
+		void path(String path, Update update);
+
+		/**
+		 * Called for each leaf of a value. A primitive or array value has the field 'value', the leaves of an
+		 * object value have their names inside it, eg 'latitude'. The key in the full model is path.field,
+		 * or just path if field is null (a null value).
+		 * @param path the full path, context.path
+		 * @param field
+		 * @param value a String, Long, Double, Boolean, Json array or null
+		 * @param update the update the value is in, only valid during the call
+		 */
+		void value(String path, String field, Object value, Update update);
+	}
+
+	/**
+	 * The context, source and timestamp of the update being read
+	 */
+	public static final class Update {
+		private String context;
+		private String sourceRef;
+		private String source;
+		private String timestamp;
+		private final List<Entry<String, Object>> sourceFields = new ArrayList<Entry<String, Object>>();
+
+		public String getContext() {
+			return context;
+		}
+
+		/**
+		 * The $source of the update, or null
+		 */
+		public String getSourceRef() {
+			return sourceRef;
+		}
+
+		/**
+		 * The source of the update if it is a String, or null
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		/**
+		 * The leaves of the source of the update if it is an object, eg label, type, src
+		 */
+		public List<Entry<String, Object>> getSourceFields() {
+			return Collections.unmodifiableList(sourceFields);
+		}
+
+		public String getTimestamp() {
+			return timestamp;
+		}
+
+		private void reset() {
+			sourceRef = null;
+			source = null;
+			timestamp = null;
+			sourceFields.clear();
+		}
+	}
+
+	/**
+	 * Writes the values to a map as raw keys, eg path.value, path.timestamp and path.source.label, the same keys
+	 * DeltaToMapConverter.handle(Json) puts in its model. Nothing is checked or arbitrated, use a ModelSink to write to a SignalKModel.
+	 */
+	public static class MapSink implements Sink {
+		private final Map<String, Object> map;
+
+		public MapSink(Map<String, Object> map) {
+			this.map = map;
+		}
+
+		@Override
+		public void path(String path, Update update) {
+			if (update.getSource() != null) {
+				map.put(path + dot + source, update.getSource());
+			}
+			for (Entry<String, Object> e : update.sourceFields) {
+				map.put(path + dot + source + dot + e.getKey(), e.getValue());
+			}
+			if (update.getSourceRef() != null) {
+				map.put(path + dot + sourceRef, update.getSourceRef());
+			}
+			if (update.getTimestamp() != null) {
+				map.put(path + dot + timestamp, update.getTimestamp());
+			}
+		}
+
+		@Override
+		public void value(String path, String field, Object value, Update update) {
+			map.put(field == null ? path : path + dot + field, value == null ? ObjectUtils.NULL : value);
+		}
+	}
+
+	/**
+	 * Collects the values into an UpdateBatch, which apply() passes to {@link SignalKModel#update(UpdateBatch)},
+	 * so the delta is checked and written as one unit, with its events and revisions.
+	 * <p>
+	 * A primitive value is put as for SignalKModel.put, so the model arbitrates its source and writes
+	 * path.value, path.timestamp and path.$source. The leaves of an object value (eg position.latitude)
+	 * are put at path.field, with path.timestamp and path.$source. The source of the update is
+	 * also put at path.source or path.source.*. A null value deletes the key, as for put.
+	 * </p>
+	 * The source name given to the model is the $source of the update, or its source if that is a String,
+	 * otherwise the label (or type) and src of the source object.
+	 */
+	public static class ModelSink implements Sink {
+		private static final String SRC = "src";
+		private final SignalKModel model;
+		private final UpdateBatch batch = new UpdateBatch();
+		//the source name and timestamp of the current path, and if its object leaves have had them written
+		private String ref;
+		private String ts;
+		private boolean stamped;
+
+		public ModelSink(SignalKModel model) {
+			this.model = model;
+		}
+
+		@Override
+		public void path(String path, Update update) {
+			ref = sourceRef(update);
+			ts = update.getTimestamp();
+			stamped = false;
+			if (update.getSource() != null) {
+				batch.putLeaf(path + dot + source, update.getSource());
+			}
+			for (Entry<String, Object> e : update.sourceFields) {
+				batch.putLeaf(path + dot + source + dot + e.getKey(), e.getValue());
+			}
+		}
+
+		@Override
+		public void value(String path, String field, Object val, Update update) {
+			if (val == null) {
+				batch.putLeaf(field == null ? path : path + dot + field, null);
+				return;
+			}
+			if (value.equals(field)) {
+				batch.put(path, val, ref, ts);
+				return;
+			}
+			batch.putLeaf(path + dot + field, val);
+			if (!stamped) {
+				stamped = true;
+				if (ts != null)
+					batch.putLeaf(path + dot + timestamp, ts);
+				if (ref != null)
+					batch.putLeaf(path + dot + sourceRef, ref);
+			}
+		}
+
+		/**
+		 * The batch collected so far
+		 */
+		public UpdateBatch getBatch() {
+			return batch;
+		}
+
+		/**
+		 * Write the values collected so far to the model, and clear them
+		 * @return true if the model changed
+		 * @throws IllegalArgumentException if a key conflicts with the model, then nothing is written
+		 */
+		public boolean apply() {
+			try {
+				return model.update(batch);
+			} finally {
+				batch.clear();
+			}
+		}
+
+		private static String sourceRef(Update update) {
+			if (update.getSourceRef() != null)
+				return update.getSourceRef();
+			if (update.getSource() != null)
+				return update.getSource();
+			String name = null;
+			String src = null;
+			for (Entry<String, Object> e : update.sourceFields) {
+				if (label.equals(e.getKey()) || (name == null && type.equals(e.getKey()))) {
+					name = String.valueOf(e.getValue());
+				} else if (SRC.equals(e.getKey())) {
+					src = String.valueOf(e.getValue());
+				}
+			}
+			if (name == null)
+				return src;
+			return src == null ? name : name + dot + src;
+		}
+	}
+
+	private abstract static class Input {
+		abstract int length();
+
+		abstract char at(int i);
+
+		/** the text between start and end, which has no escapes */
+		abstract String string(int start, int end);
+
+		void append(StringBuilder sb, int start, int end) {
+			sb.append(string(start, end));
+		}
+	}
+
+	private static final class CharsInput extends Input {
+		private final CharSequence s;
+
+		CharsInput(CharSequence s) {
+			this.s = s;
+		}
+
+		@Override
+		int length() {
+			return s.length();
+		}
+
+		@Override
+		char at(int i) {
+			return s.charAt(i);
+		}
+
+		@Override
+		String string(int start, int end) {
+			return s.subSequence(start, end).toString();
+		}
+
+		@Override
+		void append(StringBuilder sb, int start, int end) {
+			sb.append(s, start, end);
+		}
+	}
+
+	/** UTF-8 bytes, the json syntax is all ASCII so only the strings need decoding */
+	private static final class BytesInput extends Input {
+		private final byte[] b;
+		private final int off;
+		private final int len;
+
+		BytesInput(byte[] b, int off, int len) {
+			this.b = b;
+			this.off = off;
+			this.len = len;
+		}
+
+		@Override
+		int length() {
+			return len;
+		}
+
+		@Override
+		char at(int i) {
+			return (char) (b[off + i] & 0xFF);
+		}
+
+		@Override
+		String string(int start, int end) {
+			return new String(b, off + start, end - start, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		void append(StringBuilder sb, int start, int end) {
+			for (int i = start; i < end; i++) {
+				if (b[off + i] < 0) {
+					sb.append(string(i, end));
+					return;
+				}
+				sb.append((char) b[off + i]);
+			}
+		}
+	}
+
+	private Input in;
+	private int pos;
+	private int count;
+	private final Update update = new Update();
+	private final StringBuilder pathBuf = new StringBuilder(128);
+	private final StringBuilder fieldBuf = new StringBuilder(64);
+	private final StringBuilder strBuf = new StringBuilder(64);
+	private final StringBuilder srcBuf = new StringBuilder(64);
+
+	/**
+	 * Parse the delta and pass its values to the sink
+	 * @param delta
+	 * @param sink
+	 * @return the number of values passed to the sink, or -1 if this is not a delta (eg full format)
+	 * @throws IllegalArgumentException if the json is malformed
+	 */
+	public int parse(CharSequence delta, Sink sink) {
+		return parse(new CharsInput(delta), sink);
+	}
+
+	/**
+	 * Parse the UTF-8 delta and pass its values to the sink
+	 * @see #parse(CharSequence, Sink)
+	 */
+	public int parse(byte[] delta, Sink sink) {
+		return parse(delta, 0, delta.length, sink);
+	}
+
+	/**
+	 * Parse the UTF-8 delta in the given part of the array and pass its values to the sink
+	 * @see #parse(CharSequence, Sink)
+	 */
+	public int parse(byte[] delta, int offset, int length, Sink sink) {
+		if (offset < 0 || length < 0 || offset + length > delta.length)
+			throw new IllegalArgumentException("Bad offset or length");
+		return parse(new BytesInput(delta, offset, length), sink);
+	}
+
+	/**
+	 * Parse the UTF-8 delta between the buffer's position and limit, and pass its values to the sink.
+	 * The buffer's position is not changed.
+	 * @see #parse(CharSequence, Sink)
+	 */
+	public int parse(ByteBuffer delta, Sink sink) {
+		if (delta.hasArray()) {
+			return parse(new BytesInput(delta.array(), delta.arrayOffset() + delta.position(), delta.remaining()), sink);
+		}
+		byte[] b = new byte[delta.remaining()];
+		delta.duplicate().get(b);
+		return parse(new BytesInput(b, 0, b.length), sink);
+	}
+
+	private int parse(Input input, Sink sink) {
+		in = input;
+		pos = 0;
+		count = 0;
+		try {
+			String ctx = null;
+			int updatesPos = -1;
+			int putPos = -1;
+			boolean done = false;
+			ws();
+			expect('{');
+			ws();
+			if (peek() == '}') {
+				return -1;
+			}
+			for (;;) {
+				ws();
+				int ks = pos + 1;
+				int ke = skipString();
+				ws();
+				expect(':');
+				ws();
+				if (is(ks, ke, vessels)) {
+					//full format
+					return -1;
+				}
+				if (is(ks, ke, CONTEXT) && peek() == '"') {
+					ctx = Util.fixSelfKey(readString());
+				} else if (is(ks, ke, UPDATES)) {
+					updatesPos = pos;
+					if (ctx != null) {
+						parseUpdates(ctx, sink);
+						done = true;
+					} else {
+						skipValue();
+					}
+				} else if (is(ks, ke, PUT)) {
+					putPos = pos;
+					skipValue();
+				} else {
+					skipValue();
+				}
+				ws();
+				char c = next();
+				if (c == '}')
+					break;
+				if (c != ',')
+					throw error();
+			}
+			if (ctx == null || (updatesPos < 0 && putPos < 0))
+				return -1;
+			if (!done) {
+				pos = updatesPos >= 0 ? updatesPos : putPos;
+				parseUpdates(ctx, sink);
+			}
+			if (logger.isDebugEnabled())
+				logger.debug("Parsed " + count + " values for " + ctx);
+			return count;
+		} finally {
+			in = null;
+			update.reset();
+			update.context = null;
+		}
+	}
+
+	private void parseUpdates(String ctx, Sink sink) {
+		update.context = ctx;
+		if (peek() != '[') {
+			skipValue();
+			return;
+		}
+		next();
+		ws();
+		if (peek() == ']') {
+			next();
+			return;
+		}
+		for (;;) {
+			ws();
+			if (peek() == '{') {
+				parseUpdate(sink);
+			} else {
+				skipValue();
+			}
+			ws();
+			char c = next();
+			if (c == ']')
+				return;
+			if (c != ',')
+				throw error();
+		}
+	}
+
+	private void parseUpdate(Sink sink) {
+		update.reset();
+		int valuesPos = -1;
+		next();
+		ws();
+		if (peek() == '}') {
+			next();
+			return;
+		}
+		for (;;) {
+			ws();
+			int ks = pos + 1;
+			int ke = skipString();
+			ws();
+			expect(':');
+			ws();
+			char c = peek();
+			if (is(ks, ke, values)) {
+				valuesPos = pos;
+				skipValue();
+			} else if (is(ks, ke, timestamp) && c == '"') {
+				update.timestamp = readString();
+			} else if (is(ks, ke, sourceRef) && c == '"') {
+				update.sourceRef = readString();
+			} else if (is(ks, ke, source) && c == '"') {
+				update.source = readString();
+			} else if (is(ks, ke, source) && c == '{') {
+				readSource(0);
+			} else {
+				skipValue();
+			}
+			ws();
+			c = next();
+			if (c == '}')
+				break;
+			if (c != ',')
+				throw error();
+		}
+		if (valuesPos >= 0) {
+			int end = pos;
+			pos = valuesPos;
+			parseValues(sink);
+			pos = end;
+		}
+	}
+
+	/**
+	 * Flatten the source object into the update, the names so far are in srcBuf up to prefix
+	 */
+	private void readSource(int prefix) {
+		next();
+		ws();
+		if (peek() == '}') {
+			next();
+			return;
+		}
+		for (;;) {
+			ws();
+			srcBuf.setLength(prefix);
+			appendString(srcBuf);
+			ws();
+			expect(':');
+			ws();
+			if (peek() == '{') {
+				srcBuf.append('.');
+				readSource(srcBuf.length());
+			} else {
+				String name = srcBuf.toString();
+				update.sourceFields.add(new SimpleImmutableEntry<String, Object>(name, readLeaf()));
+			}
+			ws();
+			char c = next();
+			if (c == '}')
+				return;
+			if (c != ',')
+				throw error();
+		}
+	}
+
+	private void parseValues(Sink sink) {
+		if (peek() != '[') {
+			skipValue();
+			return;
+		}
+		next();
+		ws();
+		if (peek() == ']') {
+			next();
+			return;
+		}
+		for (;;) {
+			ws();
+			if (peek() == '{') {
+				parseValue(sink);
+			} else {
+				skipValue();
+			}
+			ws();
+			char c = next();
+			if (c == ']')
+				return;
+			if (c != ',')
+				throw error();
+		}
+	}
+
+	private void parseValue(Sink sink) {
+		String path = null;
+		int valuePos = -1;
+		boolean emitted = false;
+		next();
+		ws();
+		if (peek() == '}') {
+			next();
+			return;
+		}
+		for (;;) {
+			ws();
+			int ks = pos + 1;
+			int ke = skipString();
+			ws();
+			expect(':');
+			ws();
+			if (is(ks, ke, PATH) && peek() == '"') {
+				pathBuf.setLength(0);
+				pathBuf.append(update.context).append('.');
+				appendString(pathBuf);
+				path = pathBuf.toString();
+			} else if (is(ks, ke, value)) {
+				if (path != null && !emitted) {
+					sink.path(path, update);
+					emit(path, sink);
+					emitted = true;
+				} else {
+					valuePos = pos;
+					skipValue();
+				}
+			} else {
+				skipValue();
+			}
+			ws();
+			char c = next();
+			if (c == '}')
+				break;
+			if (c != ',')
+				throw error();
+		}
+		if (path == null || emitted)
+			return;
+		sink.path(path, update);
+		if (valuePos >= 0) {
+			int end = pos;
+			pos = valuePos;
+			emit(path, sink);
+			pos = end;
+		}
+	}
+
+	private void emit(String path, Sink sink) {
+		fieldBuf.setLength(0);
+		fieldBuf.append(value);
+		emit(path, 0, true, sink);
+	}
+
+	/**
+	 * Pass the value at pos to the sink. Its field is in fieldBuf, after the prefix of its parent objects.
+	 * As in DeltaToMapConverter an object called 'value' adds nothing to the field of its leaves,
+	 * and a null is put at the parent's key.
+	 */
+	private void emit(String path, int prefix, boolean valueKey, Sink sink) {
+		char c = peek();
+		if (c == '{') {
+			int childPrefix;
+			if (valueKey) {
+				fieldBuf.setLength(prefix);
+				childPrefix = prefix;
+			} else {
+				fieldBuf.append('.');
+				childPrefix = fieldBuf.length();
+			}
+			next();
+			ws();
+			if (peek() == '}') {
+				next();
+				return;
+			}
+			for (;;) {
+				ws();
+				fieldBuf.setLength(childPrefix);
+				appendString(fieldBuf);
+				boolean isValue = fieldBuf.length() - childPrefix == value.length()
+						&& fieldBuf.indexOf(value, childPrefix) == childPrefix;
+				ws();
+				expect(':');
+				ws();
+				emit(path, childPrefix, isValue, sink);
+				ws();
+				c = next();
+				if (c == '}')
+					return;
+				if (c != ',')
+					throw error();
+			}
+		}
+		String field;
+		if (c == 'n') {
+			field = prefix == 0 ? null : fieldBuf.substring(0, prefix - 1);
+		} else if (prefix == 0 && valueKey) {
+			field = value;
+		} else {
+			field = fieldBuf.toString();
+		}
+		sink.value(path, field, readLeaf(), update);
+		count++;
+	}
+
+	/**
+	 * Read a primitive, null or array
+	 */
+	private Object readLeaf() {
+		char c = peek();
+		switch (c) {
+		case '"':
+			return readString();
+		case '[':
+			int start = pos;
+			skipValue();
+			return Json.read(in.string(start, pos));
+		case 'n':
+			literal("null");
+			return null;
+		case 't':
+			literal("true");
+			return Boolean.TRUE;
+		case 'f':
+			literal("false");
+			return Boolean.FALSE;
+		default:
+			return readNumber();
+		}
+	}
+
+	/**
+	 * Read a number as mjson does, a Long or Double (or BigInteger or BigDecimal if it has too many digits)
+	 */
+	private Number readNumber() {
+		int start = pos;
+		boolean neg = false;
+		if (peek() == '-') {
+			neg = true;
+			pos++;
+		}
+		long mant = 0;
+		int length = 0;
+		int frac = 0;
+		boolean floating = false;
+		boolean exp = false;
+		char c;
+		while (pos < in.length() && (c = in.at(pos)) >= '0' && c <= '9') {
+			if (length < 18)
+				mant = mant * 10 + (c - '0');
+			length++;
+			pos++;
+		}
+		if (pos < in.length() && in.at(pos) == '.') {
+			floating = true;
+			pos++;
+			while (pos < in.length() && (c = in.at(pos)) >= '0' && c <= '9') {
+				if (length < 18)
+					mant = mant * 10 + (c - '0');
+				length++;
+				frac++;
+				pos++;
+			}
+		}
+		if (pos < in.length() && (in.at(pos) == 'e' || in.at(pos) == 'E')) {
+			floating = true;
+			exp = true;
+			pos++;
+			if (pos < in.length() && (in.at(pos) == '+' || in.at(pos) == '-'))
+				pos++;
+			while (pos < in.length() && (c = in.at(pos)) >= '0' && c <= '9') {
+				pos++;
+			}
+		}
+		if (length == 0)
+			throw error();
+		if (!floating) {
+			if (length < 19)
+				return Long.valueOf(neg ? -mant : mant);
+			String s = in.string(start, pos);
+			return length < 20 ? Long.valueOf(s) : new BigInteger(s);
+		}
+		if (length >= 17)
+			return new BigDecimal(in.string(start, pos));
+		if (!exp && length <= 15 && frac < POW10.length) {
+			//both are exact, so the division is correctly rounded as Double.valueOf would be
+			double d = mant / POW10[frac];
+			return Double.valueOf(neg ? -d : d);
+		}
+		return Double.valueOf(in.string(start, pos));
+	}
+
+	private String readString() {
+		if (peek() != '"')
+			throw error();
+		int start = pos + 1;
+		for (int i = start; i < in.length(); i++) {
+			char c = in.at(i);
+			if (c == '"') {
+				pos = i + 1;
+				return in.string(start, i);
+			}
+			if (c == '\\') {
+				break;
+			}
+		}
+		strBuf.setLength(0);
+		appendString(strBuf);
+		return strBuf.toString();
+	}
+
+	/**
+	 * Append the string at pos to sb, decoding the escapes
+	 */
+	private void appendString(StringBuilder sb) {
+		if (next() != '"')
+			throw error();
+		int run = pos;
+		for (;;) {
+			if (pos >= in.length())
+				throw error();
+			char c = in.at(pos);
+			if (c == '"') {
+				in.append(sb, run, pos);
+				pos++;
+				return;
+			}
+			if (c != '\\') {
+				pos++;
+				continue;
+			}
+			in.append(sb, run, pos);
+			pos++;
+			c = next();
+			switch (c) {
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'u':
+				if (pos + 4 > in.length())
+					throw error();
+				int u = 0;
+				for (int i = 0; i < 4; i++) {
+					int d = Character.digit(in.at(pos++), 16);
+					if (d < 0)
+						throw error();
+					u = (u << 4) | d;
+				}
+				sb.append((char) u);
+				break;
+			default:
+				sb.append(c);
+			}
+			run = pos;
+		}
+	}
+
+	/**
+	 * Skip the string at pos
+	 * @return the end of its content, before the closing quote
+	 */
+	private int skipString() {
+		if (next() != '"')
+			throw error();
+		while (pos < in.length()) {
+			char c = in.at(pos++);
+			if (c == '"')
+				return pos - 1;
+			if (c == '\\')
+				pos++;
+		}
+		throw error();
+	}
+
+	private void skipValue() {
+		char c = peek();
+		if (c == '"') {
+			skipString();
+			return;
+		}
+		if (c != '{' && c != '[') {
+			//a primitive
+			while (pos < in.length()) {
+				c = in.at(pos);
+				if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r')
+					break;
+				pos++;
+			}
+			return;
+		}
+		int depth = 0;
+		while (pos < in.length()) {
+			c = in.at(pos);
+			if (c == '"') {
+				skipString();
+				continue;
+			}
+			pos++;
+			if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				if (--depth == 0)
+					return;
+			}
+		}
+		throw error();
+	}
+
+	private boolean is(int start, int end, String name) {
+		if (end - start != name.length())
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (in.at(start + i) != name.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private void literal(String s) {
+		if (!is(pos, Math.min(pos + s.length(), in.length()), s))
+			throw error();
+		pos += s.length();
+	}
+
+	private void ws() {
+		while (pos < in.length()) {
+			char c = in.at(pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+				return;
+			pos++;
+		}
+	}
+
+	private char peek() {
+		return pos < in.length() ? in.at(pos) : 0;
+	}
+
+	private char next() {
+		if (pos >= in.length())
+			throw error();
+		return in.at(pos++);
+	}
+
+	private void expect(char c) {
+		if (next() != c)
+			throw error();
+	}
+
+	private IllegalArgumentException error() {
+		return new IllegalArgumentException("Malformed delta at " + pos);
+	}
+}
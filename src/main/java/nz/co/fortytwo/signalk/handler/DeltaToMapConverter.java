@@ -52,10 +52,18 @@ import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logg
 public class DeltaToMapConverter {
 
 	private static Logger logger = LogManager.getLogger(DeltaToMapConverter.class);
+	//the parser for the text and byte entry points, it is not thread safe
+	private final ThreadLocal<DeltaParser> parsers = new ThreadLocal<DeltaParser>() {
+		@Override
+		protected DeltaParser initialValue() {
+			return new DeltaParser();
+		}
+	};
 	
 	/**
 	 * Convert Delta JSON to full tree map.
-	 * Returns null if the json is not an update, otherwise return a SignalKModel
+	 * Returns null if the json is not an update, otherwise return a SignalKModel.
+	 * The model returned is a new model the caller owns, so it can be kept, queued or passed to another thread.
 	 * @param node
 	 * @return
 	 * @throws Exception 
@@ -89,6 +97,48 @@ public class DeltaToMapConverter {
 		
 	}
 
+	/**
+	 * Convert the delta text to full tree map, reading it with a {@link DeltaParser} rather than building a Json tree.
+	 * Returns null if the text is not an update, otherwise return a SignalKModel.
+	 * The model returned is a new model the caller owns, so it can be kept, queued or passed to another thread.
+	 * <p>
+	 * The values are written through the model with one update, see {@link DeltaParser.ModelSink}, so the output differs from
+	 * handle(Json): each value also has key.$source and key.values.&lt;source&gt; entries, and a null value deletes the key
+	 * rather than putting a null. The preProcess() hook is not called.
+	 * </p>
+	 * @param delta
+	 * @return
+	 * @throws IllegalArgumentException if the json is malformed, or a key conflicts
+	 */
+	public SignalKModel handle(CharSequence delta) {
+		SignalKModel temp = SignalKModelFactory.getCleanInstance();
+		DeltaParser.ModelSink sink = new DeltaParser.ModelSink(temp);
+		//avoid full signalk syntax, and anything else that is not a delta
+		if(parsers.get().parse(delta, sink)<0)return null;
+		return apply(temp, sink);
+	}
+
+	/**
+	 * Convert the UTF-8 delta to full tree map, without building a Json tree or a String.
+	 * @see #handle(CharSequence)
+	 * @param delta
+	 * @return
+	 * @throws IllegalArgumentException if the json is malformed, or a key conflicts
+	 */
+	public SignalKModel handle(byte[] delta) {
+		SignalKModel temp = SignalKModelFactory.getCleanInstance();
+		DeltaParser.ModelSink sink = new DeltaParser.ModelSink(temp);
+		if(parsers.get().parse(delta, sink)<0)return null;
+		return apply(temp, sink);
+	}
+
+	private SignalKModel apply(SignalKModel temp, DeltaParser.ModelSink sink) {
+		if(logger.isDebugEnabled())logger.debug("processing delta  "+sink.getBatch() );
+		sink.apply();
+		if(logger.isDebugEnabled())logger.debug("DeltaToMapConverter processed diff  "+temp );
+		return temp;
+	}
+
 	protected void parseUpdate(SignalKModel temp, Json update, String ctx) throws Exception {
 		
 		
@@ -0,0 +1,304 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.BatchEvent;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.event.PathListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Recalculates derived values (eg true wind, declination) when their inputs change, rather than
+ * each handler re-reading its inputs from the model on every call.
+ * <p>
+ * Each calculation declares the keys it reads and the keys it writes. The graph subscribes to the inputs,
+ * and a calculation runs only when an event arrives for one of its inputs (key or key.value). With a debounce, the
+ * events within the period are coalesced and the calculation runs once at the end of it. A calculation's outputs
+ * can be the inputs of another, so a change ripples down the graph through the model events, but cycles are refused.
+ * </p><pre>
+ * DerivedValueGraph graph = new DerivedValueGraph(model);
+ * new TrueWindHandler().register(graph);
+ * new DeclinationHandler().register(graph, 60000);
+ * </pre>
+ * @author robert
+ *
+ */
+public class DerivedValueGraph implements PathListener {
+
+	private static Logger logger = LogManager.getLogger(DerivedValueGraph.class);
+
+	private static volatile ScheduledExecutorService timer;
+
+	/**
+	 * Calculates a derived value from the model, and puts it back in the model
+	 */
+	public interface Calculation {
+		public void calculate(SignalKModel model);
+	}
+
+	private final SignalKModel model;
+	//copy on write, by input key
+	private volatile Map<String, List<Node>> nodes = Collections.emptyMap();
+	private final List<Node> all = new ArrayList<Node>();
+
+	private final class Node implements Runnable {
+		final String name;
+		final String[] inputs;
+		final String[] outputs;
+		final long debounce;
+		final Calculation calculation;
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		volatile long runs;
+
+		Node(String name, String[] inputs, String[] outputs, long debounce, Calculation calculation) {
+			this.name = name;
+			this.inputs = inputs;
+			this.outputs = outputs;
+			this.debounce = debounce;
+			this.calculation = calculation;
+		}
+
+		void changed() {
+			if (debounce == 0) {
+				run();
+			} else if (scheduled.compareAndSet(false, true)) {
+				getTimer().schedule(this, debounce, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public void run() {
+			scheduled.set(false);
+			//one at a time, the events can arrive on several threads
+			synchronized (this) {
+				try {
+					calculation.calculate(model);
+					runs++;
+				} catch (Exception e) {
+					logger.error("Calculation " + name + " failed: " + e.getMessage(), e);
+				}
+			}
+		}
+
+		boolean readsAny(Set<String> keys) {
+			for (String input : inputs) {
+				if (keys.contains(input))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	public DerivedValueGraph(SignalKModel model) {
+		this.model = model;
+	}
+
+	/**
+	 * Add a calculation, run when any of the inputs change
+	 * @param name
+	 * @param inputs the keys it reads, eg vessels.self.navigation.speedOverGround
+	 * @param outputs the keys it writes
+	 * @param debounce millis to coalesce input changes over, 0 to calculate on every change
+	 * @param calculation
+	 * @throws IllegalArgumentException if it reads its own outputs, directly or through other calculations
+	 */
+	public synchronized void add(String name, String[] inputs, String[] outputs, long debounce, Calculation calculation) {
+		if (inputs == null || inputs.length == 0) {
+			throw new IllegalArgumentException("Calculation " + name + " has no inputs");
+		}
+		if (debounce < 0) {
+			throw new IllegalArgumentException("debounce must not be negative: " + debounce);
+		}
+		Node node = new Node(name, inputs.clone(), outputs == null ? new String[0] : outputs.clone(), debounce, calculation);
+		if (cycles(node)) {
+			throw new IllegalArgumentException("Calculation " + name + " depends on its own outputs");
+		}
+		all.add(node);
+		Map<String, List<Node>> next = new HashMap<String, List<Node>>(nodes);
+		for (String input : node.inputs) {
+			List<Node> list = next.get(input);
+			if (list == null) {
+				model.subscribe(input, this);
+				list = new ArrayList<Node>(1);
+			} else {
+				list = new ArrayList<Node>(list);
+			}
+			if (!list.contains(node))
+				list.add(node);
+			next.put(input, list);
+		}
+		nodes = next;
+		if (logger.isDebugEnabled())
+			logger.debug("Added " + name + ": " + Arrays.toString(inputs) + " -> " + Arrays.toString(node.outputs));
+	}
+
+	//true if the node's outputs lead back to its inputs
+	private boolean cycles(Node node) {
+		Set<String> inputs = new HashSet<String>(Arrays.asList(node.inputs));
+		Set<String> reached = new HashSet<String>(Arrays.asList(node.outputs));
+		Set<Node> visited = new HashSet<Node>();
+		boolean more = true;
+		while (more) {
+			for (String key : reached) {
+				if (inputs.contains(key))
+					return true;
+			}
+			more = false;
+			for (Node other : all) {
+				if (!visited.contains(other) && other.readsAny(reached)) {
+					visited.add(other);
+					reached.addAll(Arrays.asList(other.outputs));
+					more = true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove all the calculations and stop listening to the model
+	 */
+	public synchronized void clear() {
+		for (String input : nodes.keySet()) {
+			model.unsubscribe(input, this);
+		}
+		nodes = Collections.emptyMap();
+		all.clear();
+	}
+
+	/**
+	 * Run every calculation now, eg after loading the model
+	 */
+	public void calculateAll() {
+		List<Node> copy;
+		synchronized (this) {
+			copy = new ArrayList<Node>(all);
+		}
+		for (Node node : copy) {
+			node.run();
+		}
+	}
+
+	/**
+	 * The number of times the named calculation has run
+	 * @param name
+	 * @return
+	 */
+	public synchronized long getRuns(String name) {
+		long runs = 0;
+		for (Node node : all) {
+			if (node.name.equals(name))
+				runs += node.runs;
+		}
+		return runs;
+	}
+
+	public synchronized int size() {
+		return all.size();
+	}
+
+	@Override
+	public void onEvent(PathEvent event) {
+		if (event instanceof BatchEvent) {
+			//the path is only the common prefix, so look up each key, and run each calculation once for the batch
+			BatchEvent batch = (BatchEvent) event;
+			List<Node> changed = new ArrayList<Node>(2);
+			collect(batch.getPaths(), changed);
+			collect(batch.getDeleted(), changed);
+			for (int i = 0; i < changed.size(); i++) {
+				changed.get(i).changed();
+			}
+			return;
+		}
+		List<Node> list = lookup(event.getPath());
+		if (list == null)
+			return;
+		for (int i = 0; i < list.size(); i++) {
+			list.get(i).changed();
+		}
+	}
+
+	private void collect(List<String> keys, List<Node> changed) {
+		for (int k = 0; k < keys.size(); k++) {
+			List<Node> list = lookup(keys.get(k));
+			if (list == null)
+				continue;
+			for (int i = 0; i < list.size(); i++) {
+				if (!changed.contains(list.get(i)))
+					changed.add(list.get(i));
+			}
+		}
+	}
+
+	/**
+	 * The calculations reading the key, or key without its .value
+	 */
+	private List<Node> lookup(String path) {
+		if (path == null)
+			return null;
+		List<Node> list = nodes.get(path);
+		if (list == null && path.endsWith(dot + value)) {
+			list = nodes.get(path.substring(0, path.length() - value.length() - 1));
+		}
+		return list;
+	}
+
+	private static ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			synchronized (DerivedValueGraph.class) {
+				if (timer == null) {
+					timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "signalk-derived-timer");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+				}
+			}
+		}
+		return timer;
+	}
+}
@@ -29,7 +29,7 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.resources;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
-import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.model.impl.ScratchModel;
 import nz.co.fortytwo.signalk.util.JsonSerializer;
 
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
@@ -45,12 +45,15 @@ import org.joda.time.format.ISODateTimeFormat;
 public class FullToMapConverter {
 
 	private static Logger logger = LogManager.getLogger(FullToMapConverter.class);
+	//the temporary model returned by handle, one per thread
+	private final ScratchModel scratch = new ScratchModel();
 	private static DateTimeFormatter fmt = ISODateTimeFormat.dateTime();
 	 
 	private JsonSerializer ser = new JsonSerializer();
 	/**
 	 * Convert full JSON to full tree map.
-	 * Returns null if the json is not an full format, otherwise return a SignalKModel
+	 * Returns null if the json is not an full format, otherwise return a SignalKModel.
+	 * The model returned is a new model the caller owns, so it can be kept, queued or passed to another thread.
 	 * @param node
 	 * @return
 	 */
@@ -65,10 +68,10 @@ public class FullToMapConverter {
 		if(node.has(vessels) || node.has(CONFIG)|| node.has(resources)){
 			if(logger.isDebugEnabled())logger.debug("processing full  "+node );
 			//process it
-			SignalKModel temp =  SignalKModelFactory.getCleanInstance();
+			ScratchModel.Builder temp =  scratch.get();
 			temp.putAll(ser.read(node));
 			if(logger.isDebugEnabled())logger.debug("SignalkModelProcessor processed diff  "+temp );
-			return  temp;
+			return  temp.toModel();
 		}
 		return null;
 		
@@ -57,6 +57,7 @@ public class JsonGetHandler {
 	/**
 	 * Processes the getNode against the signalKModel and returns a temporary signalkModel with the matching paths
 	 * Supports * and ? wildcards.
+	 * The model returned is a new model the caller owns, so it can be kept, queued or passed to another thread.
 	 * 
 	 * @param signalkModel
 	 * @param getNode
@@ -42,7 +42,7 @@ import java.util.regex.Pattern;
 import mjson.Json;
 import net.minidev.json.JSONArray;
 import nz.co.fortytwo.signalk.model.SignalKModel;
-import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.model.impl.ScratchModel;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
@@ -76,6 +76,8 @@ public class N2KHandler {
 	private static final String VALUE = "value";
 
 	private static Logger logger = LogManager.getLogger(N2KHandler.class);
+	//the temporary model returned by handle, one per thread
+	private final ScratchModel scratch = new ScratchModel();
 
 	private NumberFormat numberFormat = DecimalFormat.getInstance();
 	private Json mappings = null;
@@ -151,7 +153,8 @@ public class N2KHandler {
 	
 	/**
 	 * 
-	 * Converts a Json n2k message (from CANboat analyser) to a signalK json message
+	 * Converts a Json n2k message (from CANboat analyser) to a signalK json message.
+	 * The model returned is a new model the caller owns, so it can be kept, queued or passed to another thread.
 	 * @param n2kmsg
 	 * @return
 	 */
@@ -172,7 +175,7 @@ public class N2KHandler {
 				target = vessels_dot_self_dot;
 			}
 			// make a dummy signalk object
-			SignalKModel temp = SignalKModelFactory.getCleanInstance();
+			ScratchModel.Builder temp = scratch.get();
 			String sourceRef = target+"sources.n2k."+n2k.read(srcPath)+dot+pgn;
 			
 			String ts = Util.getIsoTimeString();
@@ -219,7 +222,7 @@ public class N2KHandler {
 			}
 			if (logger.isDebugEnabled())
 				if(logger.isDebugEnabled())logger.debug("N2KHandler output  " + temp);
-			return temp;
+			return temp.toModel();
 		}
 		return null;
 
@@ -59,7 +59,7 @@ import net.sf.marineapi.nmea.sentence.Sentence;
 import net.sf.marineapi.nmea.sentence.SentenceId;
 import net.sf.marineapi.nmea.sentence.VHWSentence;
 import nz.co.fortytwo.signalk.model.SignalKModel;
-import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.model.impl.ScratchModel;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
 import nz.co.fortytwo.signalk.util.Util;
 
@@ -79,6 +79,8 @@ import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logg
 public class NMEAHandler{
 
 	private static Logger logger = LogManager.getLogger(NMEAHandler.class);
+	//the temporary model returned by handle, one per thread
+	private final ScratchModel scratch = new ScratchModel();
 	private static final String DISPATCH_ALL = "DISPATCH_ALL";
 
 	// map of sentence listeners
@@ -111,19 +113,19 @@ public class NMEAHandler{
 		return handle(bodyStr, null);
 	}
 	/**
-	 * Convert an NMEA string to a signalk json object
+	 * Convert an NMEA string to a signalk json object.
+	 * The model returned is a new model the caller owns, so it can be kept, queued or passed to another thread.
 	 * @param bodyStr
 	 * @return
 	 */
 	public SignalKModel handle(String bodyStr, String src) {
-		SignalKModel model = null;
 		if (StringUtils.isNotBlank(bodyStr)&& bodyStr.startsWith("$")) {
 			try {
 				if(logger.isDebugEnabled())logger.debug("Processing NMEA:[" + bodyStr+"]");
 				Sentence sentence = SentenceFactory.getInstance().createParser(bodyStr);
-				model = SignalKModelFactory.getCleanInstance();
+				ScratchModel.Builder model = scratch.get();
 				fireSentenceEvent(model, sentence, src);
-				return model;
+				return model.toModel();
 			}catch (IllegalArgumentException e) {
 				logger.debug(e.getMessage(), e);
 				logger.info(e.getMessage() + ":" + bodyStr);
@@ -200,7 +202,7 @@ public class NMEAHandler{
 	 * @param sentence
 	 *            sentence string.
 	 */
-	private void fireSentenceEvent(SignalKModel model, Sentence sentence, String device) {
+	private void fireSentenceEvent(ScratchModel.Builder model, Sentence sentence, String device) {
 		if (!sentence.isValid()) {
 			logger.warn("NMEA Sentence is invalid:" + sentence.toSentence());
 			return;
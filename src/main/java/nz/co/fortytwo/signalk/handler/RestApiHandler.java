@@ -31,6 +31,8 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -100,6 +102,51 @@ public class RestApiHandler {
 	 */
 	public Object processGet(HttpServletRequest request, HttpServletResponse response, SignalKModel signalkModel)
 			throws Exception {
+		Object result = get(request, response, signalkModel);
+		if (result instanceof SignalKModel) {
+			return ser.writeJson((SignalKModel) result);
+		}
+		return result;
+	}
+
+	/**
+	 * Process a signalk GET message as {@link #processGet}, but write the
+	 * result to the response's output stream as UTF-8. A vessels result is
+	 * streamed from the model in chunks, rather than built as a String, parsed
+	 * back into a Json, and written out again.
+	 * 
+	 * @param request
+	 * @param response
+	 * @param signalkModel
+	 * @return false if nothing was found, and the response has the error code
+	 *         set
+	 * @throws Exception
+	 */
+	public boolean writeGet(HttpServletRequest request, HttpServletResponse response, SignalKModel signalkModel)
+			throws Exception {
+		Object result = get(request, response, signalkModel);
+		if (result == null)
+			return false;
+		response.setCharacterEncoding("UTF-8");
+		OutputStream out = response.getOutputStream();
+		if (result instanceof SignalKModel) {
+			// the serializer reuses its buffer, so one per request
+			long size = new JsonSerializer().write((SignalKModel) result, out);
+			if (logger.isDebugEnabled())
+				logger.debug("Wrote " + size + " bytes");
+		} else {
+			out.write(result.toString().getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+		return true;
+	}
+
+	/**
+	 * Find the result for the GET request, the vessels branch is returned as
+	 * the SignalKModel so the caller can choose how to write it.
+	 */
+	private Object get(HttpServletRequest request, HttpServletResponse response, SignalKModel signalkModel)
+			throws Exception {
 		// use Restlet API to create the response
 		String path = request.getPathInfo();
 		// String path = exchange.getIn().getHeader(Exchange.HTTP_URI,
@@ -187,7 +234,7 @@ public class RestApiHandler {
 
 			// SEND RESPONSE
 			response.setStatus(HttpServletResponse.SC_OK);
-			return ser.writeJson(keys);
+			return keys;
 		}
 		// storage dir
 		if (path.startsWith(resources)||path.startsWith(sources)) {
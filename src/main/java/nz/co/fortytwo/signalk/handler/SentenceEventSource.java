@@ -1,14 +1,14 @@
 package nz.co.fortytwo.signalk.handler;
 
-import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.ScratchModel;
 
 public class SentenceEventSource {
 
 	private String now;
 	private String sourceRef;
-	private SignalKModel model;
+	private ScratchModel.Builder model;
 
-	public SentenceEventSource(String device, String now, SignalKModel model) {
+	public SentenceEventSource(String device, String now, ScratchModel.Builder model) {
 		this.now=now;
 		this.sourceRef=device; 
 		this.model=model;
@@ -22,7 +22,7 @@ public class SentenceEventSource {
 		return sourceRef;
 	}
 
-	public SignalKModel getModel() {
+	public ScratchModel.Builder getModel() {
 		return model;
 	}
 
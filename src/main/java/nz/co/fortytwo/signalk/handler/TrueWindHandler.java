@@ -51,6 +51,23 @@ public class TrueWindHandler {
 
 
 	
+	/**
+	 * Calculate the true wind in the graph, when the vessel speed or apparent wind changes
+	 * @param graph
+	 */
+	public void register(DerivedValueGraph graph) {
+		graph.add("trueWind",
+				new String[] { vessels_dot_self_dot + nav_speedOverGround, vessels_dot_self_dot + env_wind_angleApparent,
+						vessels_dot_self_dot + env_wind_speedApparent },
+				new String[] { vessels_dot_self_dot + env_wind_directionTrue, vessels_dot_self_dot + env_wind_speedTrue },
+				0, new DerivedValueGraph.Calculation() {
+					@Override
+					public void calculate(SignalKModel model) {
+						handle(model);
+					}
+				});
+	}
+
 	/**
 	 * Updates the true wind direction from the apparent wind direction in the provided signalKModel.
 	 * @param signalkModel
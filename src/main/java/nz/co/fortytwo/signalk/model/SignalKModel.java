@@ -23,9 +23,17 @@
  */
 package nz.co.fortytwo.signalk.model;
 
+import java.util.Iterator;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.SortedMap;
+import java.util.concurrent.locks.Lock;
+
+import nz.co.fortytwo.signalk.model.event.ChangeJournal;
+import nz.co.fortytwo.signalk.model.event.EventDispatcher;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.event.PathListener;
+import nz.co.fortytwo.signalk.model.event.SubscriptionPolicy;
 
 import com.google.common.eventbus.EventBus;
 
@@ -36,6 +44,11 @@ public interface SignalKModel{
 	 */
 	public abstract Object get(String key);
 
+	/**
+	 * Get a val from the Model, using a pre-parsed path
+	 */
+	public abstract Object get(SignalKPath path);
+
 	/**
 	 * Return a subtree from the Model - the tree is read-only, but is live
 	 * and will be updated as the Model changes.
@@ -49,6 +62,80 @@ public interface SignalKModel{
 	 */
 	public abstract EventBus getEventBus();
 
+	/**
+	 * Get an event bus that only receives the events for one context, eg "vessels.self" or "sources".
+	 * A BatchEvent is posted to the bus of every context it changes.
+	 * @param context
+	 */
+	public abstract EventBus getEventBus(String context);
+
+	/**
+	 * Listen for the events on the keys matching the pattern. The pattern matches its key and all the keys below it,
+	 * a '*' segment matches any one segment, and a segment with '*' or '?' in it is matched as a wildcard, eg
+	 * 'vessels.self.navigation.position', 'vessels.*.navigation.speed*'.
+	 * <p>
+	 * Subscriptions are held in a trie by key segment, so each event only visits the subscriptions along its own path,
+	 * rather than every subscriber string-matching every event. The listener is called wherever the EventBus subscribers
+	 * are, and gets a BatchEvent once if any of its keys match. Wrap a slow listener in an
+	 * {@link nz.co.fortytwo.signalk.model.event.AsyncSubscriber} to call it on another thread.
+	 * </p>
+	 * @param pathPattern
+	 * @param listener
+	 */
+	public void subscribe(String pathPattern, PathListener listener);
+
+	/**
+	 * As subscribe(pathPattern, listener), but limit how often the listener is called, eg
+	 * SubscriptionPolicy.latestValue(1000) gets a 20Hz heading once a second, with the latest value.
+	 * Events are coalesced per key in the subscription, so a slow listener does not queue events or hold up the writers.
+	 * Coalesced events are delivered on a timer thread at the end of each period.
+	 * @param pathPattern
+	 * @param listener
+	 * @param policy
+	 */
+	public void subscribe(String pathPattern, PathListener listener, SubscriptionPolicy policy);
+
+	/**
+	 * Remove a listener added with subscribe(pathPattern, listener)
+	 * @param pathPattern
+	 * @param listener
+	 * @return true if it was subscribed
+	 */
+	public boolean unsubscribe(String pathPattern, PathListener listener);
+
+	/**
+	 * Set how change events are delivered, eg a RingBufferDispatcher to deliver them on consumer threads.
+	 * Null restores the default, which posts to the EventBus on the writing thread.
+	 * @param dispatcher
+	 */
+	public void setEventDispatcher(EventDispatcher dispatcher);
+
+	/**
+	 * The current event dispatcher
+	 * @return
+	 */
+	public EventDispatcher getEventDispatcher();
+
+	/**
+	 * Keep a journal of the changes, so clients can catch up from a revision with replayFrom(). Null stops journaling.
+	 * @param journal
+	 */
+	public void setChangeJournal(ChangeJournal journal);
+
+	/**
+	 * The change journal, or null if there is none
+	 * @return
+	 */
+	public ChangeJournal getChangeJournal();
+
+	/**
+	 * The changes after the revision from the change journal, oldest first, or null if there is no journal or
+	 * the revision is older than the journal holds, when the client needs the whole model.
+	 * @param revision
+	 * @return
+	 */
+	public Iterator<PathEvent> replayFrom(long revision);
+
 	/**
 	 * Return the full set of keys from this Model. The returned set
 	 * is read-only and guaranteed to be the full set at the time this method is called,
@@ -86,6 +173,135 @@ public interface SignalKModel{
 	public boolean put(String key, Object val, String source) throws IllegalArgumentException;
 	public boolean put(String key, Object val, String source, String timestamp) throws IllegalArgumentException;
 
+	/**
+	 * Same as put(String, Object, String, String) but uses a pre-parsed path, so no keys are built or
+	 * scanned for 'self'. Use this on the hot paths.
+	 * @param path
+	 * @param val
+	 * @param source
+	 * @param timestamp
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean put(SignalKPath path, Object val, String source, String timestamp) throws IllegalArgumentException;
+
+	/**
+	 * Same as put(SignalKPath, Object, String, String) for a primitive double. The value is held in
+	 * a mutable slot in the model which is overwritten in place on later puts, so a
+	 * high rate numeric feed does not box or allocate per sample.
+	 * @param path
+	 * @param val
+	 * @param source
+	 * @param timestamp
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean putDouble(SignalKPath path, double val, String source, String timestamp) throws IllegalArgumentException;
+
+	/**
+	 * Same as put(SignalKPath, Object, String, String) with the timestamp as epoch millis.
+	 * The timestamp is stored as millis and only formatted to ISO8601 when it is read or serialized.
+	 * @param path
+	 * @param val
+	 * @param source
+	 * @param timestamp epoch millis
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean put(SignalKPath path, Object val, String source, long timestamp) throws IllegalArgumentException;
+
+	/**
+	 * Same as putDouble(SignalKPath, double, String, String) with the timestamp as epoch millis.
+	 * Neither the value nor the timestamp is boxed or formatted.
+	 * @param path
+	 * @param val
+	 * @param source
+	 * @param timestamp epoch millis
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean putDouble(SignalKPath path, double val, String source, long timestamp) throws IllegalArgumentException;
+
+	/**
+	 * Returns the path.value entry as a primitive double, or Double.NaN if it is missing or not a number.
+	 * @param path
+	 * @return
+	 */
+	public double getDouble(SignalKPath path);
+
+	/**
+	 * Returns the path.timestamp entry as epoch millis, or -1 if it is missing or not a valid time.
+	 * @param path
+	 * @return
+	 */
+	public long getTimestamp(SignalKPath path);
+
+	/**
+	 * Apply all the entries in the batch as one unit. The keys are all checked before anything is
+	 * written, so a conflict leaves the model unchanged. Readers holding the {@link #readLock} see
+	 * all of the batch or none of it. A single BatchEvent is posted for the whole batch, and the
+	 * revision is incremented once.
+	 * @param batch
+	 * @return true if anything changed
+	 * @throws IllegalArgumentException if a key conflicts with the model or an invalid value is given
+	 */
+	public boolean update(UpdateBatch batch) throws IllegalArgumentException;
+
+	/**
+	 * The current revision of the Model. It increases on every change, and is
+	 * the revision carried by the PathEvent for that change.
+	 * @return
+	 */
+	public long getRevision();
+
+	/**
+	 * The revision the key was last changed at, or 0 if it doesnt exist.
+	 * @param key
+	 * @return
+	 */
+	public long getRevision(String key);
+
+	/**
+	 * Return the keys that have changed after the given revision, with their current values. Keys that have
+	 * been deleted have the value "null". Changes made directly into getFullData() are not tracked.
+	 * <pre>
+	 * long rev = model.getRevision();
+	 * ...
+	 * NavigableMap&lt;String, Object&gt; diff = model.getChangedSince(rev, "vessels.self");
+	 * </pre>
+	 * @param revision the last revision the caller has seen
+	 * @param key the subtree to look in, eg "vessels.self", or null for the whole model
+	 * @return the changes, or null if the revision is too old to know all the deletes since, in which case use the full model
+	 */
+	public NavigableMap<String, Object> getChangedSince(long revision, String key);
+
+	/**
+	 * Return a read-only copy of the Model as it is now, which wont change as the Model is updated.
+	 * Use it to serialize, scan or save the Model without holding up the writers. The snapshot has the
+	 * same revision as the Model had, and throws UnsupportedOperationException if it is written to.
+	 * <p>
+	 * For a copy-on-write model (see SignalKModelFactory.getCopyOnWriteInstance()) this is O(1), otherwise
+	 * the Model is copied.
+	 * </p>
+	 * @return
+	 */
+	public SignalKModel snapshot();
+
+	/**
+	 * The read lock for the Model. Hold it while reading several keys that must be consistent
+	 * with each other, eg a position. Batches (update(UpdateBatch), putPosition), putAll and deletes wait until it is released,
+	 * single puts do not, so a reader sees each batch whole but may see single puts as they happen.
+	 * <p>
+	 * The lock cannot be upgraded, so a batch, putAll or delete on a thread holding it throws IllegalStateException.
+	 * </p><p>
+	 * For a partitioned model (see SignalKModelFactory.getPartitionedInstance()) readers are not excluded by a batch
+	 * in a single vessel context, which only locks its own partition, so they may see part of it. Batches spanning
+	 * contexts, putAll and deletes are still seen whole.
+	 * </p>
+	 * @return
+	 */
+	public Lock readLock();
+
 	/**
 	 * Return a submap from the Model - the tree is read-only, but is live
 	 * and will be updated as the Model changes.
@@ -102,6 +318,13 @@ public interface SignalKModel{
 	 */
 	public Object getValue(String key);
 
+	/**
+	 * Returns the path.value entry, using a pre-parsed path
+	 * @param path
+	 * @return
+	 */
+	public Object getValue(SignalKPath path);
+
 	/**
 	 * Same as put, but it adds the suffix '.value' to the key
 	 * @param string
@@ -110,13 +333,24 @@ public interface SignalKModel{
 	 */
 	public boolean putValue(String string, Object val);
 
+	/**
+	 * Puts the path.value entry, using a pre-parsed path
+	 * @param path
+	 * @param val
+	 * @return
+	 */
+	public boolean putValue(SignalKPath path, Object val);
+
 	/**
 	 * Gets the full data map. Use with care, it holds the config data too.
 	 * @return
 	 */
 	SortedMap<String, Object> getFullData();
 
-	/**Get the multiple values object 'values' or null if it doesnt exist
+	/**Get the multiple values object 'values' or null if it doesnt exist.
+	 * The latest value from each source is returned as key.values.&lt;source&gt;.value, .timestamp and .sourceRef.
+	 * The sources are held in a bounded table per key rather than in the model, so they do not appear
+	 * in getFullData(), and sources that stop sending are dropped after a while.
 	 * @param string
 	 * @return
 	 */
@@ -0,0 +1,250 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * An immutable, interned signalk key. The self vessel is resolved and the key split into
+ * segments once, when the path is first requested, and the keys of the commonly used children
+ * (value, timestamp, sourceRef and values.<source>) are built at the same time.
+ * <p>
+ * Hold on to the instance (eg in a static final field) and pass it to the SignalKModel
+ * overloads, so the hot put/get paths do no String building or regex matching.
+ * </p><pre>
+ * private static final SignalKPath COG = SignalKPath.get(vessels_dot_self_dot + nav_courseOverGroundTrue);
+ * ...
+ * model.put(COG, 245.69, "gps", ts);
+ * </pre>
+ *
+ * @author robert
+ *
+ */
+public final class SignalKPath implements Comparable<SignalKPath> {
+
+	//the interned paths are keyed by the unresolved key, and are cleared when self changes
+	private static final int MAX_CACHED = 100000;
+	private static final ConcurrentMap<String, SignalKPath> cache = new ConcurrentHashMap<String, SignalKPath>();
+
+	private final String key;
+	private final String[] segments;
+	private final String valueKey;
+	private final String timestampKey;
+	private final String sourceRefKey;
+	private final String valuesKey;
+	//the values.<source> children, created on demand
+	private final ConcurrentMap<String, SignalKPath> sourceValues = new ConcurrentHashMap<String, SignalKPath>(4);
+	//state a model keeps for this path, see attach()
+	private volatile Attachment attachment;
+
+	private SignalKPath(String key) {
+		this.key = key;
+		this.segments = StringUtils.split(key, '.');
+		this.valueKey = key + dot + value;
+		this.timestampKey = key + dot + timestamp;
+		this.sourceRefKey = key + dot + sourceRef;
+		this.valuesKey = key + dot + values;
+	}
+
+	/**
+	 * Get the interned path for this key. The key may contain 'self', which is
+	 * resolved to the current self vessel.
+	 * @param key
+	 * @return
+	 */
+	public static SignalKPath get(String key) {
+		SignalKPath path = cache.get(key);
+		if (path != null)
+			return path;
+		path = new SignalKPath(Util.fixSelfKey(key));
+		if (cache.size() >= MAX_CACHED) {
+			//runaway keys (eg from many AIS targets), start again rather than grow forever
+			cache.clear();
+		}
+		SignalKPath other = cache.putIfAbsent(key, path);
+		return other == null ? path : other;
+	}
+
+	/**
+	 * Drop all the interned paths. Called when the self vessel changes, as the
+	 * resolved keys are no longer valid.
+	 */
+	public static void clearCache() {
+		cache.clear();
+	}
+
+	/**
+	 * The full key, with self resolved
+	 * @return
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * The number of segments in the key
+	 * @return
+	 */
+	public int size() {
+		return segments.length;
+	}
+
+	/**
+	 * The segment at the given position, eg 0 is 'vessels'
+	 * @param index
+	 * @return
+	 */
+	public String getSegment(int index) {
+		return segments[index];
+	}
+
+	/**
+	 * The last segment of the key, eg 'courseOverGroundTrue'
+	 * @return
+	 */
+	public String getName() {
+		return segments.length == 0 ? "" : segments[segments.length - 1];
+	}
+
+	/**
+	 * key.value
+	 */
+	public String getValueKey() {
+		return valueKey;
+	}
+
+	/**
+	 * key.timestamp
+	 */
+	public String getTimestampKey() {
+		return timestampKey;
+	}
+
+	/**
+	 * key.sourceRef
+	 */
+	public String getSourceRefKey() {
+		return sourceRefKey;
+	}
+
+	/**
+	 * key.values
+	 */
+	public String getValuesKey() {
+		return valuesKey;
+	}
+
+	/**
+	 * The path of the entry for this source in the multiple values object, eg key.values.gps
+	 * @param src
+	 * @return
+	 */
+	public SignalKPath getValues(String src) {
+		SignalKPath path = sourceValues.get(src);
+		if (path != null)
+			return path;
+		path = new SignalKPath(valuesKey + dot + src);
+		SignalKPath other = sourceValues.putIfAbsent(src, path);
+		return other == null ? path : other;
+	}
+
+	/**
+	 * The value attached by the owner, or null if there is none. A path is shared by all the models,
+	 * so a value attached by another owner is not returned.
+	 * @param owner
+	 * @return
+	 */
+	public Object getAttachment(Object owner) {
+		Attachment a = attachment;
+		return a != null && a.get() == owner ? a.value.get() : null;
+	}
+
+	/**
+	 * Attach a value to this path for the owner, eg the source table a model holds for it, so the owner
+	 * can find it again without a map lookup. There is one attachment per path, the last owner to attach wins.
+	 * <p>
+	 * The paths are interned for all models, so the owner and value are only held weakly, and a model
+	 * that attaches to a path can still be collected. The owner must keep its own reference to the value.
+	 * </p>
+	 * @param owner
+	 * @param value
+	 */
+	public void attach(Object owner, Object value) {
+		attachment = new Attachment(owner, value);
+	}
+
+	/**
+	 * True if this key is in the subtree of the given key, eg vessels.self.navigation is a child of vessels.self
+	 * @param parent
+	 * @return
+	 */
+	public boolean startsWith(String parent) {
+		return key.startsWith(parent) && (key.length() == parent.length() || key.charAt(parent.length()) == '.');
+	}
+
+	@Override
+	public int compareTo(SignalKPath o) {
+		return key.compareTo(o.key);
+	}
+
+	@Override
+	public int hashCode() {
+		return key.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof SignalKPath))
+			return false;
+		return key.equals(((SignalKPath) obj).key);
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+
+	private static final class Attachment extends WeakReference<Object> {
+		final WeakReference<Object> value;
+
+		Attachment(Object owner, Object value) {
+			super(owner);
+			this.value = new WeakReference<Object>(value);
+		}
+	}
+}
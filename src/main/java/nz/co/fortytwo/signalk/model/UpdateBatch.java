@@ -0,0 +1,219 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of updates to apply to a SignalKModel as one unit with {@link SignalKModel#update(UpdateBatch)}.
+ * The entries are applied in the order they are added. A null value deletes the key, as for put.
+ * <pre>
+ * UpdateBatch batch = new UpdateBatch()
+ *     .put(vessels_dot_self_dot + nav_courseOverGroundTrue, 245.69, "gps", ts)
+ *     .putPosition(vessels_dot_self_dot + nav_position, -41.2, 173.2, 0.0, "gps", ts);
+ * model.update(batch);
+ * </pre>
+ * The timestamps can be ISO8601 strings, or epoch millis which are stored without formatting.
+ * A batch can be cleared and reused.
+ * @author robert
+ *
+ */
+public class UpdateBatch {
+
+	public enum Type {
+		/** key.value, key.timestamp and key.sourceRef, with the value recorded in the key's source table, as for put */
+		PUT,
+		/** key.value only, as for putValue */
+		VALUE,
+		/** key.latitude, key.longitude, key.altitude, key.timestamp and key.sourceRef, as for putPosition */
+		POSITION,
+		/** the key itself, for leaves that are not a value, eg key.source.label or key.latitude */
+		LEAF
+	};
+
+	public static final class Entry {
+		private final Type type;
+		private final SignalKPath path;
+		private final Object value;
+		private final String source;
+		private final String timestamp;
+		private final long millis;
+		private final double latitude;
+		private final double longitude;
+		private final double altitude;
+
+		private Entry(Type type, SignalKPath path, Object value, String source, String timestamp, long millis,
+				double latitude, double longitude, double altitude) {
+			this.type = type;
+			this.path = path;
+			this.value = value;
+			this.source = source;
+			this.timestamp = timestamp;
+			this.millis = millis;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.altitude = altitude;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public SignalKPath getPath() {
+			return path;
+		}
+
+		public Object getValue() {
+			return value;
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		/**
+		 * The ISO8601 timestamp, or null if there is none or it was given as epoch millis
+		 * @return
+		 */
+		public String getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * The epoch millis timestamp, or -1 if there is none or it was given as a String
+		 * @return
+		 */
+		public long getTimestampMillis() {
+			return millis;
+		}
+
+		public double getLatitude() {
+			return latitude;
+		}
+
+		public double getLongitude() {
+			return longitude;
+		}
+
+		public double getAltitude() {
+			return altitude;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry [type=" + type + ", path=" + path + ", value=" + value + ", source=" + source
+					+ ", timestamp=" + (timestamp != null || millis < 0 ? timestamp : millis) + "]";
+		}
+	}
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	public UpdateBatch put(String key, Object val, String src, String ts) {
+		return put(SignalKPath.get(key), val, src, ts);
+	}
+
+	public UpdateBatch put(SignalKPath path, Object val, String src, String ts) {
+		entries.add(new Entry(Type.PUT, path, val, src, ts, -1, 0, 0, 0));
+		return this;
+	}
+
+	public UpdateBatch put(String key, Object val, String src, long ts) {
+		return put(SignalKPath.get(key), val, src, ts);
+	}
+
+	public UpdateBatch put(SignalKPath path, Object val, String src, long ts) {
+		entries.add(new Entry(Type.PUT, path, val, src, null, ts, 0, 0, 0));
+		return this;
+	}
+
+	public UpdateBatch putValue(String key, Object val) {
+		return putValue(SignalKPath.get(key), val);
+	}
+
+	public UpdateBatch putValue(SignalKPath path, Object val) {
+		entries.add(new Entry(Type.VALUE, path, val, null, null, -1, 0, 0, 0));
+		return this;
+	}
+
+	public UpdateBatch putPosition(String key, double lat, double lon, double alt, String srcRef, String ts) {
+		return putPosition(SignalKPath.get(key), lat, lon, alt, srcRef, ts);
+	}
+
+	public UpdateBatch putPosition(SignalKPath path, double lat, double lon, double alt, String srcRef, String ts) {
+		entries.add(new Entry(Type.POSITION, path, null, srcRef, ts, -1, lat, lon, alt));
+		return this;
+	}
+
+	public UpdateBatch putPosition(String key, double lat, double lon, double alt, String srcRef, long ts) {
+		return putPosition(SignalKPath.get(key), lat, lon, alt, srcRef, ts);
+	}
+
+	public UpdateBatch putPosition(SignalKPath path, double lat, double lon, double alt, String srcRef, long ts) {
+		entries.add(new Entry(Type.POSITION, path, null, srcRef, null, ts, lat, lon, alt));
+		return this;
+	}
+
+	/**
+	 * Put the leaf at the key itself, without the .value suffix, eg key.source.label or key.latitude.
+	 * It is not arbitrated by source.
+	 * @param key
+	 * @param val the value, or null to delete the key
+	 * @return
+	 */
+	public UpdateBatch putLeaf(String key, Object val) {
+		return putLeaf(SignalKPath.get(key), val);
+	}
+
+	public UpdateBatch putLeaf(SignalKPath path, Object val) {
+		entries.add(new Entry(Type.LEAF, path, val, null, null, -1, 0, 0, 0));
+		return this;
+	}
+
+	/**
+	 * The entries, in the order they were added
+	 * @return
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "UpdateBatch " + entries;
+	}
+}
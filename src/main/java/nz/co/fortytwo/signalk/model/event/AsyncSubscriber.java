@@ -0,0 +1,388 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A {@link PathListener} that queues the events and calls the wrapped listener on an executor,
+ * so a slow listener (eg writing files, or pushing over http) does not hold up the thread writing to the model.
+ * <pre>
+ * model.subscribe("vessels.self.navigation", new AsyncSubscriber(listener, 1000, Overflow.DROP_OLDEST));
+ * </pre>
+ * The listener is called by one thread at a time, in the order of the events. Subscribers can share an executor,
+ * eg to limit a group of them to a few threads. The default executor uses virtual threads where the JVM has them,
+ * or else a daemon pool with a thread per processor.
+ * <p>
+ * The queue is bounded. When it is full:
+ * <ul>
+ * <li>DROP_OLDEST - the oldest event is dropped</li>
+ * <li>BLOCK - the writer waits for space. The listener must not write to the model, or it may wait on itself.</li>
+ * <li>COALESCE - events replace the queued event for the same key, and the oldest key is dropped if the queue is still full.
+ * A {@link BatchEvent} is queued as an event per key it changed or deleted, without the values.</li>
+ * </ul>
+ * </p>
+ * @author robert
+ *
+ */
+public class AsyncSubscriber implements PathListener {
+
+	private static Logger logger = LogManager.getLogger(AsyncSubscriber.class);
+
+	public enum Overflow {
+		DROP_OLDEST, BLOCK, COALESCE
+	};
+
+	private static volatile Executor defaultExecutor;
+
+	private final PathListener listener;
+	private final int capacity;
+	private final Overflow overflow;
+	private final Executor executor;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final ArrayDeque<PathEvent> queue;
+	//for COALESCE, the queued events by key in the order they were first queued
+	private final LinkedHashMap<String, PathEvent> latest;
+	private boolean scheduled;
+	private volatile boolean closed;
+
+	//metrics
+	private volatile int maxQueueSize;
+	private volatile long delivered;
+	private volatile long dropped;
+	private volatile long lag;
+	private volatile long maxLag;
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Queue for the listener on the default executor
+	 * @param listener
+	 * @param capacity the most events to queue
+	 * @param overflow what to do when the queue is full
+	 */
+	public AsyncSubscriber(PathListener listener, int capacity, Overflow overflow) {
+		this(listener, capacity, overflow, getDefaultExecutor());
+	}
+
+	/**
+	 * Queue for the listener on the given executor
+	 * @param listener
+	 * @param capacity the most events to queue
+	 * @param overflow what to do when the queue is full
+	 * @param executor
+	 */
+	public AsyncSubscriber(PathListener listener, int capacity, Overflow overflow, Executor executor) {
+		if (listener == null || overflow == null || executor == null) {
+			throw new IllegalArgumentException("Listener, overflow and executor must not be null");
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+		}
+		this.listener = listener;
+		this.capacity = capacity;
+		this.overflow = overflow;
+		this.executor = executor;
+		if (overflow == Overflow.COALESCE) {
+			this.queue = null;
+			this.latest = new LinkedHashMap<String, PathEvent>();
+		} else {
+			this.queue = new ArrayDeque<PathEvent>(Math.min(capacity, 1024));
+			this.latest = null;
+		}
+	}
+
+	@Override
+	public void onEvent(PathEvent event) {
+		if (closed)
+			return;
+		//the model reuses the event, and this keeps it
+		event = event.copy();
+		boolean schedule = false;
+		lock.lock();
+		try {
+			if (latest != null) {
+				if (event instanceof BatchEvent) {
+					BatchEvent batch = (BatchEvent) event;
+					for (String key : batch.getPaths()) {
+						coalesce(split(batch, key, PathEvent.EventType.ADD));
+					}
+					for (String key : batch.getDeleted()) {
+						coalesce(split(batch, key, PathEvent.EventType.DEL));
+					}
+				} else {
+					coalesce(event);
+				}
+			} else {
+				while (queue.size() >= capacity) {
+					if (overflow == Overflow.DROP_OLDEST) {
+						queue.poll();
+						dropped++;
+					} else {
+						try {
+							notFull.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							dropped++;
+							return;
+						}
+						if (closed)
+							return;
+					}
+				}
+				queue.add(event);
+			}
+			int size = size();
+			if (size > maxQueueSize)
+				maxQueueSize = size;
+			if (!scheduled) {
+				scheduled = true;
+				schedule = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (schedule) {
+			try {
+				executor.execute(drain);
+			} catch (RejectedExecutionException e) {
+				logger.error("Executor rejected " + listener + ": " + e.getMessage());
+				lock.lock();
+				try {
+					scheduled = false;
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replace the queued event for the key, holding the lock
+	 * @param event
+	 */
+	private void coalesce(PathEvent event) {
+		if (latest.put(event.getPath(), event) == null && latest.size() > capacity) {
+			Iterator<PathEvent> oldest = latest.values().iterator();
+			oldest.next();
+			oldest.remove();
+			dropped++;
+		}
+	}
+
+	/**
+	 * The event for one key of the batch
+	 */
+	private static PathEvent split(BatchEvent batch, String key, PathEvent.EventType type) {
+		PathEvent event = new PathEvent(key, batch.getRevision(), type);
+		event.setTimestamp(batch.getTimestamp());
+		event.setSource(batch.getSource());
+		return event;
+	}
+
+	/**
+	 * Call the listener for the queued events, until the queue is empty
+	 */
+	private void drain() {
+		while (true) {
+			PathEvent event;
+			lock.lock();
+			try {
+				event = poll();
+				if (event == null || closed) {
+					scheduled = false;
+					return;
+				}
+				notFull.signal();
+			} finally {
+				lock.unlock();
+			}
+			try {
+				listener.onEvent(event);
+			} catch (Exception e) {
+				logger.error("Listener failed on " + event.getPath() + ": " + e.getMessage(), e);
+			}
+			long l = System.currentTimeMillis() - event.getTimestamp();
+			lag = l;
+			if (l > maxLag)
+				maxLag = l;
+			delivered++;
+		}
+	}
+
+	private PathEvent poll() {
+		if (latest == null)
+			return queue.poll();
+		Iterator<PathEvent> oldest = latest.values().iterator();
+		if (!oldest.hasNext())
+			return null;
+		PathEvent event = oldest.next();
+		oldest.remove();
+		return event;
+	}
+
+	private int size() {
+		return latest == null ? queue.size() : latest.size();
+	}
+
+	/**
+	 * Stop queueing, drop the queued events and release any blocked writers
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			if (latest == null)
+				queue.clear();
+			else
+				latest.clear();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The number of events queued now
+	 * @return
+	 */
+	public int getQueueSize() {
+		lock.lock();
+		try {
+			return size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The most events that have been queued at once
+	 * @return
+	 */
+	public int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+
+	/**
+	 * The number of events given to the listener
+	 * @return
+	 */
+	public long getDelivered() {
+		return delivered;
+	}
+
+	/**
+	 * The number of events dropped because the queue was full
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * The millis from the last delivered event being created to the listener returning
+	 * @return
+	 */
+	public long getLag() {
+		return lag;
+	}
+
+	/**
+	 * The largest lag so far
+	 * @return
+	 */
+	public long getMaxLag() {
+		return maxLag;
+	}
+
+	public Overflow getOverflow() {
+		return overflow;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * The shared executor for subscribers without their own: virtual threads if the JVM has them,
+	 * otherwise a daemon pool with a thread per processor.
+	 * @return
+	 */
+	public static Executor getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			synchronized (AsyncSubscriber.class) {
+				if (defaultExecutor == null) {
+					defaultExecutor = createDefaultExecutor();
+				}
+			}
+		}
+		return defaultExecutor;
+	}
+
+	private static Executor createDefaultExecutor() {
+		try {
+			Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			if (logger.isDebugEnabled())
+				logger.debug("Using virtual threads for async subscribers");
+			return (ExecutorService) virtual.invoke(null);
+		} catch (Exception e) {
+			//before java 21
+			final AtomicInteger count = new AtomicInteger();
+			return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "AsyncSubscriber-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncSubscriber [listener=" + listener + ", capacity=" + capacity + ", overflow=" + overflow + "]";
+	}
+}
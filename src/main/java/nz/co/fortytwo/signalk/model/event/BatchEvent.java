@@ -0,0 +1,102 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Posted once for a whole {@link nz.co.fortytwo.signalk.model.UpdateBatch}, instead of a PathEvent per key.
+ * The path is the deepest key common to all the changes, eg 'vessels.self.navigation.position'.
+ * Subscribers to PathEvent also receive these, so check the type if you need the individual keys.
+ * 
+ * @author robert
+ *
+ */
+public class BatchEvent extends PathEvent {
+
+	private final List<String> paths;
+	private final List<String> deleted;
+
+	public BatchEvent(String path, long revision, List<String> paths, List<String> deleted) {
+		super(path, revision, paths.isEmpty() ? EventType.DEL : EventType.ADD);
+		this.paths = Collections.unmodifiableList(paths);
+		this.deleted = Collections.unmodifiableList(deleted);
+	}
+
+	/**
+	 * A batch event is not reused, so it can be kept as is
+	 */
+	@Override
+	public PathEvent copy() {
+		return this;
+	}
+
+	/**
+	 * The keys added or changed by the batch
+	 * @return
+	 */
+	public List<String> getPaths() {
+		return paths;
+	}
+
+	/**
+	 * The keys deleted by the batch
+	 * @return
+	 */
+	public List<String> getDeleted() {
+		return deleted;
+	}
+
+	/**
+	 * The deepest key that is a parent of (or equal to) all the given keys, or "" if they have nothing in common
+	 * @param keys
+	 * @return
+	 */
+	public static String commonPath(List<String> keys) {
+		String common = null;
+		for (String key : keys) {
+			if (common == null) {
+				common = key;
+				continue;
+			}
+			int len = Math.min(common.length(), key.length());
+			int i = 0;
+			while (i < len && common.charAt(i) == key.charAt(i)) {
+				i++;
+			}
+			if (i == common.length() && (i == key.length() || key.charAt(i) == '.')) {
+				continue;
+			}
+			if (i == key.length() && common.charAt(i) == '.') {
+				common = key;
+				continue;
+			}
+			//back up to the last whole segment
+			int dot = common.lastIndexOf('.', i - 1);
+			common = dot < 0 ? "" : common.substring(0, dot);
+		}
+		return common == null ? "" : common;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A bounded, in memory journal of the model's changes, so a client that reconnects (or joins late) can catch up
+ * from the revision it has, rather than take the whole model again.
+ * <p>
+ * The model copies each change into a pre-allocated ring of events as it makes it, while it holds the write lock,
+ * so the journal has every change in the order it was made and appending does not allocate.
+ * Once the ring is full the oldest changes are overwritten, and replayFrom() returns null for revisions
+ * older than those still held.
+ * </p>
+ * For a lossless handoff from a snapshot to the live events, subscribe first (holding the events), take the snapshot and its
+ * revision, replay from that revision, then pass on the held and live events with a later revision than the last replayed.
+ * <pre>
+ * model.setChangeJournal(new ChangeJournal(65536));
+ * ...
+ * Iterator&lt;PathEvent&gt; changes = model.replayFrom(clientRevision);
+ * if (changes == null) {
+ *     //too old, send the whole model
+ * }
+ * </pre>
+ * @author robert
+ *
+ */
+public class ChangeJournal {
+
+	private final int mask;
+	private final PathEvent[] slots;
+	//the highest revision up to and including each slot, so the search works when partitions append slightly out of order
+	private final long[] maxRevisions;
+	//guarded by this
+	private long appended;
+	private long maxRevision;
+	//changes at or before this revision may have been overwritten
+	private long horizon;
+
+	/**
+	 * @param capacity the number of changes to keep, rounded up to a power of 2
+	 */
+	public ChangeJournal(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		mask = size - 1;
+		slots = new PathEvent[size];
+		maxRevisions = new long[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new PathEvent();
+		}
+	}
+
+	/**
+	 * Record a change. The change is copied, so the caller can reuse it.
+	 * @param change
+	 */
+	public synchronized void append(PathEvent change) {
+		int i = (int) appended & mask;
+		if (appended > mask) {
+			horizon = Math.max(horizon, slots[i].getRevision());
+		}
+		slots[i].copy(change);
+		maxRevision = Math.max(maxRevision, change.getRevision());
+		maxRevisions[i] = maxRevision;
+		appended++;
+	}
+
+	/**
+	 * The changes made after the revision, oldest first, or null if some of them are no longer held.
+	 * The events are copies, taken when this is called.
+	 * @param revision
+	 * @return
+	 */
+	public synchronized Iterator<PathEvent> replayFrom(long revision) {
+		if (revision < horizon) {
+			return null;
+		}
+		long oldest = Math.max(0, appended - slots.length);
+		//the first slot where the running max passes the revision, everything before it is older
+		long lo = oldest;
+		long hi = appended;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			if (maxRevisions[(int) mid & mask] > revision) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		List<PathEvent> changes = new ArrayList<PathEvent>((int) (appended - lo));
+		for (long s = lo; s < appended; s++) {
+			PathEvent event = slots[(int) s & mask];
+			if (event.getRevision() > revision)
+				changes.add(new PathEvent(event));
+		}
+		return changes.iterator();
+	}
+
+	/**
+	 * True if all the changes after this revision are still held
+	 * @param revision
+	 * @return
+	 */
+	public synchronized boolean covers(long revision) {
+		return revision >= horizon;
+	}
+
+	/**
+	 * The highest revision recorded
+	 * @return
+	 */
+	public synchronized long getRevision() {
+		return maxRevision;
+	}
+
+	/**
+	 * The number of changes held
+	 * @return
+	 */
+	public synchronized int size() {
+		return (int) Math.min(appended, slots.length);
+	}
+
+	/**
+	 * The number of changes that can be held
+	 * @return
+	 */
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Drop all the changes, eg when the model is reloaded
+	 */
+	public synchronized void clear() {
+		horizon = maxRevision;
+		appended = 0;
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+/**
+ * Delivers the model's change events to subscribers. The model calls it after the write that made
+ * the change has released its locks, on the writing thread.
+ * <p>
+ * The default dispatcher posts to the Guava EventBus on the calling thread. Set a {@link RingBufferDispatcher}
+ * with SignalKModel.setEventDispatcher() to hand the events to consumer threads instead, so the
+ * writers do not wait for the subscribers.
+ * </p>
+ * @author robert
+ *
+ */
+public interface EventDispatcher {
+
+	/**
+	 * Dispatch a change to one key. Implementations may reuse an event object rather than allocate one.
+	 * @param path
+	 * @param revision
+	 * @param type
+	 */
+	public void dispatch(String path, long revision, PathEvent.EventType type);
+
+	/**
+	 * Dispatch a change to one key, with its values and source. The model reuses the change
+	 * after the call, so copy it rather than keep it.
+	 * @param change
+	 */
+	public void dispatchChange(PathEvent change);
+
+	/**
+	 * Dispatch an event the model has already built, eg a {@link BatchEvent}
+	 * @param event
+	 */
+	public void dispatch(PathEvent event);
+
+	/**
+	 * Stop dispatching and release any threads.
+	 */
+	public void close();
+}
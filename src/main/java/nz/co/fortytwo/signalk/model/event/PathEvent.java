@@ -23,22 +23,112 @@
  */
 package nz.co.fortytwo.signalk.model.event;
 
+import nz.co.fortytwo.signalk.util.Util;
 
+/**
+ * A change to one key of the model. The model fills in the new value, the previous value (if it is known),
+ * the source and the source timestamp, so subscribers do not need to look the key up again.
+ * Numbers and timestamps are held as primitives, and only boxed or formatted if getValue() is called.
+ * <p>
+ * The events are reused on the write path, so an event is only valid during the call that delivers it.
+ * A dispatcher or subscriber that keeps an event (eg queues it) keeps a copy() instead. The EventBus
+ * subscribers get a copy unless EventBusDispatcher.setCopyEvents(false) is called.
+ * </p>
+ */
 public class PathEvent {
-	public enum EventType  { ADD, DEL};
+	/**
+	 * ADD for a key added or changed, DEL for a key deleted, and DEL_SUBTREE for a key deleted with all
+	 * the keys below it, when the path is the key at the top of the subtree.
+	 */
+	public enum EventType  { ADD, DEL, DEL_SUBTREE};
+	//how a value is held
+	private static final byte NONE = 0;
+	private static final byte OBJECT = 1;
+	private static final byte NUMBER = 2;
+	private static final byte MILLIS = 3;
+
 	private String path;
 	private EventType type;
-	private int revision;
+	private long revision;
 	private long timestamp;
+	private Object value;
+	private double number;
+	private byte kind;
+	private Object oldValue;
+	private double oldNumber;
+	private byte oldKind;
+	private String source;
+	private long sourceTimestamp = -1;
 
-	public PathEvent(String path, int revision, EventType type) {
+	public PathEvent(String path, long revision, EventType type) {
 		this.path=path;
 		this.revision=revision;
 		this.type=type;
 		this.setTimestamp(System.currentTimeMillis());
 	}
 
-	
+	/**
+	 * Copy the event, eg to keep an event from a {@link RingBufferDispatcher} slot
+	 * @param other
+	 */
+	public PathEvent(PathEvent other) {
+		copy(other);
+	}
+
+	/**
+	 * A copy of the event to keep, as the model reuses the event after delivering it
+	 * @return
+	 */
+	public PathEvent copy() {
+		return new PathEvent(this);
+	}
+
+	/**
+	 * An empty event, for a reusable slot
+	 */
+	public PathEvent() {
+	}
+
+	/**
+	 * Reuse the event for another change, clearing the values and source
+	 */
+	public void reset(String path, long revision, EventType type) {
+		set(path, revision, type, System.currentTimeMillis());
+	}
+
+	/**
+	 * Reuse the event for another change
+	 */
+	void set(String path, long revision, EventType type, long timestamp) {
+		this.path=path;
+		this.revision=revision;
+		this.type=type;
+		this.timestamp=timestamp;
+		this.value=null;
+		this.kind=NONE;
+		this.oldValue=null;
+		this.oldKind=NONE;
+		this.source=null;
+		this.sourceTimestamp=-1;
+	}
+
+	/**
+	 * Make this event a copy of the other
+	 */
+	void copy(PathEvent other) {
+		this.path=other.path;
+		this.revision=other.revision;
+		this.type=other.type;
+		this.timestamp=other.timestamp;
+		this.value=other.value;
+		this.number=other.number;
+		this.kind=other.kind;
+		this.oldValue=other.oldValue;
+		this.oldNumber=other.oldNumber;
+		this.oldKind=other.oldKind;
+		this.source=other.source;
+		this.sourceTimestamp=other.sourceTimestamp;
+	}
 
 	public EventType getType() {
 		return type;
@@ -52,7 +142,7 @@ public class PathEvent {
 
 
 
-	public int getRevision() {
+	public long getRevision() {
 		return revision;
 	}
 
@@ -68,5 +158,129 @@ public class PathEvent {
 		this.timestamp = timestamp;
 	}
 
+	/**
+	 * The value after the change, as model.get(path) would return it, or null for a DEL.
+	 * Numbers are boxed, and epoch millis timestamps formatted as ISO8601, on each call.
+	 * @return
+	 */
+	public Object getValue() {
+		return valueOf(kind, value, number);
+	}
+
+	/**
+	 * The value after the change as a primitive, or NaN if it is not a number.
+	 * A timestamp held as epoch millis returns the millis.
+	 * @return
+	 */
+	public double getDouble() {
+		return doubleOf(kind, value, number);
+	}
+
+	/**
+	 * The value before the change, or null if there was none or it is not known
+	 * @return
+	 */
+	public Object getOldValue() {
+		return valueOf(oldKind, oldValue, oldNumber);
+	}
+
+	/**
+	 * The value before the change as a primitive, or NaN if it is not a number or not known
+	 * @return
+	 */
+	public double getOldDouble() {
+		return doubleOf(oldKind, oldValue, oldNumber);
+	}
+
+	public void setValue(Object value) {
+		this.value = value;
+		this.kind = value == null ? NONE : OBJECT;
+	}
+
+	public void setValue(double value) {
+		this.value = null;
+		this.number = value;
+		this.kind = NUMBER;
+	}
+
+	/**
+	 * Set the value to a timestamp, in epoch millis
+	 */
+	public void setValueMillis(long millis) {
+		this.value = null;
+		this.number = millis;
+		this.kind = MILLIS;
+	}
+
+	public void setOldValue(Object value) {
+		this.oldValue = value;
+		this.oldKind = value == null ? NONE : OBJECT;
+	}
+
+	public void setOldValue(double value) {
+		this.oldValue = null;
+		this.oldNumber = value;
+		this.oldKind = NUMBER;
+	}
+
+	/**
+	 * Set the old value to a timestamp, in epoch millis
+	 */
+	public void setOldValueMillis(long millis) {
+		this.oldValue = null;
+		this.oldNumber = millis;
+		this.oldKind = MILLIS;
+	}
+
+	/**
+	 * The source of the change, or null if it is not known
+	 * @return
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	public void setSource(String source) {
+		this.source = source;
+	}
+
+	/**
+	 * The timestamp of the change given by the source, in epoch millis, or -1 if it is not known
+	 * or was given as an ISO8601 string.
+	 * @return
+	 */
+	public long getSourceTimestamp() {
+		return sourceTimestamp;
+	}
+
+	public void setSourceTimestamp(long sourceTimestamp) {
+		this.sourceTimestamp = sourceTimestamp;
+	}
+
+	private static Object valueOf(byte kind, Object value, double number) {
+		switch (kind) {
+		case OBJECT:
+			return value;
+		case NUMBER:
+			return number;
+		case MILLIS:
+			return Util.getIsoTimeString((long) number);
+		default:
+			return null;
+		}
+	}
 
+	private static double doubleOf(byte kind, Object value, double number) {
+		if (kind == NUMBER || kind == MILLIS)
+			return number;
+		if (kind == OBJECT && value instanceof Number)
+			return ((Number) value).doubleValue();
+		return Double.NaN;
+	}
+
+	@Override
+	public String toString() {
+		return "PathEvent [path=" + path + ", type=" + type + ", revision=" + revision + ", value=" + getValue()
+				+ ", source=" + source + "]";
+	}
 }
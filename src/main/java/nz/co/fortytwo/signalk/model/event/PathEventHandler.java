@@ -0,0 +1,39 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+/**
+ * Receives events from a {@link RingBufferDispatcher}, on the dispatcher's consumer thread for this handler.
+ * <p>
+ * The event may be a reused slot, valid only until onEvent returns. Copy it with new PathEvent(event)
+ * to keep it. Events arrive in batches, endOfBatch is set on the last event currently available, so a handler can
+ * do its expensive work (eg send a delta) once per batch.
+ * </p>
+ * @author robert
+ *
+ */
+public interface PathEventHandler {
+
+	public void onEvent(PathEvent event, long sequence, boolean endOfBatch) throws Exception;
+}
@@ -0,0 +1,260 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An {@link EventDispatcher} that writes the events into a pre-allocated ring of reusable PathEvent slots,
+ * and hands them to each {@link PathEventHandler} on its own consumer thread. Writers only copy the
+ * change into a slot, so ingest does not wait on the subscribers unless a handler falls a whole ring behind.
+ * <p>
+ * Slots are claimed with an atomic counter and published per slot, so any number of model threads can write.
+ * Every handler sees every event, in order, and consumes them in batches.
+ * </p><pre>
+ * RingBufferDispatcher ring = new RingBufferDispatcher(65536);
+ * ring.addHandler(myHandler);
+ * //the Guava EventBus subscribers, now on a consumer thread
+ * ring.addHandler(model.getEventBusDispatcher());
+ * ring.start();
+ * model.setEventDispatcher(ring);
+ * </pre>
+ * <p>
+ * Handlers must not block on the model writers, eg by waiting for something they are about to write,
+ * as a full ring holds up the writers until the handlers catch up.
+ * </p>
+ * @author robert
+ *
+ */
+public class RingBufferDispatcher implements EventDispatcher {
+
+	private static Logger logger = LogManager.getLogger(RingBufferDispatcher.class);
+
+	private final int mask;
+	private final PathEvent[] slots;
+	//events published by reference (eg BatchEvents), null for a slot event
+	private final PathEvent[] refs;
+	//the sequence last published in each slot
+	private final AtomicLongArray published;
+	private final AtomicLong claimed = new AtomicLong(-1);
+	//the lowest consumer sequence we last saw, so writers only rescan when they might wrap
+	private volatile long gate = -1;
+	private final List<Consumer> consumers = new ArrayList<Consumer>();
+	private volatile boolean running;
+	private volatile boolean closed;
+
+	/**
+	 * @param size the number of slots, a power of 2
+	 */
+	public RingBufferDispatcher(int size) {
+		if (size < 2 || Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("Size must be a power of 2: " + size);
+		}
+		mask = size - 1;
+		slots = new PathEvent[size];
+		refs = new PathEvent[size];
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			slots[i] = new PathEvent();
+			published.set(i, -1);
+		}
+	}
+
+	/**
+	 * Add a handler, before start()
+	 * @param handler
+	 */
+	public synchronized void addHandler(PathEventHandler handler) {
+		if (running || closed) {
+			throw new IllegalStateException("Handlers must be added before start()");
+		}
+		consumers.add(new Consumer(handler, consumers.size()));
+	}
+
+	/**
+	 * Start a consumer thread for each handler
+	 */
+	public synchronized void start() {
+		if (running || closed) {
+			return;
+		}
+		running = true;
+		for (Consumer consumer : consumers) {
+			consumer.thread.start();
+		}
+	}
+
+	@Override
+	public void dispatch(String path, long revision, PathEvent.EventType type) {
+		publish(path, revision, type, null, null);
+	}
+
+	@Override
+	public void dispatchChange(PathEvent change) {
+		publish(null, 0, null, change, null);
+	}
+
+	@Override
+	public void dispatch(PathEvent event) {
+		publish(null, 0, null, null, event);
+	}
+
+	/**
+	 * Write the change into the next slot, or publish the ref as is
+	 */
+	private void publish(String path, long revision, PathEvent.EventType type, PathEvent change, PathEvent ref) {
+		if (!running) {
+			if (closed) {
+				if (logger.isDebugEnabled())
+					logger.debug("Closed, dropped event " + (ref != null ? ref.getPath() : change != null ? change.getPath() : path));
+				return;
+			}
+			throw new IllegalStateException("RingBufferDispatcher not started");
+		}
+		long seq = claimed.incrementAndGet();
+		long wrap = seq - slots.length;
+		if (wrap > gate) {
+			waitForConsumers(wrap);
+		}
+		int i = (int) seq & mask;
+		if (change != null) {
+			slots[i].copy(change);
+		} else if (ref == null) {
+			slots[i].set(path, revision, type, System.currentTimeMillis());
+		}
+		refs[i] = ref;
+		published.lazySet(i, seq);
+	}
+
+	/**
+	 * Wait until every consumer is past the sequence, so its slot can be reused
+	 * @param wrap
+	 */
+	private void waitForConsumers(long wrap) {
+		while (true) {
+			long min = Long.MAX_VALUE;
+			for (int c = 0; c < consumers.size(); c++) {
+				min = Math.min(min, consumers.get(c).sequence.get());
+			}
+			if (min == Long.MAX_VALUE) {
+				//no consumers, nothing to wait for
+				min = wrap;
+			}
+			gate = min;
+			if (wrap <= min || closed) {
+				return;
+			}
+			LockSupport.parkNanos(1000);
+		}
+	}
+
+	/**
+	 * The number of events published so far
+	 * @return
+	 */
+	public long getPublished() {
+		return claimed.get() + 1;
+	}
+
+	/**
+	 * Stop the consumers once they have handled the events already published, and wait for them.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		running = false;
+		for (Consumer consumer : consumers) {
+			try {
+				consumer.thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private final class Consumer implements Runnable {
+		private final PathEventHandler handler;
+		private final AtomicLong sequence = new AtomicLong(-1);
+		private final Thread thread;
+
+		Consumer(PathEventHandler handler, int index) {
+			this.handler = handler;
+			this.thread = new Thread(this, "RingBufferDispatcher-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long next = 0;
+			int idle = 0;
+			while (true) {
+				//find the end of the contiguous run of published slots
+				long available = next - 1;
+				while (published.get((int) (available + 1) & mask) == available + 1) {
+					available++;
+				}
+				if (available < next) {
+					if (!running && next > claimed.get()) {
+						return;
+					}
+					//spin, then yield, then sleep while there is nothing to do
+					if (idle < 100) {
+						idle++;
+					} else if (idle < 200) {
+						idle++;
+						Thread.yield();
+					} else {
+						LockSupport.parkNanos(50000);
+					}
+					continue;
+				}
+				idle = 0;
+				for (long s = next; s <= available; s++) {
+					int i = (int) s & mask;
+					PathEvent event = refs[i] != null ? refs[i] : slots[i];
+					try {
+						handler.onEvent(event, s, s == available);
+					} catch (Exception e) {
+						logger.error("Handler failed on " + event.getPath() + ": " + e.getMessage(), e);
+					}
+				}
+				sequence.lazySet(available);
+				next = available + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+/**
+ * How often a subscription gets events, see SignalKModel.subscribe(String, PathListener, SubscriptionPolicy).
+ * <ul>
+ * <li>INSTANT - every event, as it happens</li>
+ * <li>LATEST_VALUE - at most one event per key per minPeriod. Events in between are coalesced, the
+ * latest is delivered at the end of the period.</li>
+ * <li>ON_CHANGE - as LATEST_VALUE, but events whose value has changed less than the threshold
+ * from the last one delivered are dropped. Values that are not numbers must differ.</li>
+ * </ul>
+ * A subscription holds at most one pending event per key, so a slow client never queues events or holds up the model.
+ * @author robert
+ *
+ */
+public final class SubscriptionPolicy {
+
+	public enum Type {
+		INSTANT, LATEST_VALUE, ON_CHANGE
+	};
+
+	public static final SubscriptionPolicy INSTANT = new SubscriptionPolicy(Type.INSTANT, 0, 0);
+
+	private final Type type;
+	private final long minPeriod;
+	private final double threshold;
+
+	private SubscriptionPolicy(Type type, long minPeriod, double threshold) {
+		if (minPeriod < 0) {
+			throw new IllegalArgumentException("minPeriod must not be negative: " + minPeriod);
+		}
+		this.type = type;
+		this.minPeriod = minPeriod;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * At most one event per key per minPeriod, the latest
+	 * @param minPeriod millis
+	 * @return
+	 */
+	public static SubscriptionPolicy latestValue(long minPeriod) {
+		return new SubscriptionPolicy(Type.LATEST_VALUE, minPeriod, 0);
+	}
+
+	/**
+	 * At most one event per key per minPeriod, and only if the value has changed by at least the threshold
+	 * @param threshold
+	 * @param minPeriod millis
+	 * @return
+	 */
+	public static SubscriptionPolicy onChange(double threshold, long minPeriod) {
+		return new SubscriptionPolicy(Type.ON_CHANGE, minPeriod, threshold);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public long getMinPeriod() {
+		return minPeriod;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	@Override
+	public String toString() {
+		return "SubscriptionPolicy [type=" + type + ", minPeriod=" + minPeriod + ", threshold=" + threshold + "]";
+	}
+}
@@ -0,0 +1,693 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * Base class for the path stores that back a SignalKModel.
+ * <p>
+ * Subclasses only provide lookup, mutation and a bounded, ordered iterator.
+ * Everything else in the NavigableMap contract (navigation, range views, descending views,
+ * key sets) is derived from those here, so a store that can seek cheaply to a bound gets
+ * cheap getSubMap()/getTree() views for free.
+ * </p>
+ * Keys are dotted signalk paths in natural String order, and null values are not permitted,
+ * the same as the ConcurrentSkipListMap the model has always used.
+ *
+ * @author robert
+ *
+ */
+public abstract class AbstractPathMap extends AbstractMap<String, Object> implements NavigableMap<String, Object> {
+
+	/**
+	 * Iterate the entries between the bounds, in this maps order. A null bound is unbounded.
+	 * The iterator must be weakly consistent, and should support remove().
+	 *
+	 * @param lo
+	 * @param loInclusive
+	 * @param hi
+	 * @param hiInclusive
+	 * @param descending true to iterate from hi down to lo
+	 * @return
+	 */
+	protected abstract Iterator<Entry<String, Object>> entryIterator(String lo, boolean loInclusive, String hi,
+			boolean hiInclusive, boolean descending);
+
+	@Override
+	public abstract Object get(Object key);
+
+	@Override
+	public abstract Object put(String key, Object value);
+
+	@Override
+	public abstract Object remove(Object key);
+
+	/**
+	 * Remove the key and all the keys below it, eg 'vessels.x' removes 'vessels.x' and 'vessels.x.navigation.position',
+	 * but not 'vessels.xy'. Stores that can cut out a whole subtree at once override this, the default removes the
+	 * keys one by one.
+	 * @param prefix
+	 * @param removed if not null, the removed keys are added to it
+	 * @return the number of keys removed
+	 */
+	public int removeSubtree(String prefix, List<String> removed) {
+		int count = 0;
+		if (remove(prefix) != null) {
+			count++;
+			if (removed != null)
+				removed.add(prefix);
+		}
+		//all the keys starting with 'prefix.' sort before 'prefix/'
+		String lo = prefix + '.';
+		String hi = prefix + (char) ('.' + 1);
+		for (Iterator<Entry<String, Object>> i = entryIterator(lo, true, hi, false, false); i.hasNext();) {
+			String key = i.next().getKey();
+			i.remove();
+			count++;
+			if (removed != null)
+				removed.add(key);
+		}
+		return count;
+	}
+
+	/**
+	 * Put the key:value into the map as a leaf. Fails if the key is below an existing leaf,
+	 * or is already a branch, eg if the map contains "a.b", then "a.b.c" fails, and if
+	 * it contains "a.b.c" then "a.b" fails.
+	 * <p>
+	 * Replacing the value of an existing leaf cannot conflict, so that costs one lookup. Only a new key is
+	 * checked against its neighbours. The default is not atomic, so stores written
+	 * by concurrent threads override it to check and insert atomically.
+	 * </p>
+	 * @param key
+	 * @param value
+	 * @return the previous value, or null
+	 * @throws IllegalArgumentException if the key conflicts with an existing leaf or branch
+	 */
+	public Object putLeaf(String key, Object value) throws IllegalArgumentException {
+		Object old = replace(key, value);
+		if (old != null)
+			return old;
+		checkLeaf(this, key);
+		return put(key, value);
+	}
+
+	/**
+	 * Null values are not permitted, so a null get() means there is nothing to replace
+	 */
+	@Override
+	public Object replace(String key, Object value) {
+		if (value == null)
+			throw new NullPointerException();
+		return get(key) == null ? null : put(key, value);
+	}
+
+	/**
+	 * Throws IllegalArgumentException if the key is below a leaf in the map, or is a branch in it.
+	 * If the key is a leaf, the leaf above it is the nearest key below it, and a key below it is the nearest above it.
+	 * @param map
+	 * @param key
+	 * @throws IllegalArgumentException
+	 */
+	static void checkLeaf(NavigableMap<String, ?> map, String key) throws IllegalArgumentException {
+		// If key = "aa.bb.cc", fail if map contains "aa.bb" or "aa.bb.cc.dd"
+		String othkey = map.lowerKey(key);
+		if (othkey != null && key.startsWith(othkey) && key.charAt(othkey.length()) == '.') {
+			throw conflict(key, othkey);
+		}
+		othkey = map.higherKey(key);
+		if (othkey != null && othkey.startsWith(key) && othkey.charAt(key.length()) == '.') {
+			throw conflict(key, othkey);
+		}
+	}
+
+	static IllegalArgumentException conflict(String key, String othkey) {
+		return new IllegalArgumentException("Can't insert key \"" + key + "\" into Model containing \"" + othkey + "\"");
+	}
+
+	/**
+	 * Compare two keys in this maps order
+	 */
+	protected int compare(String k1, String k2) {
+		return k1.compareTo(k2);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !entryIterator(null, false, null, false, false).hasNext();
+	}
+
+	@Override
+	public int size() {
+		int count = 0;
+		for (Iterator<Entry<String, Object>> i = entryIterator(null, false, null, false, false); i.hasNext(); i.next()) {
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public void clear() {
+		for (Iterator<Entry<String, Object>> i = entryIterator(null, false, null, false, false); i.hasNext();) {
+			i.next();
+			i.remove();
+		}
+	}
+
+	private Entry<String, Object> first(String lo, boolean loInclusive, String hi, boolean hiInclusive, boolean descending) {
+		Iterator<Entry<String, Object>> i = entryIterator(lo, loInclusive, hi, hiInclusive, descending);
+		return i.hasNext() ? i.next() : null;
+	}
+
+	private static String key(Entry<String, Object> e) {
+		return e == null ? null : e.getKey();
+	}
+
+	private static String keyOrThrow(Entry<String, Object> e) {
+		if (e == null)
+			throw new NoSuchElementException();
+		return e.getKey();
+	}
+
+	@Override
+	public Entry<String, Object> lowerEntry(String key) {
+		return first(null, false, key, false, true);
+	}
+
+	@Override
+	public String lowerKey(String key) {
+		return key(lowerEntry(key));
+	}
+
+	@Override
+	public Entry<String, Object> floorEntry(String key) {
+		return first(null, false, key, true, true);
+	}
+
+	@Override
+	public String floorKey(String key) {
+		return key(floorEntry(key));
+	}
+
+	@Override
+	public Entry<String, Object> ceilingEntry(String key) {
+		return first(key, true, null, false, false);
+	}
+
+	@Override
+	public String ceilingKey(String key) {
+		return key(ceilingEntry(key));
+	}
+
+	@Override
+	public Entry<String, Object> higherEntry(String key) {
+		return first(key, false, null, false, false);
+	}
+
+	@Override
+	public String higherKey(String key) {
+		return key(higherEntry(key));
+	}
+
+	@Override
+	public Entry<String, Object> firstEntry() {
+		return first(null, false, null, false, false);
+	}
+
+	@Override
+	public Entry<String, Object> lastEntry() {
+		return first(null, false, null, false, true);
+	}
+
+	@Override
+	public String firstKey() {
+		return keyOrThrow(firstEntry());
+	}
+
+	@Override
+	public String lastKey() {
+		return keyOrThrow(lastEntry());
+	}
+
+	@Override
+	public Entry<String, Object> pollFirstEntry() {
+		return poll(false);
+	}
+
+	@Override
+	public Entry<String, Object> pollLastEntry() {
+		return poll(true);
+	}
+
+	private Entry<String, Object> poll(boolean descending) {
+		while (true) {
+			Entry<String, Object> e = first(null, false, null, false, descending);
+			if (e == null)
+				return null;
+			if (remove(e.getKey(), e.getValue()))
+				return e;
+		}
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		Object cur = get(key);
+		if (cur != null && cur.equals(value)) {
+			remove(key);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Comparator<? super String> comparator() {
+		return null;
+	}
+
+	@Override
+	public NavigableMap<String, Object> descendingMap() {
+		return new SubMap(this, null, false, null, false, true);
+	}
+
+	@Override
+	public NavigableSet<String> navigableKeySet() {
+		return new KeySet(this);
+	}
+
+	@Override
+	public NavigableSet<String> keySet() {
+		return navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<String> descendingKeySet() {
+		return descendingMap().navigableKeySet();
+	}
+
+	@Override
+	public NavigableMap<String, Object> subMap(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive) {
+		if (fromKey == null || toKey == null)
+			throw new NullPointerException();
+		if (compare(fromKey, toKey) > 0)
+			throw new IllegalArgumentException("fromKey > toKey");
+		return new SubMap(this, fromKey, fromInclusive, toKey, toInclusive, false);
+	}
+
+	@Override
+	public NavigableMap<String, Object> headMap(String toKey, boolean inclusive) {
+		if (toKey == null)
+			throw new NullPointerException();
+		return new SubMap(this, null, false, toKey, inclusive, false);
+	}
+
+	@Override
+	public NavigableMap<String, Object> tailMap(String fromKey, boolean inclusive) {
+		if (fromKey == null)
+			throw new NullPointerException();
+		return new SubMap(this, fromKey, inclusive, null, false, false);
+	}
+
+	@Override
+	public SortedMap<String, Object> subMap(String fromKey, String toKey) {
+		return subMap(fromKey, true, toKey, false);
+	}
+
+	@Override
+	public SortedMap<String, Object> headMap(String toKey) {
+		return headMap(toKey, false);
+	}
+
+	@Override
+	public SortedMap<String, Object> tailMap(String fromKey) {
+		return tailMap(fromKey, true);
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		return new AbstractSet<Entry<String, Object>>() {
+
+			@Override
+			public Iterator<Entry<String, Object>> iterator() {
+				return entryIterator(null, false, null, false, false);
+			}
+
+			@Override
+			public int size() {
+				return AbstractPathMap.this.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return AbstractPathMap.this.isEmpty();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Map.Entry))
+					return false;
+				Entry<?, ?> e = (Entry<?, ?>) o;
+				Object v = get(e.getKey());
+				return v != null && v.equals(e.getValue());
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (!(o instanceof Map.Entry))
+					return false;
+				Entry<?, ?> e = (Entry<?, ?>) o;
+				return AbstractPathMap.this.remove(e.getKey(), e.getValue());
+			}
+
+			@Override
+			public void clear() {
+				AbstractPathMap.this.clear();
+			}
+		};
+	}
+
+	/**
+	 * A live range view over another path map. Bounds are held in the parents order,
+	 * and a descending view simply swaps the bounds and direction on the way through.
+	 */
+	static class SubMap extends AbstractPathMap {
+		private final AbstractPathMap m;
+		private final String lo;
+		private final boolean loInclusive;
+		private final String hi;
+		private final boolean hiInclusive;
+		private final boolean descending;
+
+		SubMap(AbstractPathMap m, String lo, boolean loInclusive, String hi, boolean hiInclusive, boolean descending) {
+			this.m = m;
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.descending = descending;
+		}
+
+		@Override
+		protected int compare(String k1, String k2) {
+			return descending ? m.compare(k2, k1) : m.compare(k1, k2);
+		}
+
+		@Override
+		public Comparator<? super String> comparator() {
+			Comparator<? super String> c = m.comparator();
+			if (!descending)
+				return c;
+			return c == null ? Collections.<String> reverseOrder() : Collections.reverseOrder(c);
+		}
+
+		private boolean tooLow(String key) {
+			if (lo == null)
+				return false;
+			int c = m.compare(key, lo);
+			return c < 0 || (c == 0 && !loInclusive);
+		}
+
+		private boolean tooHigh(String key) {
+			if (hi == null)
+				return false;
+			int c = m.compare(key, hi);
+			return c > 0 || (c == 0 && !hiInclusive);
+		}
+
+		private boolean inRange(Object key) {
+			return key instanceof String && !tooLow((String) key) && !tooHigh((String) key);
+		}
+
+		@Override
+		public Object get(Object key) {
+			return inRange(key) ? m.get(key) : null;
+		}
+
+		@Override
+		public Object put(String key, Object value) {
+			if (!inRange(key))
+				throw new IllegalArgumentException("key out of range: " + key);
+			return m.put(key, value);
+		}
+
+		@Override
+		public Object remove(Object key) {
+			return inRange(key) ? m.remove(key) : null;
+		}
+
+		@Override
+		protected Iterator<Entry<String, Object>> entryIterator(String fLo, boolean fLoInclusive, String fHi,
+				boolean fHiInclusive, boolean desc) {
+			// translate the request into the parents order
+			if (descending) {
+				String t = fLo;
+				fLo = fHi;
+				fHi = t;
+				boolean tb = fLoInclusive;
+				fLoInclusive = fHiInclusive;
+				fHiInclusive = tb;
+				desc = !desc;
+			}
+			// intersect with our own bounds
+			String nLo = lo;
+			boolean nLoInclusive = loInclusive;
+			if (fLo != null) {
+				int c = lo == null ? 1 : m.compare(fLo, lo);
+				if (c > 0) {
+					nLo = fLo;
+					nLoInclusive = fLoInclusive;
+				} else if (c == 0) {
+					nLoInclusive = loInclusive && fLoInclusive;
+				}
+			}
+			String nHi = hi;
+			boolean nHiInclusive = hiInclusive;
+			if (fHi != null) {
+				int c = hi == null ? -1 : m.compare(fHi, hi);
+				if (c < 0) {
+					nHi = fHi;
+					nHiInclusive = fHiInclusive;
+				} else if (c == 0) {
+					nHiInclusive = hiInclusive && fHiInclusive;
+				}
+			}
+			if (nLo != null && nHi != null) {
+				int c = m.compare(nLo, nHi);
+				if (c > 0 || (c == 0 && !(nLoInclusive && nHiInclusive))) {
+					return Collections.emptyIterator();
+				}
+			}
+			return m.entryIterator(nLo, nLoInclusive, nHi, nHiInclusive, desc);
+		}
+
+		@Override
+		public NavigableMap<String, Object> subMap(String fromKey, boolean fromInclusive, String toKey, boolean toInclusive) {
+			checkInRange(fromKey, fromInclusive);
+			checkInRange(toKey, toInclusive);
+			return super.subMap(fromKey, fromInclusive, toKey, toInclusive);
+		}
+
+		@Override
+		public NavigableMap<String, Object> headMap(String toKey, boolean inclusive) {
+			checkInRange(toKey, inclusive);
+			return super.headMap(toKey, inclusive);
+		}
+
+		@Override
+		public NavigableMap<String, Object> tailMap(String fromKey, boolean inclusive) {
+			checkInRange(fromKey, inclusive);
+			return super.tailMap(fromKey, inclusive);
+		}
+
+		private void checkInRange(String key, boolean inclusive) {
+			if (key == null)
+				throw new NullPointerException();
+			// an exclusive bound may sit exactly on our own exclusive bound
+			if (!inRange(key) && (inclusive || !(key.equals(lo) || key.equals(hi)))) {
+				throw new IllegalArgumentException("key out of range: " + key);
+			}
+		}
+	}
+
+	/**
+	 * The NavigableSet view of a path maps keys
+	 */
+	static class KeySet extends AbstractSet<String> implements NavigableSet<String> {
+		private final NavigableMap<String, Object> m;
+
+		KeySet(NavigableMap<String, Object> m) {
+			this.m = m;
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			final Iterator<Entry<String, Object>> i = m.entrySet().iterator();
+			return new Iterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return i.hasNext();
+				}
+
+				@Override
+				public String next() {
+					return i.next().getKey();
+				}
+
+				@Override
+				public void remove() {
+					i.remove();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return m.size();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return m.isEmpty();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return m.containsKey(o);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return m.remove(o) != null;
+		}
+
+		@Override
+		public void clear() {
+			m.clear();
+		}
+
+		@Override
+		public String lower(String e) {
+			return m.lowerKey(e);
+		}
+
+		@Override
+		public String floor(String e) {
+			return m.floorKey(e);
+		}
+
+		@Override
+		public String ceiling(String e) {
+			return m.ceilingKey(e);
+		}
+
+		@Override
+		public String higher(String e) {
+			return m.higherKey(e);
+		}
+
+		@Override
+		public String pollFirst() {
+			Entry<String, Object> e = m.pollFirstEntry();
+			return e == null ? null : e.getKey();
+		}
+
+		@Override
+		public String pollLast() {
+			Entry<String, Object> e = m.pollLastEntry();
+			return e == null ? null : e.getKey();
+		}
+
+		@Override
+		public Comparator<? super String> comparator() {
+			return m.comparator();
+		}
+
+		@Override
+		public String first() {
+			return m.firstKey();
+		}
+
+		@Override
+		public String last() {
+			return m.lastKey();
+		}
+
+		@Override
+		public NavigableSet<String> descendingSet() {
+			return new KeySet(m.descendingMap());
+		}
+
+		@Override
+		public Iterator<String> descendingIterator() {
+			return descendingSet().iterator();
+		}
+
+		@Override
+		public NavigableSet<String> subSet(String fromElement, boolean fromInclusive, String toElement, boolean toInclusive) {
+			return new KeySet(m.subMap(fromElement, fromInclusive, toElement, toInclusive));
+		}
+
+		@Override
+		public NavigableSet<String> headSet(String toElement, boolean inclusive) {
+			return new KeySet(m.headMap(toElement, inclusive));
+		}
+
+		@Override
+		public NavigableSet<String> tailSet(String fromElement, boolean inclusive) {
+			return new KeySet(m.tailMap(fromElement, inclusive));
+		}
+
+		@Override
+		public SortedSet<String> subSet(String fromElement, String toElement) {
+			return subSet(fromElement, true, toElement, false);
+		}
+
+		@Override
+		public SortedSet<String> headSet(String toElement) {
+			return headSet(toElement, false);
+		}
+
+		@Override
+		public SortedSet<String> tailSet(String fromElement) {
+			return tailSet(fromElement, true);
+		}
+	}
+}
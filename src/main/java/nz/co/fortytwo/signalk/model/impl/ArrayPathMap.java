@@ -0,0 +1,279 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A small, unsynchronized path store kept as sorted arrays of keys and values.
+ * <p>
+ * Lookups are a binary search, and a key that sorts after the last one (as most keys in a message do) is appended.
+ * clear() keeps the arrays, so a model that is cleared and reused for each message (see {@link ScratchModel})
+ * stops allocating once they are big enough for the largest message.
+ * </p>
+ * Only for models used by one thread at a time. The iterators find their place again by key if the map
+ * is changed under them, so they are weakly consistent as the other stores are.
+ *
+ * @author robert
+ *
+ */
+public class ArrayPathMap extends AbstractPathMap {
+
+	private static final int DEFAULT_CAPACITY = 32;
+	//clear() drops arrays grown bigger than this by an unusually large message
+	private static final int MAX_RETAINED = 4096;
+
+	private String[] keys;
+	private Object[] vals;
+	private int size;
+
+	public ArrayPathMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ArrayPathMap(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be > 0");
+		keys = new String[capacity];
+		vals = new Object[capacity];
+	}
+
+	private int search(String key) {
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		int i = search((String) key);
+		return i < 0 ? null : vals[i];
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		if (size == 0 || key.compareTo(keys[size - 1]) > 0) {
+			insert(size, key, value);
+			return null;
+		}
+		int i = search(key);
+		if (i >= 0) {
+			Object old = vals[i];
+			vals[i] = value;
+			return old;
+		}
+		insert(-i - 1, key, value);
+		return null;
+	}
+
+	/**
+	 * One binary search finds the key, or where it goes and so its neighbours to check
+	 */
+	@Override
+	public Object putLeaf(String key, Object value) throws IllegalArgumentException {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		int i = size == 0 || key.compareTo(keys[size - 1]) > 0 ? -size - 1 : search(key);
+		if (i >= 0) {
+			Object old = vals[i];
+			vals[i] = value;
+			return old;
+		}
+		i = -i - 1;
+		// If key = "aa.bb.cc", fail if map contains "aa.bb" or "aa.bb.cc.dd"
+		if (i > 0) {
+			String othkey = keys[i - 1];
+			if (key.startsWith(othkey) && key.charAt(othkey.length()) == '.')
+				throw conflict(key, othkey);
+		}
+		if (i < size) {
+			String othkey = keys[i];
+			if (othkey.startsWith(key) && othkey.charAt(key.length()) == '.')
+				throw conflict(key, othkey);
+		}
+		insert(i, key, value);
+		return null;
+	}
+
+	private void insert(int i, String key, Object value) {
+		if (size == keys.length) {
+			int cap = size * 2;
+			keys = Arrays.copyOf(keys, cap);
+			vals = Arrays.copyOf(vals, cap);
+		}
+		if (i < size) {
+			System.arraycopy(keys, i, keys, i + 1, size - i);
+			System.arraycopy(vals, i, vals, i + 1, size - i);
+		}
+		keys[i] = key;
+		vals[i] = value;
+		size++;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		if (!(key instanceof String))
+			return null;
+		int i = search((String) key);
+		if (i < 0)
+			return null;
+		Object old = vals[i];
+		removeAt(i);
+		return old;
+	}
+
+	private void removeAt(int i) {
+		size--;
+		if (i < size) {
+			System.arraycopy(keys, i + 1, keys, i, size - i);
+			System.arraycopy(vals, i + 1, vals, i, size - i);
+		}
+		keys[size] = null;
+		vals[size] = null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void clear() {
+		if (keys.length > MAX_RETAINED) {
+			keys = new String[DEFAULT_CAPACITY];
+			vals = new Object[DEFAULT_CAPACITY];
+		} else {
+			Arrays.fill(keys, 0, size, null);
+			Arrays.fill(vals, 0, size, null);
+		}
+		size = 0;
+	}
+
+	@Override
+	protected Iterator<Entry<String, Object>> entryIterator(String lo, boolean loInclusive, String hi,
+			boolean hiInclusive, boolean descending) {
+		return new ArrayIterator(lo, loInclusive, hi, hiInclusive, descending);
+	}
+
+	private final class ArrayIterator implements Iterator<Entry<String, Object>> {
+		private final String lo;
+		private final boolean loInclusive;
+		private final String hi;
+		private final boolean hiInclusive;
+		private final boolean descending;
+		//the index of the next entry to check
+		private int next;
+		//the key last returned, to find our place again if the map changed
+		private String last;
+
+		ArrayIterator(String lo, boolean loInclusive, String hi, boolean hiInclusive, boolean descending) {
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.descending = descending;
+			if (descending) {
+				if (hi == null) {
+					next = size - 1;
+				} else {
+					int i = search(hi);
+					next = i >= 0 ? (hiInclusive ? i : i - 1) : -i - 2;
+				}
+			} else {
+				if (lo == null) {
+					next = 0;
+				} else {
+					int i = search(lo);
+					next = i >= 0 ? (loInclusive ? i : i + 1) : -i - 1;
+				}
+			}
+		}
+
+		private void sync() {
+			if (last == null)
+				return;
+			int prev = descending ? next + 1 : next - 1;
+			if (prev >= 0 && prev < size && keys[prev] == last)
+				return;
+			int i = search(last);
+			if (descending) {
+				next = i >= 0 ? i - 1 : -i - 2;
+			} else {
+				next = i >= 0 ? i + 1 : -i - 1;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			sync();
+			if (next < 0 || next >= size)
+				return false;
+			String key = keys[next];
+			if (descending) {
+				if (lo == null)
+					return true;
+				int c = key.compareTo(lo);
+				return c > 0 || (c == 0 && loInclusive);
+			}
+			if (hi == null)
+				return true;
+			int c = key.compareTo(hi);
+			return c < 0 || (c == 0 && hiInclusive);
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			last = keys[next];
+			Entry<String, Object> e = new SimpleImmutableEntry<String, Object>(last, vals[next]);
+			next = descending ? next - 1 : next + 1;
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+			sync();
+			int prev = descending ? next + 1 : next - 1;
+			if (prev >= 0 && prev < size && keys[prev] == last) {
+				removeAt(prev);
+				if (!descending)
+					next--;
+			}
+			last = null;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import nz.co.fortytwo.signalk.model.event.BatchEvent;
+import nz.co.fortytwo.signalk.model.event.EventDispatcher;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.event.PathEventHandler;
+
+import com.google.common.eventbus.EventBus;
+
+/**
+ * The default {@link EventDispatcher}, posts the events to the models Guava EventBus, the per context
+ * buses and the path subscriptions on the calling thread.
+ * <p>
+ * It is also a {@link PathEventHandler}, so it can be added to a RingBufferDispatcher to keep the EventBus
+ * subscribers, but run them on a consumer thread.
+ * </p>
+ * @author robert
+ *
+ */
+public class EventBusDispatcher implements EventDispatcher, PathEventHandler {
+
+	private final EventBus eventBus;
+	private final ConcurrentMap<String, EventBus> contextBuses;
+	private final SubscriptionIndex subscriptions;
+	//copy the reused events for the EventBus subscribers, which may keep them
+	private volatile boolean copyEvents = true;
+
+	EventBusDispatcher(EventBus eventBus, ConcurrentMap<String, EventBus> contextBuses, SubscriptionIndex subscriptions) {
+		this.eventBus = eventBus;
+		this.contextBuses = contextBuses;
+		this.subscriptions = subscriptions;
+	}
+
+	@Override
+	public void dispatch(String path, long revision, PathEvent.EventType type) {
+		dispatch(new PathEvent(path, revision, type));
+	}
+
+	/**
+	 * Copy each event before posting it to the EventBus and context buses. On by default, as EventBus
+	 * subscribers may keep the events or pass them to another thread (eg an AsyncEventBus).
+	 * If all the EventBus subscribers only use the event during the call, turn it off to post the models
+	 * reused event instead. The path subscriptions always get the reused event, see PathListener.
+	 * @param copyEvents
+	 */
+	public void setCopyEvents(boolean copyEvents) {
+		this.copyEvents = copyEvents;
+	}
+
+	@Override
+	public void dispatchChange(PathEvent change) {
+		//the model reuses the change
+		dispatch(change, copyEvents);
+	}
+
+	@Override
+	public void dispatch(PathEvent event) {
+		dispatch(event, false);
+	}
+
+	/**
+	 * Post the event to the buses, or a copy of it, and deliver it to the path subscriptions
+	 */
+	private void dispatch(PathEvent event, boolean copy) {
+		PathEvent posted = copy ? event.copy() : event;
+		eventBus.post(posted);
+		subscriptions.deliver(event);
+		if (contextBuses.isEmpty())
+			return;
+		if (event instanceof BatchEvent) {
+			Set<String> contexts = new HashSet<String>();
+			for (String key : ((BatchEvent) event).getPaths()) {
+				contexts.add(PartitionedPathMap.contextOf(key));
+			}
+			for (String key : ((BatchEvent) event).getDeleted()) {
+				contexts.add(PartitionedPathMap.contextOf(key));
+			}
+			for (String context : contexts) {
+				EventBus bus = contextBuses.get(context);
+				if (bus != null)
+					bus.post(posted);
+			}
+			return;
+		}
+		if (event.getType() == PathEvent.EventType.DEL_SUBTREE) {
+			//the subtree may hold whole contexts, eg 'vessels'
+			String prefix = event.getPath() + '.';
+			for (Map.Entry<String, EventBus> entry : contextBuses.entrySet()) {
+				if (entry.getKey().startsWith(prefix))
+					entry.getValue().post(posted);
+			}
+		}
+		EventBus bus = contextBuses.get(PartitionedPathMap.contextOf(event.getPath()));
+		if (bus != null)
+			bus.post(posted);
+	}
+
+	@Override
+	public void onEvent(PathEvent event, long sequence, boolean endOfBatch) {
+		//ring slots are reused too
+		dispatch(event, copyEvents);
+	}
+
+	@Override
+	public void close() {
+		//nothing to release
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks striped by the context of a key, its first two segments (eg 'vessels.urn:mrn:imo:mmsi:230099999').
+ * Every key a new leaf could conflict with (the keys above and below it) shares its stripe, so holding the
+ * stripe while checking and inserting the leaf makes that atomic. Keys with one segment hold all the stripes.
+ *
+ * @author robert
+ *
+ */
+final class KeyStripes {
+
+	private static final int STRIPES = 64;
+	private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+	KeyStripes() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * The stripe for the key, from its first two segments, or -1 for a key with one segment
+	 */
+	static int stripe(String key) {
+		int pos = key.indexOf('.');
+		if (pos < 0)
+			return -1;
+		int end = key.indexOf('.', pos + 1);
+		if (end < 0)
+			end = key.length();
+		int hash = 0;
+		for (int i = 0; i < end; i++) {
+			hash = 31 * hash + key.charAt(i);
+		}
+		return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+	}
+
+	void lock(int stripe) {
+		if (stripe >= 0) {
+			stripes[stripe].lock();
+			return;
+		}
+		for (ReentrantLock lock : stripes) {
+			lock.lock();
+		}
+	}
+
+	void unlock(int stripe) {
+		if (stripe >= 0) {
+			stripes[stripe].unlock();
+			return;
+		}
+		for (int i = STRIPES - 1; i >= 0; i--) {
+			stripes[i].unlock();
+		}
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * The live view of a models store returned by getFullData() and getSubMap().
+ * <p>
+ * The model keeps high rate leaves in mutable slots ({@link NumericSlot}, {@link TimestampSlot}) that are updated
+ * in place. Reads through the view return the slots current value instead, a Double or the ISO8601 String, so a
+ * value read from the view never changes under the caller. Writes go straight through to the store.
+ * </p><p>
+ * The values from each source are held in the models {@link SourceTable}s rather than the store. The view merges
+ * them back in as key.values.&lt;source&gt;.value/timestamp/sourceRef entries, in key order, so the full model, its
+ * sub maps and everything serialized from them still carry them. An entry in the store for the same key wins, eg
+ * values loaded with putAll. Removing a values entry drops that source from the table.
+ * </p>
+ * @author robert
+ *
+ */
+final class ModelView extends AbstractPathMap {
+
+	private static final String dotValuesDot = dot + values + dot;
+
+	private final NavigableMap<String, Object> store;
+	private final SignalKModelImpl model;
+
+	ModelView(NavigableMap<String, Object> store, SignalKModelImpl model) {
+		this.store = store;
+		this.model = model;
+	}
+
+	/**
+	 * The value a reader should see for a stored value, a copy of a slots current value
+	 * @param val
+	 * @return
+	 */
+	static Object detach(Object val) {
+		if (val instanceof NumericSlot)
+			return ((NumericSlot) val).doubleValue();
+		if (val instanceof TimestampSlot)
+			return val.toString();
+		return val;
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object val = store.get(key);
+		if (val != null)
+			return detach(val);
+		Source source = findSource((String) key);
+		return source == null ? null : source.value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return store.containsKey(key) || findSource((String) key) != null;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		return detach(store.put(key, value));
+	}
+
+	@Override
+	public Object remove(Object key) {
+		Object val = store.remove(key);
+		if (val != null)
+			return detach(val);
+		Source source = findSource((String) key);
+		if (source == null)
+			return null;
+		source.drop();
+		return source.value;
+	}
+
+	@Override
+	public int size() {
+		final int[] count = { store.size() };
+		for (SourceTable table : model.getSourceTables().values()) {
+			table.visit(new SourceTable.Visitor() {
+				@Override
+				public void visit(int src, Object val, String ts) {
+					if (model.getSourceName(src) != null)
+						count[0] += 3;
+				}
+			}, model.getSourcesSince());
+		}
+		return count[0];
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public void clear() {
+		store.clear();
+		model.clearSourceTables();
+	}
+
+	@Override
+	protected Iterator<Entry<String, Object>> entryIterator(String lo, boolean loInclusive, String hi,
+			boolean hiInclusive, boolean descending) {
+		if (lo != null && hi != null && lo.compareTo(hi) > 0)
+			return Collections.<Entry<String, Object>> emptyIterator();
+		Iterator<Entry<String, Object>> entries = new Merge(lo, loInclusive, hi, hiInclusive);
+		if (!descending)
+			return entries;
+		//the source tables are not ordered by their values keys, so merge the range then walk it backwards
+		List<Entry<String, Object>> range = new ArrayList<Entry<String, Object>>();
+		while (entries.hasNext()) {
+			range.add(entries.next());
+		}
+		final ListIterator<Entry<String, Object>> back = range.listIterator(range.size());
+		return new Iterator<Entry<String, Object>>() {
+			private Entry<String, Object> last;
+
+			@Override
+			public boolean hasNext() {
+				return back.hasPrevious();
+			}
+
+			@Override
+			public Entry<String, Object> next() {
+				last = back.previous();
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if (last == null)
+					throw new IllegalStateException();
+				ModelView.this.remove(last.getKey());
+				last = null;
+			}
+		};
+	}
+
+	/**
+	 * Find the source entry for a key.values.&lt;source&gt;.value/timestamp/sourceRef key
+	 * @param key
+	 * @return the source, or null if there is no such source
+	 */
+	private Source findSource(String key) {
+		if (key == null || model.getSourceTables().isEmpty())
+			return null;
+		int last = key.lastIndexOf('.');
+		if (last < 0)
+			return null;
+		String field = key.substring(last + 1);
+		if (!value.equals(field) && !timestamp.equals(field) && !sourceRef.equals(field))
+			return null;
+		//the path may itself contain .values., so try each
+		for (int i = key.indexOf(dotValuesDot); i >= 0 && i < last; i = key.indexOf(dotValuesDot, i + 1)) {
+			SourceTable table = model.getSourceTables().get(key.substring(0, i));
+			if (table == null)
+				continue;
+			TreeMap<String, Source> found = new TreeMap<String, Source>();
+			collect(key.substring(0, i), table, key, true, key, true, found);
+			Source source = found.get(key);
+			if (source != null)
+				return source;
+		}
+		return null;
+	}
+
+	/**
+	 * Add the table's entries within the bounds to the map
+	 */
+	private void collect(final String path, final SourceTable table, final String lo, final boolean loInclusive,
+			final String hi, final boolean hiInclusive, final Map<String, Source> found) {
+		table.visit(new SourceTable.Visitor() {
+			@Override
+			public void visit(int src, Object val, String ts) {
+				String name = model.getSourceName(src);
+				if (name == null)
+					return;
+				String base = path + dotValuesDot + name + dot;
+				add(base + sourceRef, name, table, src);
+				add(base + timestamp, ts, table, src);
+				add(base + value, val, table, src);
+			}
+
+			private void add(String key, Object val, SourceTable table, int src) {
+				if (lo != null && (loInclusive ? key.compareTo(lo) < 0 : key.compareTo(lo) <= 0))
+					return;
+				if (hi != null && (hiInclusive ? key.compareTo(hi) > 0 : key.compareTo(hi) >= 0))
+					return;
+				found.put(key, new Source(table, src, val));
+			}
+		}, model.getSourcesSince());
+	}
+
+	/**
+	 * A values entry from a source table
+	 */
+	private static final class Source {
+		final SourceTable table;
+		final int src;
+		final Object value;
+
+		Source(SourceTable table, int src, Object value) {
+			this.table = table;
+			this.src = src;
+			this.value = value;
+		}
+
+		void drop() {
+			table.drop(src);
+		}
+	}
+
+	/**
+	 * Merges the store entries and the source tables entries in key order.
+	 * <p>
+	 * A tables entries all sort after its path, but not in the order of the paths (eg 'a.b-c.values' is before
+	 * 'a.b.values'), so the tables are read in path order into a buffer, until the next table's path is after the
+	 * first buffered key.
+	 * </p>
+	 */
+	private final class Merge implements Iterator<Entry<String, Object>> {
+		private final String lo;
+		private final boolean loInclusive;
+		private final String hi;
+		private final boolean hiInclusive;
+		private final Iterator<Entry<String, Object>> stored;
+		private final Iterator<Entry<String, SourceTable>> tables;
+		private final TreeMap<String, Source> pending = new TreeMap<String, Source>();
+		private Entry<String, Object> nextStored;
+		private Entry<String, SourceTable> nextTable;
+		private String last;
+
+		Merge(String lo, boolean loInclusive, String hi, boolean hiInclusive) {
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			NavigableMap<String, Object> range = store;
+			NavigableMap<String, SourceTable> tableRange = model.getSourceTables();
+			if (lo != null && hi != null) {
+				range = store.subMap(lo, loInclusive, hi, hiInclusive);
+				tableRange = tableRange.subMap(lo, true, hi, false);
+			} else if (lo != null) {
+				range = store.tailMap(lo, loInclusive);
+				tableRange = tableRange.tailMap(lo, true);
+			} else if (hi != null) {
+				range = store.headMap(hi, hiInclusive);
+				tableRange = tableRange.headMap(hi, false);
+			}
+			stored = range.entrySet().iterator();
+			tables = tableRange.entrySet().iterator();
+			nextStored = stored.hasNext() ? stored.next() : null;
+			nextTable = tables.hasNext() ? tables.next() : null;
+			if (lo != null && !model.getSourceTables().isEmpty()) {
+				//a table above lo, eg 'a.b' for lo 'a.b.values.x', may have entries after lo
+				for (int i = lo.indexOf('.'); i > 0; i = lo.indexOf('.', i + 1)) {
+					String path = lo.substring(0, i);
+					SourceTable table = model.getSourceTables().get(path);
+					if (table != null)
+						collect(path, table, lo, loInclusive, hi, hiInclusive, pending);
+				}
+			}
+		}
+
+		/**
+		 * Read tables until none can have a key before the first pending one
+		 */
+		private void fill() {
+			while (nextTable != null && (pending.isEmpty() || nextTable.getKey().compareTo(pending.firstKey()) < 0)) {
+				collect(nextTable.getKey(), nextTable.getValue(), lo, loInclusive, hi, hiInclusive, pending);
+				nextTable = tables.hasNext() ? tables.next() : null;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			fill();
+			return nextStored != null || !pending.isEmpty();
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			fill();
+			int cmp;
+			if (nextStored == null) {
+				if (pending.isEmpty())
+					throw new NoSuchElementException();
+				cmp = 1;
+			} else {
+				cmp = pending.isEmpty() ? -1 : nextStored.getKey().compareTo(pending.firstKey());
+			}
+			if (cmp > 0) {
+				Entry<String, Source> e = pending.pollFirstEntry();
+				last = e.getKey();
+				return new SimpleImmutableEntry<String, Object>(e.getKey(), e.getValue().value);
+			}
+			if (cmp == 0) {
+				//the store wins
+				pending.pollFirstEntry();
+			}
+			Entry<String, Object> e = nextStored;
+			nextStored = stored.hasNext() ? stored.next() : null;
+			last = e.getKey();
+			Object val = e.getValue();
+			Object detached = detach(val);
+			return detached == val ? e : new SimpleImmutableEntry<String, Object>(e.getKey(), detached);
+		}
+
+		@Override
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+			ModelView.this.remove(last);
+			last = null;
+		}
+	}
+}
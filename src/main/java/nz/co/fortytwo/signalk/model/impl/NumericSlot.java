@@ -0,0 +1,99 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+/**
+ * A mutable primitive double held in the model in place of a boxed Double.
+ * Once a numeric leaf has a slot, SignalKModel.putDouble overwrites it in place, so
+ * high rate numeric updates do not allocate.
+ * <p>
+ * The slot stays inside the model. get(), getValue() and the maps from getFullData() and getSubMap()
+ * return a Double copy, so a value once read does not change.
+ * </p>
+ * @author robert
+ *
+ */
+public final class NumericSlot extends Number {
+
+	private static final long serialVersionUID = 1L;
+
+	private volatile double value;
+
+	public NumericSlot(double value) {
+		this.value = value;
+	}
+
+	/**
+	 * Set the value
+	 * @param value
+	 * @return true if the value changed
+	 */
+	boolean set(double value) {
+		if (Double.doubleToLongBits(this.value) == Double.doubleToLongBits(value)) {
+			return false;
+		}
+		this.value = value;
+		return true;
+	}
+
+	@Override
+	public double doubleValue() {
+		return value;
+	}
+
+	@Override
+	public float floatValue() {
+		return (float) value;
+	}
+
+	@Override
+	public long longValue() {
+		return (long) value;
+	}
+
+	@Override
+	public int intValue() {
+		return (int) value;
+	}
+
+	@Override
+	public int hashCode() {
+		long bits = Double.doubleToLongBits(value);
+		return (int) (bits ^ (bits >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof NumericSlot))
+			return false;
+		return Double.doubleToLongBits(value) == Double.doubleToLongBits(((NumericSlot) obj).value);
+	}
+
+	@Override
+	public String toString() {
+		return Double.toString(value);
+	}
+}
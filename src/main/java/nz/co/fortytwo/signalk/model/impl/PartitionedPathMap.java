@@ -0,0 +1,321 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A path store split into one partition per context: each vessels.&lt;id&gt; has its own
+ * partition, and each other top level key (sources, resources, config) has one.
+ * Every partition has its own ConcurrentSkipListMap and its own lock, so ingest threads updating
+ * different vessels do not contend with each other.
+ * <p>
+ * The partitions are kept in key order, so iterating the map (and so getSubMap()/getKeys())
+ * still returns all keys in order across partitions. As for {@link PathTrieMap}, the one
+ * exception is a context that is a prefix of a sibling whose next character sorts below '.',
+ * eg a leaf 'vessels' before 'vessels-1.x'.
+ * </p>
+ * @author robert
+ *
+ */
+public class PartitionedPathMap extends AbstractPathMap {
+
+	public static final char SEPARATOR = '.';
+
+	//keyed by context + '.', which orders the partitions the same as their keys
+	private final ConcurrentSkipListMap<String, Partition> partitions = new ConcurrentSkipListMap<String, Partition>();
+
+	/**
+	 * The context (partition) for a key, eg vessels.self.navigation.position = vessels.self, config.server.version = config
+	 * @param key
+	 * @return
+	 */
+	public static String contextOf(String key) {
+		int pos = key.indexOf(SEPARATOR);
+		if (pos < 0)
+			return key;
+		if (key.startsWith(vessels) && pos == vessels.length()) {
+			int end = key.indexOf(SEPARATOR, pos + 1);
+			return end < 0 ? key : key.substring(0, end);
+		}
+		return key.substring(0, pos);
+	}
+
+	/**
+	 * Find the partition for the key
+	 * @param key
+	 * @param create true to create the partition if it doesnt exist
+	 * @return
+	 */
+	Partition partition(String key, boolean create) {
+		// most keys are below the context, so the nearest partition is theirs
+		String boundary = partitions.floorKey(key);
+		if (boundary != null && key.startsWith(boundary)) {
+			Partition p = partitions.get(boundary);
+			if (p != null)
+				return p;
+		}
+		boundary = contextOf(key) + SEPARATOR;
+		Partition p = partitions.get(boundary);
+		if (p == null && create) {
+			p = new Partition(boundary);
+			Partition other = partitions.putIfAbsent(boundary, p);
+			if (other != null)
+				p = other;
+		}
+		return p;
+	}
+
+	/**
+	 * The lock for the partition holding this key
+	 * @param key
+	 * @return
+	 */
+	public ReentrantLock lockFor(String key) {
+		return partition(key, true).lock;
+	}
+
+	/**
+	 * The contexts that currently have a partition
+	 * @return
+	 */
+	public List<String> getContexts() {
+		List<String> contexts = new ArrayList<String>();
+		for (Partition p : partitions.values()) {
+			contexts.add(p.context);
+		}
+		return contexts;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		Partition p = partition((String) key, false);
+		return p == null ? null : p.map.get(key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		return partition(key, true).map.put(key, value);
+	}
+
+	/**
+	 * Replaces an existing leaf with one lookup in its partition. A new key is checked and inserted holding the
+	 * partitions lock, so it is atomic against other putLeafs in the same context. Only the keys above a vessels context
+	 * (ie 'vessels' itself) are outside it, and are checked without the lock.
+	 */
+	@Override
+	public Object putLeaf(String key, Object value) throws IllegalArgumentException {
+		Partition p = partition(key, true);
+		Object old = p.map.replace(key, value);
+		if (old != null)
+			return old;
+		p.lock.lock();
+		try {
+			String context = p.context;
+			if (key.length() <= context.length()) {
+				//a top level leaf, or the context itself, can conflict with other partitions
+				checkLeaf(this, key);
+			} else {
+				for (int pos = context.indexOf(SEPARATOR); pos > 0; pos = context.indexOf(SEPARATOR, pos + 1)) {
+					if (get(context.substring(0, pos)) != null)
+						throw conflict(key, context.substring(0, pos));
+				}
+				checkLeaf(p.map, key);
+			}
+			return p.map.put(key, value);
+		} finally {
+			p.lock.unlock();
+		}
+	}
+
+	@Override
+	public Object remove(Object key) {
+		if (!(key instanceof String))
+			return null;
+		Partition p = partition((String) key, false);
+		return p == null ? null : p.map.remove(key);
+	}
+
+	/**
+	 * A prefix that is a whole context (eg vessels.&lt;id&gt;) drops its partition in one step. The caller must hold
+	 * the model write lock, so no writer is holding the partition lock.
+	 */
+	@Override
+	public int removeSubtree(String prefix, List<String> removed) {
+		String boundary = prefix + SEPARATOR;
+		if (!contextOf(prefix).equals(prefix) || !partitions.containsKey(boundary)) {
+			return super.removeSubtree(prefix, removed);
+		}
+		//a leaf with the context's own key is in the partition too
+		Partition p = partitions.remove(boundary);
+		if (removed != null)
+			removed.addAll(p.map.keySet());
+		return p.map.size();
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Partition p : partitions.values()) {
+			size += p.map.size();
+		}
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (Partition p : partitions.values()) {
+			if (!p.map.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		//the partitions are kept, a writer may be holding one
+		for (Partition p : partitions.values()) {
+			p.map.clear();
+		}
+	}
+
+	@Override
+	protected Iterator<Entry<String, Object>> entryIterator(String lo, boolean loInclusive, String hi,
+			boolean hiInclusive, boolean descending) {
+		NavigableMap<String, Partition> parts = partitions;
+		if (!descending && lo != null) {
+			// the partition that could hold lo, and on
+			String from = partitions.floorKey(lo);
+			if (from != null)
+				parts = partitions.tailMap(from, true);
+		} else if (descending && hi != null) {
+			String to = partitions.ceilingKey(hi);
+			if (to != null)
+				parts = partitions.headMap(to, true);
+		}
+		if (descending)
+			parts = parts.descendingMap();
+		return new PartitionIterator(parts.values().iterator(), lo, loInclusive, hi, hiInclusive, descending);
+	}
+
+	static final class Partition {
+		final String boundary;
+		final String context;
+		final ConcurrentSkipListMap<String, Object> map = new ConcurrentSkipListMap<String, Object>();
+		final ReentrantLock lock = new ReentrantLock();
+
+		Partition(String boundary) {
+			this.boundary = boundary;
+			this.context = boundary.substring(0, boundary.length() - 1);
+		}
+	}
+
+	/**
+	 * Chains the iterators of each partition in range
+	 */
+	private static final class PartitionIterator implements Iterator<Entry<String, Object>> {
+		private final Iterator<Partition> parts;
+		private final String lo;
+		private final boolean loInclusive;
+		private final String hi;
+		private final boolean hiInclusive;
+		private final boolean descending;
+		private Iterator<Entry<String, Object>> current;
+		private Iterator<Entry<String, Object>> last;
+
+		PartitionIterator(Iterator<Partition> parts, String lo, boolean loInclusive, String hi, boolean hiInclusive,
+				boolean descending) {
+			this.parts = parts;
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.descending = descending;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (current == null || !current.hasNext()) {
+				if (!parts.hasNext())
+					return false;
+				Partition p = parts.next();
+				if (pastEnd(p)) {
+					while (parts.hasNext())
+						parts.next();
+					return false;
+				}
+				NavigableMap<String, Object> m = p.map;
+				if (lo != null)
+					m = m.tailMap(lo, loInclusive);
+				if (hi != null)
+					m = m.headMap(hi, hiInclusive);
+				if (descending)
+					m = m.descendingMap();
+				current = m.entrySet().iterator();
+			}
+			return true;
+		}
+
+		/**
+		 * True if this partition, and so all after it, are beyond the bound
+		 */
+		private boolean pastEnd(Partition p) {
+			if (!descending) {
+				if (hi == null)
+					return false;
+				int c = p.context.compareTo(hi);
+				return c > 0 || (c == 0 && !hiInclusive);
+			}
+			if (lo == null)
+				return false;
+			return lo.compareTo(p.boundary) > 0 && !lo.startsWith(p.boundary);
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			last = current;
+			return current.next();
+		}
+
+		@Override
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+			last.remove();
+			last = null;
+		}
+	}
+}
@@ -0,0 +1,647 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * <p>
+ * A concurrent path-segment trie, usable as the store behind a SignalKModel in place
+ * of the flat ConcurrentSkipListMap.
+ * </p>
+ * Each node holds one interned path segment, so the thousands of keys that share
+ * "vessels.urn:mrn:imo:mmsi:..." prefixes share their nodes, and a lookup compares one
+ * short segment per level instead of whole keys. This gives us:
+ * <ul>
+ * <li>leaf/branch conflict checks in O(depth) via {@link #putLeaf(String, Object)}</li>
+ * <li>range views such as getSubMap()/getTree() that seek straight to the node, instead of
+ * a range scan over the whole map.</li>
+ * </ul>
+ * <p>
+ * Children are ordered as if every segment is followed by the separator, which is String
+ * order for every key except a leaf that is a prefix of a sibling whose next character sorts below '.'
+ * (eg leaf "a.b" and "a.b-c"). Signalk paths don't do that.
+ * </p>
+ *
+ * @author robert
+ *
+ */
+public class PathTrieMap extends AbstractPathMap {
+
+	static final char SEPARATOR = '.';
+
+	private static final Interner<String> segments = Interners.newWeakInterner();
+
+	/**
+	 * Orders segments as though each was followed by the separator.
+	 * Accepts {@link Segment} slices so lookups don't need to allocate a substring.
+	 */
+	static final Comparator<CharSequence> SEGMENT_ORDER = new Comparator<CharSequence>() {
+		@Override
+		public int compare(CharSequence s1, CharSequence s2) {
+			int l1 = s1.length();
+			int l2 = s2.length();
+			int n = Math.min(l1, l2);
+			for (int i = 0; i < n; i++) {
+				char c1 = s1.charAt(i);
+				char c2 = s2.charAt(i);
+				if (c1 != c2)
+					return c1 - c2;
+			}
+			if (l1 == l2)
+				return 0;
+			return l1 < l2 ? SEPARATOR - s2.charAt(n) : s1.charAt(n) - SEPARATOR;
+		}
+	};
+
+	private final Node root = new Node(null, "");
+	//new leaves are inserted holding a lock striped by context, see putLeaf
+	private final KeyStripes stripes = new KeyStripes();
+
+	/**
+	 * Re-usable slice of a key, so get() and putLeaf() can walk the trie without splitting the key.
+	 */
+	private static final ThreadLocal<Segment> lookup = new ThreadLocal<Segment>() {
+		@Override
+		protected Segment initialValue() {
+			return new Segment();
+		}
+	};
+
+	public PathTrieMap() {
+	}
+
+	/**
+	 * Find the node for the key, or null
+	 */
+	Node find(String key) {
+		Node node = root;
+		Segment seg = lookup.get();
+		int start = 0;
+		int len = key.length();
+		while (node != null) {
+			int end = key.indexOf(SEPARATOR, start);
+			if (end < 0)
+				end = len;
+			ConcurrentNavigableMap<CharSequence, Node> children = node.children;
+			if (children == null)
+				return null;
+			node = children.get(seg.set(key, start, end));
+			if (end == len)
+				return node;
+			start = end + 1;
+		}
+		return null;
+	}
+
+	/**
+	 * Find or create the node for the key.
+	 */
+	private Node findOrCreate(String key) {
+		Node node = root;
+		Segment seg = lookup.get();
+		int start = 0;
+		int len = key.length();
+		while (true) {
+			int end = key.indexOf(SEPARATOR, start);
+			if (end < 0)
+				end = len;
+			node = node.child(key, seg.set(key, start, end), end);
+			if (end == len)
+				return node;
+			start = end + 1;
+		}
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		Node node = find((String) key);
+		return node == null ? null : node.value;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		Object first = null;
+		boolean retry = false;
+		while (true) {
+			Node node = findOrCreate(key);
+			Object old = node.swap(value);
+			if (!retry)
+				first = old;
+			if (!node.isDetached())
+				return first;
+			// a delete pruned the path under us, put it back
+			retry = true;
+		}
+	}
+
+	/**
+	 * Put the key:value into the map as a leaf. Fails if the key is below an existing leaf,
+	 * or is already a branch, eg if the map contains "a.b", then "a.b.c" fails, and if
+	 * it contains "a.b.c" then "a.b" fails.
+	 * <p>
+	 * Replacing the value of an existing leaf is a lock-free CAS, as it cannot change the shape of the trie.
+	 * A new leaf is checked and inserted in one walk down the trie, O(depth), holding the lock striped by its context
+	 * (the first two segments), which every key it could conflict with shares. Keys with one segment hold all the stripes.
+	 * So concurrent writers can never insert both "a.b" and "a.b.c".
+	 * </p>
+	 *
+	 * @param key
+	 * @param value
+	 * @return the previous value, or null
+	 * @throws IllegalArgumentException if the key conflicts with an existing leaf or branch
+	 */
+	@Override
+	public Object putLeaf(String key, Object value) throws IllegalArgumentException {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		Object replaced = null;
+		Node node = find(key);
+		if (node != null) {
+			for (Object old = node.value; old != null; old = node.value) {
+				if (node.replace(old, value)) {
+					if (!node.isDetached())
+						return old;
+					// a delete pruned the path under us, insert it again
+					replaced = old;
+					break;
+				}
+			}
+		}
+		int stripe = KeyStripes.stripe(key);
+		stripes.lock(stripe);
+		try {
+			Object old = insertLeaf(key, value);
+			return replaced != null ? replaced : old;
+		} finally {
+			stripes.unlock(stripe);
+		}
+	}
+
+	/**
+	 * The walk and check for putLeaf, holding the stripe lock
+	 */
+	private Object insertLeaf(String key, Object value) {
+		Object first = null;
+		boolean retry = false;
+		while (true) {
+			Node node = root;
+			Segment seg = lookup.get();
+			int start = 0;
+			int len = key.length();
+			while (true) {
+				int end = key.indexOf(SEPARATOR, start);
+				if (end < 0)
+					end = len;
+				node = node.child(key, seg.set(key, start, end), end);
+				if (end == len)
+					break;
+				if (node.value != null) {
+					throw conflict(key, node.key);
+				}
+				start = end + 1;
+			}
+			Node leaf = node.firstLeaf(false);
+			if (leaf != null) {
+				throw conflict(key, leaf.key);
+			}
+			Object old = node.swap(value);
+			if (!retry)
+				first = old;
+			if (!node.isDetached())
+				return first;
+			retry = true;
+		}
+	}
+
+	@Override
+	public Object remove(Object key) {
+		if (!(key instanceof String))
+			return null;
+		Node node = find((String) key);
+		if (node == null)
+			return null;
+		Object old = node.swap(null);
+		prune(node);
+		return old;
+	}
+
+	/**
+	 * Cut the node for the prefix out of the trie in one step. Concurrent puts below it see it detached, and retry from the top.
+	 */
+	@Override
+	public int removeSubtree(String prefix, List<String> removed) {
+		Node node = find(prefix);
+		if (node == null)
+			return 0;
+		node.detached = true;
+		node.parent.children.remove(node.segment, node);
+		prune(node.parent);
+		return count(node, removed);
+	}
+
+	/**
+	 * Count (and collect) the leaves at or below a detached node
+	 */
+	private int count(Node node, List<String> removed) {
+		int count = 0;
+		if (node.value != null) {
+			count++;
+			if (removed != null)
+				removed.add(node.key);
+		}
+		ConcurrentNavigableMap<CharSequence, Node> map = node.children;
+		if (map != null) {
+			for (Node child : map.values()) {
+				count += count(child, removed);
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void clear() {
+		ConcurrentNavigableMap<CharSequence, Node> children = root.children;
+		if (children == null)
+			return;
+		for (Node child : children.values()) {
+			child.detached = true;
+			children.remove(child.segment, child);
+		}
+	}
+
+	/**
+	 * Remove empty nodes from the bottom of the trie upwards. A concurrent put into a node
+	 * being pruned will see it detached and retry from the top.
+	 */
+	private void prune(Node node) {
+		while (node != root && node.isEmpty()) {
+			node.detached = true;
+			if (!node.isEmpty()) {
+				node.detached = false;
+				return;
+			}
+			node.parent.children.remove(node.segment, node);
+			node = node.parent;
+		}
+	}
+
+	@Override
+	protected Iterator<Entry<String, Object>> entryIterator(String lo, boolean loInclusive, String hi,
+			boolean hiInclusive, boolean descending) {
+		return new TrieIterator(lo, loInclusive, hi, hiInclusive, descending);
+	}
+
+	/**
+	 * A node in the trie. The key is kept whole so iteration doesn't need to rebuild it.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static final class Node {
+		private static final AtomicReferenceFieldUpdater<Node, Object> VALUE = AtomicReferenceFieldUpdater
+				.newUpdater(Node.class, Object.class, "value");
+		private static final AtomicReferenceFieldUpdater<Node, ConcurrentNavigableMap> CHILDREN = AtomicReferenceFieldUpdater
+				.newUpdater(Node.class, ConcurrentNavigableMap.class, "children");
+
+		final Node parent;
+		final String segment;
+		final String key;
+		volatile Object value;
+		volatile ConcurrentNavigableMap<CharSequence, Node> children;
+		volatile boolean detached;
+
+		Node(Node parent, String key) {
+			this.parent = parent;
+			this.key = key;
+			if (parent == null) {
+				this.segment = "";
+			} else {
+				this.segment = segments.intern(parent.parent == null ? key : key.substring(parent.key.length() + 1));
+			}
+		}
+
+		/**
+		 * Get or create the child for the segment, key.substring(0,end) is the childs full key
+		 */
+		Node child(String key, Segment seg, int end) {
+			ConcurrentNavigableMap<CharSequence, Node> map = children;
+			if (map == null) {
+				CHILDREN.compareAndSet(this, null, new ConcurrentSkipListMap<CharSequence, Node>(SEGMENT_ORDER));
+				map = children;
+			}
+			Node child = map.get(seg);
+			if (child != null)
+				return child;
+			child = new Node(this, end == key.length() ? key : key.substring(0, end));
+			Node existing = map.putIfAbsent(child.segment, child);
+			return existing == null ? child : existing;
+		}
+
+		Object swap(Object newValue) {
+			return VALUE.getAndSet(this, newValue);
+		}
+
+		boolean replace(Object expect, Object newValue) {
+			return VALUE.compareAndSet(this, expect, newValue);
+		}
+
+		boolean isEmpty() {
+			ConcurrentNavigableMap<CharSequence, Node> map = children;
+			return value == null && (map == null || map.isEmpty());
+		}
+
+		/**
+		 * True if this node, or any above it, has been cut out of the trie.
+		 */
+		boolean isDetached() {
+			for (Node n = this; n != null; n = n.parent) {
+				if (n.detached)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * The first leaf at or below this node, in key order.
+		 */
+		Node firstLeaf(boolean includeSelf) {
+			if (includeSelf && value != null)
+				return this;
+			ConcurrentNavigableMap<CharSequence, Node> map = children;
+			if (map == null)
+				return null;
+			for (Node child : map.values()) {
+				Node leaf = child.firstLeaf(true);
+				if (leaf != null)
+					return leaf;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A mutable slice of a key, used to look up children without allocating.
+	 */
+	static final class Segment implements CharSequence {
+		private String s;
+		private int start;
+		private int end;
+
+		Segment set(String s, int start, int end) {
+			this.s = s;
+			this.start = start;
+			this.end = end;
+			return this;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return s.charAt(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			return s.substring(start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			return s.substring(start, end);
+		}
+	}
+
+	/**
+	 * Depth first walk of the trie, seeking straight to the lower (or upper when descending) bound.
+	 */
+	private final class TrieIterator implements Iterator<Entry<String, Object>> {
+		private final String lo;
+		private final boolean loInclusive;
+		private final String hi;
+		private final boolean hiInclusive;
+		private final boolean descending;
+		/** nodes waiting to be visited, a Frame per level */
+		private final ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+		private Entry<String, Object> next;
+		private String lastKey;
+
+		TrieIterator(String lo, boolean loInclusive, String hi, boolean hiInclusive, boolean descending) {
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.descending = descending;
+			String seek = descending ? hi : lo;
+			push(root, seek, seek == null ? -1 : 0);
+			advance();
+		}
+
+		/**
+		 * Queue a node. If seekFrom>=0 the node lies on the path to the seek bound and
+		 * the key from seekFrom onwards is the remaining path below it.
+		 */
+		private void push(Node node, String seek, int seekFrom) {
+			stack.push(new Frame(node, seek, seekFrom));
+		}
+
+		private void advance() {
+			next = null;
+			while (!stack.isEmpty()) {
+				Frame f = stack.peek();
+				if (!f.started) {
+					f.started = true;
+					f.children = f.childIterator();
+					// ascending visits the node itself before its children
+					if (!descending && f.emitSelf()) {
+						Object v = f.node.value;
+						if (v != null && offer(f.node.key, v))
+							return;
+						if (stopped())
+							return;
+					}
+				}
+				if (f.children != null && f.children.hasNext()) {
+					Node child = f.children.next();
+					if (f.onSeekPath() && f.first) {
+						f.first = false;
+						// the first child might be the next node on the seek path
+						int end = f.seek.indexOf(SEPARATOR, f.seekFrom);
+						if (end < 0)
+							end = f.seek.length();
+						if (SEGMENT_ORDER.compare(child.segment, lookup.get().set(f.seek, f.seekFrom, end)) == 0) {
+							push(child, f.seek, end == f.seek.length() ? f.seek.length() + 1 : end + 1);
+							continue;
+						}
+					}
+					f.first = false;
+					push(child, null, -1);
+					continue;
+				}
+				stack.pop();
+				// descending visits the node itself after its children
+				if (descending && f.emitSelf()) {
+					Object v = f.node.value;
+					if (v != null && offer(f.node.key, v))
+						return;
+					if (stopped())
+						return;
+				}
+			}
+		}
+
+		private boolean done;
+
+		private boolean stopped() {
+			return done;
+		}
+
+		/**
+		 * Check the key against the bounds, true if it was accepted as the next entry.
+		 */
+		private boolean offer(String key, Object v) {
+			if (!descending) {
+				if (lo != null) {
+					int c = key.compareTo(lo);
+					if (c < 0 || (c == 0 && !loInclusive))
+						return false;
+				}
+				if (hi != null) {
+					int c = key.compareTo(hi);
+					if (c > 0 || (c == 0 && !hiInclusive)) {
+						finish();
+						return false;
+					}
+				}
+			} else {
+				if (hi != null) {
+					int c = key.compareTo(hi);
+					if (c > 0 || (c == 0 && !hiInclusive))
+						return false;
+				}
+				if (lo != null) {
+					int c = key.compareTo(lo);
+					if (c < 0 || (c == 0 && !loInclusive)) {
+						finish();
+						return false;
+					}
+				}
+			}
+			next = new SimpleImmutableEntry<String, Object>(key, v);
+			return true;
+		}
+
+		private void finish() {
+			done = true;
+			stack.clear();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			Entry<String, Object> e = next;
+			if (e == null)
+				throw new NoSuchElementException();
+			lastKey = e.getKey();
+			advance();
+			return e;
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == null)
+				throw new IllegalStateException();
+			PathTrieMap.this.remove(lastKey);
+			lastKey = null;
+		}
+
+		private final class Frame {
+			final Node node;
+			final String seek;
+			/** where the rest of the seek path starts, >seek.length() when this node is the seek target */
+			final int seekFrom;
+			boolean started;
+			boolean first = true;
+			Iterator<Node> children;
+
+			Frame(Node node, String seek, int seekFrom) {
+				this.node = node;
+				this.seek = seek;
+				this.seekFrom = seekFrom;
+			}
+
+			boolean onSeekPath() {
+				return seekFrom >= 0 && seekFrom <= seek.length();
+			}
+
+			/**
+			 * Nodes above the seek target are outside the bounds when ascending, but inside when descending.
+			 * The bound checks in offer() take care of the target itself.
+			 */
+			boolean emitSelf() {
+				return descending || !onSeekPath();
+			}
+
+			Iterator<Node> childIterator() {
+				ConcurrentNavigableMap<CharSequence, Node> map = node.children;
+				if (map == null)
+					return null;
+				if (!onSeekPath()) {
+					if (seekFrom > 0 && descending) {
+						// the seek target itself, everything below it is above the upper bound
+						return null;
+					}
+					return descending ? map.descendingMap().values().iterator() : map.values().iterator();
+				}
+				int end = seek.indexOf(SEPARATOR, seekFrom);
+				if (end < 0)
+					end = seek.length();
+				String s = seek.substring(seekFrom, end);
+				return descending ? map.headMap(s, true).descendingMap().values().iterator()
+						: map.tailMap(s, true).values().iterator();
+			}
+		}
+	}
+}
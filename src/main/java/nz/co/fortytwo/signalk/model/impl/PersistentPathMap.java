@@ -0,0 +1,403 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A copy-on-write path store, backed by a persistent (immutable, structurally shared) treap.
+ * <p>
+ * Every put or remove builds a new version of the tree, copying only the O(log n) nodes on the path
+ * to the changed key, and swaps it in with a CAS, so writers never block readers. The current version
+ * can be captured at any time with {@link #snapshot()} in O(1); the snapshot is a read-only
+ * PersistentPathMap that never changes, however the live map is updated afterwards.
+ * </p>
+ * Iterators (and so the sub-map views) also iterate the version that was current when they were
+ * created, so they see a consistent state rather than a weakly consistent one.
+ *
+ * @author robert
+ *
+ */
+public class PersistentPathMap extends AbstractPathMap {
+
+	private final AtomicReference<Node> root;
+	private final boolean readOnly;
+
+	public PersistentPathMap() {
+		this(null, false);
+	}
+
+	private PersistentPathMap(Node root, boolean readOnly) {
+		this.root = new AtomicReference<Node>(root);
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * Return a read-only copy of the map as it is now. This is O(1), the snapshot shares the tree with this map.
+	 * @return
+	 */
+	public PersistentPathMap snapshot() {
+		return new PersistentPathMap(root.get(), true);
+	}
+
+	/**
+	 * True if this is a snapshot
+	 * @return
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		Node n = find(root.get(), (String) key);
+		return n == null ? null : n.value;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		checkWritable();
+		if (key == null || value == null)
+			throw new NullPointerException();
+		int priority = priority(key);
+		while (true) {
+			Node cur = root.get();
+			Node old = find(cur, key);
+			if (old != null && old.value.equals(value)) {
+				return old.value;
+			}
+			if (root.compareAndSet(cur, insert(cur, key, value, priority))) {
+				return old == null ? null : old.value;
+			}
+		}
+	}
+
+	/**
+	 * Checks the key against the version it is inserted into, in the same CAS loop as put, so
+	 * concurrent putLeafs can never both succeed with a leaf and a key below it.
+	 */
+	@Override
+	public Object putLeaf(String key, Object value) throws IllegalArgumentException {
+		checkWritable();
+		if (key == null || value == null)
+			throw new NullPointerException();
+		int priority = priority(key);
+		while (true) {
+			Node cur = root.get();
+			Node old = find(cur, key);
+			if (old != null && old.value.equals(value)) {
+				return old.value;
+			}
+			if (old == null) {
+				//a new key, an existing leaf cannot conflict
+				checkLeaf(cur, key);
+			}
+			if (root.compareAndSet(cur, insert(cur, key, value, priority))) {
+				return old == null ? null : old.value;
+			}
+		}
+	}
+
+	private void checkLeaf(Node version, String key) {
+		for (int pos = key.indexOf('.'); pos > 0; pos = key.indexOf('.', pos + 1)) {
+			if (find(version, key.substring(0, pos)) != null)
+				throw conflict(key, key.substring(0, pos));
+		}
+		Iterator<Entry<String, Object>> below = new TreeIterator(version, key + '.', true, key + (char) ('.' + 1), false, false);
+		if (below.hasNext())
+			throw conflict(key, below.next().getKey());
+	}
+
+	@Override
+	public Object remove(Object key) {
+		checkWritable();
+		if (!(key instanceof String))
+			return null;
+		while (true) {
+			Node cur = root.get();
+			Node old = find(cur, (String) key);
+			if (old == null) {
+				return null;
+			}
+			if (root.compareAndSet(cur, delete(cur, (String) key))) {
+				return old.value;
+			}
+		}
+	}
+
+	/**
+	 * Split the range out of the tree and join what is left, in O(log n), as one new version
+	 */
+	@Override
+	public int removeSubtree(String prefix, List<String> removed) {
+		checkWritable();
+		String lo = prefix + '.';
+		String hi = prefix + (char) ('.' + 1);
+		while (true) {
+			Node cur = root.get();
+			Node[] below = split(delete(cur, prefix), lo);
+			Node[] above = split(below[1], hi);
+			Node next = merge(below[0], above[1]);
+			if (root.compareAndSet(cur, next)) {
+				int count = (cur == null ? 0 : cur.size) - (next == null ? 0 : next.size);
+				if (removed != null && count > 0) {
+					if (find(cur, prefix) != null)
+						removed.add(prefix);
+					for (Iterator<Entry<String, Object>> i = new TreeIterator(above[0], null, false, null, false, false); i.hasNext();) {
+						removed.add(i.next().getKey());
+					}
+				}
+				return count;
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		checkWritable();
+		root.set(null);
+	}
+
+	@Override
+	public int size() {
+		Node n = root.get();
+		return n == null ? 0 : n.size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return root.get() == null;
+	}
+
+	@Override
+	protected Iterator<Entry<String, Object>> entryIterator(String lo, boolean loInclusive, String hi,
+			boolean hiInclusive, boolean descending) {
+		return new TreeIterator(root.get(), lo, loInclusive, hi, hiInclusive, descending);
+	}
+
+	private void checkWritable() {
+		if (readOnly)
+			throw new UnsupportedOperationException("This is a read-only snapshot");
+	}
+
+	private static Node find(Node n, String key) {
+		while (n != null) {
+			int c = key.compareTo(n.key);
+			if (c == 0)
+				return n;
+			n = c < 0 ? n.left : n.right;
+		}
+		return null;
+	}
+
+	/**
+	 * The treap priority, a hash of the key so the same keys always build the same shape
+	 */
+	private static int priority(String key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static Node insert(Node n, String key, Object value, int priority) {
+		if (n == null)
+			return new Node(key, value, priority, null, null);
+		int c = key.compareTo(n.key);
+		if (c == 0)
+			return new Node(n.key, value, n.priority, n.left, n.right);
+		if (c < 0) {
+			Node l = insert(n.left, key, value, priority);
+			if (l.priority > n.priority) {
+				// rotate right
+				return new Node(l.key, l.value, l.priority, l.left, new Node(n.key, n.value, n.priority, l.right, n.right));
+			}
+			return new Node(n.key, n.value, n.priority, l, n.right);
+		}
+		Node r = insert(n.right, key, value, priority);
+		if (r.priority > n.priority) {
+			// rotate left
+			return new Node(r.key, r.value, r.priority, new Node(n.key, n.value, n.priority, n.left, r.left), r.right);
+		}
+		return new Node(n.key, n.value, n.priority, n.left, r);
+	}
+
+	private static Node delete(Node n, String key) {
+		if (n == null)
+			return null;
+		int c = key.compareTo(n.key);
+		if (c == 0)
+			return merge(n.left, n.right);
+		if (c < 0)
+			return new Node(n.key, n.value, n.priority, delete(n.left, key), n.right);
+		return new Node(n.key, n.value, n.priority, n.left, delete(n.right, key));
+	}
+
+	/**
+	 * Split a treap into the keys less than the key, and the rest
+	 */
+	private static Node[] split(Node n, String key) {
+		if (n == null)
+			return new Node[2];
+		if (n.key.compareTo(key) < 0) {
+			Node[] r = split(n.right, key);
+			r[0] = new Node(n.key, n.value, n.priority, n.left, r[0]);
+			return r;
+		}
+		Node[] l = split(n.left, key);
+		l[1] = new Node(n.key, n.value, n.priority, l[1], n.right);
+		return l;
+	}
+
+	/**
+	 * Join two treaps, all of a's keys being less than b's
+	 */
+	private static Node merge(Node a, Node b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+		if (a.priority > b.priority)
+			return new Node(a.key, a.value, a.priority, a.left, merge(a.right, b));
+		return new Node(b.key, b.value, b.priority, merge(a, b.left), b.right);
+	}
+
+	private static final class Node {
+		final String key;
+		final Object value;
+		final int priority;
+		final int size;
+		final Node left;
+		final Node right;
+
+		Node(String key, Object value, int priority, Node left, Node right) {
+			this.key = key;
+			this.value = value;
+			this.priority = priority;
+			this.left = left;
+			this.right = right;
+			this.size = 1 + (left == null ? 0 : left.size) + (right == null ? 0 : right.size);
+		}
+	}
+
+	/**
+	 * In order walk of one version of the tree, between the bounds
+	 */
+	private final class TreeIterator implements Iterator<Entry<String, Object>> {
+		private final String lo;
+		private final boolean loInclusive;
+		private final String hi;
+		private final boolean hiInclusive;
+		private final boolean descending;
+		private final ArrayDeque<Node> stack = new ArrayDeque<Node>();
+		private Node next;
+		private String lastKey;
+
+		TreeIterator(Node root, String lo, boolean loInclusive, String hi, boolean hiInclusive, boolean descending) {
+			this.lo = lo;
+			this.loInclusive = loInclusive;
+			this.hi = hi;
+			this.hiInclusive = hiInclusive;
+			this.descending = descending;
+			// walk down to the start bound, keeping the nodes still to be visited
+			Node n = root;
+			while (n != null) {
+				if (descending ? belowHi(n.key) : aboveLo(n.key)) {
+					stack.push(n);
+					n = descending ? n.right : n.left;
+				} else {
+					n = descending ? n.left : n.right;
+				}
+			}
+			advance();
+		}
+
+		private boolean aboveLo(String key) {
+			if (lo == null)
+				return true;
+			int c = key.compareTo(lo);
+			return c > 0 || (c == 0 && loInclusive);
+		}
+
+		private boolean belowHi(String key) {
+			if (hi == null)
+				return true;
+			int c = key.compareTo(hi);
+			return c < 0 || (c == 0 && hiInclusive);
+		}
+
+		private void advance() {
+			if (stack.isEmpty()) {
+				next = null;
+				return;
+			}
+			Node n = stack.pop();
+			// the nodes between this one and the next on the stack
+			Node c = descending ? n.left : n.right;
+			while (c != null) {
+				stack.push(c);
+				c = descending ? c.right : c.left;
+			}
+			if (descending ? aboveLo(n.key) : belowHi(n.key)) {
+				next = n;
+			} else {
+				next = null;
+				stack.clear();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Entry<String, Object> next() {
+			Node n = next;
+			if (n == null)
+				throw new NoSuchElementException();
+			lastKey = n.key;
+			advance();
+			return new SimpleImmutableEntry<String, Object>(n.key, n.value);
+		}
+
+		@Override
+		public void remove() {
+			if (lastKey == null)
+				throw new IllegalStateException();
+			PersistentPathMap.this.remove(lastKey);
+			lastKey = null;
+		}
+	}
+}
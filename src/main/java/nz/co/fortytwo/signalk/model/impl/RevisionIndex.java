@@ -0,0 +1,208 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Records the revision each key in the model was last changed at, so the keys changed since
+ * a given revision can be found.
+ * <p>
+ * Each key has one stamp, and a change only moves its revision on, so recording a change is a lookup
+ * and a compare-and-set, with no allocation. The keys changed since a revision are found by
+ * scanning the stamps when asked for, which is much rarer than changing them.
+ * </p><p>
+ * Deleted keys are kept as tombstones so clients catching up also see deletes, a deleted subtree
+ * as one tombstone for the key at its top. Only the most
+ * recent tombstones are kept; asking for changes from before the oldest dropped tombstone
+ * returns null, and the caller should fall back to the full model.
+ * </p>
+ * Writers to different keys (eg in different partitions) and readers can all be concurrent.
+ * 
+ * @author robert
+ *
+ */
+class RevisionIndex {
+
+	private static final int MAX_TOMBSTONES = 10000;
+
+	private final ConcurrentMap<String, Stamp> leaves = new ConcurrentHashMap<String, Stamp>();
+	private final ConcurrentLinkedQueue<Stamp> tombstones = new ConcurrentLinkedQueue<Stamp>();
+	private final AtomicInteger tombstoneCount = new AtomicInteger();
+	private final AtomicLong horizon = new AtomicLong();
+
+	/**
+	 * Record that the key was added or changed at this revision
+	 * @param key
+	 * @param revision
+	 */
+	void changed(String key, long revision) {
+		Stamp stamp = leaves.get(key);
+		while (stamp == null || stamp.deleted) {
+			Stamp added = new Stamp(key, revision, false);
+			if (stamp == null ? leaves.putIfAbsent(key, added) == null : leaves.replace(key, stamp, added)) {
+				return;
+			}
+			stamp = leaves.get(key);
+		}
+		stamp.advance(revision);
+	}
+
+	/**
+	 * Record that the key was deleted at this revision
+	 * @param key
+	 * @param revision
+	 */
+	void deleted(String key, long revision) {
+		Stamp stamp = new Stamp(key, revision, true);
+		leaves.put(key, stamp);
+		tombstones.add(stamp);
+		if (tombstoneCount.incrementAndGet() > MAX_TOMBSTONES) {
+			Stamp oldest = tombstones.poll();
+			if (oldest == null)
+				return;
+			tombstoneCount.decrementAndGet();
+			//only drop it if it hasnt been re-added since
+			leaves.remove(oldest.key, oldest);
+			long h = horizon.get();
+			while (oldest.revision > h && !horizon.compareAndSet(h, oldest.revision)) {
+				h = horizon.get();
+			}
+		}
+	}
+
+	/**
+	 * Record that the key and its subkeys were deleted at this revision, with one tombstone for the key
+	 * @param key
+	 * @param removed the keys that were removed
+	 * @param revision
+	 */
+	void deletedSubtree(String key, List<String> removed, long revision) {
+		for (String k : removed) {
+			leaves.remove(k);
+		}
+		deleted(key, revision);
+	}
+
+	/**
+	 * The revision the key last changed at, or 0 if unknown
+	 * @param key
+	 * @return
+	 */
+	long getRevision(String key) {
+		Stamp stamp = leaves.get(key);
+		return stamp == null || stamp.deleted ? 0 : stamp.revision;
+	}
+
+	/**
+	 * True if changes since this revision are still all known
+	 * @param revision
+	 * @return
+	 */
+	boolean covers(long revision) {
+		return revision >= horizon.get();
+	}
+
+	/**
+	 * The keys changed after the revision in the subtree, oldest first.
+	 * @param revision
+	 * @param prefix the subtree, or "" for all keys
+	 * @param deleted the deleted keys are added to this list
+	 * @return the changed keys
+	 */
+	List<String> changedSince(long revision, String prefix, List<String> deleted) {
+		//copy the stamps that match, as their revisions can move on while sorting
+		List<Stamp> found = new ArrayList<Stamp>();
+		for (Stamp stamp : leaves.values()) {
+			long r = stamp.revision;
+			if (r <= revision) {
+				continue;
+			}
+			if (!prefix.isEmpty() && !(stamp.key.startsWith(prefix)
+					&& (stamp.key.length() == prefix.length() || stamp.key.charAt(prefix.length()) == '.'))) {
+				//a subtree deleted above the prefix deletes the prefix too
+				if (stamp.deleted && prefix.startsWith(stamp.key) && prefix.charAt(stamp.key.length()) == '.') {
+					found.add(new Stamp(prefix, r, true));
+				}
+				continue;
+			}
+			found.add(new Stamp(stamp.key, r, stamp.deleted));
+		}
+		Collections.sort(found);
+		List<String> changed = new ArrayList<String>();
+		for (Stamp stamp : found) {
+			if (stamp.deleted) {
+				deleted.add(stamp.key);
+			} else {
+				changed.add(stamp.key);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * A key at a revision, ordered by revision then key. The revision of a live key moves on as it changes,
+	 * a tombstone is never changed.
+	 */
+	private static final class Stamp implements Comparable<Stamp> {
+		private static final AtomicLongFieldUpdater<Stamp> REVISION = AtomicLongFieldUpdater.newUpdater(Stamp.class, "revision");
+
+		final String key;
+		volatile long revision;
+		final boolean deleted;
+
+		Stamp(String key, long revision, boolean deleted) {
+			this.key = key;
+			this.revision = revision;
+			this.deleted = deleted;
+		}
+
+		/**
+		 * Move the revision on, writers to the same key can race so it never goes back
+		 * @param to
+		 */
+		void advance(long to) {
+			long r = revision;
+			while (to > r && !REVISION.compareAndSet(this, r, to)) {
+				r = revision;
+			}
+		}
+
+		@Override
+		public int compareTo(Stamp o) {
+			if (revision != o.revision) {
+				return revision < o.revision ? -1 : 1;
+			}
+			return key.compareTo(o.key);
+		}
+	}
+}
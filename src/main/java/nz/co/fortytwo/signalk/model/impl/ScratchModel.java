@@ -0,0 +1,226 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.ALTITUDE;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.LATITUDE;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.LONGITUDE;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.UNKNOWN;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sources;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.SignalKPath;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A temporary map per thread for a handler to build a message in, emptied and reused for each message,
+ * rather than writing it to a new model with {@link SignalKModelFactory#getCleanInstance()}.
+ * <p>
+ * The Builder returned by get() has the put methods of a SignalKModel, but no events, revisions, locks or source
+ * arbitration, so it is cheap to write. It is only valid until the next call to get() on the same thread, and must not
+ * be kept or passed on. The handler returns toModel(), a new SignalKModel the caller owns, which is safe to keep,
+ * queue or pass to another thread.
+ * </p><pre>
+ * private final ScratchModel scratch = new ScratchModel();
+ * ...
+ * ScratchModel.Builder temp = scratch.get();
+ * temp.put(key, val, src, ts);
+ * return temp.toModel();
+ * </pre>
+ * It handles multiple values, as for getCleanInstance(): each put also writes key.values.&lt;source&gt;, and the
+ * first source to put a key keeps key.value.
+ *
+ * @author robert
+ *
+ */
+public class ScratchModel {
+
+	private final ThreadLocal<Builder> builders = new ThreadLocal<Builder>() {
+		@Override
+		protected Builder initialValue() {
+			return new Builder();
+		}
+	};
+
+	/**
+	 * The empty builder for this thread
+	 * @return
+	 */
+	public Builder get() {
+		Builder builder = builders.get();
+		builder.data.clear();
+		return builder;
+	}
+
+	/**
+	 * The keys of one message, for one thread, in an ArrayPathMap
+	 */
+	public static final class Builder {
+
+		private final ArrayPathMap data = new ArrayPathMap();
+
+		private Builder() {
+		}
+
+		/**
+		 * Copy the keys into a new model, which the caller owns
+		 * @return
+		 */
+		public SignalKModel toModel() {
+			return new SignalKModelImpl(true, data);
+		}
+
+		public Object get(String key) {
+			return SignalKModelImpl.nullFix(data.get(Util.fixSelfKey(key)));
+		}
+
+		public Object getValue(String key) {
+			return get(key + dot + value);
+		}
+
+		/**
+		 * The keys as they are, eg to put a leaf without a value, timestamp and source
+		 * @return
+		 */
+		public SortedMap<String, Object> getFullData() {
+			return data;
+		}
+
+		public boolean putAll(SortedMap<String, Object> map) {
+			boolean success = true;
+			for (Entry<String, Object> entry : map.entrySet()) {
+				success = putLeaf(Util.fixSelfKey(entry.getKey()), entry.getValue()) && success;
+			}
+			return success;
+		}
+
+		public boolean putValue(String key, Object val) {
+			return putLeaf(Util.fixSelfKey(key) + dot + value, val);
+		}
+
+		public boolean put(String key, Object val, String source) throws IllegalArgumentException {
+			return put(SignalKPath.get(key), val, source, Util.getIsoTimeString());
+		}
+
+		public boolean put(String key, Object val, String source, String ts) throws IllegalArgumentException {
+			return put(SignalKPath.get(key), val, source, ts);
+		}
+
+		public boolean put(SignalKPath path, Object val, String source, String ts) throws IllegalArgumentException {
+			return doPut(path, val, source, ts);
+		}
+
+		public boolean put(SignalKPath path, Object val, String source, long ts) throws IllegalArgumentException {
+			return doPut(path, val, source, ts < 0 ? null : new TimestampSlot(ts));
+		}
+
+		public boolean putDouble(SignalKPath path, double val, String source, String ts) throws IllegalArgumentException {
+			return doPut(path, Double.valueOf(val), source, ts);
+		}
+
+		public boolean putDouble(SignalKPath path, double val, String source, long ts) throws IllegalArgumentException {
+			return doPut(path, Double.valueOf(val), source, ts < 0 ? null : new TimestampSlot(ts));
+		}
+
+		/**
+		 * Put key.values.&lt;src&gt;, and key.value, key.timestamp and key.sourceRef if no other source has the key
+		 */
+		private boolean doPut(SignalKPath path, Object val, String src, Object ts) {
+			if (val == null) {
+				return putLeaf(path.getKey(), null);
+			}
+			SignalKModelImpl.checkValue(val);
+			if (StringUtils.isBlank(src))
+				src = UNKNOWN;
+			SignalKPath values = path.getValues(src);
+			putLeaf(values.getValueKey(), val);
+			if (ts != null)
+				putLeaf(values.getTimestampKey(), ts);
+			putLeaf(values.getSourceRefKey(), src);
+			Object current = data.get(path.getSourceRefKey());
+			if (current != null && StringUtils.isNotBlank(current.toString()) && !src.equals(current)) {
+				return true;
+			}
+			putLeaf(path.getValueKey(), val);
+			if (ts != null)
+				putLeaf(path.getTimestampKey(), ts);
+			return putLeaf(path.getSourceRefKey(), src);
+		}
+
+		public void putPosition(String key, double lat, double lon, double altitude, String srcRef, String ts) {
+			key = SignalKPath.get(key).getKey();
+			if (srcRef != null)
+				putLeaf(key + dot + sourceRef, srcRef);
+			putLeaf(key + dot + LATITUDE, Double.valueOf(lat));
+			putLeaf(key + dot + LONGITUDE, Double.valueOf(lon));
+			putLeaf(key + dot + ALTITUDE, Double.valueOf(altitude));
+			if (ts != null)
+				putLeaf(key + dot + timestamp, ts);
+		}
+
+		public boolean putSource(String key, Object val, String ts) throws IllegalArgumentException {
+			key = Util.fixSelfKey(sources + dot + key);
+			if (val == null) {
+				return putLeaf(key, null);
+			}
+			boolean result = putLeaf(key + dot + value, val);
+			if (ts != null) {
+				result = putLeaf(key + dot + timestamp, ts) && result;
+			}
+			return result;
+		}
+
+		/**
+		 * Put the key as it is, or delete it and its subkeys if val is null
+		 * @throws IllegalArgumentException if the key conflicts with a leaf or branch
+		 */
+		private boolean putLeaf(String key, Object val) {
+			if (val == null || ObjectUtils.NULL.equals(val)) {
+				List<String> removed = new ArrayList<String>();
+				data.removeSubtree(key, removed);
+				return !removed.isEmpty();
+			}
+			if (!(val instanceof TimestampSlot))
+				SignalKModelImpl.checkValue(val);
+			return !val.equals(data.putLeaf(key, val));
+		}
+
+		@Override
+		public String toString() {
+			return data.toString();
+		}
+	}
+}
@@ -33,6 +33,7 @@ import java.util.UUID;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.ChangeJournal;
 import nz.co.fortytwo.signalk.util.ConfigConstants;
 import nz.co.fortytwo.signalk.util.JsonSerializer;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
@@ -53,6 +54,7 @@ public class SignalKModelFactory {
 	private static Logger logger = LogManager.getLogger(SignalKModelFactory.class);
 	private static SignalKModel signalKModel;
 	private static String rootPath="";
+	private static VesselExpiry vesselExpiry;
 
 	static {
 		rootPath=Util.getRootPath();
@@ -61,6 +63,9 @@ public class SignalKModelFactory {
 		Util.setDefaults(signalKModel);
 		try {
 			SignalKModelFactory.loadConfig(signalKModel);
+			setSourceLimits(signalKModel);
+			startVesselExpiry(signalKModel);
+			setChangeJournal(signalKModel);
 			AttrMapFactory.setAttrDefaults(AttrMapFactory.getInstance());
 			AttrMapFactory.loadConfig(AttrMapFactory.getInstance());
 		} catch (IOException e) {
@@ -88,10 +93,44 @@ public class SignalKModelFactory {
 	 * 
 	 * @return
 	 */
-	public static synchronized SignalKModel getCleanInstance() {
+	public static SignalKModel getCleanInstance() {
 		return new SignalKModelImpl(true);
 	}
 	
+	/**
+	 * Returns a different clean instance backed by a {@link PathTrieMap} rather than a
+	 * ConcurrentSkipListMap. Useful when the model will hold many vessels with long shared key prefixes,
+	 * eg busy AIS areas.
+	 * 
+	 * @return
+	 */
+	public static SignalKModel getTrieInstance() {
+		return new SignalKModelImpl(new PathTrieMap(), true);
+	}
+	
+	/**
+	 * Returns a different clean instance backed by a copy-on-write {@link PersistentPathMap}. Writes
+	 * allocate a little more, but {@link SignalKModel#snapshot()} is O(1), so the model can be serialized,
+	 * scanned or saved from a snapshot in parallel with the writers.
+	 * 
+	 * @return
+	 */
+	public static SignalKModel getCopyOnWriteInstance() {
+		return new SignalKModelImpl(new PersistentPathMap(), true);
+	}
+	
+	/**
+	 * Returns a different clean instance backed by a {@link PartitionedPathMap}, with a partition per
+	 * context (vessels.*, sources, resources, config). Writers to different contexts only lock their own
+	 * partition, so eg AIS ingest for many vessels can run on many threads. Readers holding readLock()
+	 * do not wait for those writers either, see SignalKModel.readLock().
+	 * 
+	 * @return
+	 */
+	public static SignalKModel getPartitionedInstance() {
+		return new SignalKModelImpl(new PartitionedPathMap(), true);
+	}
+	
 	/**
 	 * Returns the signalk instance cleaned out and configured with self=motu - only needed for testing!
 	 * 
@@ -117,10 +156,62 @@ public class SignalKModelFactory {
 	 * 
 	 * @return
 	 */
-	public static synchronized SignalKModel getWrappedInstance(NavigableMap<String, Object> root) {
+	public static SignalKModel getWrappedInstance(NavigableMap<String, Object> root) {
 		return new SignalKModelImpl(root);
 	}
 
+	/**
+	 * Apply the config SOURCES_MAX, SOURCES_TTL, SOURCES_TIMEOUT and SOURCES_HYSTERESIS to the model
+	 * @param model
+	 */
+	private static void setSourceLimits(SignalKModel model) {
+		if(!(model instanceof SignalKModelImpl))return;
+		try{
+			Object max = model.get(ConfigConstants.SOURCES_MAX);
+			Object ttl = model.get(ConfigConstants.SOURCES_TTL);
+			((SignalKModelImpl)model).setSourceLimits(
+					max == null ? SignalKModelImpl.DEFAULT_MAX_SOURCES : Double.valueOf(max.toString()).intValue(),
+					ttl == null ? SignalKModelImpl.DEFAULT_SOURCE_TTL : Double.valueOf(ttl.toString()).longValue());
+			Object timeout = model.get(ConfigConstants.SOURCES_TIMEOUT);
+			Object hysteresis = model.get(ConfigConstants.SOURCES_HYSTERESIS);
+			SourceArbiter arbiter = ((SignalKModelImpl)model).getSourceArbiter();
+			if(timeout != null)arbiter.setTimeout(Double.valueOf(timeout.toString()).longValue());
+			if(hysteresis != null)arbiter.setHysteresis(Double.valueOf(hysteresis.toString()).longValue());
+		}catch(Exception e){
+			logger.error("Bad sources config: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Start removing stale vessels from the model, after the config VESSELS_TTL
+	 * @param model
+	 */
+	private static void startVesselExpiry(SignalKModel model) {
+		try{
+			Object ttl = model.get(ConfigConstants.VESSELS_TTL);
+			long millis = ttl == null ? 0 : Double.valueOf(ttl.toString()).longValue();
+			if(millis <= 0)return;
+			vesselExpiry = new VesselExpiry(model, millis);
+			vesselExpiry.start();
+		}catch(Exception e){
+			logger.error("Bad vessels config: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Keep a journal of the config JOURNAL_SIZE changes, for clients to catch up from
+	 * @param model
+	 */
+	private static void setChangeJournal(SignalKModel model) {
+		try{
+			Object size = model.get(ConfigConstants.JOURNAL_SIZE);
+			int changes = size == null ? 0 : Double.valueOf(size.toString()).intValue();
+			model.setChangeJournal(changes > 0 ? new ChangeJournal(changes) : null);
+		}catch(Exception e){
+			logger.error("Bad journal config: "+e.getMessage());
+		}
+	}
+
 	public static void load(SignalKModel model){
 		File jsonFile = new File(rootPath+SIGNALK_MODEL_SAVE_FILE);
 		logger.info("Checking for previous state: "+jsonFile.getAbsolutePath());
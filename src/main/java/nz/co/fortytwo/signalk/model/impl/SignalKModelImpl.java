@@ -36,17 +36,34 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.math.BigDecimal;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.Attr;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.SignalKPath;
+import nz.co.fortytwo.signalk.model.UpdateBatch;
+import nz.co.fortytwo.signalk.model.event.BatchEvent;
+import nz.co.fortytwo.signalk.model.event.ChangeJournal;
+import nz.co.fortytwo.signalk.model.event.EventDispatcher;
+import nz.co.fortytwo.signalk.model.event.PathListener;
+import nz.co.fortytwo.signalk.model.event.SubscriptionPolicy;
 import nz.co.fortytwo.signalk.model.event.PathEvent;
 import nz.co.fortytwo.signalk.util.SignalKConstants;
 import nz.co.fortytwo.signalk.util.Util;
@@ -62,8 +79,11 @@ import com.google.common.eventbus.EventBus;
  * A thread-safe datamodel. Objects are stored with hierarchical keys, eg "a.b"
  * or "a.b.c", and a node in the tree can be a leaf or an intermediate, not both.
  * Nodes are always stored alphabetically.  Objects can be inserted or deleted
- * on any thread  or for the whole model or a subtree
- * of it without locking and without needing to synchronized on the returned tree.
+ * on any thread, and the returned trees can be read without synchronizing on them.
+ * </p><p>
+ * Single keys are put concurrently, sharing the models read lock, as the stores check and insert a new leaf atomically.
+ * Batches (update(UpdateBatch), putPosition), putAll and deletes hold the models write lock, so readers holding
+ * readLock() see them whole.
  * </p><pre>
 
  * model.put("vessels.self.navigation.position.latitude", 57.9);
@@ -82,12 +102,49 @@ public class SignalKModelImpl  implements SignalKModel {
 	private static Logger logger = LogManager.getLogger(SignalKModelImpl.class);
     private final char separator;
     private final NavigableMap<String,Object> root;
+    //what getFullData() and getSubMap() return, so the slots in root do not leak out
+    private final ModelView view;
+    //set when the root is one of our stores, so puts can use its putLeaf conflict checks
+    private final AbstractPathMap store;
+    //set when the root is copy-on-write, so values (including NumericSlots) must never be changed in place
+    private final boolean persistent;
     private final NavigableMap<String,Attr> attrMap;
+    //set when the root is partitioned by context, so writers can lock just their partition
+    private final PartitionedPathMap partitions;
+    //batches and deletes hold the write lock (or the read lock and their partitions lock), so readers holding readLock() see them whole.
+    //single puts share the read lock, so they cannot slip in between a batch checking its keys and writing them
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    //new keys in a plain skip-list root are checked and inserted holding the stripe for their context
+    private final KeyStripes stripes = new KeyStripes();
+    //events are queued while a thread is writing, and posted once it has released the locks
+    private final ThreadLocal<Deferred> deferred = new ThreadLocal<Deferred>(){
+    	@Override
+    	protected Deferred initialValue() {
+    		return new Deferred();
+    	}
+    };
+    private final ConcurrentMap<String, EventBus> contextBuses = new ConcurrentHashMap<String, EventBus>();
     
-    private int nextrevision;
+    //incremented on every change, each change records the revision it was made at
+    private final AtomicLong nextrevision = new AtomicLong();
+    private final RevisionIndex revisions = new RevisionIndex();
 
   	private EventBus eventBus = new EventBus();
+  	private final SubscriptionIndex subscriptions = new SubscriptionIndex(this);
+  	private final EventBusDispatcher busDispatcher = new EventBusDispatcher(eventBus, contextBuses, subscriptions);
+  	private volatile EventDispatcher dispatcher = busDispatcher;
+  	private volatile ChangeJournal journal;
 	private boolean handleMultipleValues=true;
+	
+	public static final int DEFAULT_MAX_SOURCES = 8;
+	public static final long DEFAULT_SOURCE_TTL = 600000;
+	//the values from each source, by path key. Kept out of the main map so they dont multiply its keys
+	private final ConcurrentNavigableMap<String, SourceTable> sourceTables = new ConcurrentSkipListMap<String, SourceTable>();
+	private volatile int maxSources = DEFAULT_MAX_SOURCES;
+	private volatile long sourceTtl = DEFAULT_SOURCE_TTL;
+	//the source ids for this model, bounded by trimming the ids no table holds
+	private final SourceRegistry registry = new SourceRegistry(sourceTables.values());
+	private final SourceArbiter arbiter = new SourceArbiter(registry);
     
   	 /**
      * Create a new Model
@@ -95,7 +152,11 @@ public class SignalKModelImpl  implements SignalKModel {
     public SignalKModelImpl() {
         this.separator = '.';
         root = new ConcurrentSkipListMap<String,Object>();
+        this.store = null;
+        this.persistent = false;
+        this.partitions = null;
         this.attrMap = AttrMapFactory.getInstance();
+        this.view = new ModelView(this.root, this);
     }
     
     /**
@@ -105,7 +166,11 @@ public class SignalKModelImpl  implements SignalKModel {
     public SignalKModelImpl(NavigableMap<String,Object> root) {
         this.separator = '.';
         this.root = new ConcurrentSkipListMap<String,Object>(root);
+        this.store = null;
+        this.persistent = false;
+        this.partitions = null;
         this.attrMap = AttrMapFactory.getInstance();
+        this.view = new ModelView(this.root, this);
     }
     
     
@@ -113,8 +178,45 @@ public class SignalKModelImpl  implements SignalKModel {
 		this.handleMultipleValues=handleMultipleValues;
 		this.separator = '.';
         this.root = new ConcurrentSkipListMap<String,Object>();
+        this.store = null;
+        this.persistent = false;
+        this.partitions = null;
         this.attrMap = AttrMapFactory.getInstance();
+        this.view = new ModelView(this.root, this);
 	}
+    
+    /**
+     * Create a new model holding a copy of the keys, eg those a {@link ScratchModel} built
+     * @param handleMultipleValues
+     * @param data
+     */
+    SignalKModelImpl(boolean handleMultipleValues, SortedMap<String,Object> data) {
+		this.handleMultipleValues=handleMultipleValues;
+		this.separator = '.';
+		//the keys are already sorted, so this is a linear copy
+        this.root = new ConcurrentSkipListMap<String,Object>(data);
+        this.store = null;
+        this.persistent = false;
+        this.partitions = null;
+        this.attrMap = AttrMapFactory.getInstance();
+        this.view = new ModelView(this.root, this);
+	}
+
+    /**
+     * Create a new model that uses the provided store (eg a PathTrieMap) as its live store, rather than a copy.
+     * @param store
+     * @param handleMultipleValues
+     */
+    SignalKModelImpl(AbstractPathMap store, boolean handleMultipleValues) {
+    	this.handleMultipleValues=handleMultipleValues;
+    	this.separator = '.';
+    	this.root = store;
+    	this.store = store;
+    	this.persistent = store instanceof PersistentPathMap;
+    	this.partitions = store instanceof PartitionedPathMap ? (PartitionedPathMap) store : null;
+    	this.attrMap = AttrMapFactory.getInstance();
+    	this.view = new ModelView(this.root, this);
+    }
 
 	/**
      * Return the hierarchy separator
@@ -133,23 +235,51 @@ public class SignalKModelImpl  implements SignalKModel {
      * @return
      */
     private boolean doPut(String key, Object val) {
-        // If val = "aa.bb.cc", fail if map contains "aa.bb" or "aa.bb.cc.dd"
-        String othkey = root.lowerKey(key);
-        if (othkey != null && key.startsWith(othkey) && key.charAt(othkey.length()) == separator) {
-        	if(logger.isDebugEnabled())logger.debug("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
-            throw new IllegalArgumentException("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
-        }
-        othkey = root.higherKey(key);
-        if (othkey != null && othkey.startsWith(key) && othkey.charAt(key.length()) == separator) {
-        	if(logger.isDebugEnabled())logger.debug("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
-            throw new IllegalArgumentException("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
-        }
-        //meta.zones array
-        if (!val.equals(root.put(key, val))) {
+    	//the read lock is shared by all the single puts, it only waits for a batch or delete in progress
+    	Lock shared = lock.readLock();
+    	shared.lock();
+    	try{
+    		//an existing leaf cannot conflict, so updates only cost one lookup
+    		Object old = store!=null ? store.replace(key, val) : root.replace(key, val);
+    		if(old!=null){
+    			return fireIfChanged(key, val, old);
+    		}
+    		if(store!=null){
+    			return fireIfChanged(key, val, store.putLeaf(key, val));
+    		}
+    		int stripe = KeyStripes.stripe(key);
+    		stripes.lock(stripe);
+    		try{
+    			// If val = "aa.bb.cc", fail if map contains "aa.bb" or "aa.bb.cc.dd"
+    			AbstractPathMap.checkLeaf(root, key);
+    			//meta.zones array
+    			return fireIfChanged(key, val, root.put(key, val));
+    		}finally{
+    			stripes.unlock(stripe);
+    		}
+    	}catch(IllegalArgumentException e){
+    		if(logger.isDebugEnabled())logger.debug(e.getMessage());
+    		throw e;
+    	}finally{
+    		shared.unlock();
+    	}
+    }
+
+    /**
+     * Fires an ADD event if the value put differs from the old value
+     * @param key
+     * @param val
+     * @param old
+     * @return true if the value changed
+     */
+    private boolean fireIfChanged(String key, Object val, Object old) {
+        if (!val.equals(old)) {
         	if(logger.isDebugEnabled())logger.debug("doPut "+key+"="+val);
         	//for .source
         	
-        	eventBus.post(new PathEvent(key, nextrevision, PathEvent.EventType.ADD));
+        	long revision = nextrevision.incrementAndGet();
+        	revisions.changed(key, revision);
+        	post(key, revision, PathEvent.EventType.ADD, val, old);
         	
             return true;
         } else {
@@ -157,23 +287,102 @@ public class SignalKModelImpl  implements SignalKModel {
         }
     }
 
+    /**
+     * Deletes the key and all its subkeys. A single leaf posts a DEL, a subtree posts one DEL_SUBTREE for the key.
+     */
     private boolean doDelete(String key,NavigableMap<String, Object> map ) {
+    	List<String> deleted = new ArrayList<String>();
+    	removeTree(key, deleted);
+    	if(deleted.isEmpty())return false;
+    	long revision = nextrevision.incrementAndGet();
+    	if(deleted.size()==1 && deleted.get(0).equals(key)){
+    		revisions.deleted(key, revision);
+    		post(key, revision, PathEvent.EventType.DEL, null, null);
+    	}else{
+    		revisions.deletedSubtree(key, deleted, revision);
+    		post(key, revision, PathEvent.EventType.DEL_SUBTREE, null, null);
+    	}
+        return true;
+    }
+
+    /**
+     * Removes the key and all its subkeys, adding the removed keys to the list
+     * @param key
+     * @param deleted
+     */
+    private void removeTree(String key, List<String> deleted) {
     	if(logger.isDebugEnabled())logger.debug("Delete "+key);
-        NavigableSet<String> subMap = getKeys().subSet(key, true, key+".\uFFFD", true);
+    	if(root instanceof AbstractPathMap){
+    		//the stores remove the whole range at once
+    		((AbstractPathMap)root).removeSubtree(key, deleted);
+    		removeSourceTables(key);
+    		return;
+    	}
+        NavigableSet<String> subMap = root.navigableKeySet().subSet(key, true, key+".\uFFFD", true);
         if(logger.isDebugEnabled())logger.debug("Found keys "+subMap.size());
-        boolean found = false;
         for (Iterator<String> i = subMap.iterator();i.hasNext();) {
             String mapkey = i.next();
             if (mapkey.startsWith(key) && (mapkey.length() == key.length() || mapkey.charAt(key.length()) == separator)) {
             	if(logger.isDebugEnabled())logger.debug("Delete key "+mapkey);
-            	eventBus.post(new PathEvent(mapkey, nextrevision ,PathEvent.EventType.DEL));
                 i.remove();
-                found = true;
+                deleted.add(mapkey);
             } else {
                 break;
             }
         }
-        return found;
+        removeSourceTables(key);
+    }
+
+    /**
+     * Drop the source tables for the key and its subkeys
+     * @param key
+     */
+    private void removeSourceTables(String key) {
+    	if(sourceTables.isEmpty())return;
+    	SourceTable table = sourceTables.remove(key);
+    	if(table != null)table.drop();
+    	//all the keys starting with 'key.' sort before 'key/'
+    	dropSourceTables(sourceTables.subMap(key+separator, true, key+(char)(separator+1), false));
+    }
+
+    /**
+     * Drop all the source tables
+     */
+    void clearSourceTables() {
+    	dropSourceTables(sourceTables);
+    }
+
+    private void dropSourceTables(NavigableMap<String, SourceTable> tables) {
+    	for(Iterator<SourceTable> i = tables.values().iterator(); i.hasNext();){
+    		//so the paths holding it look again
+    		i.next().drop();
+    		i.remove();
+    	}
+    }
+
+    /**
+     * The name for a source id
+     * @param src
+     * @return the name, or null if it has been dropped
+     */
+    String getSourceName(int src) {
+    	return registry.name(src);
+    }
+
+    /**
+     * The source tables, by path, for {@link ModelView}
+     * @return
+     */
+    NavigableMap<String, SourceTable> getSourceTables() {
+    	return sourceTables;
+    }
+
+    /**
+     * Sources not received since this time have expired, epoch millis
+     * @return
+     */
+    long getSourcesSince() {
+    	return sourceTtl > 0 ? System.currentTimeMillis() - sourceTtl : Long.MIN_VALUE;
     }
 
  
@@ -183,25 +392,47 @@ public class SignalKModelImpl  implements SignalKModel {
     //@Override
 	private boolean put(String key, Object val) throws IllegalArgumentException{
 		if(logger.isDebugEnabled())logger.debug("Put received: "+key+"="+val);
-    	key = fixSelfKey(key);
+    	return putResolved(fixSelfKey(key), val);
+	}
+
+	/**
+	 * Put for a key that already has self resolved
+	 * @param key
+	 * @param val
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	private boolean putResolved(String key, Object val) throws IllegalArgumentException{
     	if(val == null || ObjectUtils.NULL.equals(val)){
     		//TODO: we delete the val, and the values equiv, then promote the next values object
-    		return doDelete(key, root);
+    		return delete(key);
 		}
-    	
-    	if(val instanceof Boolean 
+    	checkValue(val);
+    	if(logger.isDebugEnabled())logger.debug("Put "+key+"="+val);
+    	beginWrite();
+    	try{
+    		return doPut(key, val);
+    	}finally{
+    		endWrite();
+    	}
+    }
+
+	/**
+	 * Throws IllegalArgumentException unless the val is a Boolean, Number, String or json array
+	 * @param val
+	 */
+	static void checkValue(Object val) throws IllegalArgumentException{
+		if(val instanceof Boolean 
     			|| val instanceof Number 
     			|| val instanceof String){
-    		if(logger.isDebugEnabled())logger.debug("Put "+key+"="+val);
-    		return doPut(key, val);
+    		return;
     	}
     	if(val instanceof Json && ((Json)val).isArray() ){
-    		if(logger.isDebugEnabled())logger.debug("Put json"+key+"="+val);
-    		return doPut(key, val);
+    		return;
     	}
     	if(logger.isDebugEnabled())logger.debug("Must be String, Number,Boolean or null : "+val.getClass()+":"+val);
     	throw new IllegalArgumentException("Must be String, Number,Boolean or null : "+val.getClass()+":"+val);
-    }
+	}
 
     private String fixSelfKey(String key) {
     		return Util.fixSelfKey(key);
@@ -209,7 +440,7 @@ public class SignalKModelImpl  implements SignalKModel {
 
 	@Override
 	public boolean put(String key, Object val, String source) throws IllegalArgumentException {
-		return put(key,val,source,Util.getIsoTimeString());
+		return put(SignalKPath.get(key),val,source,Util.getIsoTimeString());
     	//key = fixSelfKey(key);
     	//if(source==null)return (doPut(key, val));
 		//return (doPut(key+dot+value, val)&& doPut(key+dot+source, source));
@@ -218,25 +449,745 @@ public class SignalKModelImpl  implements SignalKModel {
 
 	@Override
 	public boolean put(String key, Object val, String src, String ts) throws IllegalArgumentException {
-		key = fixSelfKey(key);
+		return put(SignalKPath.get(key), val, src, ts);
+	}
+
+	@Override
+	public boolean put(SignalKPath path, Object val, String src, String ts) throws IllegalArgumentException {
 		if(val == null){
-    		//TODO: we delete the val, and the values equiv, then promote the next values object
-    		return doDelete(key, root);
+			//TODO: we delete the val, and the values equiv, then promote the next values object
+			return delete(path.getKey());
+		}
+		beginWrite();
+		try{
+			return doPut(path, val, 0, -1, src, ts, -1);
+		}finally{
+			endWrite();
 		}
+	}
+
+	@Override
+	public boolean put(SignalKPath path, Object val, String src, long ts) throws IllegalArgumentException {
+		if(val == null){
+			return delete(path.getKey());
+		}
+		beginWrite();
+		try{
+			return doPut(path, val, 0, -1, src, null, ts);
+		}finally{
+			endWrite();
+		}
+	}
+
+	/**
+	 * Put the value from a source id, see getSourceId(src). This saves looking up the source name on every put.
+	 * @param path
+	 * @param val the value, or null to delete the key
+	 * @param src the source id
+	 * @param ts the timestamp, epoch millis
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean put(SignalKPath path, Object val, int src, long ts) throws IllegalArgumentException {
+		if(val == null){
+			return delete(path.getKey());
+		}
+		String name = sourceName(src);
+		beginWrite();
+		try{
+			return doPut(path, val, 0, src, name, null, ts);
+		}finally{
+			endWrite();
+		}
+	}
+
+	@Override
+	public boolean putDouble(SignalKPath path, double val, String src, String ts) throws IllegalArgumentException {
+		beginWrite();
+		try{
+			return doPut(path, null, val, -1, src, ts, -1);
+		}finally{
+			endWrite();
+		}
+	}
+
+	@Override
+	public boolean putDouble(SignalKPath path, double val, String src, long ts) throws IllegalArgumentException {
+		beginWrite();
+		try{
+			return doPut(path, null, val, -1, src, null, ts);
+		}finally{
+			endWrite();
+		}
+	}
+
+	/**
+	 * Put the primitive from a source id, see getSourceId(src). This saves looking up the source name on every put.
+	 * @param path
+	 * @param val
+	 * @param src the source id
+	 * @param ts the timestamp, epoch millis
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public boolean putDouble(SignalKPath path, double val, int src, long ts) throws IllegalArgumentException {
+		String name = sourceName(src);
+		beginWrite();
+		try{
+			return doPut(path, null, val, src, name, null, ts);
+		}finally{
+			endWrite();
+		}
+	}
+
+	/**
+	 * The id for the source, to pass to put(path, val, src, ts) and putDouble(path, val, src, ts).
+	 * The id is kept as long as the model.
+	 * @param src the source name, eg 'nmea.0183.RMC'
+	 * @return
+	 */
+	public int getSourceId(String src) {
+		if(StringUtils.isBlank(src)) src=UNKNOWN;
+		return registry.pin(src);
+	}
+
+	private String sourceName(int src) {
+		String name = registry.name(src);
+		if(name == null)throw new IllegalArgumentException("Unknown source id: "+src);
+		return name;
+	}
+
+	/**
+	 * Delete the key and its subkeys, holding the write lock
+	 */
+	private boolean delete(String key) {
+		lockWrite(null);
+		try{
+			return doDelete(key, root);
+		}finally{
+			unlockWrite(null);
+		}
+	}
+
+	@Override
+	public boolean update(UpdateBatch batch) throws IllegalArgumentException {
+		if(batch.isEmpty())return false;
+		if(logger.isDebugEnabled())logger.debug("update: "+batch);
+		List<String> added = new ArrayList<String>();
+		List<String> deleted = new ArrayList<String>();
+		long revision;
+		String lockKey = lockKey(batch);
+		lockWrite(lockKey);
+		try{
+			//work out all the keys to write, and check them, before anything is changed
+			List<String> keys = new ArrayList<String>();
+			List<Object> vals = new ArrayList<Object>();
+			NavigableMap<String, Object> pending = new TreeMap<String, Object>();
+			List<String> deletes = new ArrayList<String>();
+			//the PUT entry for each key, as the source arbiter decides if its keys are written
+			List<UpdateBatch.Entry> owners = new ArrayList<UpdateBatch.Entry>();
+			for(UpdateBatch.Entry entry : batch.getEntries()){
+				expand(entry, keys, vals, pending, deletes);
+				boolean arbitrated = entry.getType()==UpdateBatch.Type.PUT && entry.getValue()!=null;
+				while(owners.size()<keys.size())owners.add(arbitrated ? entry : null);
+			}
+			//now apply them
+			List<String> valuesKeys = new ArrayList<String>();
+			UpdateBatch.Entry owner = null;
+			boolean accepted = true;
+			for(int i=0;i<keys.size();i++){
+				String key = keys.get(i);
+				Object val = vals.get(i);
+				if(owners.get(i)!=owner){
+					owner = owners.get(i);
+					accepted = owner==null || arbitrate(owner.getPath(), owner.getValue(), 0, -1,
+							StringUtils.isBlank(owner.getSource()) ? UNKNOWN : owner.getSource(), owner.getTimestamp(), owner.getTimestampMillis());
+					if(owner!=null && handleMultipleValues)valuesKeys.add(owner.getPath().getValuesKey());
+				}
+				if(!accepted)continue;
+				if(val==null){
+					removeTree(key, deleted);
+					continue;
+				}
+				Object old = root.get(key);
+				if(!persistent && val instanceof NumericSlot && old instanceof NumericSlot){
+					if(((NumericSlot)old).set(((NumericSlot)val).doubleValue())) added.add(key);
+					continue;
+				}
+				if(!persistent && val instanceof TimestampSlot && old instanceof TimestampSlot){
+					if(((TimestampSlot)old).set(((TimestampSlot)val).getMillis())) added.add(key);
+					continue;
+				}
+				old = root.put(key, val);
+				if(!val.equals(old)) added.add(key);
+			}
+			if(added.isEmpty() && deleted.isEmpty()){
+				stampValues(valuesKeys, nextrevision.get());
+				return false;
+			}
+			//one revision for the whole batch, including its key.values entries
+			revision = nextrevision.incrementAndGet();
+			stampValues(valuesKeys, revision);
+			for(String key : added){
+				revisions.changed(key, revision);
+			}
+			for(String key : deleted){
+				revisions.deleted(key, revision);
+			}
+			ChangeJournal journal = this.journal;
+			if(journal != null){
+				//the batch is journaled by key, so replay does not depend on batches
+				PathEvent change = deferred.get().scratch;
+				for(String key : added){
+					change.reset(key, revision, PathEvent.EventType.ADD);
+					setValue(change, root.get(key), false);
+					journal.append(change);
+				}
+				for(String key : deleted){
+					change.reset(key, revision, PathEvent.EventType.DEL);
+					journal.append(change);
+				}
+				change.reset(null, 0, null);
+			}
+		}finally{
+			unlockWrite(lockKey);
+		}
+		List<String> all = new ArrayList<String>(added);
+		all.addAll(deleted);
+		post(new BatchEvent(BatchEvent.commonPath(all), revision, added, deleted));
+		return true;
+	}
+
+	/**
+	 * Expand a batch entry into the leaf keys it writes, checking each one against the model and the earlier entries.
+	 * A null val is a delete of that key and its subkeys.
+	 */
+	private void expand(UpdateBatch.Entry entry, List<String> keys, List<Object> vals, NavigableMap<String, Object> pending, List<String> deletes) {
+		SignalKPath path = entry.getPath();
+		switch(entry.getType()){
+		case PUT:
+			if(entry.getValue()==null){
+				expandDelete(path.getKey(), keys, vals, pending, deletes);
+				return;
+			}
+			checkValue(entry.getValue());
+			String src = StringUtils.isBlank(entry.getSource()) ? UNKNOWN : entry.getSource();
+			Object ts = timestamp(entry);
+			//checked now, but only written if the source arbiter accepts the source when the batch is applied
+			expandPut(path.getValueKey(), entry.getValue(), keys, vals, pending, deletes);
+			if(ts!=null)expandPut(path.getTimestampKey(), ts, keys, vals, pending, deletes);
+			expandPut(path.getSourceRefKey(), src, keys, vals, pending, deletes);
+			return;
+		case VALUE:
+			if(entry.getValue()==null || ObjectUtils.NULL.equals(entry.getValue())){
+				expandDelete(path.getValueKey(), keys, vals, pending, deletes);
+				return;
+			}
+			checkValue(entry.getValue());
+			expandPut(path.getValueKey(), entry.getValue(), keys, vals, pending, deletes);
+			return;
+		case POSITION:
+			String key = path.getKey();
+			if(entry.getSource()!=null)expandPut(key + dot+ sourceRef, entry.getSource(), keys, vals, pending, deletes);
+			expandPut(key+ dot+LATITUDE, new NumericSlot(entry.getLatitude()), keys, vals, pending, deletes);
+			expandPut(key+ dot + LONGITUDE, new NumericSlot(entry.getLongitude()), keys, vals, pending, deletes);
+			expandPut(key+ dot+ ALTITUDE, new NumericSlot(entry.getAltitude()), keys, vals, pending, deletes);
+			Object posTs = timestamp(entry);
+			if(posTs!=null)expandPut(key+dot+timestamp, posTs, keys, vals, pending, deletes);
+			return;
+		case LEAF:
+			if(entry.getValue()==null){
+				expandDelete(path.getKey(), keys, vals, pending, deletes);
+				return;
+			}
+			checkValue(entry.getValue());
+			expandPut(path.getKey(), entry.getValue(), keys, vals, pending, deletes);
+			return;
+		}
+	}
+
+	/**
+	 * The timestamp to store for the entry, the String, or a TimestampSlot for epoch millis, or null
+	 */
+	private Object timestamp(UpdateBatch.Entry entry) {
+		if(entry.getTimestamp()!=null)return entry.getTimestamp();
+		if(entry.getTimestampMillis()>=0)return new TimestampSlot(entry.getTimestampMillis());
+		return null;
+	}
+
+	private void expandPut(String key, Object val, List<String> keys, List<Object> vals, NavigableMap<String, Object> pending, List<String> deletes) {
+		checkConflict(key, pending, deletes);
+		keys.add(key);
+		vals.add(val);
+		pending.put(key, val);
+	}
+
+	private void expandDelete(String key, List<String> keys, List<Object> vals, NavigableMap<String, Object> pending, List<String> deletes) {
+		keys.add(key);
+		vals.add(null);
+		pending.remove(key);
+		pending.subMap(key+dot, true, key+".\uFFFD", true).clear();
+		deletes.add(key);
+	}
+
+	/**
+	 * True if the key was in a subtree deleted earlier in the batch
+	 */
+	private boolean isDeleted(String key, List<String> deletes) {
+		for(String d : deletes){
+			if(key.startsWith(d) && (key.length()==d.length() || key.charAt(d.length())==separator))return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Same check as doPut, but against the model as it will be after the earlier entries in the batch
+	 */
+	private void checkConflict(String key, NavigableMap<String, Object> pending, List<String> deletes) {
+		// If val = "aa.bb.cc", fail if there is "aa.bb" or "aa.bb.cc.dd"
+		int pos = key.indexOf(separator);
+		while(pos>0){
+			String parent = key.substring(0, pos);
+			if(pending.containsKey(parent) || (root.containsKey(parent) && !isDeleted(parent, deletes))){
+				throw conflict(key, parent);
+			}
+			pos = key.indexOf(separator, pos+1);
+		}
+		String branch = key+dot;
+		String othkey = pending.ceilingKey(branch);
+		if(othkey!=null && othkey.startsWith(branch)){
+			throw conflict(key, othkey);
+		}
+		for(String k : root.tailMap(branch, true).keySet()){
+			if(!k.startsWith(branch))break;
+			if(!isDeleted(k, deletes))throw conflict(key, k);
+		}
+	}
+
+	private IllegalArgumentException conflict(String key, String othkey) {
+		if(logger.isDebugEnabled())logger.debug("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
+		return new IllegalArgumentException("Can't insert key \""+key+"\" into Model containing \""+othkey+"\"");
+	}
+
+	@Override
+	public long getRevision() {
+		return nextrevision.get();
+	}
+
+	@Override
+	public long getRevision(String key) {
+		return revisions.getRevision(fixSelfKey(key));
+	}
+
+	@Override
+	public NavigableMap<String, Object> getChangedSince(long revision, String key) {
+		String prefix = key==null ? "" : fixSelfKey(key);
+		NavigableMap<String, Object> changes = new TreeMap<String, Object>();
+		Lock readLock = readLock();
+		readLock.lock();
+		try{
+			if(!revisions.covers(revision))return null;
+			List<String> deleted = new ArrayList<String>();
+			for(String k : revisions.changedSince(revision, prefix, deleted)){
+				Object val = root.get(k);
+				if(val==null && k.endsWith(dot+values)){
+					//the key.values entries from the source table, if it is still there
+					changes.putAll(view.subMap(k+dot, true, k+(char)(separator+1), false));
+					continue;
+				}
+				changes.put(k, val==null ? "null" : ModelView.detach(val));
+			}
+			for(String k : deleted){
+				//the model uses "null" for null
+				changes.put(k, "null");
+			}
+		}finally{
+			readLock.unlock();
+		}
+		return changes;
+	}
+
+	@Override
+	public SignalKModel snapshot() {
+		PersistentPathMap copy;
+		long revision;
+		Lock readLock = readLock();
+		readLock.lock();
+		try{
+			revision = nextrevision.get();
+			if(root instanceof PersistentPathMap){
+				copy = ((PersistentPathMap)root).snapshot();
+			}else{
+				//not a persistent store, so we have to copy it
+				PersistentPathMap map = new PersistentPathMap();
+				for(Entry<String, Object> entry : root.entrySet()){
+					map.put(entry.getKey(), copy(entry.getValue()));
+				}
+				copy = map.snapshot();
+			}
+		}finally{
+			readLock.unlock();
+		}
+		//the source tables are not copied, a snapshot is for reading the model itself
+		SignalKModelImpl model = new SignalKModelImpl(copy, handleMultipleValues);
+		model.nextrevision.set(revision);
+		return model;
+	}
+
+	/**
+	 * Slots are updated in place, so copy them for a snapshot
+	 * @param val
+	 * @return
+	 */
+	private Object copy(Object val) {
+		if(val instanceof TimestampSlot)return new TimestampSlot(((TimestampSlot)val).getMillis());
+		return ModelView.detach(val);
+	}
+
+	@Override
+	public Lock readLock() {
+		//readers stay concurrent when partitioned, a batch in one context only holds its partitions lock so is not excluded
+		return lock.readLock();
+	}
+
+	/**
+	 * Lock for a batch or delete in the context of the key. For a partitioned model this only excludes writers to the same partition.
+	 * @param key the key to write, or null to lock the whole model
+	 * @throws IllegalStateException if the thread holds the readLock(), as it cannot be upgraded
+	 */
+	private void lockWrite(String key) {
+		if(partitions == null || key == null){
+			if(lock.getReadHoldCount() > 0 && !lock.isWriteLockedByCurrentThread()){
+				//it would wait for itself forever
+				throw new IllegalStateException("Cannot update or delete in the model while holding its readLock()");
+			}
+			lock.writeLock().lock();
+		}else{
+			lock.readLock().lock();
+			partitions.lockFor(key).lock();
+		}
+		beginWrite();
+	}
+
+	/**
+	 * Release the lock from lockWrite(key), and post the queued events if this was the outermost write
+	 * @param key
+	 */
+	private void unlockWrite(String key) {
+		if(partitions == null || key == null){
+			lock.writeLock().unlock();
+		}else{
+			partitions.lockFor(key).unlock();
+			lock.readLock().unlock();
+		}
+		endWrite();
+	}
+
+	/**
+	 * Start a write, the events are queued until the outermost write ends
+	 */
+	private void beginWrite() {
+		deferred.get().depth++;
+	}
+
+	/**
+	 * End a write, and post the queued events if this was the outermost write
+	 */
+	private void endWrite() {
+		Deferred d = deferred.get();
+		if(--d.depth == 0 && d.events.size > 0){
+			flush(d);
+		}
+	}
+
+	/**
+	 * The key to lock for the batch, or null if it spans partitions or deletes, and needs the whole model
+	 */
+	private String lockKey(UpdateBatch batch) {
+		if(partitions == null)return null;
+		String context = null;
+		String key = null;
+		for(UpdateBatch.Entry entry : batch.getEntries()){
+			if(entry.getType()!=UpdateBatch.Type.POSITION && entry.getValue()==null)return null;
+			String c = PartitionedPathMap.contextOf(entry.getPath().getKey());
+			if(context == null){
+				context = c;
+				key = entry.getPath().getKey();
+			}else if(!context.equals(c)){
+				return null;
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Post the change now, or queue it until the current write completes
+	 */
+	private void post(String key, long revision, PathEvent.EventType type, Object val, Object old) {
+		Deferred d = deferred.get();
+		PathEvent change = change(d, key, revision, type);
+		setValue(change, val, false);
+		setValue(change, old, true);
+		journal(change);
+		if(d.depth == 0) dispatcher.dispatchChange(change);
+	}
+
+	/**
+	 * Post the change to a NumericSlot now, or queue it until the current write completes
+	 */
+	private void postDouble(String key, long revision, double val, double old) {
+		Deferred d = deferred.get();
+		PathEvent change = change(d, key, revision, PathEvent.EventType.ADD);
+		change.setValue(val);
+		change.setOldValue(old);
+		journal(change);
+		if(d.depth == 0) dispatcher.dispatchChange(change);
+	}
+
+	/**
+	 * Post the change to a TimestampSlot now, or queue it until the current write completes
+	 */
+	private void postMillis(String key, long revision, long millis, long old) {
+		Deferred d = deferred.get();
+		PathEvent change = change(d, key, revision, PathEvent.EventType.ADD);
+		change.setValueMillis(millis);
+		change.setOldValueMillis(old);
+		journal(change);
+		if(d.depth == 0) dispatcher.dispatchChange(change);
+	}
+
+	private void journal(PathEvent change) {
+		ChangeJournal journal = this.journal;
+		if(journal != null) journal.append(change);
+	}
+
+	/**
+	 * A pooled change from the queue while writing, with the source of the current put
+	 */
+	private PathEvent change(Deferred d, String key, long revision, PathEvent.EventType type) {
+		PathEvent change = d.depth > 0 ? d.events.add() : new PathEvent();
+		change.reset(key, revision, type);
+		change.setSource(d.source);
+		change.setSourceTimestamp(d.millis);
+		return change;
+	}
+
+	/**
+	 * Set the value or old value, unwrapping the slots so the event does not see later updates
+	 */
+	private static void setValue(PathEvent change, Object val, boolean old) {
+		if(val instanceof NumericSlot){
+			if(old) change.setOldValue(((NumericSlot)val).doubleValue());
+			else change.setValue(((NumericSlot)val).doubleValue());
+		}else if(val instanceof TimestampSlot){
+			if(old) change.setOldValueMillis(((TimestampSlot)val).getMillis());
+			else change.setValueMillis(((TimestampSlot)val).getMillis());
+		}else if(old){
+			change.setOldValue(val);
+		}else{
+			change.setValue(val);
+		}
+	}
+
+	/**
+	 * Post the event now, or queue it until the current write completes
+	 * @param event
+	 */
+	private void post(PathEvent event) {
+		Deferred d = deferred.get();
+		if(d.depth > 0){
+			d.events.add(event);
+		}else{
+			dispatcher.dispatch(event);
+		}
+	}
+
+	private void flush(Deferred d) {
+		EventQueue events = d.events;
+		//a subscriber may write to the model while we post, so give it another queue
+		d.events = d.spare != null ? d.spare : new EventQueue();
+		d.spare = null;
+		EventDispatcher dispatcher = this.dispatcher;
+		for(int i=0;i<events.size;i++){
+			if(events.refs[i] != null){
+				dispatcher.dispatch(events.refs[i]);
+			}else{
+				dispatcher.dispatchChange(events.changes[i]);
+			}
+		}
+		events.clear();
+		if(d.spare == null)d.spare = events;
+	}
+
+	/**
+	 * The events queued by the current thread while it writes
+	 */
+	private static final class Deferred {
+		int depth;
+		//the source of the put in progress, for the events
+		String source;
+		//for journaling batches
+		final PathEvent scratch = new PathEvent();
+		long millis = -1;
+		EventQueue events = new EventQueue();
+		EventQueue spare;
+	}
+
+	/**
+	 * The queued changes, in a pool of events reused for each write so queueing does not allocate.
+	 * Events that are already built (eg BatchEvents) are held as is.
+	 */
+	private static final class EventQueue {
+		//keep the pool to this size after a big write
+		static final int MAX_POOLED = 1024;
+		int size;
+		PathEvent[] changes = new PathEvent[16];
+		PathEvent[] refs = new PathEvent[16];
+
+		/**
+		 * The next pooled change, to be filled in
+		 */
+		PathEvent add() {
+			ensureCapacity();
+			PathEvent change = changes[size];
+			if(change == null){
+				change = new PathEvent();
+				changes[size] = change;
+			}
+			size++;
+			return change;
+		}
+
+		void add(PathEvent event) {
+			ensureCapacity();
+			refs[size] = event;
+			size++;
+		}
+
+		private void ensureCapacity() {
+			if(size == changes.length){
+				int capacity = size * 2;
+				changes = Arrays.copyOf(changes, capacity);
+				refs = Arrays.copyOf(refs, capacity);
+			}
+		}
+
+		void clear() {
+			Arrays.fill(refs, 0, size, null);
+			for(int i=0;i<Math.min(size, MAX_POOLED);i++){
+				//drop the values, so the pool does not hold on to them
+				if(changes[i] != null) changes[i].reset(null, 0, null);
+			}
+			if(changes.length > MAX_POOLED){
+				changes = Arrays.copyOf(changes, MAX_POOLED);
+				refs = Arrays.copyOf(refs, MAX_POOLED);
+			}
+			size = 0;
+		}
+	}
+
+	@Override
+	public double getDouble(SignalKPath path) {
+		Object val = root.get(path.getValueKey());
+		if(val instanceof Number) return ((Number)val).doubleValue();
+		return Double.NaN;
+	}
+
+	@Override
+	public long getTimestamp(SignalKPath path) {
+		Object ts = root.get(path.getTimestampKey());
+		if(ts instanceof TimestampSlot) return ((TimestampSlot)ts).getMillis();
+		if(ts instanceof String) return Util.getMillisFromIsoTime((String)ts);
+		return -1;
+	}
+
+	/**
+	 * Puts the value, timestamp and sourceRef for the path. If val is null the primitive d is
+	 * put instead, into a NumericSlot. If ts is null the epoch millis are put instead, into a TimestampSlot,
+	 * unless they are -1. The source id is -1 if it has not been looked up yet.
+	 */
+	private boolean doPut(SignalKPath path, Object val, double d, int id, String src, String ts, long millis) {
 		if(StringUtils.isBlank(src)) src=UNKNOWN;
 		
-		boolean success = putValues(key, val, src, ts);
-		String curSource = (String) root.get(key+dot+sourceRef);
-		if(logger.isDebugEnabled())logger.debug("Put current val "+key+"="+val+", curSource="+curSource+", ts="+ts);
-		if( (StringUtils.isBlank(curSource)||StringUtils.equals(curSource, src))){
-			boolean result=doPut(key+dot+value, val);
-			
-			if(ts!=null){
-				result=result&& doPut(key+dot+timestamp, ts);
+		if(logger.isDebugEnabled())logger.debug("Put val "+path+"="+(val==null?d:val)+", src="+src+", ts="+(ts==null?millis:ts));
+		//so the events carry the source
+		Deferred deferred = this.deferred.get();
+		String lastSource = deferred.source;
+		long lastMillis = deferred.millis;
+		deferred.source = src;
+		deferred.millis = ts==null?millis:-1;
+		try{
+			boolean result = false;
+			boolean current = arbitrate(path, val, d, id, src, ts, millis);
+			if(current){
+				result=doPutValue(path.getValueKey(), val, d);
+				
+				if(ts!=null){
+					result=result&& doPut(path.getTimestampKey(), ts);
+				}else if(millis>=0){
+					result=result&& doPutTimestamp(path.getTimestampKey(), millis);
+				}
+				//always, as the source may have just taken over the key
+				result = doPut(path.getSourceRefKey(), src)&&result;
+			}
+			if(handleMultipleValues){
+				//the last revision the put took, or the latest if it only changed the values
+				revisions.changed(path.getValuesKey(), nextrevision.get());
 			}
-			return result&&doPut(key+dot+sourceRef, src);
+			//only in the values
+			return current ? result : handleMultipleValues;
+		}finally{
+			deferred.source = lastSource;
+			deferred.millis = lastMillis;
 		}
-		return success;
+	}
+
+	private boolean doPutValue(String key, Object val, double d) {
+		if(val==null) return doPutDouble(key, d);
+		return doPut(key, val);
+	}
+
+	/**
+	 * Put the primitive into the existing NumericSlot for the key, or create one
+	 * @param key
+	 * @param val
+	 * @return
+	 */
+	private boolean doPutDouble(String key, double val) {
+		Object old = root.get(key);
+		if(!persistent && old instanceof NumericSlot){
+			double before = ((NumericSlot)old).doubleValue();
+			if(((NumericSlot)old).set(val)){
+				if(logger.isDebugEnabled())logger.debug("doPutDouble "+key+"="+val);
+				long revision = nextrevision.incrementAndGet();
+				revisions.changed(key, revision);
+				postDouble(key, revision, val, before);
+				return true;
+			}
+			return false;
+		}
+		return doPut(key, new NumericSlot(val));
+	}
+
+	/**
+	 * Put the epoch millis into the existing TimestampSlot for the key, or create one
+	 * @param key
+	 * @param millis
+	 * @return
+	 */
+	private boolean doPutTimestamp(String key, long millis) {
+		Object old = root.get(key);
+		if(!persistent && old instanceof TimestampSlot){
+			long before = ((TimestampSlot)old).getMillis();
+			if(((TimestampSlot)old).set(millis)){
+				long revision = nextrevision.incrementAndGet();
+				revisions.changed(key, revision);
+				postMillis(key, revision, millis, before);
+				return true;
+			}
+			return false;
+		}
+		return doPut(key, new TimestampSlot(millis));
 	}
 	
 	@Override
@@ -244,37 +1195,126 @@ public class SignalKModelImpl  implements SignalKModel {
 		key = sources+dot+key;
 		key = fixSelfKey(key);
 		if(val == null){
-    		//TODO: we delete the val, and the values equiv, then promote the next values object
-    		return doDelete(key, root);
+			//TODO: we delete the val, and the values equiv, then promote the next values object
+			return delete(key);
 		}
-		boolean result=doPut(key+dot+value, val);
-		if(ts!=null){
-			result=result&& doPut(key+dot+timestamp, ts);
+		beginWrite();
+		try{
+			boolean result=doPut(key+dot+value, val);
+			if(ts!=null){
+				result=result&& doPut(key+dot+timestamp, ts);
+			}
+			return result;
+		}finally{
+			endWrite();
 		}
-		return result;
-	
 	}
     
 
 	/**
-	 * Adds the val to the values arr
-	 * @param string
-	 * @param val
-	 * @param timestamp 
+	 * Records the val from this source in the paths source table, and asks the source arbiter if
+	 * this source should update key.value
+	 * @param path
+	 * @param val the value, or null to use the primitive d
+	 * @param d
+	 * @param id the source id, or -1 to look it up
 	 * @param src 
+	 * @param ts the timestamp, or null to use millis
+	 * @param millis the timestamp as epoch millis, or -1 if there is none
+	 * @return true if the source is the current source for the key
+	 */
+	private boolean arbitrate(SignalKPath path, Object val, double d, int id, String src, String ts, long millis) {
+		if(!handleMultipleValues){
+			//no source table, so the first source keeps the key
+			Object curSource = root.get(path.getSourceRefKey());
+			return curSource==null || StringUtils.isBlank(curSource.toString()) || src.equals(curSource);
+		}
+		SourceTable table = sourceTable(path);
+		long now = System.currentTimeMillis();
+		if(table.getCurrent() < 0){
+			//eg loaded with putAll
+			Object curSource = root.get(path.getSourceRefKey());
+			if(curSource!=null && StringUtils.isNotBlank(curSource.toString()) && !src.equals(curSource)){
+				table.adopt(registry.id(curSource.toString()), now);
+			}
+		}
+		//the table keeps the timestamp as sent, so it is not parsed
+		if(millis < 0)millis = now;
+		if(id < 0)id = registry.id(src);
+		boolean current = table.put(id, val, d, ts, millis, now, maxSources, sourceTtl, arbiter);
+		//the caller stamps key.values with the revision of the put or batch, see stampValues()
+		if(current)return true;
+		//the key may have been cleared from the model since (eg getFullData().clear()), then any source can have it
+		Object curSource = root.get(path.getSourceRefKey());
+		if(curSource==null || StringUtils.isBlank(curSource.toString())){
+			table.takeOver(id, now);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stamp the key.values entries written by arbitrate() with the revision of the put or batch, so getChangedSince
+	 * finds them without taking a revision of their own. If nothing else changed, that is the latest revision.
+	 * @param valuesKeys
+	 * @param revision
+	 */
+	private void stampValues(List<String> valuesKeys, long revision) {
+		for(String key : valuesKeys){
+			revisions.changed(key, revision);
+		}
+	}
+
+	/**
+	 * The source table for the path, held on the path so it is usually found without a lookup
+	 * @param path
 	 * @return
 	 */
-	private boolean putValues(String key, Object val, String src, String ts) {
-		if(!handleMultipleValues)return true;
-		
-		String vKey = key+".values."+src;
-		boolean result=doPut(vKey+dot+value, val);
-		
-		if(ts!=null){
-			result=result&& doPut(vKey+dot+timestamp, ts);
+	private SourceTable sourceTable(SignalKPath path) {
+		SourceTable table = (SourceTable) path.getAttachment(this);
+		if(table != null && !table.isDropped())return table;
+		table = sourceTables.get(path.getKey());
+		if(table == null){
+			table = new SourceTable(path.getKey());
+			SourceTable other = sourceTables.putIfAbsent(path.getKey(), table);
+			if(other != null)table = other;
 		}
-		return result&&doPut(vKey+dot+sourceRef, src);
-		
+		path.attach(this, table);
+		return table;
+	}
+
+	/**
+	 * The source arbiter, to set the source priorities, failover timeout and hysteresis
+	 * @return
+	 */
+	public SourceArbiter getSourceArbiter() {
+		return arbiter;
+	}
+
+	/**
+	 * Limit the sources held for each path in getValues(key).
+	 * @param maxSources the most sources to hold for a path, when a new one arrives the source that has been quiet longest is dropped
+	 * @param ttl millis, sources that have not been received for this long are dropped. 0 to keep them until they are displaced.
+	 */
+	public void setSourceLimits(int maxSources, long ttl) {
+		if(maxSources < 1)throw new IllegalArgumentException("maxSources must be at least 1: "+maxSources);
+		this.maxSources = maxSources;
+		this.sourceTtl = ttl;
+	}
+
+	/**
+	 * Drop the sources that have not been received within the ttl, from all paths.
+	 * They are otherwise dropped when the path is next written.
+	 */
+	public void expireSources() {
+		if(sourceTtl <= 0)return;
+		long since = System.currentTimeMillis() - sourceTtl;
+		for(Entry<String, SourceTable> entry : sourceTables.entrySet()){
+			if(entry.getValue().expire(since) && sourceTables.remove(entry.getKey(), entry.getValue())){
+				entry.getValue().drop();
+			}
+		}
+		registry.trim(false);
 	}
 
 	/* (non-Javadoc)
@@ -283,7 +1323,12 @@ public class SignalKModelImpl  implements SignalKModel {
     @Override
 	public Object get(String key) {
     	key = fixSelfKey(key);
-    	return nullFix(root.get(key));
+    	return nullFix(view.get(key));
+    }
+
+    @Override
+	public Object get(SignalKPath path) {
+    	return nullFix(view.get(path.getKey()));
     }
     
     /**
@@ -291,12 +1336,16 @@ public class SignalKModelImpl  implements SignalKModel {
      * @param object
      * @return
      */
-    private Object nullFix(Object object) {
+    static Object nullFix(Object object) {
 		if("null".equals(object))return null;
 		if (object instanceof BigDecimal) {
                         object=((BigDecimal)object).doubleValue();
                 } else if (object instanceof Long) {
                         object=((Long)object).doubleValue();
+                } else if (object instanceof NumericSlot) {
+                        object=((NumericSlot)object).doubleValue();
+                } else if (object instanceof TimestampSlot) {
+                        object=object.toString();
                 }
 		return object;
 	}
@@ -307,7 +1356,12 @@ public class SignalKModelImpl  implements SignalKModel {
        @Override
    	public Object getValue(String key) {
     	   key = fixSelfKey(key);
-           return nullFix(root.get(key+dot+value));
+           return nullFix(view.get(key+dot+value));
+       }
+
+       @Override
+   	public Object getValue(SignalKPath path) {
+           return nullFix(view.get(path.getValueKey()));
        }
 
     /* (non-Javadoc)
@@ -325,7 +1379,7 @@ public class SignalKModelImpl  implements SignalKModel {
     @Override
 	public NavigableMap<String, Object> getSubMap(String key) {
     	key = fixSelfKey(key);
-        return root.subMap(key, true, key+".\uFFFD", true);
+        return view.subMap(key, true, key+".\uFFFD", true);
     }
 
 
@@ -336,13 +1390,75 @@ public class SignalKModelImpl  implements SignalKModel {
 	public EventBus getEventBus() {
 		return eventBus;
 	}
+
+    @Override
+	public void subscribe(String pathPattern, PathListener listener) {
+    	subscriptions.subscribe(fixSelfKey(pathPattern), listener, SubscriptionPolicy.INSTANT);
+	}
+
+    @Override
+	public void subscribe(String pathPattern, PathListener listener, SubscriptionPolicy policy) {
+    	subscriptions.subscribe(fixSelfKey(pathPattern), listener, policy);
+	}
+
+    @Override
+	public boolean unsubscribe(String pathPattern, PathListener listener) {
+    	return subscriptions.unsubscribe(fixSelfKey(pathPattern), listener);
+	}
+
+    @Override
+	public void setEventDispatcher(EventDispatcher dispatcher) {
+		this.dispatcher = dispatcher == null ? busDispatcher : dispatcher;
+	}
+
+    @Override
+	public EventDispatcher getEventDispatcher() {
+		return dispatcher;
+	}
+
+    @Override
+	public void setChangeJournal(ChangeJournal journal) {
+		this.journal = journal;
+	}
+
+    @Override
+	public ChangeJournal getChangeJournal() {
+		return journal;
+	}
+
+    @Override
+	public Iterator<PathEvent> replayFrom(long revision) {
+		ChangeJournal journal = this.journal;
+		return journal == null ? null : journal.replayFrom(revision);
+	}
+
+    /**
+     * The dispatcher that posts to the EventBus and the context buses. It is the default dispatcher, and can be
+     * added as a handler to a RingBufferDispatcher to keep the EventBus subscribers.
+     * @return
+     */
+	public EventBusDispatcher getEventBusDispatcher() {
+		return busDispatcher;
+	}
+    @Override
+	public EventBus getEventBus(String context) {
+    	context = fixSelfKey(context);
+    	EventBus bus = contextBuses.get(context);
+    	if(bus == null){
+    		bus = new EventBus(context);
+    		EventBus other = contextBuses.putIfAbsent(context, bus);
+    		if(other != null)bus = other;
+    	}
+		return bus;
+	}
+
     /* (non-Javadoc)
 	 * @see nz.co.fortytwo.signalk.model.impl.SignalKModel#getKeys()
 	 */
     @Override
 	public NavigableSet<String> getKeys() {
         //return Collections.unmodifiableNavigableSet(root.navigableKeySet());      // Java 8 method
-    	return root.navigableKeySet();
+    	return view.navigableKeySet();
     }
 
     /* (non-Javadoc)
@@ -358,9 +1474,18 @@ public class SignalKModelImpl  implements SignalKModel {
 	 */
     @Override
 	public SortedMap<String,Object> getFullData() {
-        return root;
+        return view;
     }
 
+	/**
+	 * The value as stored, which may be one of the mutable slots rather than its value
+	 * @param key
+	 * @return
+	 */
+	Object getStored(String key) {
+		return root.get(key);
+	}
+
     public String toString() {
             return root.toString();
     }
@@ -369,10 +1494,15 @@ public class SignalKModelImpl  implements SignalKModel {
 	public boolean putAll(SortedMap<String, Object> map) {
 		if(logger.isDebugEnabled())logger.debug("putAll: "+map);
 		boolean success = true;
-		for(String key :map.keySet()){
-			if(logger.isDebugEnabled())logger.debug("Adding "+key+"="+map.get(key));
-			boolean s = put(key,map.get(key));
-			success = success && s;
+		lockWrite(null);
+		try{
+			for(String key :map.keySet()){
+				if(logger.isDebugEnabled())logger.debug("Adding "+key+"="+map.get(key));
+				boolean s = put(key,map.get(key));
+				success = success && s;
+			}
+		}finally{
+			unlockWrite(null);
 		}
 		if(logger.isTraceEnabled())logger.trace("putAll done: "+this);
 		return success;
@@ -384,22 +1514,38 @@ public class SignalKModelImpl  implements SignalKModel {
 		return put(key+dot+value, val);
 	}
 
+	@Override
+	public boolean putValue(SignalKPath path, Object val) {
+		return putResolved(path.getValueKey(), val);
+	}
+
 	@Override
 	public NavigableMap<String, Object> getValues(String key) {
-		fixSelfKey(key);
-        return getSubMap(key+dot+values);
+		final SignalKPath path = SignalKPath.get(key);
+		SourceTable table = sourceTables.get(path.getKey());
+		if(table == null){
+			//eg loaded from json with putAll
+			return getSubMap(path.getValuesKey());
+		}
+		final NavigableMap<String, Object> result = new TreeMap<String, Object>();
+		table.visit(new SourceTable.Visitor() {
+			@Override
+			public void visit(int src, Object val, String ts) {
+				String name = registry.name(src);
+				if(name == null)return;
+				SignalKPath vPath = path.getValues(name);
+				result.put(vPath.getValueKey(), val);
+				result.put(vPath.getTimestampKey(), ts);
+				result.put(vPath.getSourceRefKey(), name);
+			}
+		}, getSourcesSince());
+		return result;
 	}
 
 	@Override
 	public void putPosition(String key, double lat, double lon,
 			double altitude, String srcRef, String ts) {
-		fixSelfKey(key);
-		doPut(key + dot+ sourceRef, srcRef);
-		doPut(key+ dot+LATITUDE, lat);
-		doPut(key+ dot + LONGITUDE, lon);
-		doPut(key+ dot+ ALTITUDE, altitude);
-		doPut(key+dot+timestamp,ts);
-		
+		update(new UpdateBatch().putPosition(key, lat, lon, altitude, srcRef, ts));
 	}
 
 	@Override
@@ -0,0 +1,150 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nz.co.fortytwo.signalk.model.SignalKPath;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decides which source updates key.value when several sources send the same key.
+ * <p>
+ * Each path can have a ranked list of sources, best first. Sources not in the list rank below all
+ * those in it, and equal to each other. The current source keeps the key until:
+ * </p>
+ * <ul>
+ * <li>it has sent nothing for the timeout, when the next source to send takes over (failover), or</li>
+ * <li>a better ranked source has been sending for the hysteresis period, so a flapping source does not
+ * keep taking the key back.</li>
+ * </ul>
+ * <p>
+ * With no priorities and no timeout (the defaults) the first source to write a key keeps it, as before.
+ * The rankings are resolved to source ids and cached in each paths {@link SourceTable}, so
+ * arbitration is a few int and long compares per update.
+ * </p>
+ * 
+ * @author robert
+ *
+ */
+public class SourceArbiter {
+
+	private static Logger logger = LogManager.getLogger(SourceArbiter.class);
+
+	static final int UNRANKED = Integer.MAX_VALUE;
+	private static final int[] NONE = new int[0];
+
+	private final SourceRegistry registry;
+	private final ConcurrentMap<String, int[]> priorities = new ConcurrentHashMap<String, int[]>();
+	//bumped on every priority change, so the tables know to refresh their cached ranking
+	private volatile int version;
+	private volatile long timeout;
+	private volatile long hysteresis;
+
+	/**
+	 * @param registry the models source ids
+	 */
+	SourceArbiter(SourceRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Set the ranked sources for the key, best first. No sources clears the ranking.
+	 * @param key
+	 * @param sources
+	 */
+	public synchronized void setPriority(String key, String... sources) {
+		key = SignalKPath.get(key).getKey();
+		if (sources == null || sources.length == 0) {
+			priorities.remove(key);
+		} else {
+			int[] ids = new int[sources.length];
+			for (int i = 0; i < sources.length; i++) {
+				//ranked sources keep their ids
+				ids[i] = registry.pin(sources[i]);
+			}
+			priorities.put(key, ids);
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Priority for " + key + ": " + (sources == null ? null : Arrays.toString(sources)));
+		version++;
+	}
+
+	/**
+	 * Millis after which a silent current source is replaced by the next source to send.
+	 * 0 means never.
+	 * @param timeout
+	 */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Millis a better ranked source must have been sending before it takes the key from the current source.
+	 * @param hysteresis
+	 */
+	public void setHysteresis(long hysteresis) {
+		this.hysteresis = hysteresis;
+	}
+
+	public long getHysteresis() {
+		return hysteresis;
+	}
+
+	int version() {
+		return version;
+	}
+
+	/**
+	 * The ranked source ids for the key, best first
+	 * @param key
+	 * @return
+	 */
+	int[] ranking(String key) {
+		int[] ranking = priorities.get(key);
+		return ranking == null ? NONE : ranking;
+	}
+
+	/**
+	 * The rank of the source in the ranking, lower is better
+	 * @param ranking
+	 * @param src
+	 * @return
+	 */
+	static int rank(int[] ranking, int src) {
+		for (int i = 0; i < ranking.length; i++) {
+			if (ranking[i] == src)
+				return i;
+		}
+		return UNRANKED;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.UNKNOWN;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Interns source names (eg 'nmea.0183.RMC') to small int ids for one model, so its per-path {@link SourceTable}s
+ * hold an int per source rather than a String reference.
+ * <p>
+ * Ids are never reused. The registry holds at most MAX_SOURCES names. When it is full the names no source table
+ * holds and nobody has pinned (eg for the arbiters priorities) are dropped, at most once a second, and if it is still
+ * full new sources are recorded as UNKNOWN.
+ * </p>
+ * @author robert
+ *
+ */
+final class SourceRegistry {
+
+	private static Logger logger = LogManager.getLogger(SourceRegistry.class);
+
+	static final int MAX_SOURCES = 1024;
+	private static final long TRIM_INTERVAL = 1000;
+
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+	//ids held outside the source tables
+	private final Set<Integer> pinned = ConcurrentHashMap.<Integer> newKeySet();
+	private final Iterable<SourceTable> tables;
+	private int next;
+	private long lastTrim;
+
+	/**
+	 * @param tables the models source tables, to find the ids still in use
+	 */
+	SourceRegistry(Iterable<SourceTable> tables) {
+		this.tables = tables;
+	}
+
+	/**
+	 * The id for the source, allocating one if this is a new source
+	 * @param src
+	 * @return
+	 */
+	int id(String src) {
+		Integer id = ids.get(src);
+		if (id != null)
+			return id;
+		synchronized (this) {
+			id = ids.get(src);
+			if (id != null)
+				return id;
+			if (ids.size() >= MAX_SOURCES) {
+				trim(false);
+				if (ids.size() >= MAX_SOURCES) {
+					if (logger.isDebugEnabled())
+						logger.debug("Too many sources, recording " + src + " as " + UNKNOWN);
+					return pin(UNKNOWN);
+				}
+			}
+			return allocate(src);
+		}
+	}
+
+	/**
+	 * The id for the source, which is never dropped
+	 * @param src
+	 * @return
+	 */
+	synchronized int pin(String src) {
+		Integer id = ids.get(src);
+		if (id == null) {
+			if (ids.size() >= MAX_SOURCES) {
+				//make room if we can, a pinned source is always allocated
+				trim(true);
+			}
+			id = allocate(src);
+		}
+		pinned.add(id);
+		return id;
+	}
+
+	private int allocate(String src) {
+		int id = next++;
+		//the name is set before the id is published, so name(id) always finds it
+		names.put(id, src);
+		ids.put(src, id);
+		return id;
+	}
+
+	/**
+	 * The source name for the id, or null if it has been dropped
+	 * @param id
+	 * @return
+	 */
+	String name(int id) {
+		return names.get(id);
+	}
+
+	int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Drop the names no source table holds and nobody has pinned
+	 * @param force trim even if it was trimmed within the last second
+	 */
+	synchronized void trim(boolean force) {
+		long now = System.currentTimeMillis();
+		if (!force && now - lastTrim < TRIM_INTERVAL)
+			return;
+		lastTrim = now;
+		BitSet used = new BitSet();
+		for (SourceTable table : tables) {
+			table.sources(used);
+		}
+		for (Iterator<Entry<String, Integer>> i = ids.entrySet().iterator(); i.hasNext();) {
+			Entry<String, Integer> entry = i.next();
+			int id = entry.getValue();
+			if (!used.get(id) && !pinned.contains(id)) {
+				i.remove();
+				names.remove(id);
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import nz.co.fortytwo.signalk.util.Util;
+
+/**
+ * The latest value from each source for one path, held in parallel arrays rather than as
+ * key.values.&lt;source&gt;.value/timestamp/sourceRef entries in the model. Numbers are held as primitives,
+ * other values (Strings, Booleans) as objects.
+ * <p>
+ * The table holds at most maxSources sources. A source that has not updated within the ttl is dropped,
+ * and if the table is full the source that has been quiet the longest makes way for the new one.
+ * </p><p>
+ * The table also holds the paths {@link SourceArbiter} state, the source that currently updates key.value.
+ * </p>
+ * @author robert
+ *
+ */
+final class SourceTable {
+
+	private int size;
+	private int[] sources;
+	private double[] numbers;
+	//null unless the value is not a number
+	private Object[] objects;
+	//the timestamp from the source, as sent, or null to use the epoch millis
+	private String[] stamps;
+	private long[] timestamps;
+	//when we received it, epoch millis
+	private long[] received;
+	//when the source started sending, or resumed after being silent for the arbiter timeout
+	private long[] since;
+
+	private final String key;
+	//the source that updates key.value, and when we last heard from it
+	private volatile int current = -1;
+	private long currentReceived;
+	//the arbiters ranking for this key, refreshed when the arbiter version changes
+	private int[] ranking;
+	private int rankingVersion = -1;
+	//set when the model drops the table, so a path holding on to it knows to look again
+	private volatile boolean dropped;
+
+	SourceTable(String key) {
+		this.key = key;
+		int capacity = 2;
+		sources = new int[capacity];
+		numbers = new double[capacity];
+		objects = new Object[capacity];
+		stamps = new String[capacity];
+		timestamps = new long[capacity];
+		received = new long[capacity];
+		since = new long[capacity];
+	}
+
+	/**
+	 * Record the value from the source
+	 * @param src the source id, from {@link SourceRegistry}
+	 * @param val the value, or null to use the primitive d
+	 * @param d
+	 * @param ts the source timestamp as sent, or null to use millis
+	 * @param millis the source timestamp, epoch millis
+	 * @param now
+	 * @param maxSources
+	 * @param ttl millis, or 0 to keep sources until they are displaced
+	 * @param arbiter
+	 * @return true if the source is the current source, and should update key.value
+	 */
+	synchronized boolean put(int src, Object val, double d, String ts, long millis, long now, int maxSources, long ttl, SourceArbiter arbiter) {
+		if (ttl > 0)
+			expire(now - ttl);
+		long timeout = arbiter.getTimeout();
+		int i = indexOf(src);
+		if (i >= 0 && timeout > 0 && now - received[i] > timeout) {
+			//back after being silent
+			since[i] = now;
+		}
+		if (i < 0) {
+			if (size >= maxSources) {
+				remove(oldest());
+			}
+			if (size == sources.length) {
+				grow();
+			}
+			i = size++;
+			sources[i] = src;
+			since[i] = now;
+		}
+		if (val instanceof Number) {
+			numbers[i] = ((Number) val).doubleValue();
+			objects[i] = null;
+		} else if (val != null) {
+			objects[i] = val;
+		} else {
+			numbers[i] = d;
+			objects[i] = null;
+		}
+		stamps[i] = ts;
+		timestamps[i] = millis;
+		received[i] = now;
+		return arbitrate(src, now - since[i], now, timeout, arbiter);
+	}
+
+	/**
+	 * Decide if the source takes or keeps the key
+	 * @param src
+	 * @param sending how long the source has been sending
+	 * @param now
+	 * @param timeout
+	 * @param arbiter
+	 * @return true if src is the current source
+	 */
+	private boolean arbitrate(int src, long sending, long now, long timeout, SourceArbiter arbiter) {
+		if (current == src || current < 0 || (timeout > 0 && now - currentReceived > timeout)) {
+			current = src;
+			currentReceived = now;
+			return true;
+		}
+		if (rankingVersion != arbiter.version()) {
+			rankingVersion = arbiter.version();
+			ranking = arbiter.ranking(key);
+		}
+		if (ranking.length > 0 && SourceArbiter.rank(ranking, src) < SourceArbiter.rank(ranking, current)
+				&& sending >= arbiter.getHysteresis()) {
+			current = src;
+			currentReceived = now;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The source id that updates key.value, or -1 if there is none yet
+	 * @return
+	 */
+	int getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Make src the current source if there is none, eg when the model already has a key.sourceRef
+	 * @param src
+	 * @param now
+	 */
+	synchronized void adopt(int src, long now) {
+		if (current < 0) {
+			current = src;
+			currentReceived = now;
+		}
+	}
+
+	/**
+	 * Make src the current source
+	 * @param src
+	 * @param now
+	 */
+	synchronized void takeOver(int src, long now) {
+		current = src;
+		currentReceived = now;
+	}
+
+	/**
+	 * Drop the sources not received since the given time
+	 * @param since
+	 * @return true if the table is now empty
+	 */
+	synchronized boolean expire(long since) {
+		for (int i = size - 1; i >= 0; i--) {
+			if (received[i] < since)
+				remove(i);
+		}
+		return size == 0;
+	}
+
+	/**
+	 * Drop the source, eg when its key.values entries are removed from the model
+	 * @param src
+	 */
+	synchronized void drop(int src) {
+		int i = indexOf(src);
+		if (i >= 0)
+			remove(i);
+	}
+
+	/**
+	 * Set the bits for the source ids held
+	 * @param used
+	 */
+	synchronized void sources(BitSet used) {
+		for (int i = 0; i < size; i++) {
+			used.set(sources[i]);
+		}
+	}
+
+	/**
+	 * Mark the table as dropped from the model
+	 */
+	void drop() {
+		dropped = true;
+	}
+
+	boolean isDropped() {
+		return dropped;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Pass the current values to the visitor, skipping any not received since the given time
+	 * @param visitor
+	 * @param since
+	 */
+	synchronized void visit(Visitor visitor, long since) {
+		for (int i = 0; i < size; i++) {
+			if (received[i] < since)
+				continue;
+			visitor.visit(sources[i], objects[i] != null ? objects[i] : (Object) numbers[i],
+					stamps[i] != null ? stamps[i] : Util.getIsoTimeString(timestamps[i]));
+		}
+	}
+
+	interface Visitor {
+		void visit(int src, Object val, String ts);
+	}
+
+	private int indexOf(int src) {
+		for (int i = 0; i < size; i++) {
+			if (sources[i] == src)
+				return i;
+		}
+		return -1;
+	}
+
+	private int oldest() {
+		int oldest = 0;
+		for (int i = 1; i < size; i++) {
+			if (received[i] < received[oldest])
+				oldest = i;
+		}
+		return oldest;
+	}
+
+	private void remove(int i) {
+		//move the last one into the gap, order does not matter
+		int last = --size;
+		sources[i] = sources[last];
+		numbers[i] = numbers[last];
+		objects[i] = objects[last];
+		stamps[i] = stamps[last];
+		timestamps[i] = timestamps[last];
+		received[i] = received[last];
+		since[i] = since[last];
+		objects[last] = null;
+		stamps[last] = null;
+	}
+
+	private void grow() {
+		int capacity = sources.length * 2;
+		sources = Arrays.copyOf(sources, capacity);
+		numbers = Arrays.copyOf(numbers, capacity);
+		objects = Arrays.copyOf(objects, capacity);
+		stamps = Arrays.copyOf(stamps, capacity);
+		timestamps = Arrays.copyOf(timestamps, capacity);
+		received = Arrays.copyOf(received, capacity);
+		since = Arrays.copyOf(since, capacity);
+	}
+}
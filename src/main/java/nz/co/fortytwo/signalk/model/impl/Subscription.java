@@ -0,0 +1,295 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.BatchEvent;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.event.PathListener;
+import nz.co.fortytwo.signalk.model.event.SubscriptionPolicy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A listener and its delivery policy. Events are coalesced per key: each key holds its last delivery time,
+ * the value delivered and at most one pending event, which a shared timer thread delivers at the end of the period.
+ * So a slow listener costs one slot per key, however fast the events arrive.
+ * <p>
+ * A {@link BatchEvent} is split into an event per key it changed or deleted, so the keys coalesce as for
+ * single puts. Deletes are delivered at once, and drop the slots of the deleted keys.
+ * </p>
+ * 
+ * @author robert
+ *
+ */
+final class Subscription {
+
+	private static Logger logger = LogManager.getLogger(Subscription.class);
+
+	//one daemon thread delivers the pending events of every coalescing subscription
+	private static volatile ScheduledExecutorService timer;
+
+	private final PathListener listener;
+	private final SubscriptionPolicy policy;
+	private final SignalKModel model;
+	private final ConcurrentMap<String, Slot> slots;
+	private volatile boolean cancelled;
+
+	private static final class Slot {
+		long delivered = Long.MIN_VALUE;
+		Object value;
+		PathEvent pending;
+		Object pendingValue;
+		boolean scheduled;
+	}
+
+	Subscription(PathListener listener, SubscriptionPolicy policy, SignalKModel model) {
+		this.listener = listener;
+		this.policy = policy == null ? SubscriptionPolicy.INSTANT : policy;
+		this.model = model;
+		this.slots = this.policy.getType() == SubscriptionPolicy.Type.INSTANT ? null
+				: new ConcurrentHashMap<String, Slot>();
+	}
+
+	PathListener getListener() {
+		return listener;
+	}
+
+	SubscriptionPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Stop delivering, and drop any pending events
+	 */
+	void cancel() {
+		cancelled = true;
+		if (slots != null)
+			slots.clear();
+	}
+
+	/**
+	 * Deliver the event now, hold it until the period is up, or drop it, as the policy says
+	 * @param event
+	 */
+	void offer(PathEvent event) {
+		if (cancelled)
+			return;
+		if (slots == null) {
+			deliver(event);
+			return;
+		}
+		if (event instanceof BatchEvent) {
+			BatchEvent batch = (BatchEvent) event;
+			for (String key : batch.getPaths()) {
+				offerKey(split(batch, key, PathEvent.EventType.ADD));
+			}
+			for (String key : batch.getDeleted()) {
+				offerKey(split(batch, key, PathEvent.EventType.DEL));
+			}
+			return;
+		}
+		offerKey(event);
+	}
+
+	/**
+	 * The event for one key of the batch
+	 */
+	private PathEvent split(BatchEvent batch, String key, PathEvent.EventType type) {
+		PathEvent event = new PathEvent(key, batch.getRevision(), type);
+		event.setTimestamp(batch.getTimestamp());
+		event.setSource(batch.getSource());
+		if (type == PathEvent.EventType.ADD) {
+			Object value = model.get(key);
+			if (value != null)
+				event.setValue(value);
+		}
+		return event;
+	}
+
+	/**
+	 * Offer an event for a single key
+	 * @param event
+	 */
+	private void offerKey(PathEvent event) {
+		if (event.getType() != PathEvent.EventType.ADD) {
+			//any pending change is stale now
+			drop(event);
+			deliver(event);
+			return;
+		}
+		Object value = policy.getType() == SubscriptionPolicy.Type.ON_CHANGE ? valueOf(event) : null;
+		long now = System.currentTimeMillis();
+		String key = event.getPath();
+		Slot slot = slots.get(key);
+		if (slot == null) {
+			slot = new Slot();
+			Slot other = slots.putIfAbsent(key, slot);
+			if (other != null)
+				slot = other;
+		}
+		long delay;
+		synchronized (slot) {
+			if (policy.getType() == SubscriptionPolicy.Type.ON_CHANGE && slot.delivered != Long.MIN_VALUE
+					&& !changed(slot.value, value)) {
+				return;
+			}
+			delay = slot.delivered == Long.MIN_VALUE ? 0 : slot.delivered + policy.getMinPeriod() - now;
+			if (delay <= 0 && slot.pending == null) {
+				slot.delivered = now;
+				slot.value = value;
+			} else {
+				//latest wins, kept until the timer delivers it
+				slot.pending = event.copy();
+				slot.pendingValue = value;
+				if (slot.scheduled)
+					return;
+				slot.scheduled = true;
+			}
+		}
+		if (delay <= 0) {
+			deliver(event);
+		} else {
+			schedule(key, slot, delay);
+		}
+	}
+
+	/**
+	 * Drop the slots for the deleted key, or the keys below it for a deleted subtree
+	 * @param event
+	 */
+	private void drop(PathEvent event) {
+		String key = event.getPath();
+		clear(slots.remove(key));
+		if (event.getType() != PathEvent.EventType.DEL_SUBTREE)
+			return;
+		String prefix = key + '.';
+		for (Iterator<Map.Entry<String, Slot>> i = slots.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, Slot> entry = i.next();
+			if (entry.getKey().startsWith(prefix)) {
+				i.remove();
+				clear(entry.getValue());
+			}
+		}
+	}
+
+	private void clear(Slot slot) {
+		if (slot == null)
+			return;
+		synchronized (slot) {
+			slot.pending = null;
+			slot.pendingValue = null;
+		}
+	}
+
+	int getSlotCount() {
+		return slots == null ? 0 : slots.size();
+	}
+
+	private void schedule(final String key, final Slot slot, long delay) {
+		getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				flush(slot);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		if (logger.isDebugEnabled())
+			logger.debug("Coalescing " + key + " for " + delay + "ms");
+	}
+
+	private void flush(Slot slot) {
+		PathEvent event;
+		synchronized (slot) {
+			event = slot.pending;
+			slot.pending = null;
+			slot.scheduled = false;
+			if (event == null)
+				return;
+			slot.delivered = System.currentTimeMillis();
+			slot.value = slot.pendingValue;
+			slot.pendingValue = null;
+		}
+		if (!cancelled)
+			deliver(event);
+	}
+
+	private void deliver(PathEvent event) {
+		try {
+			listener.onEvent(event);
+		} catch (Exception e) {
+			logger.error("Listener failed on " + event.getPath() + ": " + e.getMessage(), e);
+		}
+	}
+
+	private Object valueOf(PathEvent event) {
+		if (event.getType() != PathEvent.EventType.ADD)
+			return null;
+		Object value = event.getValue();
+		if (value == null) {
+			//dispatched without its value
+			return model.get(event.getPath());
+		}
+		return value;
+	}
+
+	private boolean changed(Object last, Object value) {
+		if (last instanceof Number && value instanceof Number) {
+			return Math.abs(((Number) value).doubleValue() - ((Number) last).doubleValue()) >= policy.getThreshold();
+		}
+		return last == null ? value != null : !last.equals(value);
+	}
+
+	private static ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			synchronized (Subscription.class) {
+				if (timer == null) {
+					timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "signalk-subscription-timer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+			}
+		}
+		return timer;
+	}
+
+	@Override
+	public String toString() {
+		return "Subscription [listener=" + listener + ", policy=" + policy + "]";
+	}
+}
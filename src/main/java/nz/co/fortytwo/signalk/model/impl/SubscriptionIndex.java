@@ -0,0 +1,271 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.SignalKPath;
+import nz.co.fortytwo.signalk.model.event.BatchEvent;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.event.PathListener;
+import nz.co.fortytwo.signalk.model.event.SubscriptionPolicy;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The path subscriptions, in a trie by key segment, so an event only visits the nodes along its own path.
+ * <p>
+ * A pattern matches its key and everything below it, eg 'vessels.self.navigation' gets 'vessels.self.navigation.position.latitude'.
+ * A '*' segment matches any one segment, eg 'vessels.*.navigation.position', and a segment with '*' or '?' in it
+ * is matched as a wildcard, eg 'vessels.self.navigation.speed*'. A DEL_SUBTREE event also goes to the patterns below its key.
+ * </p><p>
+ * Each listener has a {@link SubscriptionPolicy}, and events to a coalescing listener are held by its {@link Subscription}.
+ * </p>
+ * @author robert
+ *
+ */
+final class SubscriptionIndex {
+
+	private static Logger logger = LogManager.getLogger(SubscriptionIndex.class);
+
+	private final SignalKModel model;
+	private final Node root = new Node();
+	private final AtomicInteger count = new AtomicInteger();
+	//reused per thread, to collect the listeners for an event
+	private final ThreadLocal<Matches> matches = new ThreadLocal<Matches>() {
+		@Override
+		protected Matches initialValue() {
+			return new Matches();
+		}
+	};
+
+	private static final class Matches {
+		final List<Subscription> list = new ArrayList<Subscription>();
+		boolean busy;
+	}
+
+	private static final class Node {
+		final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>(4);
+		volatile Node any;
+		final List<Wildcard> wildcards = new CopyOnWriteArrayList<Wildcard>();
+		final List<Subscription> listeners = new CopyOnWriteArrayList<Subscription>();
+	}
+
+	private static final class Wildcard {
+		final String segment;
+		final Pattern pattern;
+		final Node node = new Node();
+
+		Wildcard(String segment) {
+			this.segment = segment;
+			this.pattern = Util.regexPath(segment);
+		}
+	}
+
+	/**
+	 * @param model the model the events come from, to read the values for a ON_CHANGE policy
+	 */
+	SubscriptionIndex(SignalKModel model) {
+		this.model = model;
+	}
+
+	/**
+	 * Add the listener for the pattern, which already has self resolved
+	 * @param pattern
+	 * @param listener
+	 * @param policy
+	 */
+	synchronized void subscribe(String pattern, PathListener listener, SubscriptionPolicy policy) {
+		if (listener == null) {
+			throw new IllegalArgumentException("Listener must not be null");
+		}
+		Node node = root;
+		for (String segment : StringUtils.split(pattern, '.')) {
+			node = child(node, segment);
+		}
+		node.listeners.add(new Subscription(listener, policy, model));
+		count.incrementAndGet();
+		if (logger.isDebugEnabled())
+			logger.debug("Subscribed " + pattern + ": " + listener + ", " + policy);
+	}
+
+	/**
+	 * Remove the listener for the pattern
+	 * @param pattern
+	 * @param listener
+	 * @return true if it was subscribed
+	 */
+	synchronized boolean unsubscribe(String pattern, PathListener listener) {
+		Node node = root;
+		for (String segment : StringUtils.split(pattern, '.')) {
+			node = find(node, segment);
+			if (node == null)
+				return false;
+		}
+		for (Subscription subscription : node.listeners) {
+			if (subscription.getListener() == listener) {
+				node.listeners.remove(subscription);
+				subscription.cancel();
+				count.decrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	boolean isEmpty() {
+		return count.get() == 0;
+	}
+
+	/**
+	 * Deliver the event to each matching listener, once, as its policy allows
+	 * @param event
+	 */
+	void deliver(PathEvent event) {
+		if (isEmpty())
+			return;
+		Matches m = matches.get();
+		//a listener that writes to the model can be called back on the same thread, so it gets its own list
+		boolean nested = m.busy;
+		List<Subscription> found = nested ? new ArrayList<Subscription>() : m.list;
+		m.busy = true;
+		try {
+			if (event instanceof BatchEvent) {
+				for (String key : ((BatchEvent) event).getPaths()) {
+					collect(root, SignalKPath.get(key), 0, found, false);
+				}
+				for (String key : ((BatchEvent) event).getDeleted()) {
+					collect(root, SignalKPath.get(key), 0, found, false);
+				}
+			} else {
+				collect(root, SignalKPath.get(event.getPath()), 0, found, event.getType() == PathEvent.EventType.DEL_SUBTREE);
+			}
+			for (int i = 0; i < found.size(); i++) {
+				found.get(i).offer(event);
+			}
+		} finally {
+			found.clear();
+			if (!nested)
+				m.busy = false;
+		}
+	}
+
+	/**
+	 * Collect the subscriptions along the path. For a deleted subtree, the subscriptions below the path match too.
+	 */
+	private void collect(Node node, SignalKPath path, int depth, List<Subscription> found, boolean subtree) {
+		add(node, found);
+		if (depth == path.size()) {
+			if (subtree)
+				collectBelow(node, found);
+			return;
+		}
+		String segment = path.getSegment(depth);
+		Node child = node.children.get(segment);
+		if (child != null)
+			collect(child, path, depth + 1, found, subtree);
+		if (node.any != null)
+			collect(node.any, path, depth + 1, found, subtree);
+		for (Wildcard wildcard : node.wildcards) {
+			if (wildcard.pattern.matcher(segment).matches())
+				collect(wildcard.node, path, depth + 1, found, subtree);
+		}
+	}
+
+	private void collectBelow(Node node, List<Subscription> found) {
+		for (Node child : node.children.values()) {
+			add(child, found);
+			collectBelow(child, found);
+		}
+		if (node.any != null) {
+			add(node.any, found);
+			collectBelow(node.any, found);
+		}
+		for (Wildcard wildcard : node.wildcards) {
+			add(wildcard.node, found);
+			collectBelow(wildcard.node, found);
+		}
+	}
+
+	private void add(Node node, List<Subscription> found) {
+		for (Subscription subscription : node.listeners) {
+			//a listener can match through several patterns, or several keys of a batch
+			if (!contains(found, subscription.getListener()))
+				found.add(subscription);
+		}
+	}
+
+	private boolean contains(List<Subscription> found, PathListener listener) {
+		for (int i = 0; i < found.size(); i++) {
+			if (found.get(i).getListener() == listener)
+				return true;
+		}
+		return false;
+	}
+
+	private Node child(Node node, String segment) {
+		Node child = find(node, segment);
+		if (child != null)
+			return child;
+		if ("*".equals(segment)) {
+			node.any = new Node();
+			return node.any;
+		}
+		if (isWildcard(segment)) {
+			Wildcard wildcard = new Wildcard(segment);
+			node.wildcards.add(wildcard);
+			return wildcard.node;
+		}
+		child = new Node();
+		node.children.put(segment, child);
+		return child;
+	}
+
+	private Node find(Node node, String segment) {
+		if ("*".equals(segment))
+			return node.any;
+		if (isWildcard(segment)) {
+			for (Wildcard wildcard : node.wildcards) {
+				if (wildcard.segment.equals(segment))
+					return wildcard.node;
+			}
+			return null;
+		}
+		return node.children.get(segment);
+	}
+
+	private boolean isWildcard(String segment) {
+		return segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import nz.co.fortytwo.signalk.util.Util;
+
+/**
+ * A mutable epoch millis timestamp held in the model in place of an ISO8601 String.
+ * The put overloads that take a long timestamp store one at key.timestamp, and overwrite it
+ * in place on later updates, so timestamps are only formatted when they are read or serialized.
+ * <p>
+ * The slot stays inside the model. toString() returns the ISO8601 string, and get() and the maps from getFullData()
+ * and getSubMap() return it too, so readers see the same String values as before.
+ * </p>
+ * @author robert
+ *
+ */
+public final class TimestampSlot {
+
+	private volatile long millis;
+
+	public TimestampSlot(long millis) {
+		this.millis = millis;
+	}
+
+	/**
+	 * Set the timestamp
+	 * @param millis
+	 * @return true if it changed
+	 */
+	boolean set(long millis) {
+		if (this.millis == millis) {
+			return false;
+		}
+		this.millis = millis;
+		return true;
+	}
+
+	/**
+	 * The timestamp, epoch millis
+	 * @return
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (millis ^ (millis >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof TimestampSlot))
+			return false;
+		return millis == ((TimestampSlot) obj).millis;
+	}
+
+	/**
+	 * The ISO8601 string, eg 2016-03-30T08:05:38.546Z
+	 */
+	@Override
+	public String toString() {
+		return Util.getIsoTimeString(millis);
+	}
+}
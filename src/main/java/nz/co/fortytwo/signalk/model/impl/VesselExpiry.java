@@ -0,0 +1,277 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.BatchEvent;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.event.PathListener;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Removes the vessels.&lt;id&gt; contexts that have not been updated for the ttl, eg AIS targets that have sailed
+ * out of range, so the model does not grow forever on a server near a busy shipping lane. The self vessel is never removed.
+ * <p>
+ * It listens to the model for changes under vessels, and keeps each context's last update time. The contexts are
+ * held in a priority queue by the time they are due to expire. An update only sets the time, and the sweep requeues a context
+ * that has been updated since it was queued, so ingest never reorders the queue. Stale contexts are removed with one
+ * subtree delete each.
+ * </p><pre>
+ * VesselExpiry expiry = new VesselExpiry(model, 600000);
+ * expiry.start();
+ * </pre>
+ * @author robert
+ *
+ */
+public class VesselExpiry implements PathListener {
+
+	private static Logger logger = LogManager.getLogger(VesselExpiry.class);
+
+	private static final String EXPIRY = "expiry";
+	private static volatile ScheduledExecutorService timer;
+
+	private final SignalKModel model;
+	private final long ttl;
+	private final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<String, Target>();
+	//guarded by itself
+	private final PriorityQueue<Target> queue = new PriorityQueue<Target>();
+	//the last target updated per thread, as the updates for a vessel arrive together
+	private final ThreadLocal<Target> last = new ThreadLocal<Target>();
+	private ScheduledFuture<?> sweeper;
+
+	private static final class Target implements Comparable<Target> {
+		final String context;
+		volatile long updated;
+		volatile boolean expired;
+		//when it is due, as queued
+		long deadline;
+
+		Target(String context, long updated) {
+			this.context = context;
+			this.updated = updated;
+		}
+
+		@Override
+		public int compareTo(Target o) {
+			return deadline < o.deadline ? -1 : deadline == o.deadline ? 0 : 1;
+		}
+	}
+
+	/**
+	 * @param model
+	 * @param ttl millis without an update before a vessel is removed
+	 */
+	public VesselExpiry(SignalKModel model, long ttl) {
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("ttl must be positive: " + ttl);
+		}
+		this.model = model;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Start tracking the vessels, including those already in the model, and sweeping for stale ones
+	 */
+	public synchronized void start() {
+		if (sweeper != null)
+			return;
+		long now = System.currentTimeMillis();
+		String prefix = vessels + dot;
+		for (String key : model.getKeys().subSet(prefix, true, vessels + (char) (dot.charAt(0) + 1), false)) {
+			touch(key, now);
+		}
+		model.subscribe(vessels, this);
+		long period = Math.max(10, Math.min(ttl / 10, 60000));
+		sweeper = getTimer().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sweep(System.currentTimeMillis());
+				} catch (Exception e) {
+					logger.error("Vessel expiry failed: " + e.getMessage(), e);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+		if (logger.isDebugEnabled())
+			logger.debug("Expiring vessels after " + ttl + "ms, sweeping every " + period + "ms");
+	}
+
+	/**
+	 * Stop tracking and sweeping
+	 */
+	public synchronized void stop() {
+		if (sweeper == null)
+			return;
+		sweeper.cancel(false);
+		sweeper = null;
+		model.unsubscribe(vessels, this);
+	}
+
+	@Override
+	public void onEvent(PathEvent event) {
+		if (event.getType() != PathEvent.EventType.ADD)
+			return;
+		long now = System.currentTimeMillis();
+		if (event instanceof BatchEvent) {
+			for (String key : ((BatchEvent) event).getPaths()) {
+				touch(key, now);
+			}
+			return;
+		}
+		touch(event.getPath(), now);
+	}
+
+	/**
+	 * Record an update to the key's vessel
+	 */
+	private void touch(String key, long now) {
+		Target target = last.get();
+		if (target != null && !target.expired && isIn(key, target.context)) {
+			target.updated = now;
+			return;
+		}
+		String context = PartitionedPathMap.contextOf(key);
+		if (context.length() <= vessels.length() || context.equals(selfContext()))
+			return;
+		target = targets.get(context);
+		if (target == null) {
+			target = new Target(context, now);
+			Target other = targets.putIfAbsent(context, target);
+			if (other == null) {
+				synchronized (queue) {
+					target.deadline = now + ttl;
+					queue.add(target);
+				}
+			} else {
+				target = other;
+			}
+		}
+		target.updated = now;
+		last.set(target);
+	}
+
+	private static boolean isIn(String key, String context) {
+		return key.startsWith(context) && (key.length() == context.length() || key.charAt(context.length()) == '.');
+	}
+
+	private static String selfContext() {
+		return Util.fixSelfKey(vessels_dot_self);
+	}
+
+	/**
+	 * Remove the vessels that have not been updated for the ttl
+	 * @param now
+	 * @return the number removed
+	 */
+	int sweep(long now) {
+		List<Target> stale = null;
+		synchronized (queue) {
+			while (!queue.isEmpty() && queue.peek().deadline <= now) {
+				Target target = queue.poll();
+				long due = target.updated + ttl;
+				if (due > now) {
+					//updated since it was queued
+					target.deadline = due;
+					queue.add(target);
+					continue;
+				}
+				if (stale == null)
+					stale = new ArrayList<Target>();
+				stale.add(target);
+			}
+		}
+		if (stale == null)
+			return 0;
+		String self = selfContext();
+		int count = 0;
+		for (Target target : stale) {
+			if (target.updated + ttl > now) {
+				//updated while we were sweeping
+				synchronized (queue) {
+					target.deadline = target.updated + ttl;
+					queue.add(target);
+				}
+				continue;
+			}
+			//a later update starts a new target
+			target.expired = true;
+			targets.remove(target.context, target);
+			if (target.context.equals(self))
+				continue;
+			if (logger.isDebugEnabled())
+				logger.debug("Expiring " + target.context);
+			model.put(target.context, null, EXPIRY);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * The number of vessels being tracked
+	 * @return
+	 */
+	public int size() {
+		return targets.size();
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	private static ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			synchronized (VesselExpiry.class) {
+				if (timer == null) {
+					timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "signalk-vessel-expiry");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+			}
+		}
+		return timer;
+	}
+}
@@ -60,6 +60,17 @@ public class ConfigConstants {
 	public static final String USBDRIVE = "config.server.files.usb.usbdrive";
 	public static final String CLOCK_source = "config.server.clock.src";
 	
+	//multiple values, the most sources held per key, and millis until a quiet source is dropped
+	public static final String SOURCES_MAX = "config.server.sources.max";
+	public static final String SOURCES_TTL = "config.server.sources.ttl";
+	//source arbitration, millis until a silent source loses its keys, and that a better source must be sending to take them back
+	public static final String SOURCES_TIMEOUT = "config.server.sources.timeout";
+	public static final String SOURCES_HYSTERESIS = "config.server.sources.hysteresis";
+	//millis without an update before another vessel (eg an AIS target) is removed from the model, 0 to keep them
+	public static final String VESSELS_TTL = "config.server.vessels.ttl";
+	//the number of changes kept for clients to catch up from, 0 for none
+	public static final String JOURNAL_SIZE = "config.server.journal.size";
+	
 	//serial ports
 	public static final String SERIAL_PORTS = "config.server.serial.ports";
 	public static final String SERIAL_PORT_BAUD = "config.server.serial.baud";
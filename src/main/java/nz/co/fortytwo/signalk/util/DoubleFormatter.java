@@ -0,0 +1,98 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+/**
+ * Appends doubles as plain decimals (no exponent), rounded to a number of decimal places with trailing zeros
+ * trimmed, eg 245.69, 12.0, -0.00001234. This is the same text as DecimalFormat("0.0") with the maximum
+ * fraction digits set, but works on a long, so it does not allocate or take DecimalFormat's slow path.
+ * <p>
+ * Values too large to scale into a long exactly, NaN, infinities, and the rare values within rounding error of a
+ * half way point are refused, so the caller can fall back to DecimalFormat and always get the same text.
+ * </p>
+ * @author robert
+ *
+ */
+public final class DoubleFormatter {
+
+	public static final int MAX_PLACES = 15;
+
+	private static final long[] POW10 = new long[MAX_PLACES + 1];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i <= MAX_PLACES; i++) {
+			POW10[i] = POW10[i - 1] * 10;
+		}
+	}
+
+	//scaled values must stay well inside the 53 bits a double holds exactly
+	private static final double MAX_SCALED = 1L << 52;
+
+	private DoubleFormatter() {
+	}
+
+	/**
+	 * Append the value rounded half even to at most the given decimal places, with at least one decimal place
+	 * @param sb
+	 * @param value
+	 * @param places 1 to MAX_PLACES
+	 * @return false if the value must be formatted another way, in which case nothing was appended
+	 */
+	public static boolean append(StringBuilder sb, double value, int places) {
+		if (places < 1 || places > MAX_PLACES)
+			return false;
+		boolean negative = value < 0 || (value == 0 && 1 / value < 0);
+		double scaled = Math.abs(value) * POW10[places];
+		if (!(scaled < MAX_SCALED))
+			return false; // too big, NaN or infinite
+		long units = (long) scaled;
+		double fraction = scaled - units;
+		//the multiply may be out by an ulp, so near a tie we cant tell which way the exact value rounds
+		if (Math.abs(fraction - 0.5) <= Math.ulp(scaled) * 2)
+			return false;
+		if (fraction > 0.5)
+			units++;
+		if (negative)
+			sb.append('-');
+		long pow = POW10[places];
+		sb.append(units / pow);
+		sb.append('.');
+		long decimals = units % pow;
+		if (decimals == 0) {
+			sb.append('0');
+			return true;
+		}
+		//drop the trailing zeros, then pad the leading ones
+		int digits = places;
+		while (decimals % 10 == 0) {
+			decimals /= 10;
+			digits--;
+		}
+		for (long p = POW10[digits - 1]; p > decimals; p /= 10) {
+			sb.append('0');
+		}
+		sb.append(decimals);
+		return true;
+	}
+}
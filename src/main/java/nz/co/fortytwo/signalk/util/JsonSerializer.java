@@ -3,11 +3,11 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.source;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -16,6 +16,7 @@ import java.util.concurrent.ConcurrentSkipListMap;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.TimestampSlot;
 
 
 public class JsonSerializer {
@@ -23,6 +24,11 @@ public class JsonSerializer {
     private String indent=null;
     private StringBuilder curindent = new StringBuilder();
     private DecimalFormat[] df = new DecimalFormat[12]; // Up to 12dp for a number.
+    private static final int CHUNK = 8192;
+    //reused between writes, see write(Iterator, char, Appendable)
+    private StringBuilder buffer = new StringBuilder(CHUNK * 2);
+    //true unless a subclass overrides getNumDecimalPlaces, so we needn't cut out each leaf name
+    private final boolean fixedPlaces = isFixedPlaces(getClass());
     
     private String [] arrayKeys = { 
     		//should derive this from schema really...
@@ -54,6 +60,14 @@ public class JsonSerializer {
         indent = null;
     }
 
+    private static boolean isFixedPlaces(Class<?> type) {
+    	try {
+    		return type.getMethod("getNumDecimalPlaces", String.class).getDeclaringClass() == JsonSerializer.class;
+    	} catch (NoSuchMethodException e) {
+    		return false;
+    	}
+    }
+
     /**
      * Return the number of decimal-places to use when printing the specified key (as a double)
      * The default is 8 for all keys.
@@ -78,10 +92,51 @@ public class JsonSerializer {
 		return buffer.toString();
 	}
 
+    /**
+     * Write the model as UTF-8 straight to the stream, in chunks, without building the String.
+     * The stream is flushed but not closed.
+     * @param signalk
+     * @param out
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    public long write(SignalKModel signalk, OutputStream out) throws IOException {
+    	return write(signalk, new Utf8ByteSink(out));
+    }
+
+    /**
+     * Write the model as UTF-8 straight to the channel, in chunks, without building the String.
+     * The channel is not closed.
+     * @param signalk
+     * @param channel a blocking channel
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    public long write(SignalKModel signalk, WritableByteChannel channel) throws IOException {
+    	return write(signalk, new Utf8ByteSink(channel));
+    }
+
+    private long write(SignalKModel signalk, Utf8ByteSink sink) throws IOException {
+    	try {
+    		if(signalk!=null && signalk.getFullData()!=null){
+    			write(signalk.getFullData().entrySet().iterator(),'.',sink);
+    		}else{
+    			sink.append("{}");
+    		}
+    	} finally {
+    		sink.close();
+    	}
+    	return sink.getWritten();
+    }
+
     /**
      * Write the values returned from the specified iterator to the specified output. If
      * no values are included then nothing is written, not even "{}"  and this method returns false.
      * A trailing newline is written only if the output is being pretty-printed.
+     * <p>
+     * The keys are not split, each one is compared with the previous key to find the objects to close and open,
+     * and the output is built in a reusable buffer and passed to out in chunks (or built in out directly if it is a StringBuilder).
+     * </p>
      *
      * @param iterator the iterator containing the data - see class API docs for restrictions
      * @param separator how the keys are separated, eg '.' for keys like "a.b.c"
@@ -91,8 +146,10 @@ public class JsonSerializer {
     public boolean write(Iterator<Map.Entry<String,Object>> iterator, char separator, Appendable out) throws IOException {
         curindent.setLength(0);
         boolean begun = false;
+        StringBuilder buf = out instanceof StringBuilder ? (StringBuilder) out : buffer;
+        if (buf == buffer) buffer.setLength(0);
 
-        List<String> trail = new ArrayList<String>();       // The "breadcrumbs" of where we are in the tree
+        int depth = 0;      // The number of objects open below the root, one per segment of the last key but its leaf
         boolean needcomma = false;
         String lastkey = null;
 
@@ -101,78 +158,116 @@ public class JsonSerializer {
             String key = e.getKey();
             Object value = e.getValue();
             if (!begun) {
-                jsonBegin(out);
+                jsonBegin(buf);
                 begun = true;
             }
-            String[] s = key.split("\\.");
-            int l = s.length;
             if (lastkey != null && (key.compareTo(lastkey) <= 0 || (key.startsWith(lastkey) && key.charAt(lastkey.length()) == separator))) {
                 throw new IllegalStateException("Key \""+key+"\" can't follow key \""+lastkey+"\"");
             }
 
-            int j = 0;      // The number of tree entries in common with the previously output value
-            while (l > j && trail.size() > j && trail.get(j).equals(s[j])) {
-                j++;
+            int common = 0;     // The number of objects in common with the previously output value
+            int start = 0;      // Where the first segment not in common starts
+            if (lastkey != null) {
+                int n = Math.min(key.length(), lastkey.length());
+                for (int i = 0; i < n; i++) {
+                    char c = key.charAt(i);
+                    if (c != lastkey.charAt(i)) break;
+                    if (c == separator) {
+                        common++;
+                        start = i + 1;
+                    }
+                }
             }
-            while (trail.size() > j) {
-                jsonClose(out);
+            while (depth > common) {
+                jsonClose(buf);
                 needcomma = true;
-                trail.remove(trail.size() - 1);
+                depth--;
             }
             if (needcomma) {
                 needcomma = false;
-                jsonComma(out);
+                jsonComma(buf);
             }
-            while (l - 1 > j) {
-                trail.add(jsonKey(s[j++], out));
-                jsonBegin(out);
-                needcomma = false;
+            for (int end = key.indexOf(separator, start); end >= 0; end = key.indexOf(separator, start)) {
+                jsonKey(key, start, end, buf);
+                jsonBegin(buf);
+                depth++;
+                start = end + 1;
             }
 
-            if (needcomma) {
-                needcomma = false;
-                jsonComma(out);
-            }
-            jsonKey(s[j], out);
-            if (value== null || "null".equals(value)) {
-                jsonNull(key,out);
-            } else if (value instanceof String) {
-                jsonWrite((String)value, out);
-            } else if (value instanceof Integer) {
-                jsonWrite(((Integer)value).intValue(), out);
-            } else if (value instanceof Number) {
-                jsonWrite(s[j], ((Number)value).doubleValue(), out);
-            } else if (value instanceof Boolean) {
-                jsonWrite(((Boolean)value).booleanValue(), out);
-            } else if (value instanceof Json && ((Json)value).isArray()) {
-                out.append(((Json)value).toString());
-            } else  {
-                throw new IllegalStateException("Can't print value of type \""+value.getClass().getName()+"\" for key \""+key+"\"");
-            }
+            jsonKey(key, start, key.length(), buf);
+            jsonValue(key, start, value, buf);
             needcomma = true;
             lastkey = key;
+            if (buf != out && buf.length() >= CHUNK) {
+                out.append(buf);
+                buf.setLength(0);
+            }
         }
-        while (!trail.isEmpty()) {
-            jsonClose(out);
-            trail.remove(trail.size() - 1);
+        while (depth > 0) {
+            jsonClose(buf);
+            depth--;
         }
         if (begun) {
-            jsonEnd(out);
+            jsonEnd(buf);
+        }
+        if (buf != out) {
+            out.append(buf);
+            buf.setLength(0);
+            if (buf.capacity() > CHUNK * 4) {
+                //dont hang on to a buffer grown by a huge value
+                buffer = new StringBuilder(CHUNK * 2);
+            }
         }
         return begun;
     }
 
-    private void jsonWrite(String value, Appendable out) throws IOException {
-    	if(value.startsWith("[") && value.endsWith("]")){
-    		jsonWriteArray(value, out);
+    /**
+     * Write a single value as it would be written for this key by {@link #write(Iterator, char, Appendable)}
+     * @param key the full key, used for the number of decimal places
+     * @param value
+     * @param out
+     */
+    public void writeValue(String key, Object value, StringBuilder out) {
+        jsonValue(key, key.lastIndexOf('.') + 1, value, out);
+    }
+
+    /**
+     * Write the value of the key whose leaf segment starts at start
+     */
+    private void jsonValue(String key, int start, Object value, StringBuilder buf) {
+        if (value== null || "null".equals(value)) {
+            jsonNull(key,buf);
+        } else if (value instanceof String) {
+            jsonWrite((String)value, buf);
+        } else if (value instanceof Integer) {
+            buf.append(((Integer)value).intValue());
+        } else if (value instanceof Number) {
+            jsonWrite(key, start, ((Number)value).doubleValue(), buf);
+        } else if (value instanceof Boolean) {
+            buf.append(((Boolean)value).booleanValue() ? "true" : "false");
+        } else if (value instanceof TimestampSlot) {
+            jsonWrite(value.toString(), buf);
+        } else if (value instanceof Json && ((Json)value).isArray()) {
+            buf.append(((Json)value).toString());
+        } else  {
+            throw new IllegalStateException("Can't print value of type \""+value.getClass().getName()+"\" for key \""+key+"\"");
+        }
+    }
+
+    private void jsonWrite(String value, StringBuilder out) {
+        jsonWrite(value, 0, value.length(), out);
+    }
+
+    private void jsonWrite(String s, int start, int end, StringBuilder out) {
+    	if(end - start > 1 && s.charAt(start) == '[' && s.charAt(end - 1) == ']'){
+    		out.append(s, start, end);
     		return;
     	}
         out.append('"');
-        int len = value.length();
         char c = 0;
-        for (int i=0; i<len; i++) {
+        for (int i=start; i<end; i++) {
             char b = c;
-            c = value.charAt(i);
+            c = s.charAt(i);
             switch (c) {
             case '\\':
             case '"':
@@ -231,19 +326,7 @@ public class JsonSerializer {
 		return false;
 	}
 
-	private void jsonWriteArray(String value, Appendable out) throws IOException {
-    	if("[]".equals(value)){
-    		out.append("[]");
-    	}else{
-    		out.append(value);
-    	}
-    }
-
-	private void jsonWrite(int value, Appendable out) throws IOException {
-        out.append(Integer.toString(value));
-    }
-
-    private void jsonNull(String key, Appendable out) throws IOException {
+    private void jsonNull(String key, StringBuilder out) {
     	//if we have a null array key, we need to output []
     	if(isJsonArray(key)){
     		out.append("[]");
@@ -252,15 +335,16 @@ public class JsonSerializer {
     	}
     }
 
-    private void jsonWrite(String key, double value, Appendable out) throws IOException {
-        int dp = getNumDecimalPlaces(key);
+    /**
+     * Write the value of the key whose leaf segment starts at start
+     */
+    private void jsonWrite(String key, int start, double value, StringBuilder out) {
+        //only cut out the leaf name if a subclass wants it
+        int dp = fixedPlaces ? 8 : getNumDecimalPlaces(key.substring(start));
+        if (DoubleFormatter.append(out, value, dp)) {
+            return;
+        }
         if (df[dp] == null) {
-            //StringBuilder sb = new StringBuilder(dp + 2);
-            //sb.append("#0.");
-           // for (int i=0;i<dp;i++) {
-           //     sb.append('0');
-           // }
-           // df[dp] = new DecimalFormat(sb.toString());
         	 //need to avoid locale decimal symbol
         	df[dp] = new DecimalFormat("0.0",DecimalFormatSymbols.getInstance(Locale.ENGLISH));
             df[dp].setMaximumFractionDigits(dp);
@@ -275,14 +359,10 @@ public class JsonSerializer {
         if (v.charAt(j) == '.') {
             j++;
         }
-        out.append(v.substring(0, j + 1));
-    }
-
-    private void jsonWrite(boolean value, Appendable out) throws IOException {
-        out.append(value ? "true" : "false");
+        out.append(v, 0, j + 1);
     }
 
-    private void jsonBegin(Appendable out) throws IOException {
+    private void jsonBegin(StringBuilder out) {
         out.append('{');
         if (indent != null) {
             out.append('\n');
@@ -291,7 +371,7 @@ public class JsonSerializer {
         }
     }
 
-    private void jsonEnd(Appendable out) throws IOException {
+    private void jsonEnd(StringBuilder out) {
         if (indent != null) {
             out.append('\n');
         }
@@ -301,16 +381,15 @@ public class JsonSerializer {
         }
     }
 
-    private String jsonKey(String key, Appendable out) throws IOException {
-        jsonWrite(key, out);
+    private void jsonKey(String key, int start, int end, StringBuilder out) {
+        jsonWrite(key, start, end, out);
         out.append(':');
         if (indent != null) {
             out.append(' ');
         }
-        return key;
     }
 
-    private void jsonClose(Appendable out) throws IOException {
+    private void jsonClose(StringBuilder out) {
         if (indent != null) {
             out.append('\n');
             curindent.setLength(curindent.length() - indent.length());
@@ -319,7 +398,7 @@ public class JsonSerializer {
         out.append("}");
     }
 
-    private void jsonComma(Appendable out) throws IOException {
+    private void jsonComma(StringBuilder out) {
         out.append(',');
         if (indent != null) {
             out.append('\n');
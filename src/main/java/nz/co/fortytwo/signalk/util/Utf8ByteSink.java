@@ -0,0 +1,249 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An Appendable that encodes straight to UTF-8 in a pooled ByteBuffer, and writes the buffer to an OutputStream
+ * or WritableByteChannel each time it fills. So JsonSerializer can stream a large model to a servlet response or
+ * socket in constant memory, without building the whole String and then its bytes.
+ * <pre>
+ * Utf8ByteSink sink = new Utf8ByteSink(response.getOutputStream());
+ * try {
+ *     ser.write(model.getFullData().entrySet().iterator(), '.', sink);
+ * } finally {
+ *     sink.close();
+ * }
+ * </pre>
+ * close() writes what is left and returns the buffer to the pool, but leaves the stream or channel open. A channel
+ * should be blocking, a non-blocking one is written in a loop until it takes the whole buffer.
+ * Unpaired surrogates are written as '?', as String.getBytes does. Not thread safe.
+ * @author robert
+ *
+ */
+public class Utf8ByteSink implements Appendable, Flushable, Closeable {
+
+	public static final int BUFFER_SIZE = 16384;
+	private static final int MAX_POOLED = 64;
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private final OutputStream out;
+	private final WritableByteChannel channel;
+	private ByteBuffer buffer;
+	private byte[] bytes;
+	private int pos;
+	//a high surrogate at the end of the last append, waiting for its low surrogate
+	private char high;
+	private long written;
+
+	public Utf8ByteSink(OutputStream out) {
+		this(out, null);
+	}
+
+	public Utf8ByteSink(WritableByteChannel channel) {
+		this(null, channel);
+	}
+
+	private Utf8ByteSink(OutputStream out, WritableByteChannel channel) {
+		this.out = out;
+		this.channel = channel;
+		this.buffer = acquire();
+		this.bytes = buffer.array();
+	}
+
+	private static ByteBuffer acquire() {
+		ByteBuffer b = pool.poll();
+		if (b == null)
+			return ByteBuffer.allocate(BUFFER_SIZE);
+		pooled.decrementAndGet();
+		b.clear();
+		return b;
+	}
+
+	private static void release(ByteBuffer b) {
+		if (pooled.incrementAndGet() <= MAX_POOLED) {
+			pool.offer(b);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	@Override
+	public Appendable append(CharSequence csq) throws IOException {
+		if (csq == null)
+			csq = "null";
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Appendable append(CharSequence csq, int start, int end) throws IOException {
+		if (csq == null)
+			csq = "null";
+		if (bytes == null)
+			throw new IOException("Closed");
+		byte[] b = bytes;
+		int p = pos;
+		int i = start;
+		if (high != 0 && i < end) {
+			p = surrogate(b, p, high, csq.charAt(i));
+			high = 0;
+			if (Character.isLowSurrogate(csq.charAt(i)))
+				i++;
+		}
+		for (; i < end; i++) {
+			char c = csq.charAt(i);
+			if (c < 0x80) {
+				if (p == b.length) {
+					pos = p;
+					drain();
+					p = 0;
+				}
+				b[p++] = (byte) c;
+				continue;
+			}
+			if (p > b.length - 4) {
+				pos = p;
+				drain();
+				p = 0;
+			}
+			if (c < 0x800) {
+				b[p++] = (byte) (0xC0 | (c >> 6));
+				b[p++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c)) {
+				if (i + 1 == end) {
+					high = c;
+				} else {
+					char low = csq.charAt(i + 1);
+					p = surrogate(b, p, c, low);
+					if (Character.isLowSurrogate(low))
+						i++;
+				}
+			} else if (Character.isLowSurrogate(c)) {
+				b[p++] = '?';
+			} else {
+				b[p++] = (byte) (0xE0 | (c >> 12));
+				b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				b[p++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		pos = p;
+		return this;
+	}
+
+	/**
+	 * Write the pair as 4 bytes, or '?' if low is not a low surrogate. There must be room for 4 bytes.
+	 */
+	private int surrogate(byte[] b, int p, char high, char low) throws IOException {
+		if (p > b.length - 4) {
+			pos = p;
+			drain();
+			p = 0;
+		}
+		if (!Character.isLowSurrogate(low)) {
+			b[p++] = '?';
+			return p;
+		}
+		int cp = Character.toCodePoint(high, low);
+		b[p++] = (byte) (0xF0 | (cp >> 18));
+		b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+		b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+		b[p++] = (byte) (0x80 | (cp & 0x3F));
+		return p;
+	}
+
+	@Override
+	public Appendable append(char c) throws IOException {
+		if (c < 0x80 && high == 0 && bytes != null) {
+			if (pos == bytes.length)
+				drain();
+			bytes[pos++] = (byte) c;
+			return this;
+		}
+		return append(String.valueOf(c), 0, 1);
+	}
+
+	/**
+	 * Write the buffered bytes to the stream or channel
+	 */
+	private void drain() throws IOException {
+		if (pos == 0)
+			return;
+		if (out != null) {
+			out.write(bytes, 0, pos);
+		} else {
+			buffer.clear();
+			buffer.limit(pos);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		written += pos;
+		pos = 0;
+	}
+
+	/**
+	 * The number of bytes written to the stream or channel so far
+	 * @return
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain();
+		if (out != null)
+			out.flush();
+	}
+
+	/**
+	 * Write what is left and return the buffer to the pool. The stream or channel is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (bytes == null)
+			return;
+		try {
+			if (high != 0) {
+				high = 0;
+				append('?');
+			}
+			flush();
+		} finally {
+			release(buffer);
+			buffer = null;
+			bytes = null;
+		}
+	}
+}
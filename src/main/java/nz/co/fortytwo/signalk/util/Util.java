@@ -47,6 +47,7 @@ import java.util.regex.Pattern;
 import mjson.Json;
 import net.sf.marineapi.nmea.sentence.RMCSentence;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.SignalKPath;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 
 
@@ -57,6 +58,7 @@ import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.joda.time.format.ISODateTimeFormat;
 
 /**
  * Place for all the left over bits that are used across Signalk
@@ -178,6 +180,12 @@ public class Util {
 		model.getFullData().put(ConfigConstants.STOMP_PORT, 61613);
 		model.getFullData().put(ConfigConstants.MQTT_PORT, 1883);
 		model.getFullData().put(ConfigConstants.CLOCK_source, "system");
+		model.getFullData().put(ConfigConstants.SOURCES_MAX, 8);
+		model.getFullData().put(ConfigConstants.SOURCES_TTL, 600000);
+		model.getFullData().put(ConfigConstants.SOURCES_TIMEOUT, 10000);
+		model.getFullData().put(ConfigConstants.SOURCES_HYSTERESIS, 5000);
+		model.getFullData().put(ConfigConstants.VESSELS_TTL, 600000);
+		model.getFullData().put(ConfigConstants.JOURNAL_SIZE, 65536);
 		
 		model.getFullData().put(ConfigConstants.HAWTIO_PORT, 8000);
 		model.getFullData().put(ConfigConstants.HAWTIO_AUTHENTICATE, false);
@@ -383,6 +391,9 @@ public class Util {
 	}
 
 	public static String fixSelfKey(String key) {
+		//most keys dont mention self at all, and if self is still 'self' there is nothing to do, so skip the regex
+		if (key.indexOf(".self") < 0 || dot_self.equals(".self"))
+			return key;
 		key = selfMatch.matcher(key).replaceAll(dot_self_dot);
 		key = selfEndMatch.matcher(key).replaceAll(dot_self);
 		return key;
@@ -477,9 +488,73 @@ public class Util {
 		return now.toDateTimeISO().toString();
 	}
 
+	/**
+	 * Format the epoch millis as an ISO8601 UTC string, eg 2016-03-30T08:05:38.546Z
+	 * The last result and the formatted second are cached per thread, so repeated
+	 * or close together timestamps are cheap.
+	 * @param timestamp
+	 * @return
+	 */
 	public static String getIsoTimeString(long timestamp) {
-		return new DateTime(timestamp, DateTimeZone.UTC).toDateTimeISO()
-				.toString();
+		IsoTimeCache cache = isoTimeCache.get();
+		if (timestamp == cache.millis) {
+			return cache.iso;
+		}
+		long second = timestamp / 1000;
+		int millis = (int) (timestamp % 1000);
+		if (millis < 0) {
+			second--;
+			millis += 1000;
+		}
+		if (second != cache.second) {
+			String iso = new DateTime(second * 1000, DateTimeZone.UTC).toDateTimeISO().toString();
+			// drop the 000Z
+			cache.prefix = iso.substring(0, iso.length() - 4);
+			cache.second = second;
+		}
+		StringBuilder sb = cache.sb;
+		sb.setLength(0);
+		sb.append(cache.prefix);
+		if (millis < 100)
+			sb.append('0');
+		if (millis < 10)
+			sb.append('0');
+		sb.append(millis).append('Z');
+		cache.millis = timestamp;
+		cache.iso = sb.toString();
+		return cache.iso;
+	}
+
+	private static final ThreadLocal<IsoTimeCache> isoTimeCache = new ThreadLocal<IsoTimeCache>() {
+		@Override
+		protected IsoTimeCache initialValue() {
+			return new IsoTimeCache();
+		}
+	};
+
+	private static final class IsoTimeCache {
+		long millis = Long.MIN_VALUE;
+		String iso;
+		long second = Long.MIN_VALUE;
+		String prefix;
+		final StringBuilder sb = new StringBuilder(24);
+	}
+
+	/**
+	 * Parse an ISO8601 time string to epoch millis
+	 * @param isoTime
+	 * @return the millis, or -1 if the string is not a valid time
+	 */
+	public static long getMillisFromIsoTime(String isoTime) {
+		if (StringUtils.isBlank(isoTime))
+			return -1;
+		try {
+			return ISODateTimeFormat.dateTimeParser().parseMillis(isoTime);
+		} catch (IllegalArgumentException e) {
+			if (logger.isDebugEnabled())
+				logger.debug("Bad time " + isoTime);
+			return -1;
+		}
 	}
 
 	public static double haversineMeters(double lat, double lon,
@@ -543,6 +618,8 @@ public class Util {
 		SignalKConstants.self = self;
 		vessels_dot_self_dot = vessels + dot + self + dot;
 		vessels_dot_self = vessels + dot + self;
+		//interned paths have the old self resolved into them
+		SignalKPath.clearCache();
 		logger.info("Setting self:"+self);
 		logger.info("Setting vessels.self:"+vessels_dot_self);
 	}
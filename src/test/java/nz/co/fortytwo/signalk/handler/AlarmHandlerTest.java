@@ -66,4 +66,18 @@ public class AlarmHandlerTest {
 		assertEquals(normal, model.get(vessels_dot_self_dot+notifications+dot+nav_courseOverGroundMagnetic+dot+alarmState));
 	}
 
+	@Test
+	public void shouldSetAlarmOnChange() throws IOException {
+		SignalKModel model = SignalKModelFactory.getMotuTestInstance();
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		model.getFullData().put(vessels_dot_self_dot+nav_courseOverGroundMagnetic+dot+meta+dot+zones, Json.read("[[0,91,\"alarm\"],[93,95,\"normal\"],[95,360,\"alarm\"]]"));
+		DerivedValueGraph graph = new DerivedValueGraph(model);
+		assertEquals(1, new AlarmHandler().register(graph, model));
+		
+		model.putValue(vessels_dot_self_dot+nav_courseOverGroundMagnetic, 97.0d);
+		assertEquals(alarm, model.get(vessels_dot_self_dot+notifications+dot+nav_courseOverGroundMagnetic+dot+alarmState));
+		model.putValue(vessels_dot_self_dot+nav_courseOverGroundMagnetic, 94.0d);
+		assertEquals(normal, model.get(vessels_dot_self_dot+notifications+dot+nav_courseOverGroundMagnetic+dot+alarmState));
+	}
+
 }
@@ -0,0 +1,200 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.TreeSet;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.JsonSerializer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+public class DeltaEncoderTest {
+
+	private static Logger logger = LogManager.getLogger(DeltaEncoderTest.class);
+
+	private static final String CTX = "vessels.urn:mrn:signalk:uuid:6b0e776f-811a-4b35-980e-b93405371bc5";
+
+	private SignalKModel getModel() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		model.getFullData().put(CTX + ".navigation.courseOverGroundMagnetic.$source", "nmea.0183.VHW");
+		model.getFullData().put(CTX + ".navigation.courseOverGroundMagnetic.meta.displayName", "COG (Magnetic)");
+		model.getFullData().put(CTX + ".navigation.courseOverGroundMagnetic.timestamp", "2016-03-30T08:05:46.983Z");
+		model.getFullData().put(CTX + ".navigation.courseOverGroundMagnetic.value", 5.28834763);
+		model.getFullData().put(CTX + ".navigation.courseOverGroundMagnetic.values.nmea.0183.HDM.timestamp", "2016-03-30T08:05:38.546Z");
+		model.getFullData().put(CTX + ".navigation.courseOverGroundMagnetic.values.nmea.0183.HDM.value", 5.28834763);
+		model.getFullData().put(CTX + ".navigation.position.$source", "nmea.0183.RMC");
+		model.getFullData().put(CTX + ".navigation.position.altitude", 0.0);
+		model.getFullData().put(CTX + ".navigation.position.latitude", 37.81306667);
+		model.getFullData().put(CTX + ".navigation.position.longitude", -122.44718333);
+		model.getFullData().put(CTX + ".navigation.position.timestamp", "2016-03-30T08:06:18.556Z");
+		model.getFullData().put(CTX + ".navigation.speedOverGround.$source", "nmea.0183.RMC");
+		model.getFullData().put(CTX + ".navigation.speedOverGround.timestamp", "2016-03-30T08:06:18.556Z");
+		model.getFullData().put(CTX + ".navigation.speedOverGround.value", 1.61298375);
+		model.getFullData().put(CTX + ".environment.depth.belowTransducer.$source", "nmea.0183.VHW");
+		model.getFullData().put(CTX + ".environment.depth.belowTransducer.timestamp", "2016-03-30T08:05:46.983Z");
+		model.getFullData().put(CTX + ".environment.depth.belowTransducer.value", 12.5);
+		return model;
+	}
+
+	@Test
+	public void shouldGroupBySourceAndTimestamp() throws IOException {
+		SignalKModel model = getModel();
+		StringBuilder out = new StringBuilder();
+		assertEquals(1, new DeltaEncoder().write(model, out));
+		logger.debug(out);
+		Json delta = Json.read(out.toString());
+		assertEquals(CTX, delta.at("context").asString());
+		List<Json> updates = delta.at("updates").asJsonList();
+		assertEquals(2, updates.size());
+
+		Json vhw = updates.get(0);
+		assertEquals("nmea.0183.VHW", vhw.at("$source").asString());
+		assertEquals("2016-03-30T08:05:46.983Z", vhw.at("timestamp").asString());
+		List<Json> values = vhw.at("values").asJsonList();
+		assertEquals(2, values.size());
+		assertEquals("environment.depth.belowTransducer", values.get(0).at("path").asString());
+		assertEquals(12.5, values.get(0).at("value").asDouble(), 0.00001);
+		assertEquals("navigation.courseOverGroundMagnetic", values.get(1).at("path").asString());
+		assertEquals(5.28834763, values.get(1).at("value").asDouble(), 0.00001);
+		assertFalse(out.toString().contains("HDM"));
+		assertFalse(out.toString().contains("displayName"));
+
+		Json rmc = updates.get(1);
+		assertEquals("nmea.0183.RMC", rmc.at("$source").asString());
+		values = rmc.at("values").asJsonList();
+		assertEquals(2, values.size());
+		assertEquals("navigation.position", values.get(0).at("path").asString());
+		Json val = values.get(0).at("value");
+		assertEquals(-122.44718333d, val.at("longitude").asDouble(), 0.00001);
+		assertEquals(37.81306667d, val.at("latitude").asDouble(), 0.00001);
+		assertEquals(0.0d, val.at("altitude").asDouble(), 0.00001);
+		assertEquals("navigation.speedOverGround", values.get(1).at("path").asString());
+	}
+
+	@Test
+	public void shouldConvertSourceObjects() throws IOException {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		String ctx = "vessels.urn:mrn:signalk:uuid:c42e5095-d3c3-49b6-a317-c633464a4f2b";
+		model.getFullData().put(ctx + ".notifications.navigation.anchor.currentRadius.alarmState", "normal");
+		model.getFullData().put(ctx + ".notifications.navigation.anchor.currentRadius.message", "");
+		model.getFullData().put(ctx + ".navigation.position.altitude", 0.0);
+		model.getFullData().put(ctx + ".navigation.position.latitude", 56.08612787724117);
+		model.getFullData().put(ctx + ".navigation.position.longitude", 21.891184134073562);
+		model.getFullData().put(ctx + ".navigation.position.source.label", "testLabel");
+		model.getFullData().put(ctx + ".navigation.position.source.type", "testType");
+		model.getFullData().put(ctx + ".navigation.position.timestamp", "2016-03-14T08:15:40.418Z");
+		model.getFullData().put(ctx + ".navigation.courseOverGroundTrue.source.label", "testLabel");
+		model.getFullData().put(ctx + ".navigation.courseOverGroundTrue.source.type", "testType");
+		model.getFullData().put(ctx + ".navigation.courseOverGroundTrue.timestamp", "2016-03-14T08:15:40.418Z");
+		model.getFullData().put(ctx + ".navigation.courseOverGroundTrue.value", 1.2);
+
+		StringBuilder out = new StringBuilder();
+		assertEquals(1, new DeltaEncoder().write(model, out));
+		logger.debug(out);
+		Json delta = Json.read(out.toString());
+		List<Json> updates = delta.at("updates").asJsonList();
+		assertEquals(2, updates.size());
+		assertEquals("2016-03-14T08:15:40.418Z", updates.get(0).at("timestamp").asString());
+		assertEquals("testLabel", updates.get(0).at("source").at("label").asString());
+		List<Json> values = updates.get(0).at("values").asJsonList();
+		assertEquals(2, values.size());
+		assertEquals("navigation.courseOverGroundTrue", values.get(0).at("path").asString());
+		assertEquals("navigation.position", values.get(1).at("path").asString());
+		assertEquals(56.08612788d, values.get(1).at("value").at("latitude").asDouble(), 0.00001);
+
+		Json notification = updates.get(1);
+		assertFalse(notification.has("timestamp"));
+		values = notification.at("values").asJsonList();
+		assertEquals("notifications.navigation.anchor.currentRadius", values.get(0).at("path").asString());
+		assertEquals("normal", values.get(0).at("value").at("alarmState").asString());
+	}
+
+	@Test
+	public void shouldWriteOneDeltaPerVessel() throws IOException {
+		SignalKModel model = getModel();
+		model.getFullData().put("vessels.other.navigation.speedOverGround.timestamp", "2016-03-30T08:06:18.556Z");
+		model.getFullData().put("vessels.other.navigation.speedOverGround.value", 2.5);
+		model.getFullData().put("vessels.zzz.name", "zzz");
+		model.getFullData().put("sources.nmea.0183.RMC.talker", "GP");
+
+		DeltaEncoder encoder = new DeltaEncoder();
+		StringBuilder out = new StringBuilder();
+		assertEquals(3, encoder.write(model, out));
+		String[] lines = out.toString().split("\n");
+		assertEquals(3, lines.length);
+		assertEquals("vessels.other", Json.read(lines[0]).at("context").asString());
+		assertEquals(CTX, Json.read(lines[1]).at("context").asString());
+		Json zzz = Json.read(lines[2]);
+		assertEquals("name", zzz.at("updates").at(0).at("values").at(0).at("path").asString());
+		assertEquals("zzz", zzz.at("updates").at(0).at("values").at(0).at("value").asString());
+		assertFalse(out.toString().contains("talker"));
+
+		//reusable, and the same as bytes
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		assertEquals(3, encoder.write(model, bytes));
+		assertEquals(out.toString(), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+
+		assertEquals(0, encoder.write(SignalKModelFactory.getCleanInstance(), new StringBuilder()));
+	}
+
+	@Test
+	public void shouldMatchConverter() throws IOException {
+		SignalKModel model = getModel();
+		//the converter sends the values branch
+		model.getFullData().remove(CTX + ".navigation.courseOverGroundMagnetic.values.nmea.0183.HDM.timestamp");
+		model.getFullData().remove(CTX + ".navigation.courseOverGroundMagnetic.values.nmea.0183.HDM.value");
+		model.getFullData().remove(CTX + ".navigation.courseOverGroundMagnetic.meta.displayName");
+		Json legacy = new FullToDeltaConverter().handle(new JsonSerializer().writeJson(model)).get(0);
+		StringBuilder out = new StringBuilder();
+		new DeltaEncoder().write(model, out);
+		Json delta = Json.read(out.toString());
+		assertEquals(paths(legacy), paths(delta));
+	}
+
+	//the sorted path=value pairs in the delta
+	private String paths(Json delta) {
+		TreeSet<String> set = new TreeSet<String>();
+		for (Json update : delta.at("updates").asJsonList()) {
+			String src = update.has("$source") ? update.at("$source").toString() : update.at("source").toString();
+			for (Json v : update.at("values").asJsonList()) {
+				set.add(src + " " + update.at("timestamp") + " " + v.at("path").asString() + "=" + v.at("value"));
+			}
+		}
+		assertTrue(set.size() > 0);
+		return set.toString();
+	}
+}
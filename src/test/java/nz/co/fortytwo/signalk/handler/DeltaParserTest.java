@@ -0,0 +1,209 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.self;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import mjson.Json;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Test;
+
+public class DeltaParserTest {
+
+	private static Logger logger = LogManager.getLogger(DeltaParserTest.class);
+
+	private static final String SOURCE = "\"source\": {\"type\" : \"n2k\",\"device\" : \"/dev/actisense\",\"timestamp\":\"2014-08-15T16:00:00.081+00:00\",\"src\":\"115\",\"pgn\":\"128267\"}";
+
+	private String[] getDeltas() throws Exception {
+		return new String[] {
+				"{\"context\": \"vessels." + self + ".navigation\",\"updates\":[{\"timestamp\":\"2014-08-15T16:00:00.081+00:00\"," + SOURCE
+						+ ",\"values\": [{ \"path\": \"courseOverGroundTrue\",\"value\": 3.0176 },{ \"path\": \"speedOverGround\",\"value\": 3.85 }]}]}",
+				//values, then source, then context
+				"{\"updates\":[{\"values\":[{\"value\":3.0176,\"path\":\"courseOverGroundTrue\"},{\"value\":3.85,\"path\":\"speedOverGround\"}],\"timestamp\":\"2014-08-15T16:00:00.081+00:00\","
+						+ SOURCE + "}],\"context\":\"vessels." + self + ".navigation\"}",
+				//two updates
+				"{\"context\": \"vessels." + self + "\",\"updates\":[{\"timestamp\":\"2014-08-15T16:00:00.081+00:00\"," + SOURCE
+						+ ",\"values\": [{ \"path\": \"navigation.courseOverGroundTrue\",\"value\": 3.0176 }]},{\"source\":\"sources.nmea.0183.RMC\",\"values\": [{ \"path\": \"navigation.speedThroughWater\",\"value\": 2 },{ \"path\": \"name\",\"value\": \"Mot\\u016b \\\"2\\\"\" },{ \"path\": \"navigation.state\",\"value\": null }]}]}",
+				FileUtils.readFileToString(new File("src/test/resources/samples/anchorWatchSet.json")),
+				FileUtils.readFileToString(new File("src/test/resources/samples/rmcDeltaFormat.json")) };
+	}
+
+	@Test
+	public void shouldParseSameAsConverter() throws Exception {
+		DeltaParser parser = new DeltaParser();
+		DeltaToMapConverter converter = new DeltaToMapConverter();
+		for (String delta : getDeltas()) {
+			SignalKModel expected = converter.handle(Json.read(delta));
+
+			SignalKModel model = SignalKModelFactory.getCleanInstance();
+			assertTrue(parser.parse(delta, new DeltaParser.MapSink(model.getFullData())) > 0);
+			logger.debug(model);
+			assertEquals(expected.getFullData(), model.getFullData());
+
+			model = SignalKModelFactory.getCleanInstance();
+			parser.parse(delta.getBytes(StandardCharsets.UTF_8), new DeltaParser.MapSink(model.getFullData()));
+			assertEquals(expected.getFullData(), model.getFullData());
+
+			ByteBuffer direct = ByteBuffer.allocateDirect(delta.length() * 3);
+			direct.put(delta.getBytes(StandardCharsets.UTF_8));
+			direct.flip();
+			model = SignalKModelFactory.getCleanInstance();
+			parser.parse(direct, new DeltaParser.MapSink(model.getFullData()));
+			assertEquals(expected.getFullData(), model.getFullData());
+			assertEquals(0, direct.position());
+		}
+	}
+
+	@Test
+	public void shouldPutThroughModel() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		model.getFullData().put("vessels.motu.navigation.state.value", "moored");
+		long revision = model.getRevision();
+		DeltaParser.ModelSink sink = new DeltaParser.ModelSink(model);
+		String delta = "{\"context\":\"vessels.motu\",\"updates\":[{\"values\":[{\"path\":\"navigation.position\",\"value\":{\"latitude\":-41.5,\"longitude\":173.25}},"
+				+ "{\"path\":\"navigation.speedOverGround\",\"value\":3},{\"path\":\"navigation.state\",\"value\":null}]," + SOURCE
+				+ ",\"timestamp\":\"2016-03-30T08:06:18.546Z\"}]}";
+		assertEquals(4, new DeltaParser().parse(delta, sink));
+		//nothing is written until the batch is applied
+		assertEquals(revision, model.getRevision());
+		assertFalse(sink.getBatch().isEmpty());
+		assertTrue(sink.apply());
+		assertTrue(sink.getBatch().isEmpty());
+		assertTrue(model.getRevision() > revision);
+
+		assertEquals(3.0, model.getValue("vessels.motu.navigation.speedOverGround"));
+		assertEquals("n2k.115", model.get("vessels.motu.navigation.speedOverGround.$source"));
+		assertEquals("2016-03-30T08:06:18.546Z", model.get("vessels.motu.navigation.speedOverGround.timestamp"));
+		assertEquals(3.0, model.getValue("vessels.motu.navigation.speedOverGround.values.n2k.115"));
+		assertEquals("/dev/actisense", model.get("vessels.motu.navigation.speedOverGround.source.device"));
+
+		assertEquals(-41.5, model.get("vessels.motu.navigation.position.latitude"));
+		assertEquals("n2k.115", model.get("vessels.motu.navigation.position.$source"));
+		assertEquals("2016-03-30T08:06:18.546Z", model.get("vessels.motu.navigation.position.timestamp"));
+		//a null value deletes the key, as for put
+		assertNull(model.get("vessels.motu.navigation.state.value"));
+	}
+
+	@Test
+	public void shouldPassTuplesToSink() throws Exception {
+		final List<String> rslt = new ArrayList<String>();
+		DeltaParser.Sink sink = new DeltaParser.Sink() {
+			@Override
+			public void path(String path, DeltaParser.Update update) {
+			}
+
+			@Override
+			public void value(String path, String field, Object value, DeltaParser.Update update) {
+				rslt.add(path + "|" + field + "|" + value + "|" + update.getSourceRef() + "|" + update.getTimestamp());
+			}
+		};
+		String delta = "{\"context\":\"vessels.motu\",\"updates\":[{\"values\":[{\"path\":\"navigation.position\",\"value\":{\"latitude\":-41.5,\"longitude\":173.25}},"
+				+ "{\"path\":\"navigation.speedOverGround\",\"value\":3}],\"$source\":\"nmea.0183.RMC\",\"timestamp\":\"2016-03-30T08:06:18.546Z\"}]}";
+		assertEquals(3, new DeltaParser().parse(delta, sink));
+		assertEquals("vessels.motu.navigation.position|latitude|-41.5|nmea.0183.RMC|2016-03-30T08:06:18.546Z", rslt.get(0));
+		assertEquals("vessels.motu.navigation.position|longitude|173.25|nmea.0183.RMC|2016-03-30T08:06:18.546Z", rslt.get(1));
+		assertEquals("vessels.motu.navigation.speedOverGround|value|3|nmea.0183.RMC|2016-03-30T08:06:18.546Z", rslt.get(2));
+
+		NavigableMap<String, Object> map = new TreeMap<String, Object>();
+		new DeltaParser().parse(delta, new DeltaParser.MapSink(map));
+		assertEquals("nmea.0183.RMC", map.get("vessels.motu.navigation.speedOverGround.$source"));
+		assertEquals(3L, map.get("vessels.motu.navigation.speedOverGround.value"));
+	}
+
+	@Test
+	public void shouldReadNumbersAsJson() {
+		Random rnd = new Random(11);
+		DeltaParser parser = new DeltaParser();
+		final Object[] last = new Object[1];
+		DeltaParser.Sink sink = new DeltaParser.Sink() {
+			@Override
+			public void path(String path, DeltaParser.Update update) {
+			}
+
+			@Override
+			public void value(String path, String field, Object value, DeltaParser.Update update) {
+				last[0] = value;
+			}
+		};
+		for (int i = 0; i < 20000; i++) {
+			String n;
+			switch (i % 5) {
+			case 0:
+				n = Long.toString(rnd.nextLong() >> rnd.nextInt(64));
+				break;
+			case 1:
+				n = Double.toString(rnd.nextDouble() * Math.pow(10, rnd.nextInt(20) - 10));
+				break;
+			case 2:
+				n = String.format("%." + rnd.nextInt(12) + "f", (rnd.nextDouble() - 0.5) * 1000);
+				break;
+			case 3:
+				n = Double.toString(-rnd.nextGaussian());
+				break;
+			default:
+				n = "12345678901234567890" + (rnd.nextBoolean() ? ".5" : "");
+			}
+			String delta = "{\"context\":\"vessels.motu\",\"updates\":[{\"values\":[{\"path\":\"a\",\"value\":" + n + "}]}]}";
+			parser.parse(delta, sink);
+			Object expected = Json.read("{\"v\":" + n + "}").at("v").getValue();
+			assertEquals(n, expected, last[0]);
+			assertEquals(n, expected.getClass(), last[0].getClass());
+		}
+	}
+
+	@Test
+	public void shouldIgnoreOtherJson() {
+		DeltaParser parser = new DeltaParser();
+		DeltaParser.MapSink sink = new DeltaParser.MapSink(new TreeMap<String, Object>());
+		assertEquals(-1, parser.parse("{\"vessels\":{\"motu\":{\"name\":\"motu\"}}}", sink));
+		assertEquals(-1, parser.parse("{\"context\":\"vessels.motu\"}", sink));
+		assertEquals(-1, parser.parse("{}", sink));
+		assertEquals(0, parser.parse("{\"context\":\"vessels.motu\",\"updates\":[]}", sink));
+		try {
+			parser.parse("{\"context\":\"vessels.motu\",\"updates\":[{\"values\":[{\"path\":\"a\",\"value\":}]}]}", sink);
+			fail("Should have failed");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+}
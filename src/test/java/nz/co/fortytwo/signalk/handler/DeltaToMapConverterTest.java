@@ -36,6 +36,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
@@ -135,6 +136,23 @@ public class DeltaToMapConverterTest {
 		assertEquals("/dev/actisense", output.get(vessels_dot_self_dot + nav_speedOverGround + "." + source + ".device"));
 	}
 
+	@Test
+	public void shouldProcessDiffText() throws Exception {
+		DeltaToMapConverter processor = new DeltaToMapConverter();
+		SignalKModel output = processor.handle(jsonDiff3);
+		logger.debug(output);
+		assertEquals(3.0176, (double) output.getValue(vessels_dot_self_dot + nav_courseOverGroundTrue), 001);
+		assertEquals("2014-08-15T16:00:00.081+00:00", output.get(vessels_dot_self_dot + nav_courseOverGroundTrue + ".timestamp"));
+		assertEquals("/dev/actisense", output.get(vessels_dot_self_dot + nav_courseOverGroundTrue + "." + source + ".device"));
+		//written through the model, so the source is recorded
+		assertEquals("n2k.115", output.get(vessels_dot_self_dot + nav_courseOverGroundTrue + "." + sourceRef));
+		assertEquals(3.85, (double) output.getValue(vessels_dot_self_dot + nav_speedOverGround + ".values.n2k.115"), 001);
+
+		output = processor.handle(jsonDiff3.getBytes(StandardCharsets.UTF_8));
+		assertEquals(3.85, (double) output.getValue(vessels_dot_self_dot + nav_speedOverGround), 001);
+		assertNull(processor.handle("{\"vessels\":{}}"));
+	}
+
 	@Test
 	public void shouldIgnoreSignalKJson() throws Exception {
 		Json diff = Json
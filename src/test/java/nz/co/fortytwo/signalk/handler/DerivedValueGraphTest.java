@@ -0,0 +1,130 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.handler;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_angleApparent;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_directionTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedApparent;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_magneticVariation;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_speedOverGround;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.Test;
+
+public class DerivedValueGraphTest {
+
+	private static final DerivedValueGraph.Calculation NONE = new DerivedValueGraph.Calculation() {
+		@Override
+		public void calculate(SignalKModel model) {
+		}
+	};
+
+	private static void waitFor(SignalKModel model, String key) throws InterruptedException {
+		for (int i = 0; i < 100 && model.getValue(key) == null; i++) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void shouldCalculateTrueWindOnChange() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		DerivedValueGraph graph = new DerivedValueGraph(model);
+		new TrueWindHandler().register(graph);
+		String ts = Util.getIsoTimeString();
+		model.put(vessels_dot_self_dot + nav_speedOverGround, 10.0, "test", ts);
+		model.put(vessels_dot_self_dot + env_wind_angleApparent, Math.toRadians(90), "test", ts);
+		assertNull(model.getValue(vessels_dot_self_dot + env_wind_directionTrue));
+		model.put(vessels_dot_self_dot + env_wind_speedApparent, 10.0, "test", ts);
+		waitFor(model, vessels_dot_self_dot + env_wind_directionTrue);
+		assertEquals(Math.toRadians(135.0), (Double) model.getValue(vessels_dot_self_dot + env_wind_directionTrue), 0.01);
+		assertEquals(14.14, (Double) model.getValue(vessels_dot_self_dot + env_wind_speedTrue), 0.01);
+		//one run per input change, the events are dispatched on another thread
+		for (int i = 0; i < 100 && graph.getRuns("trueWind") < 3; i++) {
+			Thread.sleep(10);
+		}
+		long runs = graph.getRuns("trueWind");
+		assertEquals(3, runs);
+		//not an input
+		model.put(vessels_dot_self_dot + nav_magneticVariation, 0.3, "test", ts);
+		Thread.sleep(50);
+		assertEquals(runs, graph.getRuns("trueWind"));
+		graph.clear();
+		assertEquals(0, graph.size());
+		model.put(vessels_dot_self_dot + nav_speedOverGround, 5.0, "test", ts);
+		Thread.sleep(50);
+		assertEquals(Math.toRadians(135.0), (Double) model.getValue(vessels_dot_self_dot + env_wind_directionTrue), 0.01);
+	}
+
+	@Test
+	public void shouldDebounceDeclination() throws Exception {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		DerivedValueGraph graph = new DerivedValueGraph(model);
+		new DeclinationHandler().register(graph, 100);
+		for (int i = 0; i < 5; i++) {
+			model.putPosition(vessels_dot_self_dot + nav_position, -41.5, 172.5 + i * 0.001, 0.0, "test", Util.getIsoTimeString());
+		}
+		assertEquals(0, graph.getRuns("declination"));
+		waitFor(model, vessels_dot_self_dot + nav_magneticVariation);
+		assertNotNull(model.getValue(vessels_dot_self_dot + nav_magneticVariation));
+		Thread.sleep(150);
+		assertEquals(1, graph.getRuns("declination"));
+	}
+
+	@Test
+	public void shouldRunOncePerPosition() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		DerivedValueGraph graph = new DerivedValueGraph(model);
+		new DeclinationHandler().register(graph, 0);
+		for (int i = 0; i < 5; i++) {
+			model.putPosition(vessels_dot_self_dot + nav_position, -41.5, 172.5 + i * 0.001, 0.0, "test", Util.getIsoTimeString());
+		}
+		//the latitude and longitude are in one batch
+		assertEquals(5, graph.getRuns("declination"));
+		assertNotNull(model.getValue(vessels_dot_self_dot + nav_magneticVariation));
+	}
+
+	@Test
+	public void shouldRefuseCycles() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		DerivedValueGraph graph = new DerivedValueGraph(model);
+		graph.add("a", new String[] { "vessels.self.a" }, new String[] { "vessels.self.b" }, 0, NONE);
+		graph.add("b", new String[] { "vessels.self.b" }, new String[] { "vessels.self.c" }, 0, NONE);
+		try {
+			graph.add("c", new String[] { "vessels.self.c" }, new String[] { "vessels.self.a" }, 0, NONE);
+			fail("Cycle added");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		assertEquals(2, graph.size());
+	}
+}
@@ -5,9 +5,16 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.self;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -64,6 +71,43 @@ public class RestApiHandlerTest {
 		//assertEquals(200, mockedResponse.getStatus());
 	}
 	
+	@Test
+	public void shouldWriteSelfPosition() throws Exception {
+		SignalKModel model = SignalKModelFactory.getMotuTestInstance();
+		RestApiHandler api = new RestApiHandler();
+		
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		model.putAll(TestHelper.getOtherModel().getFullData());
+		
+		HttpServletRequest  mockedRequest = Mockito.mock(HttpServletRequest.class);
+		when(mockedRequest.getPathInfo()).thenReturn(SignalKConstants.SIGNALK_API+vessels+"/"+self+"/"+nav+"/position");
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ServletOutputStream out = new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				bytes.write(b);
+			}
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+			}
+		};
+		HttpServletResponse  mockedResponse = Mockito.mock(HttpServletResponse.class);
+		when(mockedResponse.getOutputStream()).thenReturn(out);
+		assertTrue(api.writeGet(mockedRequest, mockedResponse, model));
+		Json reply = Json.read(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+		logger.debug("Repy="+reply);
+		assertEquals(-41.2936935424d,reply.at(vessels).at(self).at(nav).at("position").at("latitude").asDouble(),0.0001);
+		assertEquals(173.2470855712d,reply.at(vessels).at(self).at(nav).at("position").at("longitude").asDouble(),0.0001);
+		verify(mockedResponse).setStatus(HttpServletResponse.SC_OK);
+		verify(mockedResponse).setContentType("application/json");
+		verify(mockedResponse).setCharacterEncoding("UTF-8");
+	}
+	
 	@Test
 	public void shouldGetOtherPosition() throws Exception {
 		RestApiHandler api = new RestApiHandler();
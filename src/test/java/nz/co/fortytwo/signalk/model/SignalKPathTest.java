@@ -0,0 +1,122 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.self_str;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.util.SignalKConstants;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SignalKPathTest {
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	private String oldSelf;
+
+	@Before
+	public void saveSelf() {
+		oldSelf = SignalKConstants.self;
+		Util.setSelf(self_str);
+	}
+
+	@After
+	public void tearDown() {
+		Util.setSelf(oldSelf);
+	}
+
+	@Test
+	public void shouldInternAndCacheChildren() {
+		SignalKPath path = SignalKPath.get("vessels.self.navigation.courseOverGroundTrue");
+		assertSame(path, SignalKPath.get("vessels.self.navigation.courseOverGroundTrue"));
+		assertEquals(4, path.size());
+		assertEquals("navigation", path.getSegment(2));
+		assertEquals("courseOverGroundTrue", path.getName());
+		assertEquals("vessels.self.navigation.courseOverGroundTrue.value", path.getValueKey());
+		assertEquals("vessels.self.navigation.courseOverGroundTrue.timestamp", path.getTimestampKey());
+		assertEquals("vessels.self.navigation.courseOverGroundTrue." + SignalKConstants.sourceRef, path.getSourceRefKey());
+		assertSame(path.getValues("gps"), path.getValues("gps"));
+		assertEquals("vessels.self.navigation.courseOverGroundTrue.values.gps.value", path.getValues("gps").getValueKey());
+		assertTrue(path.startsWith("vessels.self"));
+		assertTrue(!path.startsWith("vessels.sel"));
+	}
+
+	@Test
+	public void shouldResolveSelf() {
+		SignalKPath path = SignalKPath.get("vessels.self.navigation.courseOverGroundTrue");
+		Util.setSelf("urn:mrn:imo:mmsi:230099999");
+		SignalKPath other = SignalKPath.get("vessels.self.navigation.courseOverGroundTrue");
+		assertNotSame(path, other);
+		assertEquals("vessels.urn:mrn:imo:mmsi:230099999.navigation.courseOverGroundTrue", other.getKey());
+		assertEquals("vessels.urn:mrn:imo:mmsi:230099999", SignalKPath.get("vessels.self").getKey());
+	}
+
+	@Test
+	public void shouldNotKeepAttachedModels() throws Exception {
+		SignalKPath path = SignalKPath.get(vessels_dot_self_dot + nav_courseOverGroundTrue);
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		model.put(path, 245.69, "gps", Util.getIsoTimeString());
+		WeakReference<SignalKModel> ref = new WeakReference<SignalKModel>(model);
+		model = null;
+		for (int i = 0; i < 50 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		//the path is interned, but must not keep the model that attached its source table
+		assertNull(ref.get());
+	}
+
+	@Test
+	public void shouldPutSameAsStringKeys() {
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		SignalKModel other = SignalKModelFactory.getCleanInstance();
+		SignalKPath path = SignalKPath.get(vessels_dot_self_dot + nav_courseOverGroundTrue);
+		String ts = Util.getIsoTimeString();
+		model.put(path, 245.69, "gps", ts);
+		other.put(vessels_dot_self_dot + nav_courseOverGroundTrue, 245.69, "gps", ts);
+		assertEquals(other.getFullData(), model.getFullData());
+		assertEquals(245.69, (Double) model.getValue(path), 0.00001);
+		assertEquals("gps", model.get(SignalKPath.get(path.getSourceRefKey())));
+
+		model.putValue(path, 12.0);
+		assertEquals(12.0, (Double) model.getValue(path), 0.00001);
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import nz.co.fortytwo.signalk.model.event.AsyncSubscriber.Overflow;
+
+import org.junit.Test;
+
+public class AsyncSubscriberTest {
+
+	private static final Executor executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "AsyncSubscriberTest");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * A listener that waits on the latch before taking the first event, so the queue fills
+	 */
+	private static class SlowListener implements PathListener {
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<PathEvent> events = new ArrayList<PathEvent>();
+		final CountDownLatch done;
+
+		SlowListener(int expected) {
+			done = new CountDownLatch(expected);
+		}
+
+		@Override
+		public void onEvent(PathEvent event) {
+			try {
+				start.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (events) {
+				events.add(event);
+			}
+			done.countDown();
+		}
+	}
+
+	private PathEvent event(String path, long revision) {
+		return new PathEvent(path, revision, PathEvent.EventType.ADD);
+	}
+
+	@Test
+	public void shouldDropOldest() throws Exception {
+		SlowListener listener = new SlowListener(4);
+		AsyncSubscriber subscriber = new AsyncSubscriber(listener, 3, Overflow.DROP_OLDEST, executor);
+		//the first is taken by the listener, which then waits
+		subscriber.onEvent(event("a", 0));
+		Thread.sleep(50);
+		for (int i = 1; i <= 5; i++) {
+			subscriber.onEvent(event("a", i));
+		}
+		assertEquals(3, subscriber.getQueueSize());
+		assertEquals(2, subscriber.getDropped());
+		listener.start.countDown();
+		assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, listener.events.get(0).getRevision());
+		assertEquals(3, listener.events.get(1).getRevision());
+		assertEquals(5, listener.events.get(3).getRevision());
+		assertEquals(3, subscriber.getMaxQueueSize());
+		Thread.sleep(50);
+		assertEquals(4, subscriber.getDelivered());
+		assertTrue(subscriber.getMaxLag() >= 50);
+	}
+
+	@Test
+	public void shouldCoalesceByPath() throws Exception {
+		SlowListener listener = new SlowListener(3);
+		AsyncSubscriber subscriber = new AsyncSubscriber(listener, 10, Overflow.COALESCE, executor);
+		subscriber.onEvent(event("a", 0));
+		Thread.sleep(50);
+		for (int i = 1; i <= 10; i++) {
+			subscriber.onEvent(event(i % 2 == 0 ? "a" : "b", i));
+		}
+		assertEquals(2, subscriber.getQueueSize());
+		listener.start.countDown();
+		assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+		//b was queued first, and each has its latest
+		assertEquals("b", listener.events.get(1).getPath());
+		assertEquals(9, listener.events.get(1).getRevision());
+		assertEquals(10, listener.events.get(2).getRevision());
+		assertEquals(0, subscriber.getDropped());
+	}
+
+	@Test
+	public void shouldCoalesceBatchesByKey() throws Exception {
+		SlowListener listener = new SlowListener(4);
+		AsyncSubscriber subscriber = new AsyncSubscriber(listener, 10, Overflow.COALESCE, executor);
+		subscriber.onEvent(event("a", 0));
+		Thread.sleep(50);
+		subscriber.onEvent(new BatchEvent("p", 1, Arrays.asList("p.lat", "p.lon"), new ArrayList<String>()));
+		//a later batch with other keys does not replace p.lon
+		subscriber.onEvent(new BatchEvent("p", 2, Arrays.asList("p.lat", "p.alt"), new ArrayList<String>()));
+		assertEquals(3, subscriber.getQueueSize());
+		listener.start.countDown();
+		assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+		assertEquals("p.lat", listener.events.get(1).getPath());
+		assertEquals(2, listener.events.get(1).getRevision());
+		assertEquals("p.lon", listener.events.get(2).getPath());
+		assertEquals(1, listener.events.get(2).getRevision());
+		assertEquals("p.alt", listener.events.get(3).getPath());
+		assertEquals(0, subscriber.getDropped());
+	}
+
+	@Test
+	public void shouldBlockWhenFull() throws Exception {
+		final SlowListener listener = new SlowListener(4);
+		final AsyncSubscriber subscriber = new AsyncSubscriber(listener, 2, Overflow.BLOCK, executor);
+		Thread writer = new Thread() {
+			public void run() {
+				for (int i = 0; i < 4; i++) {
+					subscriber.onEvent(event("a", i));
+				}
+			}
+		};
+		writer.start();
+		writer.join(200);
+		//one with the listener, two queued, one waiting
+		assertTrue(writer.isAlive());
+		listener.start.countDown();
+		writer.join(5000);
+		assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, subscriber.getDropped());
+		assertEquals(3, listener.events.get(3).getRevision());
+	}
+}
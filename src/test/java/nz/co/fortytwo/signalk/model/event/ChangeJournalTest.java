@@ -0,0 +1,92 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChangeJournalTest {
+
+	private static List<Long> revisions(Iterator<PathEvent> changes) {
+		List<Long> revisions = new ArrayList<Long>();
+		while (changes.hasNext()) {
+			revisions.add(changes.next().getRevision());
+		}
+		return revisions;
+	}
+
+	@Test
+	public void shouldReplayFromRevision() {
+		ChangeJournal journal = new ChangeJournal(6);
+		assertEquals(8, journal.getCapacity());
+		PathEvent change = new PathEvent();
+		for (int r = 1; r <= 5; r++) {
+			change.reset("a.b", r, PathEvent.EventType.ADD);
+			change.setValue(r * 1.5);
+			journal.append(change);
+		}
+		List<Long> revisions = revisions(journal.replayFrom(2));
+		assertEquals(3, revisions.size());
+		assertEquals(3L, (long) revisions.get(0));
+		assertEquals(7.5, journal.replayFrom(4).next().getDouble(), 0.00001);
+		assertTrue(!journal.replayFrom(5).hasNext());
+		assertEquals(5, revisions(journal.replayFrom(0)).size());
+	}
+
+	@Test
+	public void shouldReplayOutOfOrderAppends() {
+		ChangeJournal journal = new ChangeJournal(8);
+		PathEvent change = new PathEvent();
+		//two partitions appending at once
+		for (long r : new long[] { 1, 3, 2, 4, 6, 5 }) {
+			change.reset("a.b", r, PathEvent.EventType.ADD);
+			journal.append(change);
+		}
+		List<Long> revisions = revisions(journal.replayFrom(2));
+		assertEquals(4, revisions.size());
+		assertTrue(revisions.contains(3L));
+		assertTrue(!revisions.contains(2L));
+	}
+
+	@Test
+	public void shouldNotReplayOverwritten() {
+		ChangeJournal journal = new ChangeJournal(4);
+		PathEvent change = new PathEvent();
+		for (int r = 1; r <= 10; r++) {
+			change.reset("a.b", r, PathEvent.EventType.ADD);
+			journal.append(change);
+		}
+		assertEquals(4, journal.size());
+		assertNull(journal.replayFrom(5));
+		assertEquals(4, revisions(journal.replayFrom(6)).size());
+		assertEquals(10, journal.getRevision());
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.event;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_directionTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import nz.co.fortytwo.signalk.model.SignalKPath;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
+import nz.co.fortytwo.signalk.model.impl.SignalKModelImpl;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.eventbus.Subscribe;
+
+public class RingBufferDispatcherTest {
+
+	private static Logger logger = LogManager.getLogger(RingBufferDispatcherTest.class);
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	@Test
+	public void shouldDeliverAllEventsInOrder() throws Exception {
+		final int writers = 4;
+		final int perWriter = 50000;
+		//small ring, so the writers have to wait for the handlers
+		RingBufferDispatcher ring = new RingBufferDispatcher(1024);
+		final long[][] last = new long[2][writers];
+		final int[] counts = new int[2];
+		final int[] batches = new int[2];
+		final boolean[] ordered = { true, true };
+		for (int h = 0; h < 2; h++) {
+			final int handler = h;
+			for (int w = 0; w < writers; w++)
+				last[h][w] = -1;
+			ring.addHandler(new PathEventHandler() {
+				@Override
+				public void onEvent(PathEvent event, long sequence, boolean endOfBatch) {
+					int writer = event.getPath().charAt(0) - 'a';
+					if (event.getRevision() <= last[handler][writer])
+						ordered[handler] = false;
+					last[handler][writer] = event.getRevision();
+					counts[handler]++;
+					if (endOfBatch)
+						batches[handler]++;
+				}
+			});
+		}
+		ring.start();
+		final RingBufferDispatcher dispatcher = ring;
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int w = 0; w < writers; w++) {
+			final String path = String.valueOf((char) ('a' + w));
+			Thread t = new Thread() {
+				public void run() {
+					for (int i = 0; i < perWriter; i++) {
+						dispatcher.dispatch(path, i, PathEvent.EventType.ADD);
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		ring.close();
+		logger.debug("Batches " + batches[0] + ", " + batches[1]);
+		assertEquals(writers * perWriter, ring.getPublished());
+		for (int h = 0; h < 2; h++) {
+			assertEquals(writers * perWriter, counts[h]);
+			assertTrue(ordered[h]);
+			assertTrue(batches[h] > 0 && batches[h] <= counts[h]);
+		}
+	}
+
+	@Test
+	public void shouldPostToEventBusFromRing() throws Exception {
+		SignalKModelImpl model = (SignalKModelImpl) SignalKModelFactory.getCleanInstance();
+		final SignalKPath path = SignalKPath.get(vessels_dot_self_dot + env_wind_directionTrue);
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Thread writer = Thread.currentThread();
+		final List<Thread> subscriberThreads = new ArrayList<Thread>();
+		final List<PathEvent> values = new ArrayList<PathEvent>();
+		model.getEventBus().register(new Object() {
+			@Subscribe
+			public void recordEvent(PathEvent pathEvent) {
+				subscriberThreads.add(Thread.currentThread());
+				if (pathEvent.getPath().equals(path.getValueKey())) {
+					values.add(pathEvent);
+					latch.countDown();
+				}
+			}
+		});
+		RingBufferDispatcher ring = new RingBufferDispatcher(64);
+		ring.addHandler(model.getEventBusDispatcher());
+		ring.start();
+		model.setEventDispatcher(ring);
+		model.putDouble(path, 256.3, "masthead", System.currentTimeMillis());
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertNotSame(writer, subscriberThreads.get(0));
+		//copied out of the slot, with its value
+		assertEquals(256.3, values.get(0).getDouble(), 0.00001);
+		assertEquals("masthead", values.get(0).getSource());
+
+		model.setEventDispatcher(null);
+		ring.close();
+		assertTrue(model.getEventDispatcher() == model.getEventBusDispatcher());
+	}
+}
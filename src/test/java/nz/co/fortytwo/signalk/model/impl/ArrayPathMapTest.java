@@ -0,0 +1,253 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.LATITUDE;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.LONGITUDE;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.TestHelper;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ArrayPathMapTest {
+
+	private static Logger logger = LogManager.getLogger(ArrayPathMapTest.class);
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	private List<String> randomKeys(Random rnd, int count) {
+		String[] segs = { "vessels", "self", "urn:mrn:imo:mmsi:230099999", "urn:mrn:imo:mmsi:230099", "navigation",
+				"position", "latitude", "value", "values", "timestamp", "a", "ab", "b", "abc", "Z", "z0" };
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			int depth = 1 + rnd.nextInt(5);
+			StringBuilder sb = new StringBuilder();
+			for (int d = 0; d < depth; d++) {
+				if (d > 0)
+					sb.append('.');
+				sb.append(segs[rnd.nextInt(segs.length)]);
+			}
+			keys.add(sb.toString());
+		}
+		return keys;
+	}
+
+	@Test
+	public void shouldMatchSkipList() {
+		Random rnd = new Random(42);
+		ArrayPathMap map = new ArrayPathMap(1);
+		NavigableMap<String, Object> list = new ConcurrentSkipListMap<String, Object>();
+		for (String key : randomKeys(rnd, 2000)) {
+			if (rnd.nextInt(4) == 0) {
+				assertEquals(list.remove(key), map.remove(key));
+			} else {
+				assertEquals(list.put(key, key.length()), map.put(key, key.length()));
+			}
+		}
+		assertEquals(list.size(), map.size());
+		assertEquals(new ArrayList<String>(list.keySet()), new ArrayList<String>(map.keySet()));
+		assertEquals(new ArrayList<String>(list.descendingKeySet()), new ArrayList<String>(map.descendingKeySet()));
+		for (String key : randomKeys(rnd, 500)) {
+			assertEquals(list.get(key), map.get(key));
+			assertEquals(list.lowerKey(key), map.lowerKey(key));
+			assertEquals(list.floorKey(key), map.floorKey(key));
+			assertEquals(list.ceilingKey(key), map.ceilingKey(key));
+			assertEquals(list.higherKey(key), map.higherKey(key));
+			assertEquals(list.subMap(key, true, key + ".\uFFFD", true), map.subMap(key, true, key + ".\uFFFD", true));
+			assertEquals(new ArrayList<String>(list.headMap(key, false).descendingKeySet()),
+					new ArrayList<String>(map.headMap(key, false).descendingKeySet()));
+			assertEquals(new ArrayList<String>(list.tailMap(key, true).keySet()),
+					new ArrayList<String>(map.tailMap(key, true).keySet()));
+			assertEquals(new ArrayList<String>(list.tailMap(key, false).descendingKeySet()),
+					new ArrayList<String>(map.tailMap(key, false).descendingKeySet()));
+		}
+		assertEquals(list.toString(), map.toString());
+	}
+
+	@Test
+	public void shouldRejectLeafBranchConflicts() {
+		ArrayPathMap map = new ArrayPathMap();
+		map.putLeaf("a.b.c", 1);
+		try {
+			map.putLeaf("a.b", 2);
+			fail();
+		} catch (IllegalArgumentException e) {
+			logger.debug(e.getMessage());
+		}
+		try {
+			map.putLeaf("a.b.c.d", 2);
+			fail();
+		} catch (IllegalArgumentException e) {
+			logger.debug(e.getMessage());
+		}
+		assertEquals(1, map.putLeaf("a.b.c", 3));
+		map.putLeaf("a.b-c", 4);
+		map.putLeaf("a.bb", 4);
+		map.remove("a.b.c");
+		//the branch is gone, so now its a leaf
+		map.putLeaf("a.b", 5);
+		assertEquals(5, map.get("a.b"));
+		assertNull(map.get("a.b.c"));
+		assertEquals(3, map.size());
+	}
+
+	@Test
+	public void shouldIterateWhileChanging() {
+		ArrayPathMap map = new ArrayPathMap();
+		for (String key : new String[] { "a", "b", "c", "d", "e" }) {
+			map.put(key, key);
+		}
+		Iterator<Entry<String, Object>> it = map.entrySet().iterator();
+		assertEquals("a", it.next().getKey());
+		//removing the next key, and adding one after it, is seen
+		map.remove("b");
+		map.put("bb", "bb");
+		assertEquals("bb", it.next().getKey());
+		it.remove();
+		assertEquals("c", it.next().getKey());
+		assertEquals(4, map.size());
+
+		Iterator<String> desc = map.descendingKeySet().iterator();
+		assertEquals("e", desc.next());
+		desc.remove();
+		assertEquals("d", desc.next());
+		map.put("cc", "cc");
+		assertEquals("cc", desc.next());
+		assertEquals("c", desc.next());
+		assertEquals("a", desc.next());
+		assertFalse(desc.hasNext());
+		assertEquals("[a, c, cc, d]", map.keySet().toString());
+	}
+
+	@Test
+	public void shouldClearForReuse() {
+		ArrayPathMap map = new ArrayPathMap(2);
+		for (int i = 0; i < 5000; i++) {
+			map.put("vessels.v" + i, i);
+		}
+		assertEquals(5000, map.size());
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.firstEntry());
+		map.put("vessels.self.a", 1);
+		assertEquals("vessels.self.a", map.firstKey());
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void shouldWorkAsModelStore() throws Exception {
+		SignalKModel signalk = new SignalKModelImpl(new ArrayPathMap(), true);
+		signalk.putAll(TestHelper.getBasicModel().getFullData());
+		SignalKModel other = SignalKModelFactory.getCleanInstance();
+		other.putAll(TestHelper.getBasicModel().getFullData());
+
+		assertEquals(other.getFullData(), signalk.getFullData());
+		assertEquals(other.getSubMap(vessels_dot_self_dot + env_wind), signalk.getSubMap(vessels_dot_self_dot + env_wind));
+		assertEquals(7.68, (Double) signalk.getValue(vessels_dot_self_dot + env_wind_speedTrue), 0.00001);
+
+		try {
+			signalk.put(vessels_dot_self_dot + nav_position + dot + "latitude.foo", 1.0, "dummy", Util.getIsoTimeString());
+			fail();
+		} catch (IllegalArgumentException e) {
+			logger.debug(e.getMessage());
+		}
+	}
+
+	@Test
+	public void shouldReuseScratchModel() throws Exception {
+		ScratchModel scratch = new ScratchModel();
+		ScratchModel.Builder model = scratch.get();
+		model.putAll(TestHelper.getBasicModel().getFullData());
+		assertTrue(model.getFullData().size() > 0);
+		ScratchModel.Builder next = scratch.get();
+		assertSame(model, next);
+		assertTrue(next.getFullData().isEmpty());
+		next.put(vessels_dot_self_dot + env_wind_speedTrue, 7.68, "dummy", Util.getIsoTimeString());
+		assertEquals(7.68, (Double) next.getValue(vessels_dot_self_dot + env_wind_speedTrue), 0.00001);
+
+		//multiple values, the first source keeps the key
+		next.put(vessels_dot_self_dot + env_wind_speedTrue, 8.0, "other", Util.getIsoTimeString());
+		assertEquals(7.68, (Double) next.getValue(vessels_dot_self_dot + env_wind_speedTrue), 0.00001);
+		assertEquals("dummy", next.get(vessels_dot_self_dot + env_wind_speedTrue + dot + sourceRef));
+		assertEquals(8.0, (Double) next.getValue(vessels_dot_self_dot + env_wind_speedTrue + dot + values + ".other"), 0.00001);
+
+		//the copy is a full model, and is not emptied by the next get()
+		SignalKModel copy = next.toModel();
+		assertEquals(2, copy.getValues(vessels_dot_self_dot + env_wind_speedTrue).size() / 3);
+		assertEquals(0, copy.getRevision());
+		scratch.get();
+		assertEquals(7.68, (Double) copy.getValue(vessels_dot_self_dot + env_wind_speedTrue), 0.00001);
+
+		//each handler has its own model
+		assertTrue(new ScratchModel().get() != next);
+	}
+
+	@Test
+	public void shouldPutPositionInScratchModel() throws Exception {
+		ScratchModel scratch = new ScratchModel();
+		ScratchModel.Builder model = scratch.get();
+		String ts = Util.getIsoTimeString();
+		model.putPosition(vessels_dot_self_dot + nav_position, -41.5, 173.5, 0.0, "dummy", ts);
+		assertEquals(-41.5, (Double) model.get(vessels_dot_self_dot + nav_position + dot + LATITUDE), 0.00001);
+		assertEquals(173.5, (Double) model.get(vessels_dot_self_dot + nav_position + dot + LONGITUDE), 0.00001);
+		assertEquals("dummy", model.get(vessels_dot_self_dot + nav_position + dot + sourceRef));
+		assertEquals(ts, model.get(vessels_dot_self_dot + nav_position + dot + timestamp));
+
+		SignalKModel copy = model.toModel();
+		scratch.get();
+		assertNull(model.get(vessels_dot_self_dot + nav_position + dot + LATITUDE));
+		assertEquals(-41.5, (Double) copy.get(vessels_dot_self_dot + nav_position + dot + LATITUDE), 0.00001);
+		assertEquals(173.5, (Double) copy.get(vessels_dot_self_dot + nav_position + dot + LONGITUDE), 0.00001);
+	}
+}
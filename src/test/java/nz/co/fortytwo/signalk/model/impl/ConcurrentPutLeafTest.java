@@ -0,0 +1,216 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Parallel writers putting leaves and branches over the same few keys, checking no leaf ever ends up with keys below it.
+ */
+public class ConcurrentPutLeafTest {
+
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 2000;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	private interface Writer {
+		void put(String key, Object value);
+
+		void clear();
+
+		NavigableSet<String> keys();
+	}
+
+	//leaves and branches of each other. They all end in .value so the model can write them with putValue
+	private static final String[] KEYS = { "vessels.v1.a.value", "vessels.v1.a.value.value", "vessels.v1.a.value.value.value",
+			"vessels.v1.a.value.b.value", "vessels.v1.value", "vessels.v1.value.value", "config.a.value", "config.a.value.value" };
+
+	/**
+	 * Each round the writers race to put a few of the keys into an empty store, then the store is checked and cleared.
+	 * Returns the number of puts refused as conflicts.
+	 */
+	private int stress(final Writer writer) throws Exception {
+		final AtomicInteger conflicts = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CyclicBarrier barrier = new CyclicBarrier(THREADS, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					assertLeaves(writer.keys());
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+				writer.clear();
+			}
+		});
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final Random rnd = new Random(t);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int r = 0; r < ROUNDS && failure.get() == null; r++) {
+							barrier.await();
+							for (int i = 0; i < 3; i++) {
+								try {
+									writer.put(KEYS[rnd.nextInt(KEYS.length)], (double) r);
+								} catch (IllegalArgumentException e) {
+									conflicts.incrementAndGet();
+								}
+							}
+						}
+						barrier.await();
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+						barrier.reset();
+					}
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join(60000);
+		}
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+		return conflicts.get();
+	}
+
+	private static void assertLeaves(NavigableSet<String> keys) {
+		for (String key : keys) {
+			String below = keys.higher(key + ".");
+			if (below != null && below.startsWith(key + "."))
+				throw new AssertionError(key + " has " + below);
+		}
+	}
+
+	@Test
+	public void shouldKeepLeavesInTrie() throws Exception {
+		final PathTrieMap map = new PathTrieMap();
+		assertTrue(stress(new Writer() {
+			@Override
+			public void put(String key, Object value) {
+				map.putLeaf(key, value);
+			}
+
+			@Override
+			public void clear() {
+				map.clear();
+			}
+
+			@Override
+			public NavigableSet<String> keys() {
+				return map.navigableKeySet();
+			}
+		}) > 0);
+	}
+
+	@Test
+	public void shouldKeepLeavesInPartitions() throws Exception {
+		final PartitionedPathMap map = new PartitionedPathMap();
+		assertTrue(stress(new Writer() {
+			@Override
+			public void put(String key, Object value) {
+				map.putLeaf(key, value);
+			}
+
+			@Override
+			public void clear() {
+				map.clear();
+			}
+
+			@Override
+			public NavigableSet<String> keys() {
+				return map.navigableKeySet();
+			}
+		}) > 0);
+	}
+
+	@Test
+	public void shouldKeepLeavesInPersistentMap() throws Exception {
+		final PersistentPathMap map = new PersistentPathMap();
+		assertTrue(stress(new Writer() {
+			@Override
+			public void put(String key, Object value) {
+				map.putLeaf(key, value);
+			}
+
+			@Override
+			public void clear() {
+				map.clear();
+			}
+
+			@Override
+			public NavigableSet<String> keys() {
+				return map.navigableKeySet();
+			}
+		}) > 0);
+	}
+
+	@Test
+	public void shouldKeepLeavesInModel() throws Exception {
+		for (final SignalKModel model : new SignalKModel[] { SignalKModelFactory.getCleanInstance(),
+				SignalKModelFactory.getPartitionedInstance() }) {
+			assertTrue(stress(new Writer() {
+				@Override
+				public void put(String key, Object value) {
+					model.putValue(key.substring(0, key.length() - ".value".length()), value);
+				}
+
+				@Override
+				public void clear() {
+					for (String context : new String[] { "vessels", "config" }) {
+						model.put(context, null, "test");
+					}
+				}
+
+				@Override
+				public NavigableSet<String> keys() {
+					return model.getKeys();
+				}
+			}) > 0);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.util.TestHelper;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.eventbus.Subscribe;
+
+public class PartitionedPathMapTest {
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	@Test
+	public void shouldFindContext() {
+		assertEquals("vessels.self", PartitionedPathMap.contextOf("vessels.self.navigation.position"));
+		assertEquals("vessels.self", PartitionedPathMap.contextOf("vessels.self"));
+		assertEquals("vessels", PartitionedPathMap.contextOf("vessels"));
+		assertEquals("sources", PartitionedPathMap.contextOf("sources.gps.value"));
+		assertEquals("config", PartitionedPathMap.contextOf("config.server.version"));
+	}
+
+	@Test
+	public void shouldMatchSkipList() {
+		Random rnd = new Random(42);
+		String[] tops = { "vessels.self", "vessels.urn:mrn:imo:mmsi:230099999", "vessels.urn:mrn:imo:mmsi:230099",
+				"vessels.urn:mrn:imo:mmsi:2300999", "sources", "resources", "config" };
+		String[] segs = { "navigation", "position", "latitude", "value", "values", "a", "ab", "b", "Z" };
+		PartitionedPathMap map = new PartitionedPathMap();
+		NavigableMap<String, Object> list = new ConcurrentSkipListMap<String, Object>();
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 2000; i++) {
+			StringBuilder sb = new StringBuilder(tops[rnd.nextInt(tops.length)]);
+			for (int d = 1 + rnd.nextInt(3); d > 0; d--) {
+				sb.append('.').append(segs[rnd.nextInt(segs.length)]);
+			}
+			String key = sb.toString();
+			keys.add(key);
+			if (rnd.nextInt(4) == 0) {
+				assertEquals(list.remove(key), map.remove(key));
+			} else {
+				assertEquals(list.put(key, i), map.put(key, i));
+			}
+		}
+		assertEquals(list.size(), map.size());
+		assertEquals(new ArrayList<String>(list.keySet()), new ArrayList<String>(map.keySet()));
+		assertEquals(new ArrayList<String>(list.descendingKeySet()), new ArrayList<String>(map.descendingKeySet()));
+		for (String key : keys.subList(0, 200)) {
+			assertEquals(list.get(key), map.get(key));
+			assertEquals(list.lowerKey(key), map.lowerKey(key));
+			assertEquals(list.higherKey(key), map.higherKey(key));
+			for (String top : tops) {
+				assertEquals(list.subMap(top, true, top + ".\uFFFD", true), map.subMap(top, true, top + ".\uFFFD", true));
+			}
+			assertEquals(new ArrayList<String>(list.headMap(key, false).descendingKeySet()),
+					new ArrayList<String>(map.headMap(key, false).descendingKeySet()));
+		}
+		assertNull(map.get("vessels.nobody.navigation"));
+	}
+
+	@Test
+	public void shouldIngestInParallel() throws Exception {
+		final SignalKModel signalk = SignalKModelFactory.getPartitionedInstance();
+		signalk.putAll(TestHelper.getBasicModel().getFullData());
+		final AtomicInteger selfEvents = new AtomicInteger();
+		signalk.getEventBus("vessels.self").register(new Object() {
+			@Subscribe
+			public void recordEvent(PathEvent pathEvent) {
+				selfEvents.incrementAndGet();
+			}
+		});
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final String vessel = "vessels.urn:mrn:imo:mmsi:23009999" + t;
+			threads.add(new Thread() {
+				public void run() {
+					for (int i = 0; i < 500; i++) {
+						signalk.putPosition(vessel + "." + nav_position, -41.0 + i / 1000.0, 173.0, 0.0, "ais",
+								Util.getIsoTimeString());
+					}
+				}
+			});
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		assertEquals(0, selfEvents.get());
+		for (int t = 0; t < 4; t++) {
+			assertEquals(-40.501, (Double) signalk.get("vessels.urn:mrn:imo:mmsi:23009999" + t + "." + nav_position
+					+ ".latitude"), 0.00001);
+		}
+		signalk.putValue(vessels_dot_self_dot + env_wind_speedTrue, 12.0);
+		assertEquals(1, selfEvents.get());
+		assertEquals(15, signalk.getSubMap(vessels_dot_self_dot + env_wind).size());
+	}
+
+	@Test
+	public void shouldRemoveSubtree() {
+		PartitionedPathMap map = new PartitionedPathMap();
+		for (String key : new String[] { "vessels.a.x", "vessels.a.y.z", "vessels.a-1.x", "vessels.ab.x", "vessels.b.x" }) {
+			map.put(key, 1);
+		}
+		List<String> removed = new ArrayList<String>();
+		assertEquals(2, map.removeSubtree("vessels.a", removed));
+		assertEquals(2, removed.size());
+		assertTrue(removed.contains("vessels.a.y.z"));
+		assertEquals(3, map.size());
+		assertEquals("vessels.a-1.x", map.firstKey());
+		assertNull(map.get("vessels.a.x"));
+		assertEquals(0, map.removeSubtree("vessels.a", null));
+		//the whole partition goes
+		assertEquals(3, map.getContexts().size());
+		map.put("vessels.a.x", 1);
+		assertEquals(1, map.removeSubtree("vessels.a", null));
+		assertEquals(3, map.getContexts().size());
+		//a leaf
+		assertEquals(1, map.removeSubtree("vessels.b.x", null));
+		assertEquals(2, map.size());
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.dot;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.TestHelper;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PathTrieMapTest {
+
+	private static Logger logger = LogManager.getLogger(PathTrieMapTest.class);
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	private List<String> randomKeys(Random rnd, int count) {
+		String[] segs = { "vessels", "self", "urn:mrn:imo:mmsi:230099999", "urn:mrn:imo:mmsi:230099", "navigation",
+				"position", "latitude", "value", "values", "timestamp", "a", "ab", "b", "abc", "Z", "z0" };
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			int depth = 1 + rnd.nextInt(5);
+			StringBuilder sb = new StringBuilder();
+			for (int d = 0; d < depth; d++) {
+				if (d > 0)
+					sb.append('.');
+				sb.append(segs[rnd.nextInt(segs.length)]);
+			}
+			keys.add(sb.toString());
+		}
+		return keys;
+	}
+
+	@Test
+	public void shouldMatchSkipList() {
+		Random rnd = new Random(42);
+		PathTrieMap trie = new PathTrieMap();
+		NavigableMap<String, Object> list = new ConcurrentSkipListMap<String, Object>();
+		for (String key : randomKeys(rnd, 2000)) {
+			if (rnd.nextInt(4) == 0) {
+				assertEquals(list.remove(key), trie.remove(key));
+			} else {
+				assertEquals(list.put(key, key.length()), trie.put(key, key.length()));
+			}
+		}
+		assertEquals(list.size(), trie.size());
+		assertEquals(new ArrayList<String>(list.keySet()), new ArrayList<String>(trie.keySet()));
+		assertEquals(new ArrayList<String>(list.descendingKeySet()), new ArrayList<String>(trie.descendingKeySet()));
+		for (String key : randomKeys(rnd, 500)) {
+			assertEquals(list.get(key), trie.get(key));
+			assertEquals(list.lowerKey(key), trie.lowerKey(key));
+			assertEquals(list.floorKey(key), trie.floorKey(key));
+			assertEquals(list.ceilingKey(key), trie.ceilingKey(key));
+			assertEquals(list.higherKey(key), trie.higherKey(key));
+			assertEquals(list.subMap(key, true, key + ".\uFFFD", true), trie.subMap(key, true, key + ".\uFFFD", true));
+			assertEquals(new ArrayList<String>(list.headMap(key, false).descendingKeySet()),
+					new ArrayList<String>(trie.headMap(key, false).descendingKeySet()));
+			assertEquals(new ArrayList<String>(list.tailMap(key, true).keySet()),
+					new ArrayList<String>(trie.tailMap(key, true).keySet()));
+		}
+		assertEquals(list.toString(), trie.toString());
+	}
+
+	@Test
+	public void shouldRejectLeafBranchConflicts() {
+		PathTrieMap trie = new PathTrieMap();
+		trie.putLeaf("a.b.c", 1);
+		try {
+			trie.putLeaf("a.b", 2);
+			fail();
+		} catch (IllegalArgumentException e) {
+			logger.debug(e.getMessage());
+		}
+		try {
+			trie.putLeaf("a.b.c.d", 2);
+			fail();
+		} catch (IllegalArgumentException e) {
+			logger.debug(e.getMessage());
+		}
+		assertEquals(1, trie.putLeaf("a.b.c", 3));
+		trie.putLeaf("a.bb", 4);
+		trie.remove("a.b.c");
+		//the branch is gone, so now its a leaf
+		trie.putLeaf("a.b", 5);
+		assertEquals(5, trie.get("a.b"));
+		assertNull(trie.get("a.b.c"));
+	}
+
+	@Test
+	public void shouldKeepViewsLive() {
+		PathTrieMap trie = new PathTrieMap();
+		NavigableMap<String, Object> sub = trie.subMap("vessels.self", true, "vessels.self.\uFFFD", true);
+		assertTrue(sub.isEmpty());
+		trie.put("vessels.self.navigation.position.latitude", 1.0);
+		trie.put("vessels.selfish.navigation.position.latitude", 1.0);
+		trie.put("vessels.other.navigation.position.latitude", 1.0);
+		assertEquals(1, sub.size());
+		assertEquals("vessels.self.navigation.position.latitude", sub.firstKey());
+		sub.clear();
+		assertEquals(2, trie.size());
+	}
+
+	@Test
+	public void shouldWorkAsModelStore() throws Exception {
+		SignalKModel signalk = SignalKModelFactory.getTrieInstance();
+		signalk.putAll(TestHelper.getBasicModel().getFullData());
+		SignalKModel other = SignalKModelFactory.getCleanInstance();
+		other.putAll(TestHelper.getBasicModel().getFullData());
+
+		assertEquals(other.getFullData(), signalk.getFullData());
+		assertEquals(other.getSubMap(vessels_dot_self_dot + env_wind), signalk.getSubMap(vessels_dot_self_dot + env_wind));
+		assertEquals(7.68, (Double) signalk.getValue(vessels_dot_self_dot + env_wind_speedTrue), 0.00001);
+
+		try {
+			signalk.put(vessels_dot_self_dot + nav_position + dot + "latitude.foo", 1.0, "dummy", Util.getIsoTimeString());
+			fail();
+		} catch (IllegalArgumentException e) {
+			logger.debug(e.getMessage());
+		}
+	}
+
+	@Test
+	public void shouldRemoveSubtree() {
+		PathTrieMap map = new PathTrieMap();
+		for (String key : new String[] { "vessels.a.x", "vessels.a.y.z", "vessels.a-1.x", "vessels.ab.x", "vessels.b.x" }) {
+			map.put(key, 1);
+		}
+		List<String> removed = new ArrayList<String>();
+		assertEquals(2, map.removeSubtree("vessels.a", removed));
+		assertEquals(2, removed.size());
+		assertTrue(removed.contains("vessels.a.y.z"));
+		assertEquals(3, map.size());
+		assertEquals("vessels.a-1.x", map.firstKey());
+		assertNull(map.get("vessels.a.x"));
+		assertEquals(0, map.removeSubtree("vessels.a", null));
+		//a leaf
+		assertEquals(1, map.removeSubtree("vessels.b.x", null));
+		assertEquals(2, map.size());
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.JsonSerializer;
+import nz.co.fortytwo.signalk.util.TestHelper;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PersistentPathMapTest {
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	@Test
+	public void shouldMatchSkipList() {
+		Random rnd = new Random(42);
+		String[] segs = { "vessels", "self", "navigation", "position", "latitude", "value", "values", "a", "ab", "b", "Z" };
+		PersistentPathMap map = new PersistentPathMap();
+		NavigableMap<String, Object> list = new ConcurrentSkipListMap<String, Object>();
+		for (int i = 0; i < 3000; i++) {
+			StringBuilder sb = new StringBuilder(segs[rnd.nextInt(segs.length)]);
+			for (int d = rnd.nextInt(4); d > 0; d--) {
+				sb.append('.').append(segs[rnd.nextInt(segs.length)]);
+			}
+			String key = sb.toString();
+			if (rnd.nextInt(4) == 0) {
+				assertEquals(list.remove(key), map.remove(key));
+			} else {
+				assertEquals(list.put(key, i), map.put(key, i));
+			}
+			assertEquals(list.size(), map.size());
+			assertEquals(list.higherKey(key), map.higherKey(key));
+			assertEquals(list.lowerKey(key), map.lowerKey(key));
+		}
+		assertEquals(new ArrayList<String>(list.keySet()), new ArrayList<String>(map.keySet()));
+		assertEquals(new ArrayList<String>(list.descendingKeySet()), new ArrayList<String>(map.descendingKeySet()));
+		assertEquals(list.subMap("a", true, "vessels.\uFFFD", false), map.subMap("a", true, "vessels.\uFFFD", false));
+		assertEquals(new ArrayList<String>(list.headMap("b", true).descendingKeySet()),
+				new ArrayList<String>(map.headMap("b", true).descendingKeySet()));
+		assertEquals(list.toString(), map.toString());
+	}
+
+	@Test
+	public void shouldNotChangeSnapshot() {
+		PersistentPathMap map = new PersistentPathMap();
+		map.put("a.b", 1);
+		map.put("a.c", 2);
+		PersistentPathMap snapshot = map.snapshot();
+		map.put("a.b", 3);
+		map.remove("a.c");
+		map.put("a.d", 4);
+		assertEquals(1, snapshot.get("a.b"));
+		assertEquals(2, snapshot.get("a.c"));
+		assertNull(snapshot.get("a.d"));
+		assertEquals(2, snapshot.size());
+		assertEquals(2, map.size());
+		try {
+			snapshot.put("a.e", 5);
+			fail();
+		} catch (UnsupportedOperationException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void shouldSnapshotModel() throws Exception {
+		SignalKModel signalk = SignalKModelFactory.getCopyOnWriteInstance();
+		signalk.putAll(TestHelper.getBasicModel().getFullData());
+		SignalKModel other = SignalKModelFactory.getCleanInstance();
+		other.putAll(TestHelper.getBasicModel().getFullData());
+		assertEquals(other.getFullData(), signalk.getFullData());
+
+		signalk.putPosition(vessels_dot_self_dot + nav_position, -41.2, 173.2, 0.0, "gps", Util.getIsoTimeString());
+		SignalKModel snapshot = signalk.snapshot();
+		SignalKModel copy = other.snapshot();
+		assertEquals(signalk.getRevision(), snapshot.getRevision());
+		String json = new JsonSerializer().write(snapshot);
+
+		signalk.putValue(vessels_dot_self_dot + env_wind_speedTrue, 12.0);
+		signalk.putPosition(vessels_dot_self_dot + nav_position, -42.0, 174.0, 0.0, "gps", Util.getIsoTimeString());
+		other.putValue(vessels_dot_self_dot + env_wind_speedTrue, 12.0);
+		assertEquals(7.68, (Double) snapshot.getValue(vessels_dot_self_dot + env_wind_speedTrue), 0.00001);
+		assertEquals(7.68, (Double) copy.getValue(vessels_dot_self_dot + env_wind_speedTrue), 0.00001);
+		assertEquals(-41.2, (Double) snapshot.get(vessels_dot_self_dot + nav_position + ".latitude"), 0.00001);
+		assertEquals(json, new JsonSerializer().write(snapshot));
+		assertTrue(signalk.getRevision() > snapshot.getRevision());
+	}
+
+	@Test
+	public void shouldRemoveSubtree() {
+		PersistentPathMap map = new PersistentPathMap();
+		for (String key : new String[] { "vessels.a.x", "vessels.a.y.z", "vessels.a-1.x", "vessels.ab.x", "vessels.b.x" }) {
+			map.put(key, 1);
+		}
+		List<String> removed = new ArrayList<String>();
+		assertEquals(2, map.removeSubtree("vessels.a", removed));
+		assertEquals(2, removed.size());
+		assertTrue(removed.contains("vessels.a.y.z"));
+		assertEquals(3, map.size());
+		assertEquals("vessels.a-1.x", map.firstKey());
+		assertNull(map.get("vessels.a.x"));
+		assertEquals(0, map.removeSubtree("vessels.a", null));
+		//a leaf
+		assertEquals(1, map.removeSubtree("vessels.b.x", null));
+		assertEquals(2, map.size());
+	}
+}
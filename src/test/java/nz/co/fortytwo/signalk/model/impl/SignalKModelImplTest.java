@@ -32,11 +32,14 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_directionTru
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_course;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.values;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_course_activeRoute;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedApparent;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_altitude;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.self;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.sourceRef;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.timestamp;
@@ -51,11 +54,22 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NavigableMap;
 import java.util.SortedMap;
 
+import mjson.Json;
 import nz.co.fortytwo.signalk.model.Attr;
 import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.model.SignalKPath;
+import nz.co.fortytwo.signalk.model.UpdateBatch;
+import nz.co.fortytwo.signalk.model.event.BatchEvent;
+import nz.co.fortytwo.signalk.model.event.ChangeJournal;
+import nz.co.fortytwo.signalk.model.event.PathEvent;
+import nz.co.fortytwo.signalk.model.event.PathListener;
+import nz.co.fortytwo.signalk.model.event.SubscriptionPolicy;
 import nz.co.fortytwo.signalk.util.JsonSerializer;
 import nz.co.fortytwo.signalk.util.TestHelper;
 import nz.co.fortytwo.signalk.util.Util;
@@ -65,6 +79,8 @@ import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.common.eventbus.Subscribe;
+
 public class SignalKModelImplTest {
 
 	private static Logger logger = LogManager.getLogger(SignalKModelImplTest.class);
@@ -244,6 +260,600 @@ public class SignalKModelImplTest {
 		//assertEquals(ts, signalk.get(vessels_dot_self_dot+ env_wind_directionTrue+dot+timestamp));
 		//assertEquals("masthead", signalk.get(vessels_dot_self_dot+ env_wind_directionTrue+dot+source));
 	}
+	@Test
+	public void shouldPutDoubleInPlace(){
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		SignalKPath path = SignalKPath.get(vessels_dot_self_dot+ env_wind_directionTrue);
+		assertTrue(Double.isNaN(signalk.getDouble(path)));
+		
+		String ts = Util.getIsoTimeString();
+		assertTrue(signalk.putDouble(path, 256.3, "masthead", ts));
+		Object slot = ((SignalKModelImpl) signalk).getStored(path.getValueKey());
+		assertTrue(slot instanceof NumericSlot);
+		//readers of the map get the value, not the slot
+		Object read = signalk.getFullData().get(path.getValueKey());
+		assertEquals(Double.valueOf(256.3), read);
+		assertEquals(256.3, (Double) signalk.getSubMap(path.getKey()).get(path.getValueKey()), 0.000001);
+		assertEquals(256.3, signalk.getDouble(path), 0.000001);
+		assertEquals(256.3, (Double) signalk.getValue(path), 0.000001);
+		assertEquals("masthead", signalk.get(vessels_dot_self_dot+ env_wind_directionTrue+dot+sourceRef));
+		
+		//same slot, updated in place
+		signalk.putDouble(path, 250.0, "masthead", ts);
+		assertTrue(slot == ((SignalKModelImpl) signalk).getStored(path.getValueKey()));
+		assertEquals(Double.valueOf(256.3), read);
+		assertEquals(Double.valueOf(250.0), signalk.getSubMap(path.getValueKey()).firstEntry().getValue());
+		assertEquals(250.0, signalk.getDouble(path), 0.000001);
+		assertEquals(250.0, ((Number) signalk.getValues(vessels_dot_self_dot+ env_wind_directionTrue)
+				.get(path.getValues("masthead").getValueKey())).doubleValue(), 0.000001);
+		//a boxed put replaces the slot
+		signalk.put(path, 240.0, "masthead", ts);
+		assertEquals(240.0, signalk.getDouble(path), 0.000001);
+	}
+	
+	@Test
+	public void shouldBoundSources(){
+		SignalKModelImpl signalk = (SignalKModelImpl) SignalKModelFactory.getCleanInstance();
+		signalk.setSourceLimits(2, 0);
+		String key = vessels_dot_self_dot+ env_wind_directionTrue;
+		SignalKPath path = SignalKPath.get(key);
+		String ts = "2016-03-30T08:05:38.546Z";
+		signalk.put(key, 256.3, "masthead", ts);
+		signalk.put(key, 250.0, "bow", ts);
+		signalk.put(key, "calm", "stern", ts);
+		//the values are read from the source table
+		assertEquals(250.0, signalk.get(path.getValues("bow").getValueKey()));
+		assertNull(signalk.get(path.getValues("masthead").getValueKey()));
+		assertEquals(9, signalk.getSubMap(key).size());
+		
+		NavigableMap<String, Object> values = signalk.getValues(key);
+		assertEquals(6, values.size());
+		//masthead was quiet longest so made way for stern
+		assertNull(values.get(path.getValues("masthead").getValueKey()));
+		assertEquals(250.0, ((Number) values.get(path.getValues("bow").getValueKey())).doubleValue(), 0.000001);
+		assertEquals("calm", values.get(path.getValues("stern").getValueKey()));
+		assertEquals(ts, values.get(path.getValues("stern").getTimestampKey()));
+		assertEquals("stern", values.get(path.getValues("stern").getSourceRefKey()));
+		
+		//a ttl drops quiet sources
+		signalk.setSourceLimits(2, 100);
+		try {
+			Thread.sleep(120);
+		} catch (InterruptedException e) {
+			fail();
+		}
+		assertTrue(signalk.getValues(key).isEmpty());
+		signalk.put(key, 251.0, "bow", ts);
+		assertEquals(3, signalk.getValues(key).size());
+		
+		//deleting the key drops its sources
+		signalk.put(key, null, "bow", ts);
+		assertTrue(signalk.getValues(key).isEmpty());
+	}
+	
+	@Test
+	public void shouldArbitrateSources() throws InterruptedException{
+		SignalKModelImpl signalk = (SignalKModelImpl) SignalKModelFactory.getCleanInstance();
+		SignalKPath path = SignalKPath.get(vessels_dot_self_dot+ nav_courseOverGroundTrue);
+		SourceArbiter arbiter = signalk.getSourceArbiter();
+		arbiter.setPriority(path.getKey(), "gps1", "gps2");
+		arbiter.setTimeout(200);
+		arbiter.setHysteresis(100);
+		
+		//first source takes the key
+		signalk.putDouble(path, 2.0, "gps2", System.currentTimeMillis());
+		assertEquals("gps2", signalk.get(path.getSourceRefKey()));
+		//the better source has to be sending for the hysteresis first
+		signalk.putDouble(path, 1.0, "gps1", System.currentTimeMillis());
+		assertEquals(2.0, signalk.getDouble(path), 0.000001);
+		Thread.sleep(120);
+		signalk.putDouble(path, 1.1, "gps1", System.currentTimeMillis());
+		assertEquals(1.1, signalk.getDouble(path), 0.000001);
+		assertEquals("gps1", signalk.get(path.getSourceRefKey()));
+		signalk.putDouble(path, 2.1, "gps2", System.currentTimeMillis());
+		assertEquals(1.1, signalk.getDouble(path), 0.000001);
+		//both are still in the values
+		assertEquals(6, signalk.getValues(path.getKey()).size());
+		
+		//gps1 goes quiet, so gps2 takes over
+		Thread.sleep(250);
+		signalk.putDouble(path, 2.2, "gps2", System.currentTimeMillis());
+		assertEquals(2.2, signalk.getDouble(path), 0.000001);
+		assertEquals("gps2", signalk.get(path.getSourceRefKey()));
+		
+		//no priorities, the first source keeps it
+		SignalKPath other = SignalKPath.get(vessels_dot_self_dot+ env_wind_directionTrue);
+		signalk.put(other, 256.3, "masthead", System.currentTimeMillis());
+		signalk.put(other, 250.0, "bow", System.currentTimeMillis());
+		assertEquals(256.3, (Double) signalk.getValue(other), 0.000001);
+	}
+	
+	@Test
+	public void shouldSubscribeToPaths(){
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		final List<PathEvent> wind = new ArrayList<PathEvent>();
+		final List<PathEvent> speed = new ArrayList<PathEvent>();
+		final List<PathEvent> self = new ArrayList<PathEvent>();
+		PathListener windListener = new PathListener() {
+			@Override
+			public void onEvent(PathEvent event) {
+				wind.add(event);
+			}
+		};
+		PathListener selfListener = new PathListener() {
+			@Override
+			public void onEvent(PathEvent event) {
+				self.add(event);
+			}
+		};
+		signalk.subscribe(vessels_dot_self_dot+env_wind, windListener);
+		signalk.subscribe("vessels.*.navigation.speed*", new PathListener() {
+			@Override
+			public void onEvent(PathEvent event) {
+				speed.add(event);
+			}
+		});
+		//twice, but only called once per event
+		signalk.subscribe(vessels_dot_self, selfListener);
+		signalk.subscribe(vessels_dot_self_dot+"environment", selfListener);
+		
+		String ts = Util.getIsoTimeString();
+		signalk.put(vessels_dot_self_dot+ env_wind_directionTrue, 256.3, "masthead", ts);
+		assertEquals(3, wind.size());
+		assertEquals(0, speed.size());
+		assertEquals(3, self.size());
+		
+		signalk.put("vessels.other.navigation.speedOverGround", 3.2, "ais", ts);
+		signalk.put("vessels.other.navigation.courseOverGroundTrue", 1.2, "ais", ts);
+		assertEquals(3, speed.size());
+		assertEquals(3, wind.size());
+		assertEquals(3, self.size());
+		
+		//a batch arrives once
+		signalk.update(new UpdateBatch()
+			.put(vessels_dot_self_dot+ env_wind_directionTrue, 250.0, "masthead", ts)
+			.put(vessels_dot_self_dot+ env_wind_speedTrue, 7.68, "masthead", ts));
+		assertEquals(4, wind.size());
+		assertTrue(wind.get(3) instanceof BatchEvent);
+		
+		assertTrue(signalk.unsubscribe(vessels_dot_self_dot+env_wind, windListener));
+		assertTrue(!signalk.unsubscribe(vessels_dot_self_dot+env_wind, windListener));
+		signalk.put(vessels_dot_self_dot+ env_wind_directionTrue, 240.0, "masthead", ts);
+		assertEquals(4, wind.size());
+		assertEquals(5, self.size());
+	}
+	
+	@Test
+	public void shouldCoalesceSubscriptions() throws Exception{
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		SignalKPath path = SignalKPath.get(vessels_dot_self_dot+ env_wind_directionTrue);
+		final List<PathEvent> latest = new ArrayList<PathEvent>();
+		final List<PathEvent> changes = new ArrayList<PathEvent>();
+		signalk.subscribe(path.getValueKey(), new PathListener() {
+			@Override
+			public void onEvent(PathEvent event) {
+				synchronized (latest) {
+					latest.add(event);
+				}
+			}
+		}, SubscriptionPolicy.latestValue(200));
+		signalk.subscribe(path.getValueKey(), new PathListener() {
+			@Override
+			public void onEvent(PathEvent event) {
+				synchronized (changes) {
+					changes.add(event);
+				}
+			}
+		}, SubscriptionPolicy.onChange(1.0, 0));
+		
+		//the first is delivered at once, the rest coalesce to the last
+		for(int x=0; x<20; x++){
+			signalk.putDouble(path, 256.0 + x*0.1, "masthead", System.currentTimeMillis());
+		}
+		synchronized (latest) {
+			assertEquals(1, latest.size());
+		}
+		Thread.sleep(400);
+		synchronized (latest) {
+			assertEquals(2, latest.size());
+		}
+		//256.0 then 257.0, the steps in between are under the threshold
+		synchronized (changes) {
+			assertEquals(2, changes.size());
+		}
+		assertEquals(257.9, (Double) signalk.getValue(path), 0.00001);
+	}
+	
+	@Test
+	public void shouldSplitBatchesForSubscriptions(){
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		final List<String> changes = new ArrayList<String>();
+		signalk.subscribe(vessels_dot_self_dot+nav_position, new PathListener() {
+			@Override
+			public void onEvent(PathEvent event) {
+				changes.add(event.getPath());
+			}
+		}, SubscriptionPolicy.onChange(0.000001, 0));
+		String ts = Util.getIsoTimeString();
+		for(int x=0; x<3; x++){
+			signalk.putPosition(vessels_dot_self_dot+nav_position, -41.0 - x*0.1, 173.2, 0.0, "gps", ts);
+		}
+		//each batch changes the latitude, the rest only changes once
+		int lat = 0;
+		for(String key : changes){
+			if(key.equals(vessels_dot_self_dot+nav_position_latitude))lat++;
+		}
+		assertEquals(3, lat);
+		assertEquals(7, changes.size());
+		
+		//batches with different keys do not replace each other
+		final List<String> latest = new ArrayList<String>();
+		signalk.subscribe(vessels_dot_self_dot+env_wind, new PathListener() {
+			@Override
+			public void onEvent(PathEvent event) {
+				latest.add(event.getPath());
+			}
+		}, SubscriptionPolicy.latestValue(10000));
+		signalk.update(new UpdateBatch().putValue(vessels_dot_self_dot+env_wind_directionTrue, 256.3));
+		signalk.update(new UpdateBatch().putValue(vessels_dot_self_dot+env_wind_speedTrue, 7.68));
+		assertTrue(latest.contains(vessels_dot_self_dot+env_wind_directionTrue+dot+value));
+		assertTrue(latest.contains(vessels_dot_self_dot+env_wind_speedTrue+dot+value));
+	}
+	
+	@Test
+	public void shouldDropSubscriptionSlotsOnDelete(){
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		final List<PathEvent> events = new ArrayList<PathEvent>();
+		Subscription subscription = new Subscription(new PathListener() {
+			@Override
+			public void onEvent(PathEvent event) {
+				events.add(event.copy());
+			}
+		}, SubscriptionPolicy.latestValue(10000), signalk);
+		subscription.offer(new PathEvent("vessels.other.navigation.speedOverGround", 1, PathEvent.EventType.ADD));
+		subscription.offer(new PathEvent("vessels.other.navigation.courseOverGroundTrue", 2, PathEvent.EventType.ADD));
+		subscription.offer(new PathEvent("vessels.other1.navigation.courseOverGroundTrue", 3, PathEvent.EventType.ADD));
+		assertEquals(3, subscription.getSlotCount());
+		subscription.offer(new PathEvent("vessels.other1.navigation.courseOverGroundTrue", 4, PathEvent.EventType.DEL));
+		assertEquals(2, subscription.getSlotCount());
+		subscription.offer(new PathEvent("vessels.other", 5, PathEvent.EventType.DEL_SUBTREE));
+		assertEquals(0, subscription.getSlotCount());
+		//the deletes are delivered at once
+		assertEquals(5, events.size());
+		assertEquals(PathEvent.EventType.DEL_SUBTREE, events.get(4).getType());
+	}
+	
+	@Test
+	public void shouldCarryValuesInEvents(){
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		SignalKPath path = SignalKPath.get(vessels_dot_self_dot+ env_wind_directionTrue);
+		final List<PathEvent> events = new ArrayList<PathEvent>();
+		signalk.subscribe(vessels_dot_self_dot+env_wind, new PathListener() {
+			@Override
+			public void onEvent(PathEvent event) {
+				events.add(event.copy());
+			}
+		});
+		long ts = 1458032882110L;
+		signalk.putDouble(path, 256.3, "masthead", ts);
+		signalk.putDouble(path, 250.1, "masthead", ts+1000);
+		//the $source is unchanged the second time
+		assertEquals(5, events.size());
+		
+		//the second put changes the slots in place, but each event keeps its own values
+		PathEvent first = events.get(0);
+		assertEquals(path.getValueKey(), first.getPath());
+		assertEquals(256.3, first.getDouble(), 0.00001);
+		assertTrue(Double.isNaN(first.getOldDouble()));
+		assertEquals("masthead", first.getSource());
+		assertEquals(ts, first.getSourceTimestamp());
+		
+		PathEvent second = events.get(3);
+		assertEquals(path.getValueKey(), second.getPath());
+		assertEquals(250.1, second.getDouble(), 0.00001);
+		assertEquals(256.3, second.getOldDouble(), 0.00001);
+		assertEquals(250.1, (Double)second.getValue(), 0.00001);
+		
+		PathEvent timestamp = events.get(4);
+		assertEquals(path.getTimestampKey(), timestamp.getPath());
+		assertEquals(Util.getIsoTimeString(ts+1000), timestamp.getValue());
+		assertEquals(ts, (long)timestamp.getOldDouble());
+		
+		events.clear();
+		signalk.put(path.getKey(), null, "masthead");
+		assertEquals(1, events.size());
+		assertEquals(PathEvent.EventType.DEL_SUBTREE, events.get(0).getType());
+		assertEquals(path.getKey(), events.get(0).getPath());
+		assertNull(events.get(0).getValue());
+	}
+	
+	@Test
+	public void shouldDeleteSubtreeInOneEvent(){
+		SignalKModel signalk = SignalKModelFactory.getPartitionedInstance();
+		final List<PathEvent> events = new ArrayList<PathEvent>();
+		//below the deleted key
+		signalk.subscribe("vessels.*.navigation", new PathListener() {
+			@Override
+			public void onEvent(PathEvent event) {
+				events.add(event.copy());
+			}
+		});
+		String ts = Util.getIsoTimeString();
+		signalk.put("vessels.other.navigation.speedOverGround", 3.2, "ais", ts);
+		signalk.put("vessels.other.navigation.courseOverGroundTrue", 1.2, "ais", ts);
+		signalk.put("vessels.other1.navigation.courseOverGroundTrue", 1.2, "ais", ts);
+		long rev = signalk.getRevision();
+		events.clear();
+		
+		signalk.put("vessels.other", null, "ais");
+		assertEquals(1, events.size());
+		assertEquals(PathEvent.EventType.DEL_SUBTREE, events.get(0).getType());
+		assertEquals("vessels.other", events.get(0).getPath());
+		assertEquals(0, signalk.getSubMap("vessels.other").size());
+		assertEquals(6, signalk.getSubMap("vessels.other1").size());
+		assertEquals("null", signalk.getChangedSince(rev, "vessels.other").get("vessels.other"));
+	}
+	
+	@Test
+	public void shouldReplayChanges(){
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		assertNull(signalk.replayFrom(0));
+		signalk.setChangeJournal(new ChangeJournal(1024));
+		SignalKPath path = SignalKPath.get(vessels_dot_self_dot+ env_wind_directionTrue);
+		long ts = 1458032882110L;
+		signalk.putDouble(path, 256.3, "masthead", ts);
+		long rev = signalk.getRevision();
+		
+		signalk.putDouble(path, 250.1, "masthead", ts+1000);
+		signalk.update(new UpdateBatch()
+			.put(vessels_dot_self_dot+ env_wind_speedTrue, 7.68, "masthead", ts+1000));
+		signalk.put(path.getKey(), null, "masthead");
+		
+		Iterator<PathEvent> changes = signalk.replayFrom(rev);
+		PathEvent change = changes.next();
+		assertEquals(path.getValueKey(), change.getPath());
+		assertEquals(250.1, change.getDouble(), 0.00001);
+		assertEquals(path.getTimestampKey(), changes.next().getPath());
+		List<PathEvent> rest = new ArrayList<PathEvent>();
+		while(changes.hasNext())rest.add(changes.next());
+		//the batch by key, then the delete
+		assertEquals(vessels_dot_self_dot+ env_wind_speedTrue+dot+value, rest.get(0).getPath());
+		assertEquals(7.68, rest.get(0).getDouble(), 0.00001);
+		PathEvent delete = rest.get(rest.size()-1);
+		assertEquals(PathEvent.EventType.DEL_SUBTREE, delete.getType());
+		assertEquals(signalk.getRevision(), delete.getRevision());
+		assertTrue(!signalk.replayFrom(signalk.getRevision()).hasNext());
+	}
+	
+	@Test
+	public void shouldStoreMillisTimestamps() throws IOException{
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		SignalKPath path = SignalKPath.get(vessels_dot_self_dot+ env_wind_directionTrue);
+		long ts = 1458032882110L;
+		signalk.putDouble(path, 256.3, "masthead", ts);
+		Object slot = ((SignalKModelImpl) signalk).getStored(path.getTimestampKey());
+		assertTrue(slot instanceof TimestampSlot);
+		assertEquals("2016-03-15T09:08:02.110Z", signalk.get(path.getTimestampKey()));
+		//readers of the map get the String
+		assertEquals("2016-03-15T09:08:02.110Z", signalk.getFullData().get(path.getTimestampKey()));
+		assertEquals(ts, signalk.getTimestamp(path));
+		
+		//updated in place
+		signalk.putDouble(path, 250.0, "masthead", ts+1000);
+		assertTrue(slot == ((SignalKModelImpl) signalk).getStored(path.getTimestampKey()));
+		assertEquals("2016-03-15T09:08:03.110Z", signalk.getSubMap(path.getKey()).get(path.getTimestampKey()));
+		assertEquals("2016-03-15T09:08:03.110Z", signalk.getChangedSince(0, path.getKey()).get(path.getTimestampKey()));
+		assertEquals("2016-03-15T09:08:03.110Z", signalk.get(path.getTimestampKey()));
+		assertEquals("2016-03-15T09:08:03.110Z", signalk.getValues(path.getKey()).get(path.getValues("masthead").getTimestampKey()));
+		
+		//serialized as the iso string
+		Json json = new JsonSerializer().writeJson(signalk);
+		assertEquals("2016-03-15T09:08:03.110Z", json.at(vessels).at(self).at("environment").at("wind").at("directionTrue").at(timestamp).asString());
+		
+		//a string timestamp replaces the slot
+		signalk.put(path, 240.0, "masthead", "2016-03-15T09:08:04.110Z");
+		assertEquals(ts+2000, signalk.getTimestamp(path));
+		
+		signalk.update(new UpdateBatch().putPosition(vessels_dot_self_dot+nav_position, -41.2, 173.2, 0.0, "gps", ts));
+		assertEquals("2016-03-15T09:08:02.110Z", signalk.get(vessels_dot_self_dot+nav_position+dot+timestamp));
+		
+		//the put without a timestamp stores the current time as a String, as it always has
+		signalk.put(vessels_dot_self_dot+ env_wind_speedTrue, 7.68, "masthead");
+		assertTrue(((SignalKModelImpl) signalk).getStored(vessels_dot_self_dot+ env_wind_speedTrue+dot+timestamp) instanceof String);
+	}
+	
+	@Test
+	public void shouldPutBySourceId(){
+		SignalKModelImpl signalk = (SignalKModelImpl) SignalKModelFactory.getCleanInstance();
+		signalk.setSourceLimits(2, 0);
+		SignalKPath path = SignalKPath.get(vessels_dot_self_dot+ env_wind_directionTrue);
+		int gps = signalk.getSourceId("gps");
+		long ts = 1458032882110L;
+		signalk.putDouble(path, 256.3, gps, ts);
+		assertEquals("gps", signalk.get(path.getSourceRefKey()));
+		assertEquals(256.3, signalk.get(path.getValues("gps").getValueKey()));
+		
+		//many more sources than the registry holds, the unused ones are dropped
+		for(int i=0;i<SourceRegistry.MAX_SOURCES+100;i++){
+			signalk.put(path, (double) i, "ais."+i, ts);
+		}
+		//the pinned id is kept
+		signalk.put(path, 250.0, gps, ts);
+		assertEquals(250.0, signalk.get(path.getValues("gps").getValueKey()));
+		assertEquals(6, signalk.getValues(path.getKey()).size());
+		try{
+			signalk.put(path, 1.0, -2, ts);
+			fail("Should reject an unknown source id");
+		}catch(IllegalArgumentException e){
+			//expected
+		}
+	}
+	
+	@Test
+	public void shouldSerializeSourceValues() throws IOException{
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		String key = vessels_dot_self_dot+ env_wind_directionTrue;
+		SignalKPath path = SignalKPath.get(key);
+		String ts = "2016-03-30T08:05:38.546Z";
+		signalk.put(key, 256.3, "masthead", ts);
+		signalk.put(key, 250.0, "bow", ts);
+		//a sibling that sorts between the path and its values
+		signalk.put(key+"-x", 1.0, "bow", ts);
+		
+		//merged in key order
+		NavigableMap<String, Object> map = signalk.getSubMap(key);
+		List<String> keys = new ArrayList<String>(map.keySet());
+		assertEquals(15, keys.size());
+		for(int i=1;i<keys.size();i++){
+			assertTrue(keys.get(i-1).compareTo(keys.get(i)) < 0);
+		}
+		assertEquals(path.getValues("masthead").getValueKey(), map.lastKey());
+		assertEquals(path.getValues("masthead").getValueKey(), map.descendingMap().firstKey());
+		//a range starting inside the values
+		assertEquals(250.0, map.tailMap(path.getValues("bow").getTimestampKey(), false).firstEntry().getValue());
+		
+		Json json = new JsonSerializer().writeJson(signalk);
+		Json values = json.at(vessels).at(self).at("environment").at("wind").at("directionTrue").at("values");
+		assertEquals(256.3, values.at("masthead").at(value).asDouble(), 0.000001);
+		assertEquals(250.0, values.at("bow").at(value).asDouble(), 0.000001);
+		assertEquals(ts, values.at("bow").at(timestamp).asString());
+		
+		//removing the entries drops the source
+		signalk.getFullData().remove(path.getValues("bow").getValueKey());
+		assertNull(signalk.getValues(key).get(path.getValues("bow").getValueKey()));
+		assertEquals(3, signalk.getValues(key).size());
+	}
+	
+	@Test
+	public void shouldCopyEventsUnlessTurnedOff(){
+		SignalKModelImpl signalk = (SignalKModelImpl) SignalKModelFactory.getCleanInstance();
+		final List<PathEvent> events = new ArrayList<PathEvent>();
+		signalk.getEventBus().register(new Object(){
+			@Subscribe
+			public void recordEvent(PathEvent pathEvent){
+				events.add(pathEvent);
+			}
+		});
+		String key = vessels_dot_self_dot+ env_wind_directionTrue;
+		signalk.put(key, 256.3, "masthead");
+		signalk.put(key, 250.0, "masthead");
+		//the EventBus subscribers can keep the events
+		assertTrue(events.get(0) != events.get(events.size()-1));
+		assertEquals(key+dot+value, events.get(0).getPath());
+		assertEquals(256.3, events.get(0).getValue());
+		
+		events.clear();
+		signalk.getEventBusDispatcher().setCopyEvents(false);
+		signalk.put(key, 256.3, "masthead");
+		signalk.put(key, 250.0, "masthead");
+		//the events are reset for reuse once delivered
+		assertNull(events.get(0).getPath());
+	}
+	
+	@Test
+	public void shouldUpdateBatch(){
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		final List<PathEvent> events = new ArrayList<PathEvent>();
+		signalk.getEventBus().register(new Object(){
+			@Subscribe
+			public void recordEvent(PathEvent pathEvent){
+				events.add(pathEvent);
+			}
+		});
+		String ts = Util.getIsoTimeString();
+		UpdateBatch batch = new UpdateBatch()
+			.put(vessels_dot_self_dot+ env_wind_directionTrue, 256.3, "masthead", ts)
+			.put(vessels_dot_self_dot+ env_wind_speedTrue, 7.68, "masthead", ts);
+		assertTrue(signalk.update(batch));
+		assertEquals(1, events.size());
+		BatchEvent event = (BatchEvent) events.get(0);
+		assertEquals(vessels_dot_self_dot+env_wind, event.getPath());
+		assertEquals(6, event.getPaths().size());
+		assertEquals(256.3, (Double) signalk.getValue(vessels_dot_self_dot+ env_wind_directionTrue), 0.000001);
+		assertEquals("masthead", signalk.get(vessels_dot_self_dot+ env_wind_speedTrue+dot+sourceRef));
+		
+		//a conflict anywhere in the batch leaves the model alone
+		int size = signalk.getFullData().size();
+		batch.clear();
+		batch.put(vessels_dot_self_dot+ env_wind_directionTrue, 200.0, "masthead", ts)
+			.putValue(vessels_dot_self_dot+ env_wind_speedTrue+dot+value+dot+"foo", 1.0);
+		try{
+			signalk.update(batch);
+			fail();
+		}catch(IllegalArgumentException e){
+			logger.debug(e.getMessage());
+		}
+		assertEquals(size, signalk.getFullData().size());
+		assertEquals(256.3, (Double) signalk.getValue(vessels_dot_self_dot+ env_wind_directionTrue), 0.000001);
+		assertEquals(1, events.size());
+		
+		//position is one event
+		signalk.putPosition(vessels_dot_self_dot+nav_position, -41.2, 173.2, 0.0, "gps", ts);
+		assertEquals(2, events.size());
+		assertEquals(vessels_dot_self_dot+nav_position, events.get(1).getPath());
+		assertTrue(events.get(1).getRevision() > event.getRevision());
+		assertEquals(-41.2, (Double)signalk.get(vessels_dot_self_dot+nav_position+".latitude"), 0.000001);
+		//replacing a branch with a leaf in one batch
+		batch.clear();
+		batch.put(vessels_dot_self_dot+ env_wind, null, "masthead", ts)
+			.putValue(vessels_dot_self_dot+ env_wind, 1.0);
+		signalk.update(batch);
+		assertEquals(1.0, (Double) signalk.getValue(vessels_dot_self_dot+ env_wind), 0.000001);
+		assertEquals(1, signalk.getSubMap(vessels_dot_self_dot+ env_wind).size());
+	}
+	
+	@Test
+	public void shouldTrackRevisions(){
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		String ts = Util.getIsoTimeString();
+		signalk.put(vessels_dot_self_dot+ env_wind_directionTrue, 256.3, "masthead", ts);
+		signalk.putPosition(vessels_dot_self_dot+nav_position, -41.2, 173.2, 0.0, "gps", ts);
+		long rev = signalk.getRevision();
+		assertTrue(rev > 0);
+		assertTrue(signalk.getRevision(vessels_dot_self_dot+ env_wind_directionTrue+dot+value) > 0);
+		assertEquals(0, signalk.getChangedSince(rev, null).size());
+		
+		signalk.put(vessels_dot_self_dot+ env_wind_directionTrue, 250.0, "masthead", ts);
+		signalk.put(vessels_dot_self_dot+nav_position, null, "gps", ts);
+		assertTrue(signalk.getRevision(vessels_dot_self_dot+ env_wind_directionTrue+dot+value) > rev);
+		
+		NavigableMap<String, Object> changes = signalk.getChangedSince(rev, vessels_dot_self_dot+env_wind);
+		logger.debug(changes);
+		//the value and the masthead values entries
+		assertEquals(4, changes.size());
+		assertEquals(250.0, changes.get(vessels_dot_self_dot+ env_wind_directionTrue+dot+value));
+		assertEquals(250.0, changes.get(SignalKPath.get(vessels_dot_self_dot+ env_wind_directionTrue).getValues("masthead").getValueKey()));
+		
+		//the deleted subtree has one tombstone
+		changes = signalk.getChangedSince(rev, vessels_dot_self);
+		assertEquals("null", changes.get(vessels_dot_self_dot+nav_position));
+		assertEquals(5, changes.size());
+		changes = signalk.getChangedSince(rev, vessels_dot_self_dot+nav_position+".latitude");
+		assertEquals("null", changes.get(vessels_dot_self_dot+nav_position+".latitude"));
+		assertEquals(0, signalk.getRevision(vessels_dot_self_dot+nav_position+".latitude"));
+	}
+	
+	@Test
+	public void shouldTakeOneRevisionPerBatch(){
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		String ts = Util.getIsoTimeString();
+		signalk.put(vessels_dot_self_dot+ env_wind_directionTrue, 256.3, "masthead", ts);
+		long rev = signalk.getRevision();
+		signalk.update(new UpdateBatch()
+				.put(vessels_dot_self_dot+ env_wind_directionTrue, 250.0, "masthead", ts)
+				.put(vessels_dot_self_dot+ env_wind_speedTrue, 7.68, "masthead", ts)
+				.put(vessels_dot_self_dot+ nav_courseOverGroundTrue, 3.0176, "gps", ts));
+		//the key.values entries share the batch revision
+		assertEquals(rev+1, signalk.getRevision());
+		assertEquals(rev+1, signalk.getRevision(vessels_dot_self_dot+ env_wind_speedTrue+dot+values));
+		NavigableMap<String, Object> changes = signalk.getChangedSince(rev, vessels_dot_self_dot+ env_wind_speedTrue);
+		assertEquals(7.68, changes.get(SignalKPath.get(vessels_dot_self_dot+ env_wind_speedTrue).getValues("masthead").getValueKey()));
+
+		//a source that only changes the values does not take a revision
+		signalk.put(vessels_dot_self_dot+ env_wind_directionTrue, 240.0, "other", ts);
+		assertEquals(rev+1, signalk.getRevision());
+	}
+	
 	@Test
 	public void shouldDeleteBranch() throws IOException {
 		SignalKModel signalk = SignalKModelFactory.getMotuTestInstance();
@@ -343,4 +953,25 @@ public class SignalKModelImplTest {
 		assertEquals(755, attr.getMode());
 	}
 	
+	@Test
+	public void shouldPutButNotUpdateHoldingReadLock() {
+		SignalKModel signalk = SignalKModelFactory.getCleanInstance();
+		signalk.readLock().lock();
+		try{
+			//single puts share the read lock
+			signalk.put(vessels_dot_self_dot+nav_courseOverGroundTrue, 1.0, "test.src");
+			assertEquals(1.0, signalk.getValue(vessels_dot_self_dot+nav_courseOverGroundTrue));
+			try{
+				signalk.putPosition(vessels_dot_self_dot+nav_position, -41.0, 173.0, 0.0, "test.src", Util.getIsoTimeString());
+				fail("Should not wait for its own read lock");
+			}catch(IllegalStateException e){
+				//expected
+			}
+		}finally{
+			signalk.readLock().unlock();
+		}
+		signalk.putPosition(vessels_dot_self_dot+nav_position, -41.0, 173.0, 0.0, "test.src", Util.getIsoTimeString());
+		assertEquals(-41.0, signalk.get(vessels_dot_self_dot+nav_position_latitude));
+	}
+	
 }
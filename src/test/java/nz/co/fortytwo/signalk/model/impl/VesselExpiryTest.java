@@ -0,0 +1,73 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.model.impl;
+
+import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_directionTrue;
+import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertEquals;
+
+import nz.co.fortytwo.signalk.model.SignalKModel;
+import nz.co.fortytwo.signalk.util.Util;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class VesselExpiryTest {
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		Util.getConfig();
+	}
+
+	@Test
+	public void shouldExpireStaleVessels() throws Exception {
+		SignalKModel model = SignalKModelFactory.getPartitionedInstance();
+		String ts = Util.getIsoTimeString();
+		model.put("vessels.old.navigation.speedOverGround", 3.2, "ais", ts);
+		VesselExpiry expiry = new VesselExpiry(model, 1000);
+		expiry.start();
+		model.put("vessels.busy.navigation.speedOverGround", 3.2, "ais", ts);
+		model.put("vessels.quiet.navigation.speedOverGround", 3.2, "ais", ts);
+		model.put(vessels_dot_self_dot + env_wind_directionTrue, 256.3, "masthead", ts);
+		long now = System.currentTimeMillis();
+		assertEquals(3, expiry.size());
+
+		assertEquals(0, expiry.sweep(now + 500));
+		//still updating
+		Thread.sleep(100);
+		model.put("vessels.busy.navigation.speedOverGround", 3.3, "ais", ts);
+		assertEquals(2, expiry.sweep(now + 1050));
+		assertEquals(0, model.getSubMap("vessels.old").size());
+		assertEquals(0, model.getSubMap("vessels.quiet").size());
+		//value, timestamp and sourceRef, and the same in values.ais
+		assertEquals(6, model.getSubMap("vessels.busy").size());
+		assertEquals(6, model.getSubMap(vessels_dot_self_dot + env_wind_directionTrue).size());
+		assertEquals(1, expiry.size());
+
+		//a vessel that comes back is tracked again
+		model.put("vessels.quiet.navigation.speedOverGround", 3.2, "ais", ts);
+		assertEquals(2, expiry.size());
+		expiry.stop();
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DoubleFormatterTest {
+
+	//the JsonSerializer formatting before DoubleFormatter
+	private static String format(double value, int places) {
+		DecimalFormat df = new DecimalFormat("0.0", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+		df.setMaximumFractionDigits(places);
+		String v = df.format(value);
+		int j = v.length() - 1;
+		while (j > 0 && v.charAt(j) == '0') {
+			j--;
+		}
+		if (v.charAt(j) == '.') {
+			j++;
+		}
+		return v.substring(0, j + 1);
+	}
+
+	private static String append(double value, int places) {
+		StringBuilder sb = new StringBuilder();
+		return DoubleFormatter.append(sb, value, places) ? sb.toString() : null;
+	}
+
+	@Test
+	public void shouldFormatLikeDecimalFormat() {
+		assertEquals("245.69", append(245.69, 8));
+		assertEquals("12.0", append(12.0, 8));
+		assertEquals("-0.00001234", append(-0.00001234, 8));
+		assertEquals("0.3", append(0.1 + 0.2, 8));
+		assertEquals("0.0", append(0.0, 8));
+		Random rnd = new Random(42);
+		int fast = 0;
+		for (int i = 0; i < 200000; i++) {
+			double value = (rnd.nextDouble() - 0.5) * Math.pow(10, rnd.nextInt(20) - 10);
+			if (i % 10 == 0)
+				value = Math.rint(value * 1000) / 1000;
+			int places = 1 + rnd.nextInt(12);
+			String s = append(value, places);
+			if (s != null) {
+				fast++;
+				assertEquals(value + " to " + places, format(value, places), s);
+			}
+		}
+		//most values take the fast path
+		assertTrue(fast > 150000);
+	}
+
+	@Test
+	public void shouldRefuseTiesAndRange() {
+		//exactly half way at the 9th place
+		assertEquals(null, append(1.0 / 512, 8));
+		assertEquals(null, append(1e20, 8));
+		assertEquals(null, append(Double.NaN, 8));
+		assertEquals(null, append(Double.POSITIVE_INFINITY, 8));
+		assertEquals(null, append(1.5, 0));
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Compares the streaming JsonSerializer.write with the writer it replaced, on a 50k key model.
+ * Run by hand, eg remove the @Ignore, as the timings mean nothing on a shared build machine.
+ */
+public class JsonSerializerBenchmark {
+
+	private static Logger logger = LogManager.getLogger(JsonSerializerBenchmark.class);
+
+	private static final int VESSELS = 1000;
+	private static final int WARMUP = 20;
+	private static final int RUNS = 50;
+
+	private static NavigableMap<String, Object> model() {
+		String[] paths = { "navigation.courseOverGroundTrue", "navigation.speedOverGround", "navigation.headingTrue",
+				"navigation.rateOfTurn", "environment.wind.angleApparent", "environment.wind.speedApparent",
+				"environment.depth.belowTransducer", "environment.water.temperature", "propulsion.port.revolutions",
+				"propulsion.starboard.revolutions" };
+		NavigableMap<String, Object> map = new TreeMap<String, Object>();
+		for (int v = 0; v < VESSELS; v++) {
+			String vessel = "vessels.urn:mrn:imo:mmsi:2300" + (10000 + v) + ".";
+			map.put(vessel + "navigation.position.latitude", -41.29369354 + v * 0.001);
+			map.put(vessel + "navigation.position.longitude", 173.24708557 + v * 0.001);
+			for (int p = 0; p < paths.length; p++) {
+				String key = vessel + paths[p];
+				map.put(key + ".value", (v * 31 + p) * 0.0123);
+				map.put(key + ".timestamp", "2015-03-16T03:31:22.110Z");
+				map.put(key + ".$source", "nmea0183.GP");
+				map.put(key + ".sourceRef", "nmea0183.GP");
+				map.put(key + ".values.nmea0183.GP.value", (v * 31 + p) * 0.0123);
+			}
+		}
+		return map;
+	}
+
+	private interface Writer {
+		void write(NavigableMap<String, Object> map, StringBuilder out) throws IOException;
+	}
+
+	private static double time(Writer writer, NavigableMap<String, Object> map) throws IOException {
+		StringBuilder out = new StringBuilder(4 * 1024 * 1024);
+		for (int i = 0; i < WARMUP; i++) {
+			out.setLength(0);
+			writer.write(map, out);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			out.setLength(0);
+			writer.write(map, out);
+		}
+		return (System.nanoTime() - start) / 1e6 / RUNS;
+	}
+
+	@Test
+	@Ignore
+	public void benchmark() throws Exception {
+		final NavigableMap<String, Object> map = model();
+		final LegacyJsonSerializer legacy = new LegacyJsonSerializer();
+		final JsonSerializer ser = new JsonSerializer();
+		double before = time(new Writer() {
+			@Override
+			public void write(NavigableMap<String, Object> map, StringBuilder out) throws IOException {
+				legacy.write(map.entrySet().iterator(), '.', out);
+			}
+		}, map);
+		double after = time(new Writer() {
+			@Override
+			public void write(NavigableMap<String, Object> map, StringBuilder out) throws IOException {
+				ser.write(map.entrySet().iterator(), '.', out);
+			}
+		}, map);
+		logger.info(map.size() + " keys: legacy " + String.format("%.2f", before) + "ms, streaming "
+				+ String.format("%.2f", after) + "ms per write");
+	}
+}
@@ -4,18 +4,27 @@ import static nz.co.fortytwo.signalk.util.SignalKConstants.env_wind_speedTrue;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_courseOverGroundMagnetic;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.nav_position_latitude;
 import static nz.co.fortytwo.signalk.util.SignalKConstants.vessels_dot_self_dot;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
 
 import mjson.Json;
 import nz.co.fortytwo.signalk.model.SignalKModel;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 import nz.co.fortytwo.signalk.model.impl.SignalKModelImpl;
+import nz.co.fortytwo.signalk.model.impl.TimestampSlot;
 
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
 import org.junit.After;
@@ -120,4 +129,83 @@ public class JsonSerializerTest {
 		logger.debug(jsonOut);
 		assertEquals(jsonStr, jsonOut);
 	}
+
+	/**
+	 * A sorted model of random keys, with every kind of value
+	 */
+	static NavigableMap<String, Object> randomModel(Random rnd, int count) {
+		String[] segs = { "vessels", "motu", "navigation", "position", "latitude", "value", "values", "a", "ab", "b", "$source", "x\"y" };
+		Object[] vals = { "gps", "[1,2]", "a/b</c", "null", 12, 245.69, -0.00001234, 1e20, 1.0 / 512, true, new TimestampSlot(1458032882110L),
+				Json.read("[1,\"a\"]") };
+		NavigableMap<String, Object> map = new TreeMap<String, Object>();
+		for (int i = 0; i < count; i++) {
+			StringBuilder key = new StringBuilder();
+			int depth = 1 + rnd.nextInt(5);
+			for (int d = 0; d < depth; d++) {
+				if (d > 0)
+					key.append('.');
+				key.append(segs[rnd.nextInt(segs.length)]);
+			}
+			String k = key.toString();
+			//keep the keys leaves
+			String lower = map.floorKey(k);
+			String higher = map.higherKey(k);
+			if ((lower != null && (lower.equals(k) || k.startsWith(lower + "."))) || (higher != null && higher.startsWith(k + ".")))
+				continue;
+			Object v = vals[rnd.nextInt(vals.length)];
+			map.put(k, v instanceof Double && rnd.nextBoolean() ? rnd.nextDouble() * 360 : v);
+		}
+		return map;
+	}
+
+	@Test
+	public void shouldWriteSameAsLegacy() throws IOException {
+		Random rnd = new Random(42);
+		JsonSerializer ser = new JsonSerializer();
+		LegacyJsonSerializer legacy = new LegacyJsonSerializer();
+		for (int i = 0; i < 200; i++) {
+			NavigableMap<String, Object> map = randomModel(rnd, 1 + rnd.nextInt(i < 190 ? 50 : 5000));
+			if (i % 2 == 0) {
+				ser.setPretty(2);
+				legacy.setPretty(2);
+			} else {
+				ser.setCompact();
+				legacy.setCompact();
+			}
+			StringBuilder expected = new StringBuilder();
+			legacy.write(map.entrySet().iterator(), '.', expected);
+			StringBuilder out = new StringBuilder();
+			ser.write(map.entrySet().iterator(), '.', out);
+			assertEquals(expected.toString(), out.toString());
+			//through the chunk buffer
+			StringWriter writer = new StringWriter();
+			ser.write(map.entrySet().iterator(), '.', writer);
+			assertEquals(expected.toString(), writer.toString());
+		}
+	}
+
+	@Test
+	public void shouldWriteUtf8Bytes() throws IOException {
+		Random rnd = new Random(5);
+		SignalKModel model = SignalKModelFactory.getCleanInstance();
+		for (Map.Entry<String, Object> e : randomModel(rnd, 3000).entrySet()) {
+			if (!(e.getValue() instanceof TimestampSlot))
+				model.getFullData().put(e.getKey(), e.getValue());
+		}
+		model.putValue(vessels_dot_self_dot + "name", "T\u014dkai Maru \u6c34 \ud83d\udea2");
+		JsonSerializer ser = new JsonSerializer();
+		byte[] expected = ser.write(model).getBytes(StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(expected.length, ser.write(model, out));
+		assertArrayEquals(expected, out.toByteArray());
+
+		out = new ByteArrayOutputStream();
+		assertEquals(expected.length, ser.write(model, Channels.newChannel(out)));
+		assertArrayEquals(expected, out.toByteArray());
+
+		out = new ByteArrayOutputStream();
+		ser.write(SignalKModelFactory.getCleanInstance(), out);
+		assertEquals(ser.write(SignalKModelFactory.getCleanInstance()), new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
 }
@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright (C) 2012-2014 R T Huitema. All Rights Reserved.
+ * Web: www.42.co.nz
+ * Email: robert@42.co.nz
+ * Author: R T Huitema
+ *
+ * This file is provided AS IS with NO WARRANTY OF ANY KIND, INCLUDING THE
+ * WARRANTY OF DESIGN, MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package nz.co.fortytwo.signalk.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Utf8ByteSinkTest {
+
+	private static final char[] CHARS = { 'a', 'Z', '0', '"', '\n', 'é', 'ü', '߿', 'ࠀ', '水',
+			'￿', '\ud83d', '\udea2', '\ud800', '\udfff' };
+
+	private static String randomString(Random rnd, int len) {
+		StringBuilder sb = new StringBuilder(len);
+		for (int i = 0; i < len; i++) {
+			if (rnd.nextInt(4) == 0) {
+				//a proper pair
+				sb.append("🚢");
+			} else {
+				sb.append(CHARS[rnd.nextInt(CHARS.length)]);
+			}
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void shouldEncodeSameAsString() throws IOException {
+		Random rnd = new Random(7);
+		for (int i = 0; i < 200; i++) {
+			String s = randomString(rnd, rnd.nextInt(i < 190 ? 100 : 40000));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Utf8ByteSink sink = new Utf8ByteSink(out);
+			//random splits, so pairs are split across appends
+			int pos = 0;
+			while (pos < s.length()) {
+				int end = Math.min(s.length(), pos + rnd.nextInt(20));
+				if (end == pos + 1 && rnd.nextBoolean()) {
+					sink.append(s.charAt(pos));
+				} else {
+					sink.append(s, pos, end);
+				}
+				pos = end;
+			}
+			sink.close();
+			byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+			assertArrayEquals(s, expected, out.toByteArray());
+			assertEquals(expected.length, sink.getWritten());
+		}
+	}
+
+	@Test
+	public void shouldWriteToChannel() throws IOException {
+		String s = randomString(new Random(3), 50000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Utf8ByteSink sink = new Utf8ByteSink(Channels.newChannel(out));
+		sink.append(s);
+		sink.close();
+		assertArrayEquals(s.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+	}
+
+	@Test(expected = IOException.class)
+	public void shouldNotAppendAfterClose() throws IOException {
+		Utf8ByteSink sink = new Utf8ByteSink(new ByteArrayOutputStream());
+		sink.close();
+		sink.append("abc");
+	}
+}
@@ -36,6 +36,8 @@ import nz.co.fortytwo.signalk.model.impl.SignalKModelFactory;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.logging.log4j.LogManager; import org.apache.logging.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -53,6 +55,16 @@ public class UtilTest {
 	public void tearDown() throws Exception {
 	}
 
+	@Test
+	public void shouldFormatIsoTime(){
+		long now = System.currentTimeMillis();
+		for(long t : new long[]{now, now, now+1, now+999, now+1000, 0, 1458032882110L, -1}){
+			assertEquals(new DateTime(t, DateTimeZone.UTC).toDateTimeISO().toString(), Util.getIsoTimeString(t));
+		}
+		assertEquals(1458032882110L, Util.getMillisFromIsoTime("2016-03-15T09:08:02.110Z"));
+		assertEquals(-1, Util.getMillisFromIsoTime("yesterday"));
+	}
+
 	@Test
 	public void shouldGetUuidContext(){
 		String path = "vessels.urn:mrn:signalk:uuid:28f9a6ae-ee66-4464-9ce4-a6dca3e33c7c";